@@ -94,19 +94,7 @@ public class ActivityUtils {
    * @return Creates a unique path to an activity in the form of 2010-01-21-09-randombit
    */
   public static String createId() {
-    Calendar c = Calendar.getInstance();
-
-    String[] vals = new String[4];
-    vals[0] = "" + c.get(Calendar.YEAR);
-    vals[1] = StringUtils.leftPad("" + (c.get(Calendar.MONTH) + 1), 2, "0");
-    vals[2] = StringUtils.leftPad("" + c.get(Calendar.DAY_OF_MONTH), 2, "0");
-    vals[3] = StringUtils.leftPad("" + c.get(Calendar.HOUR_OF_DAY), 2, "0");
-
-    StringBuilder id = new StringBuilder();
-
-    for (String v : vals) {
-      id.append(v).append("-");
-    }
+    StringBuilder id = datePrefix();
 
     byte[] bytes = new byte[20];
     String randomHash = "";
@@ -125,6 +113,32 @@ public class ActivityUtils {
     id.append(randomHash);
     return id.toString();
   }
+
+  /**
+   * @param uniqueId
+   *          an ID that is unique in the cluster and contains no '-'.
+   * @return Creates a path to an activity in the form of 2010-01-21-09-uniqueId
+   */
+  public static String createId(String uniqueId) {
+    return datePrefix().append(uniqueId).toString();
+  }
+
+  private static StringBuilder datePrefix() {
+    Calendar c = Calendar.getInstance();
+    StringBuilder id = new StringBuilder(48);
+    id.append(c.get(Calendar.YEAR)).append('-');
+    appendTwoDigits(id, c.get(Calendar.MONTH) + 1);
+    appendTwoDigits(id, c.get(Calendar.DAY_OF_MONTH));
+    appendTwoDigits(id, c.get(Calendar.HOUR_OF_DAY));
+    return id;
+  }
+
+  private static void appendTwoDigits(StringBuilder id, int value) {
+    if (value < 10) {
+      id.append('0');
+    }
+    id.append(value).append('-');
+  }
   
   /**
    * Post an activity event. processed by activity listeners.
@@ -0,0 +1,393 @@
+/**
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.activity;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.DelayQueue;
+import java.util.concurrent.Delayed;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Delivers activities off the request thread. Activities are taken from the queue in
+ * batches, and the activities in a batch with the same actor and source are handed to the
+ * {@link Delivery} together, so a burst of activities shares one delivery. When the queue
+ * is full, {@link #offer(PendingActivity)} returns false and the caller delivers the
+ * activity itself.
+ * <p>
+ * A group that fails is tried again after a delay that doubles with each attempt. Once
+ * its attempts run out it is left for {@link Delivery#recover()}, which runs when the
+ * queue starts and then every recover interval.
+ */
+public class ActivityDeliveryQueue implements Runnable, ActivityDeliveryQueueMBean {
+
+  private static final Logger LOGGER = LoggerFactory.getLogger(ActivityDeliveryQueue.class);
+
+  /**
+   * Does the work of delivering activities.
+   */
+  public interface Delivery {
+
+    /**
+     * @return activities that were queued but not delivered and that no running queue is
+     *         still delivering.
+     */
+    List<PendingActivity> recover();
+
+    /**
+     * Deliver activities that share an actor and source.
+     *
+     * @param activities
+     *          the activities, oldest first.
+     * @throws Exception
+     *           if the activities could not be delivered.
+     */
+    void deliver(List<PendingActivity> activities) throws Exception;
+  }
+
+  /**
+   * An activity waiting to be delivered.
+   */
+  public static class PendingActivity {
+    private final String path;
+    private final String actor;
+    private final String source;
+    private final long queued;
+
+    public PendingActivity(String path, String actor, String source, long queued) {
+      this.path = path;
+      this.actor = actor;
+      this.source = source;
+      this.queued = queued;
+    }
+
+    public String getPath() {
+      return path;
+    }
+
+    public String getActor() {
+      return actor;
+    }
+
+    public String getSource() {
+      return source;
+    }
+
+    public long getQueued() {
+      return queued;
+    }
+
+    String getKey() {
+      return actor + "\n" + source;
+    }
+  }
+
+  /**
+   * A group of activities waiting to be tried again.
+   */
+  private static class Retry implements Delayed {
+    private final List<PendingActivity> activities;
+    private final int attempts;
+    private final long due;
+
+    private Retry(List<PendingActivity> activities, int attempts, long due) {
+      this.activities = activities;
+      this.attempts = attempts;
+      this.due = due;
+    }
+
+    public long getDelay(TimeUnit unit) {
+      return unit.convert(due - System.currentTimeMillis(), TimeUnit.MILLISECONDS);
+    }
+
+    public int compareTo(Delayed o) {
+      long other = ((Retry) o).due;
+      return due < other ? -1 : (due == other ? 0 : 1);
+    }
+  }
+
+  private static final long MAX_RETRY_DELAY = 300000L;
+
+  private final Delivery delivery;
+  private final BlockingQueue<PendingActivity> queue;
+  private final DelayQueue<Retry> retries = new DelayQueue<Retry>();
+  private final int capacity;
+  private final int batchSize;
+  private final long batchDelay;
+  private final long retryDelay;
+  private final int maxAttempts;
+  private final long recoverInterval;
+  private final AtomicInteger retrying = new AtomicInteger();
+  private final AtomicLong delivered = new AtomicLong();
+  private final AtomicLong coalesced = new AtomicLong();
+  private final AtomicLong batches = new AtomicLong();
+  private final AtomicLong deliveredInline = new AtomicLong();
+  private final AtomicLong failed = new AtomicLong();
+  private volatile long lastBatchLag;
+  private volatile boolean running;
+  private Thread dispatcher;
+
+  /**
+   * @param delivery
+   *          delivers the activities.
+   * @param capacity
+   *          the number of activities to hold before {@link #offer(PendingActivity)}
+   *          refuses more.
+   * @param batchSize
+   *          the most activities to deliver in one batch.
+   * @param batchDelay
+   *          how long, in ms, to wait for more activities once the first of a batch has
+   *          arrived.
+   */
+  public ActivityDeliveryQueue(Delivery delivery, int capacity, int batchSize,
+      long batchDelay) {
+    this(delivery, capacity, batchSize, batchDelay, 1000L, 5, 0L);
+  }
+
+  /**
+   * @param retryDelay
+   *          how long, in ms, to wait before trying a failed group again, doubled for
+   *          each further attempt.
+   * @param maxAttempts
+   *          the most times to try a group before leaving it for recovery.
+   * @param recoverInterval
+   *          how often, in ms, to recover activities after the queue has started, 0 to
+   *          only recover when it starts.
+   */
+  public ActivityDeliveryQueue(Delivery delivery, int capacity, int batchSize,
+      long batchDelay, long retryDelay, int maxAttempts, long recoverInterval) {
+    this.delivery = delivery;
+    this.capacity = Math.max(1, capacity);
+    this.batchSize = Math.max(1, batchSize);
+    this.batchDelay = Math.max(0, batchDelay);
+    this.retryDelay = Math.max(1, retryDelay);
+    this.maxAttempts = Math.max(1, maxAttempts);
+    this.recoverInterval = Math.max(0, recoverInterval);
+    this.queue = new LinkedBlockingQueue<PendingActivity>(this.capacity);
+  }
+
+  public synchronized void start() {
+    if (dispatcher == null) {
+      running = true;
+      dispatcher = new Thread(this, "Activity Delivery");
+      dispatcher.setDaemon(true);
+      dispatcher.start();
+    }
+  }
+
+  /**
+   * Stop delivering. Activities still in the queue or waiting to be tried again are left
+   * for {@link Delivery#recover()}.
+   */
+  public synchronized void stop() {
+    running = false;
+    if (dispatcher != null) {
+      dispatcher.interrupt();
+      try {
+        dispatcher.join(10000L);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+      dispatcher = null;
+    }
+    retries.clear();
+    retrying.set(0);
+  }
+
+  /**
+   * @param activity
+   *          the activity to deliver.
+   * @return true if the activity was queued, false if the queue is full or stopped and the
+   *         caller should deliver the activity itself.
+   */
+  public boolean offer(PendingActivity activity) {
+    if (running && queue.offer(activity)) {
+      return true;
+    }
+    deliveredInline.incrementAndGet();
+    return false;
+  }
+
+  public void run() {
+    recover();
+    long nextRecover = System.currentTimeMillis() + recoverInterval;
+    List<PendingActivity> batch = new ArrayList<PendingActivity>(batchSize);
+    while (running) {
+      try {
+        for (Retry retry = retries.poll(); retry != null && running; retry = retries.poll()) {
+          retrying.addAndGet(-retry.activities.size());
+          deliverGroup(retry.activities, retry.attempts);
+        }
+        if (recoverInterval > 0 && System.currentTimeMillis() >= nextRecover) {
+          recover();
+          nextRecover = System.currentTimeMillis() + recoverInterval;
+        }
+        // wake for the next retry or recovery if nothing arrives before then
+        long idle = Long.MAX_VALUE;
+        Retry nextRetry = retries.peek();
+        if (nextRetry != null) {
+          idle = nextRetry.getDelay(TimeUnit.MILLISECONDS);
+        }
+        if (recoverInterval > 0) {
+          idle = Math.min(idle, nextRecover - System.currentTimeMillis());
+        }
+        PendingActivity first = idle == Long.MAX_VALUE ? queue.take() : queue.poll(
+            Math.max(0, idle), TimeUnit.MILLISECONDS);
+        if (first == null) {
+          continue;
+        }
+        batch.add(first);
+        // give a burst the chance to arrive so it can be delivered together
+        long end = System.currentTimeMillis() + batchDelay;
+        while (batch.size() < batchSize) {
+          long wait = end - System.currentTimeMillis();
+          PendingActivity next = wait > 0 ? queue.poll(wait, TimeUnit.MILLISECONDS) : queue
+              .poll();
+          if (next == null) {
+            break;
+          }
+          batch.add(next);
+        }
+        deliverBatch(batch);
+      } catch (InterruptedException e) {
+        LOGGER.debug("Activity delivery interrupted");
+      } catch (Exception e) {
+        LOGGER.error("Activity delivery failed " + e.getMessage(), e);
+      } finally {
+        batch.clear();
+      }
+    }
+  }
+
+  private void recover() {
+    try {
+      List<PendingActivity> recovered = delivery.recover();
+      if (recovered != null && !recovered.isEmpty()) {
+        LOGGER.info("Delivering {} activities left pending", recovered.size());
+        for (int i = 0; i < recovered.size() && running; i += batchSize) {
+          deliverBatch(recovered.subList(i, Math.min(recovered.size(), i + batchSize)));
+        }
+      }
+    } catch (Exception e) {
+      LOGGER.error("Unable to recover pending activities " + e.getMessage(), e);
+    }
+  }
+
+  /**
+   * Deliver a batch of activities, grouped by actor and source.
+   *
+   * @param batch
+   *          the activities, oldest first.
+   */
+  void deliverBatch(List<PendingActivity> batch) {
+    Map<String, List<PendingActivity>> groups = new LinkedHashMap<String, List<PendingActivity>>();
+    for (PendingActivity activity : batch) {
+      List<PendingActivity> group = groups.get(activity.getKey());
+      if (group == null) {
+        group = new ArrayList<PendingActivity>();
+        groups.put(activity.getKey(), group);
+      }
+      group.add(activity);
+    }
+    for (List<PendingActivity> group : groups.values()) {
+      deliverGroup(group, 1);
+    }
+    batches.incrementAndGet();
+    lastBatchLag = System.currentTimeMillis() - batch.get(0).getQueued();
+  }
+
+  /**
+   * Deliver activities that share an actor and source, scheduling another attempt if that
+   * fails.
+   *
+   * @param attempt
+   *          the number of this attempt, from 1.
+   */
+  private void deliverGroup(List<PendingActivity> group, int attempt) {
+    try {
+      delivery.deliver(group);
+      delivered.addAndGet(group.size());
+      coalesced.addAndGet(group.size() - 1);
+    } catch (Exception e) {
+      failed.addAndGet(group.size());
+      String message = "Unable to deliver " + group.size() + " activities from "
+          + group.get(0).getActor() + " on " + group.get(0).getSource() + " on attempt "
+          + attempt + " " + e.getMessage();
+      if (attempt < maxAttempts) {
+        long delay = Math.min(MAX_RETRY_DELAY, retryDelay << Math.min(attempt - 1, 20));
+        LOGGER.warn(message + ", trying again in " + delay + "ms");
+        retrying.addAndGet(group.size());
+        retries.add(new Retry(group, attempt + 1, System.currentTimeMillis() + delay));
+      } else {
+        LOGGER.error(message + ", leaving them for recovery", e);
+      }
+    }
+  }
+
+  // ---------- ActivityDeliveryQueueMBean -------------------------------
+
+  public int getQueued() {
+    return queue.size();
+  }
+
+  public int getCapacity() {
+    return capacity;
+  }
+
+  public long getLag() {
+    PendingActivity head = queue.peek();
+    return head == null ? 0 : System.currentTimeMillis() - head.getQueued();
+  }
+
+  public long getLastBatchLag() {
+    return lastBatchLag;
+  }
+
+  public long getDelivered() {
+    return delivered.get();
+  }
+
+  public long getCoalesced() {
+    return coalesced.get();
+  }
+
+  public long getBatches() {
+    return batches.get();
+  }
+
+  public long getDeliveredInline() {
+    return deliveredInline.get();
+  }
+
+  public long getFailed() {
+    return failed.get();
+  }
+
+  public int getRetrying() {
+    return retrying.get();
+  }
+}
@@ -0,0 +1,80 @@
+/**
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.activity;
+
+/**
+ * JMX view of the activity delivery queue, registered as
+ * org.sakaiproject.nakamura.activity:type=DeliveryQueue.
+ */
+public interface ActivityDeliveryQueueMBean {
+
+  /**
+   * @return the number of activities waiting to be delivered.
+   */
+  int getQueued();
+
+  /**
+   * @return the number of activities the queue will hold before delivery falls back to
+   *         the request thread.
+   */
+  int getCapacity();
+
+  /**
+   * @return how long, in ms, the oldest waiting activity has been queued.
+   */
+  long getLag();
+
+  /**
+   * @return how long, in ms, the activities in the last batch were queued before they
+   *         were delivered.
+   */
+  long getLastBatchLag();
+
+  /**
+   * @return the number of activities delivered by the queue.
+   */
+  long getDelivered();
+
+  /**
+   * @return the number of activities delivered together with an earlier activity from
+   *         the same actor and source in the same batch.
+   */
+  long getCoalesced();
+
+  /**
+   * @return the number of batches delivered.
+   */
+  long getBatches();
+
+  /**
+   * @return the number of activities delivered on the request thread because the queue
+   *         was full.
+   */
+  long getDeliveredInline();
+
+  /**
+   * @return the number of failed attempts to deliver an activity. Failed activities are
+   *         tried again after a delay, and stay pending for recovery if they keep failing.
+   */
+  long getFailed();
+
+  /**
+   * @return the number of activities waiting to be tried again.
+   */
+  int getRetrying();
+}
@@ -25,19 +25,29 @@ import static org.sakaiproject.nakamura.api.activity.ActivityConstants.PARAM_ACT
 
 import com.google.common.collect.ImmutableMap;
 
+import org.apache.felix.scr.annotations.Activate;
 import org.apache.felix.scr.annotations.Component;
+import org.apache.felix.scr.annotations.Deactivate;
+import org.apache.felix.scr.annotations.Modified;
+import org.apache.felix.scr.annotations.Property;
 import org.apache.felix.scr.annotations.Reference;
 import org.apache.felix.scr.annotations.Service;
+import org.apache.sling.commons.osgi.PropertiesUtil;
 import org.apache.sling.jcr.resource.JcrResourceConstants;
 import org.osgi.service.event.EventAdmin;
+import org.sakaiproject.nakamura.activity.ActivityDeliveryQueue.PendingActivity;
 import org.sakaiproject.nakamura.api.activity.ActivityConstants;
 import org.sakaiproject.nakamura.api.activity.ActivityRoute;
 import org.sakaiproject.nakamura.api.activity.ActivityRouterManager;
 import org.sakaiproject.nakamura.api.activity.ActivityUtils;
+import org.sakaiproject.nakamura.api.cluster.ClusterServer;
+import org.sakaiproject.nakamura.api.cluster.ClusterTrackingService;
+import org.sakaiproject.nakamura.api.cluster.UniqueIdService;
 import org.sakaiproject.nakamura.api.lite.Repository;
 import org.sakaiproject.nakamura.api.lite.Session;
 import org.sakaiproject.nakamura.api.lite.StorageClientException;
 import org.sakaiproject.nakamura.api.lite.StorageClientUtils;
+import org.sakaiproject.nakamura.api.lite.accesscontrol.AccessControlManager;
 import org.sakaiproject.nakamura.api.lite.accesscontrol.AccessDeniedException;
 import org.sakaiproject.nakamura.api.lite.accesscontrol.AclModification;
 import org.sakaiproject.nakamura.api.lite.accesscontrol.AclModification.Operation;
@@ -50,19 +60,77 @@ import org.sakaiproject.nakamura.api.lite.content.ContentManager;
 import org.sakaiproject.nakamura.api.user.UserConstants;
 import org.sakaiproject.nakamura.util.SparseUtils;
 import org.sakaiproject.nakamura.util.osgi.EventUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.Dictionary;
+import java.util.HashSet;
 import java.util.Hashtable;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
 import javax.servlet.ServletException;
 
-@Component
+/**
+ * Creates activities. The request thread only stores the activity itself; routing it,
+ * granting its readers access and announcing it are left to an {@link ActivityDeliveryQueue}.
+ * Each queued activity is also recorded under {@link #PENDING_ROOT} until it has been
+ * delivered, along with the server that queued it. A server recovers the records left by
+ * servers that are no longer running and any record older than the recover lease, so
+ * activities queued when a server stops are still delivered.
+ */
+@Component(metatype = true)
 @Service(value=ActivityService.class)
-public class ActivityServiceImpl implements ActivityService {
+public class ActivityServiceImpl implements ActivityService, ActivityDeliveryQueue.Delivery {
+
+  private static final Logger LOGGER = LoggerFactory.getLogger(ActivityServiceImpl.class);
+
+  static final String PENDING_ROOT = "/var/activity/pending";
+  static final String PENDING_PATH = "path";
+  static final String PENDING_ACTOR = "actor";
+  static final String PENDING_SOURCE = "source";
+  static final String PENDING_QUEUED = "queued";
+  static final String PENDING_SERVER = "server";
+
+  private static final boolean DEFAULT_ASYNC = true;
+  @Property(boolValue = DEFAULT_ASYNC, label = "Deliver asynchronously", description = "Route activities on a background queue rather than on the request thread")
+  static final String ASYNC = "activity.delivery.async";
+
+  private static final int DEFAULT_QUEUE_SIZE = 1000;
+  @Property(intValue = DEFAULT_QUEUE_SIZE, label = "Queue size", description = "Activities to hold before delivery falls back to the request thread")
+  static final String QUEUE_SIZE = "activity.delivery.queue.size";
+
+  private static final int DEFAULT_BATCH_SIZE = 50;
+  @Property(intValue = DEFAULT_BATCH_SIZE, label = "Batch size", description = "The most activities to deliver together")
+  static final String BATCH_SIZE = "activity.delivery.batch.size";
+
+  private static final long DEFAULT_BATCH_DELAY = 200L;
+  @Property(longValue = DEFAULT_BATCH_DELAY, label = "Batch delay", description = "How long, in ms, to wait for more activities to join a batch")
+  static final String BATCH_DELAY = "activity.delivery.batch.delay";
+
+  private static final long DEFAULT_RETRY_DELAY = 1000L;
+  @Property(longValue = DEFAULT_RETRY_DELAY, label = "Retry delay", description = "How long, in ms, to wait before trying failed activities again, doubled for each further attempt")
+  static final String RETRY_DELAY = "activity.delivery.retry.delay";
+
+  private static final int DEFAULT_MAX_ATTEMPTS = 5;
+  @Property(intValue = DEFAULT_MAX_ATTEMPTS, label = "Attempts", description = "The most times to try delivering an activity before leaving it for recovery")
+  static final String MAX_ATTEMPTS = "activity.delivery.attempts";
+
+  private static final long DEFAULT_RECOVER_LEASE = 600000L;
+  @Property(longValue = DEFAULT_RECOVER_LEASE, label = "Recover lease", description = "How long, in ms, a server has to deliver the activities it queued before any server may recover them, and how often to look for them")
+  static final String RECOVER_LEASE = "activity.delivery.recover.lease";
 
   @Reference
   private Repository repository;
@@ -72,7 +140,70 @@ public class ActivityServiceImpl implements ActivityService {
 
   @Reference
   protected ActivityRouterManager activityRouterManager;
-  
+
+  @Reference
+  protected UniqueIdService uniqueIdService;
+
+  @Reference
+  protected ClusterTrackingService clusterTrackingService;
+
+  private ActivityDeliveryQueue deliveryQueue;
+
+  private long recoverLease = DEFAULT_RECOVER_LEASE;
+
+  private ObjectName objectName;
+
+  @Activate
+  @Modified
+  protected void activate(Map<String, Object> properties) {
+    deactivate();
+    recoverLease = PropertiesUtil.toLong(properties.get(RECOVER_LEASE),
+        DEFAULT_RECOVER_LEASE);
+    if (PropertiesUtil.toBoolean(properties.get(ASYNC), DEFAULT_ASYNC)) {
+      ActivityDeliveryQueue queue = new ActivityDeliveryQueue(this,
+          PropertiesUtil.toInteger(properties.get(QUEUE_SIZE), DEFAULT_QUEUE_SIZE),
+          PropertiesUtil.toInteger(properties.get(BATCH_SIZE), DEFAULT_BATCH_SIZE),
+          PropertiesUtil.toLong(properties.get(BATCH_DELAY), DEFAULT_BATCH_DELAY),
+          PropertiesUtil.toLong(properties.get(RETRY_DELAY), DEFAULT_RETRY_DELAY),
+          PropertiesUtil.toInteger(properties.get(MAX_ATTEMPTS), DEFAULT_MAX_ATTEMPTS),
+          recoverLease);
+      registerMBean(queue);
+      queue.start();
+      deliveryQueue = queue;
+    }
+  }
+
+  @Deactivate
+  protected void deactivate() {
+    ActivityDeliveryQueue queue = deliveryQueue;
+    deliveryQueue = null;
+    if (queue != null) {
+      queue.stop();
+    }
+    if (objectName != null) {
+      try {
+        ManagementFactory.getPlatformMBeanServer().unregisterMBean(objectName);
+      } catch (Exception e) {
+        LOGGER.debug("Unable to unregister {} {} ", objectName, e.getMessage());
+      }
+      objectName = null;
+    }
+  }
+
+  private void registerMBean(ActivityDeliveryQueue queue) {
+    try {
+      ObjectName name = new ObjectName("org.sakaiproject.nakamura.activity:type=DeliveryQueue");
+      MBeanServer mbeanServer = ManagementFactory.getPlatformMBeanServer();
+      if (mbeanServer.isRegistered(name)) {
+        mbeanServer.unregisterMBean(name);
+      }
+      mbeanServer.registerMBean(queue, name);
+      objectName = name;
+    } catch (Exception e) {
+      LOGGER.warn("Unable to register activity delivery statistics {} ", e.getMessage());
+    }
+  }
+
   public void createActivity(Session session, Content targetLocation,  String userId, ActivityServiceCallback callback) throws AccessDeniedException, StorageClientException, ServletException, IOException {
     if ( userId == null ) {
       userId = session.getUserId();
@@ -95,7 +226,8 @@ public class ActivityServiceImpl implements ActivityService {
                   Permissions.CAN_WRITE.getPermission(), Operation.OP_AND)});
     }
     // create activity within activityStore
-    String activityPath = StorageClientUtils.newPath(path, ActivityUtils.createId());
+    String activityId = ActivityUtils.createId(uniqueIdService.nextIdString());
+    String activityPath = StorageClientUtils.newPath(path, activityId);
     String activityFeedPath = StorageClientUtils.newPath(targetLocation.getPath(), "activityFeed");
 
     if (!contentManager.exists(activityFeedPath)) {
@@ -115,61 +247,197 @@ public class ActivityServiceImpl implements ActivityService {
     activtyNode.setProperty(PARAM_ACTOR_ID, userId);
     activtyNode.setProperty(ActivityConstants.PARAM_SOURCE, targetLocation.getPath());
 
+    // store the activity node
+    contentManager.update(activtyNode);
+
+    PendingActivity pending = new PendingActivity(activityPath, userId,
+        targetLocation.getPath(), System.currentTimeMillis());
+    ActivityDeliveryQueue queue = deliveryQueue;
+    Session adminSession = repository.loginAdministrative();
+    try {
+      if (queue == null) {
+        route(adminSession, Collections.singletonList(pending));
+      } else {
+        String pendingPath = StorageClientUtils.newPath(PENDING_ROOT, activityId);
+        adminSession.getContentManager().update(new Content(pendingPath, ImmutableMap.<String, Object>of(
+            PENDING_PATH, pending.getPath(),
+            PENDING_ACTOR, pending.getActor(),
+            PENDING_SOURCE, pending.getSource(),
+            PENDING_QUEUED, pending.getQueued(),
+            PENDING_SERVER, clusterTrackingService.getCurrentServerId())));
+        if (!queue.offer(pending)) {
+          // the queue is full, so this request pays for its own delivery
+          deliver(adminSession, Collections.singletonList(pending));
+        }
+      }
+    } finally {
+      SparseUtils.logoutQuietly(adminSession);
+    }
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * @see org.sakaiproject.nakamura.activity.ActivityDeliveryQueue.Delivery#recover()
+   */
+  public List<PendingActivity> recover() {
+    List<PendingActivity> pending = new ArrayList<PendingActivity>();
+    // servers that are running deliver what they queued, unless they take too long
+    Set<String> runningServers = new HashSet<String>();
+    runningServers.add(clusterTrackingService.getCurrentServerId());
+    List<ClusterServer> servers = clusterTrackingService.getAllServers();
+    if (servers != null) {
+      for (ClusterServer server : servers) {
+        runningServers.add(server.getServerId());
+      }
+    }
+    long leaseExpired = System.currentTimeMillis() - recoverLease;
+    Session adminSession = null;
+    try {
+      adminSession = repository.loginAdministrative();
+      ContentManager contentManager = adminSession.getContentManager();
+      for (Iterator<String> paths = contentManager.listChildPaths(PENDING_ROOT); paths.hasNext();) {
+        Content marker = contentManager.get(paths.next());
+        if (marker != null && marker.hasProperty(PENDING_PATH)
+            && (!runningServers.contains(marker.getProperty(PENDING_SERVER))
+                || StorageClientUtils.toLong(marker.getProperty(PENDING_QUEUED)) < leaseExpired)) {
+          pending.add(new PendingActivity((String) marker.getProperty(PENDING_PATH),
+              (String) marker.getProperty(PENDING_ACTOR),
+              (String) marker.getProperty(PENDING_SOURCE),
+              StorageClientUtils.toLong(marker.getProperty(PENDING_QUEUED))));
+        }
+      }
+    } catch (StorageClientException e) {
+      LOGGER.error("Unable to read pending activities " + e.getMessage(), e);
+    } catch (AccessDeniedException e) {
+      LOGGER.error("Unable to read pending activities " + e.getMessage(), e);
+    } finally {
+      SparseUtils.logoutQuietly(adminSession);
+    }
+    Collections.sort(pending, new Comparator<PendingActivity>() {
+      public int compare(PendingActivity o1, PendingActivity o2) {
+        return o1.getQueued() < o2.getQueued() ? -1 : (o1.getQueued() == o2.getQueued() ? 0 : 1);
+      }
+    });
+    return pending;
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * @see org.sakaiproject.nakamura.activity.ActivityDeliveryQueue.Delivery#deliver(java.util.List)
+   */
+  public void deliver(List<PendingActivity> activities) throws Exception {
     Session adminSession = repository.loginAdministrative();
-    List<String> routesStr = new LinkedList<String>();
-    List<String> readers = new LinkedList<String>();
-    try {  
+    try {
+      deliver(adminSession, activities);
+    } finally {
+      SparseUtils.logoutQuietly(adminSession);
+    }
+  }
+
+  private void deliver(Session adminSession, List<PendingActivity> activities)
+      throws StorageClientException, AccessDeniedException {
+    ContentManager contentManager = adminSession.getContentManager();
+    List<PendingActivity> undelivered = new ArrayList<PendingActivity>(activities.size());
+    List<String> pendingPaths = new ArrayList<String>(activities.size());
+    for (PendingActivity pending : activities) {
+      // an activity may be both recovered and queued, only deliver it once
+      String pendingPath = StorageClientUtils.newPath(PENDING_ROOT,
+          StorageClientUtils.getObjectName(pending.getPath()));
+      if (contentManager.exists(pendingPath)) {
+        undelivered.add(pending);
+        pendingPaths.add(pendingPath);
+      }
+    }
+    if (!undelivered.isEmpty()) {
+      route(adminSession, undelivered);
+      for (String pendingPath : pendingPaths) {
+        contentManager.delete(pendingPath);
+      }
+    }
+  }
+
+  /**
+   * Route activities, let their readers see them and announce them. Each activity is
+   * routed on its own, since routers may look at anything on it, such as its privacy.
+   * Once every activity has its routes the writes are made together: the routes nodes,
+   * then one ACL change for each node that needs one, then the events.
+   */
+  private void route(Session adminSession, List<PendingActivity> activities)
+      throws StorageClientException, AccessDeniedException {
+    ContentManager contentManager = adminSession.getContentManager();
+    AccessControlManager accessControlManager = adminSession.getAccessControlManager();
+    Map<String, String[]> routesByPath = new LinkedHashMap<String, String[]>();
+    Map<String, List<AclModification>> aclsByPath = new LinkedHashMap<String, List<AclModification>>();
+    List<PendingActivity> routed = new ArrayList<PendingActivity>(activities.size());
+    for (PendingActivity pending : activities) {
+      Content activtyNode = contentManager.get(pending.getPath());
+      if (activtyNode == null) {
+        LOGGER.debug("Activity {} was removed before it was delivered", pending.getPath());
+        continue;
+      }
+      List<String> destinations = new LinkedList<String>();
+      List<String> readers = new LinkedList<String>();
       List<ActivityRoute> routes = activityRouterManager.getActivityRoutes(activtyNode,
           adminSession);
       if (routes != null) {
         for (ActivityRoute route : routes) {
-          routesStr.add(route.getDestination());
+          destinations.add(route.getDestination());
           if (route.getReaders() != null && route.getReaders().length > 0) {
             readers.addAll(Arrays.asList(route.getReaders()));
           }
         }
       }
-  
+
       // store the routes as child content of the activity so we may lock it down to admin. It's common for
       // the activity to be stored within the context of the content to which it pertains (e.g., within the
       // pooled content item on which the user performed the activity), therefore we could expose user
       // activity routes there -- that is an exposure of potentially sensitive content such as who the user's
       // connections are.
       String routesPath = StorageClientUtils.newPath(activtyNode.getPath(), ActivityConstants.PARAM_ROUTES);
-      contentManager.update(new Content(routesPath, ImmutableMap.<String, Object>of(
-          ActivityConstants.PARAM_ROUTES, routesStr.toArray(new String[routesStr.size()]))));
-      adminSession.getAccessControlManager().setAcl(Security.ZONE_CONTENT, routesPath, new AclModification[] {
-              new AclModification(AclModification.denyKey(User.ANON_USER), Permissions.ALL.getPermission(), Operation.OP_REPLACE),
-              new AclModification(AclModification.denyKey(Group.EVERYONE), Permissions.ALL.getPermission(), Operation.OP_REPLACE),
-              new AclModification(AclModification.denyKey(userId), Permissions.ALL.getPermission(), Operation.OP_REPLACE)
-            });
-      
-      if (!readers.isEmpty()) {
-        AclModification[] readerAcls = new AclModification[readers.size()];
-        int i = 0;
-        for (String reader : readers) {
-          // ensure all the necessary readers/routes can read the activity
-          readerAcls[i] = new AclModification(AclModification.grantKey(reader), Permissions.CAN_READ.getPermission(),
-              Operation.OP_OR);
-          i++;
-        }
-        
-        adminSession.getAccessControlManager().setAcl(Security.ZONE_CONTENT, activtyNode.getPath(), readerAcls);
+      routesByPath.put(routesPath, destinations.toArray(new String[destinations.size()]));
+      addAcls(aclsByPath, routesPath,
+          new AclModification(AclModification.denyKey(User.ANON_USER), Permissions.ALL.getPermission(), Operation.OP_REPLACE),
+          new AclModification(AclModification.denyKey(Group.EVERYONE), Permissions.ALL.getPermission(), Operation.OP_REPLACE),
+          new AclModification(AclModification.denyKey(pending.getActor()), Permissions.ALL.getPermission(), Operation.OP_REPLACE));
+      for (String reader : readers) {
+        // ensure all the necessary readers/routes can read the activity
+        addAcls(aclsByPath, activtyNode.getPath(), new AclModification(
+            AclModification.grantKey(reader), Permissions.CAN_READ.getPermission(),
+            Operation.OP_OR));
       }
-    } finally {
-      SparseUtils.logoutQuietly(adminSession);
+      routed.add(pending);
     }
-    
-    // store the activity node
-    contentManager.update(activtyNode);
-    
-    // post the asynchronous OSGi event
-    final Dictionary<String, String> properties = new Hashtable<String, String>();
-    properties.put(UserConstants.EVENT_PROP_USERID, userId);
-    properties.put(ActivityConstants.EVENT_PROP_PATH, activityPath);
-    properties.put("path", activityPath);
-    properties.put("resourceType", ActivityConstants.ACTIVITY_ITEM_RESOURCE_TYPE);
-    EventUtils.sendOsgiEvent(properties, LITE_EVENT_TOPIC, eventAdmin);
+
+    for (Map.Entry<String, String[]> routes : routesByPath.entrySet()) {
+      contentManager.update(new Content(routes.getKey(), ImmutableMap.<String, Object>of(
+          ActivityConstants.PARAM_ROUTES, routes.getValue())));
+    }
+    for (Map.Entry<String, List<AclModification>> acls : aclsByPath.entrySet()) {
+      accessControlManager.setAcl(Security.ZONE_CONTENT, acls.getKey(), acls.getValue()
+          .toArray(new AclModification[acls.getValue().size()]));
+    }
+
+    for (PendingActivity pending : routed) {
+      // post the asynchronous OSGi event, the activity is reindexed now it has its routes
+      final Dictionary<String, String> properties = new Hashtable<String, String>();
+      properties.put(UserConstants.EVENT_PROP_USERID, pending.getActor());
+      properties.put(ActivityConstants.EVENT_PROP_PATH, pending.getPath());
+      properties.put("path", pending.getPath());
+      properties.put("resourceType", ActivityConstants.ACTIVITY_ITEM_RESOURCE_TYPE);
+      EventUtils.sendOsgiEvent(properties, LITE_EVENT_TOPIC, eventAdmin);
+    }
+  }
+
+  private void addAcls(Map<String, List<AclModification>> aclsByPath, String path,
+      AclModification... modifications) {
+    List<AclModification> acls = aclsByPath.get(path);
+    if (acls == null) {
+      acls = new ArrayList<AclModification>();
+      aclsByPath.put(path, acls);
+    }
+    acls.addAll(Arrays.asList(modifications));
   }
 
 }
@@ -0,0 +1,178 @@
+/**
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.activity;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.sakaiproject.nakamura.activity.ActivityDeliveryQueue.PendingActivity;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+public class ActivityDeliveryQueueTest {
+
+  private static class RecordingDelivery implements ActivityDeliveryQueue.Delivery {
+    List<PendingActivity> recovered = Collections.emptyList();
+    List<List<PendingActivity>> delivered = Collections
+        .synchronizedList(new ArrayList<List<PendingActivity>>());
+    CountDownLatch latch;
+
+    RecordingDelivery(int expected) {
+      latch = new CountDownLatch(expected);
+    }
+
+    public List<PendingActivity> recover() {
+      return recovered;
+    }
+
+    public void deliver(List<PendingActivity> activities) throws Exception {
+      delivered.add(new ArrayList<PendingActivity>(activities));
+      for (int i = 0; i < activities.size(); i++) {
+        latch.countDown();
+      }
+    }
+  }
+
+  private PendingActivity activity(String path, String actor, String source) {
+    return new PendingActivity(path, actor, source, System.currentTimeMillis());
+  }
+
+  @Test
+  public void testBatchIsGroupedByActorAndSource() {
+    RecordingDelivery delivery = new RecordingDelivery(0);
+    ActivityDeliveryQueue queue = new ActivityDeliveryQueue(delivery, 10, 10, 0);
+    queue.deliverBatch(Arrays.asList(activity("/a/1", "alice", "/a"),
+        activity("/b/1", "bob", "/a"), activity("/a/2", "alice", "/a"),
+        activity("/c/1", "alice", "/c")));
+
+    Assert.assertEquals(3, delivery.delivered.size());
+    Assert.assertEquals(2, delivery.delivered.get(0).size());
+    Assert.assertEquals("/a/1", delivery.delivered.get(0).get(0).getPath());
+    Assert.assertEquals("/a/2", delivery.delivered.get(0).get(1).getPath());
+    Assert.assertEquals("bob", delivery.delivered.get(1).get(0).getActor());
+    Assert.assertEquals("/c", delivery.delivered.get(2).get(0).getSource());
+    Assert.assertEquals(4, queue.getDelivered());
+    Assert.assertEquals(1, queue.getCoalesced());
+    Assert.assertEquals(1, queue.getBatches());
+  }
+
+  @Test
+  public void testFailedGroupDoesNotStopBatch() {
+    RecordingDelivery delivery = new RecordingDelivery(0) {
+      @Override
+      public void deliver(List<PendingActivity> activities) throws Exception {
+        if ("bob".equals(activities.get(0).getActor())) {
+          throw new Exception("Boom");
+        }
+        super.deliver(activities);
+      }
+    };
+    ActivityDeliveryQueue queue = new ActivityDeliveryQueue(delivery, 10, 10, 0);
+    queue.deliverBatch(Arrays.asList(activity("/b/1", "bob", "/b"),
+        activity("/a/1", "alice", "/a")));
+
+    Assert.assertEquals(1, delivery.delivered.size());
+    Assert.assertEquals(1, queue.getDelivered());
+    Assert.assertEquals(1, queue.getFailed());
+  }
+
+  @Test
+  public void testOfferFallsBackWhenStopped() throws Exception {
+    RecordingDelivery delivery = new RecordingDelivery(0);
+    ActivityDeliveryQueue queue = new ActivityDeliveryQueue(delivery, 1, 10, 0);
+    Assert.assertFalse(queue.offer(activity("/a/1", "alice", "/a")));
+    Assert.assertEquals(1, queue.getDeliveredInline());
+  }
+
+  @Test
+  public void testRecoversAndDeliversQueued() throws Exception {
+    RecordingDelivery delivery = new RecordingDelivery(3);
+    delivery.recovered = Arrays.asList(activity("/a/0", "alice", "/a"));
+    ActivityDeliveryQueue queue = new ActivityDeliveryQueue(delivery, 10, 10, 50);
+    queue.start();
+    try {
+      Assert.assertTrue(queue.offer(activity("/a/1", "alice", "/a")));
+      Assert.assertTrue(queue.offer(activity("/a/2", "alice", "/a")));
+      Assert.assertTrue(delivery.latch.await(5, TimeUnit.SECONDS));
+    } finally {
+      queue.stop();
+    }
+    Assert.assertEquals("/a/0", delivery.delivered.get(0).get(0).getPath());
+    Assert.assertEquals(3, queue.getDelivered());
+    Assert.assertEquals(0, queue.getQueued());
+    Assert.assertEquals(0, queue.getLag());
+    Assert.assertFalse(queue.offer(activity("/a/3", "alice", "/a")));
+  }
+
+  @Test
+  public void testFailedGroupIsTriedAgain() throws Exception {
+    final int[] failures = new int[] { 2 };
+    RecordingDelivery delivery = new RecordingDelivery(2) {
+      @Override
+      public void deliver(List<PendingActivity> activities) throws Exception {
+        if ("bob".equals(activities.get(0).getActor()) && failures[0]-- > 0) {
+          throw new Exception("Boom");
+        }
+        super.deliver(activities);
+      }
+    };
+    ActivityDeliveryQueue queue = new ActivityDeliveryQueue(delivery, 10, 10, 0, 10, 3, 0);
+    queue.start();
+    try {
+      Assert.assertTrue(queue.offer(activity("/b/1", "bob", "/b")));
+      Assert.assertTrue(queue.offer(activity("/a/1", "alice", "/a")));
+      Assert.assertTrue(delivery.latch.await(5, TimeUnit.SECONDS));
+    } finally {
+      queue.stop();
+    }
+    // alice was not held up by bob's retries
+    Assert.assertEquals("/a/1", delivery.delivered.get(0).get(0).getPath());
+    Assert.assertEquals("/b/1", delivery.delivered.get(1).get(0).getPath());
+    Assert.assertEquals(2, queue.getDelivered());
+    Assert.assertEquals(2, queue.getFailed());
+    Assert.assertEquals(0, queue.getRetrying());
+  }
+
+  @Test
+  public void testGroupIsLeftForRecoveryWhenAttemptsRunOut() throws Exception {
+    final CountDownLatch attempts = new CountDownLatch(2);
+    RecordingDelivery delivery = new RecordingDelivery(0) {
+      @Override
+      public void deliver(List<PendingActivity> activities) throws Exception {
+        attempts.countDown();
+        throw new Exception("Boom");
+      }
+    };
+    ActivityDeliveryQueue queue = new ActivityDeliveryQueue(delivery, 10, 10, 0, 10, 2, 0);
+    queue.start();
+    try {
+      Assert.assertTrue(queue.offer(activity("/b/1", "bob", "/b")));
+      Assert.assertTrue(attempts.await(5, TimeUnit.SECONDS));
+      Thread.sleep(100);
+    } finally {
+      queue.stop();
+    }
+    Assert.assertEquals(2, queue.getFailed());
+    Assert.assertEquals(0, queue.getRetrying());
+    Assert.assertEquals(0, queue.getDelivered());
+  }
+}
@@ -0,0 +1,136 @@
+/**
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.api.batch;
+
+import org.sakaiproject.nakamura.api.memory.Weighable;
+import org.sakaiproject.nakamura.util.StringUtils;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.Serializable;
+import java.io.UnsupportedEncodingException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * A static response that is built once and then sent as it is: the content, a gzipped
+ * copy of it and a hash of the content to use as a strong ETag and as the version in
+ * immutable URLs.
+ */
+public class StaticContent implements Serializable, Weighable {
+
+  private static final long serialVersionUID = 3127390585432436715L;
+
+  /**
+   * Content smaller than this is not worth compressing.
+   */
+  private static final int MIN_GZIP_SIZE = 512;
+
+  private final String content;
+  private final int length;
+  private final byte[] gzipped;
+  private final String hash;
+  private final String contentType;
+
+  /**
+   * @param content
+   *          The content of the response.
+   * @param contentType
+   *          The mime type of the content. The content is always sent as UTF-8.
+   */
+  public StaticContent(String content, String contentType) {
+    this.content = content;
+    this.contentType = contentType;
+    try {
+      byte[] bytes = content.getBytes("UTF-8");
+      length = bytes.length;
+      hash = StringUtils.byteToHex(MessageDigest.getInstance("SHA-1").digest(bytes));
+      gzipped = gzip(bytes);
+    } catch (UnsupportedEncodingException e) {
+      throw new IllegalStateException(e);
+    } catch (NoSuchAlgorithmException e) {
+      throw new IllegalStateException(e);
+    } catch (IOException e) {
+      throw new IllegalStateException(e);
+    }
+  }
+
+  /**
+   * @return The content of the response.
+   */
+  public String getContent() {
+    return content;
+  }
+
+  /**
+   * @return The length of the content in UTF-8 bytes.
+   */
+  public int getLength() {
+    return length;
+  }
+
+  /**
+   * @return The gzipped content, or null if compressing it does not make it smaller.
+   */
+  public byte[] getGzipped() {
+    return gzipped;
+  }
+
+  /**
+   * @return A hex SHA-1 hash of the content.
+   */
+  public String getHash() {
+    return hash;
+  }
+
+  /**
+   * @return The hash of the content as a strong ETag.
+   */
+  public String getETag() {
+    return "\"" + hash + "\"";
+  }
+
+  /**
+   * @return The mime type of the content.
+   */
+  public String getContentType() {
+    return contentType;
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * @see org.sakaiproject.nakamura.api.memory.Weighable#getWeight()
+   */
+  public long getWeight() {
+    return 160 + 2L * content.length() + (gzipped == null ? 0 : gzipped.length);
+  }
+
+  private static byte[] gzip(byte[] content) throws IOException {
+    if (content.length < MIN_GZIP_SIZE) {
+      return null;
+    }
+    ByteArrayOutputStream out = new ByteArrayOutputStream(content.length / 3);
+    GZIPOutputStream gzip = new GZIPOutputStream(out);
+    gzip.write(content, 0, content.length);
+    gzip.close();
+    byte[] compressed = out.toByteArray();
+    return (compressed.length < content.length) ? compressed : null;
+  }
+}
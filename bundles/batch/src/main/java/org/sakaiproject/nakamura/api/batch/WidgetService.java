@@ -55,6 +55,23 @@ public interface WidgetService {
    */
   public ValueMap getWidget(String path, Locale locale, ResourceResolver resolver);
 
+  /**
+   * Bundles all of the widget files and the required locale as JSON that is ready to be
+   * sent. Once built, the content is kept until the widget is updated and is returned
+   * without using the resolver.
+   *
+   * @param path
+   *          The path to the widget.
+   * @param locale
+   *          The locale that should be outputted. If this is null, the system's default
+   *          locale will be used.
+   * @param resolver
+   *          A ResourceResolver that can be used to retrieve all the widget files.
+   * @return The JSON output for a widget.
+   */
+  public StaticContent getWidgetContent(String path, Locale locale,
+      ResourceResolver resolver);
+
   /**
    * When a resource changes (either on disk or in JCR) this method should be called. This
    * will ensure that the cache is kept up to date.
@@ -17,12 +17,17 @@
  */
 package org.sakaiproject.nakamura.batch;
 
+import org.apache.felix.scr.annotations.Activate;
 import org.apache.felix.scr.annotations.Component;
+import org.apache.felix.scr.annotations.Deactivate;
+import org.apache.felix.scr.annotations.Modified;
+import org.apache.felix.scr.annotations.Property;
 import org.apache.felix.scr.annotations.Reference;
 import org.apache.felix.scr.annotations.Service;
 import org.apache.sling.api.SlingException;
 import org.apache.sling.api.SlingHttpServletRequest;
 import org.apache.sling.api.SlingHttpServletResponse;
+import org.apache.sling.api.resource.LoginException;
 import org.apache.sling.api.resource.Resource;
 import org.apache.sling.api.resource.ResourceNotFoundException;
 import org.apache.sling.api.resource.ResourceResolver;
@@ -30,6 +35,8 @@ import org.apache.sling.commons.json.JSONArray;
 import org.apache.sling.commons.json.JSONException;
 import org.apache.sling.commons.json.JSONObject;
 import org.apache.sling.commons.json.io.JSONWriter;
+import org.apache.sling.commons.osgi.PropertiesUtil;
+import org.apache.sling.engine.SlingRequestProcessor;
 import org.sakaiproject.nakamura.api.http.cache.DynamicContentResponseCache;
 import org.sakaiproject.nakamura.api.lite.authorizable.User;
 import org.sakaiproject.nakamura.util.RequestInfo;
@@ -39,7 +46,6 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
-import java.io.StringWriter;
 import java.io.UnsupportedEncodingException;
 import java.net.MalformedURLException;
 import java.net.URISyntaxException;
@@ -47,20 +53,93 @@ import java.util.ArrayList;
 import java.util.Dictionary;
 import java.util.Enumeration;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
 import javax.servlet.RequestDispatcher;
 import javax.servlet.ServletException;
 import javax.servlet.http.HttpServletResponse;
 
-@Component()
+/**
+ * Runs the requests of a batch and streams their responses back as one JSON object.
+ * <p>
+ * Requests that may modify content are forwarded one after another on the request
+ * thread. A batch made only of safe requests can instead be run in parallel: each request
+ * is processed as a request of its own, with its own resource resolver as neither the
+ * resolver nor its session may be shared between threads, on a pool shared by all
+ * batches. At most {@link #PARALLEL_PER_BATCH} requests of one batch run at once, and
+ * their results are written in order as each one completes, so a batch never holds more
+ * than that many bodies. When the pool is busy a request is processed on the request
+ * thread instead.
+ */
+@Component(metatype = true, label = "Batch Helper", description = "Processes the requests of a batch, in parallel where allowed")
 @Service(value = BatchHelper.class)
 public class BatchHelper {
 
   private static final Logger LOGGER = LoggerFactory
       .getLogger(BatchHelper.class);
 
+  /**
+   * The most threads running batched requests in parallel, across all batches. 0 runs
+   * every batch on the request thread.
+   */
+  @Property(intValue = 0, label = "Parallel threads", description = "The most threads running batched requests in parallel, across all batches. 0 runs every batch on the request thread")
+  public static final String PARALLEL_THREADS = "batch.parallel.threads";
+
+  /**
+   * The most requests of one batch that run at once.
+   */
+  @Property(intValue = 4, label = "Parallel requests per batch", description = "The most requests of one batch that run at once")
+  public static final String PARALLEL_PER_BATCH = "batch.parallel.perBatch";
+
+  /**
+   * The longest time, in ms, to wait for a batched request running in parallel before it
+   * is reported as failed.
+   */
+  @Property(longValue = 30000L, label = "Parallel request timeout", description = "How long, in ms, to wait for a batched request running in parallel before it is reported as failed")
+  public static final String PARALLEL_TIMEOUT = "batch.parallel.timeout";
+
   @Reference
   protected DynamicContentResponseCache dynamicContentResponseCache;
 
+  @Reference
+  protected SlingRequestProcessor slingRequestProcessor;
+
+  private int parallelPerBatch = 4;
+
+  private long parallelTimeout = 30000L;
+
+  private ThreadPoolExecutor parallelExecutor;
+
+  @Activate
+  @Modified
+  protected void activate(Map<?, ?> props) {
+    deactivate();
+    parallelPerBatch = Math.max(1,
+        PropertiesUtil.toInteger(props.get(PARALLEL_PER_BATCH), 4));
+    parallelTimeout = PropertiesUtil.toLong(props.get(PARALLEL_TIMEOUT), 30000L);
+    int parallelThreads = PropertiesUtil.toInteger(props.get(PARALLEL_THREADS), 0);
+    if (parallelThreads > 0) {
+      parallelExecutor = new ThreadPoolExecutor(0, parallelThreads, 60L, TimeUnit.SECONDS,
+          new SynchronousQueue<Runnable>());
+    }
+  }
+
+  @Deactivate
+  protected void deactivate() {
+    if (parallelExecutor != null) {
+      parallelExecutor.shutdown();
+      parallelExecutor = null;
+    }
+  }
+
     protected void batchRequest(SlingHttpServletRequest request,
       SlingHttpServletResponse response, JSONArray requestsJSON, boolean allowModify, boolean useCache) throws IOException, ServletException {
 
@@ -68,12 +147,14 @@ public class BatchHelper {
 
     List<RequestInfo> batchedRequests = new ArrayList<RequestInfo>();
     boolean cacheEligible = useCache;
+    boolean allSafe = true;
     try {
       for (int i = 0; i < requestsJSON.length(); i++) {
         JSONObject obj = requestsJSON.getJSONObject(i);
         RequestInfo r = new RequestInfo(obj);
         if ( allowModify || r.isSafe() ) {
           batchedRequests.add(r);
+          allSafe = allSafe && r.isSafe();
         } else {
           cacheEligible = false;
         }
@@ -94,6 +175,19 @@ public class BatchHelper {
       return;
     }
 
+    // TODO: This is a nasty hack to work around white listing of /system/batch POST
+    // requests. This should be removed when the UI has refactored itself not to use batch
+    // POSTs in place of GETs (see http spec for reasons by thats bad)
+    // Checked before anything is written, as the results are streamed.
+    if (User.ANON_USER.equals(request.getRemoteUser())) {
+      for (RequestInfo r : batchedRequests) {
+        if (!"GET".equals(r.getMethod())) {
+          response.reset();
+          throw new ServletException("Anon Users may only perform GET operations");
+        }
+      }
+    }
+
     // don't process further if request can be cached and client gave us a fresh etag
     if ( cacheEligible ) {
       if ( dynamicContentResponseCache.send304WhenClientHasFreshETag("*", request, response)) {
@@ -101,29 +195,36 @@ public class BatchHelper {
       }
     }
 
-    // Loop over the requests and handle each one.
+    // Loop over the requests and handle each one, writing each result as it is ready.
+    // Headers have to be set before the first result is written.
+    response.setContentType("application/json");
+    response.setCharacterEncoding("UTF-8");
+    if ( cacheEligible ) {
+      dynamicContentResponseCache.recordResponse("*", request, response);
+    }
     try {
-      StringWriter sw = new StringWriter();
-      JSONWriter write = new JSONWriter(sw);
+      JSONWriter write = new JSONWriter(response.getWriter());
       write.object();
       write.key("results");
       write.array();
 
-      for (RequestInfo r : batchedRequests) {
-        doRequest(request, response, r, write);
+      ThreadPoolExecutor executor = parallelExecutor;
+      if (executor != null && allSafe && batchedRequests.size() > 1) {
+        doParallelRequests(executor, request, response, batchedRequests, write);
+      } else {
+        for (RequestInfo r : batchedRequests) {
+          doRequest(request, response, r, write);
+        }
       }
       write.endArray();
       write.endObject();
-      response.setContentType("application/json");
-      response.setCharacterEncoding("UTF-8");
-      response.getWriter().write(sw.getBuffer().toString());
-      if ( cacheEligible ) {
-        dynamicContentResponseCache.recordResponse("*", request, response);
-      }
     } catch (JSONException e) {
       LOGGER.warn("Failed to create a JSON response");
-      response.sendError(HttpServletResponse.SC_INTERNAL_SERVER_ERROR,
-          "Failed to write JSON response");
+      if (!response.isCommitted()) {
+        response.reset();
+        response.sendError(HttpServletResponse.SC_INTERNAL_SERVER_ERROR,
+            "Failed to write JSON response");
+      }
     }
   }
 
@@ -132,15 +233,7 @@ public class BatchHelper {
       JSONWriter write) throws JSONException, ServletException {
     // Look for a matching resource in the usual way. If one is found,
     // the resource will also be embedded with any necessary RequestPathInfo.
-    // TODO: This is a nasty hack to work around white listing of /system/batch POST
-    // requests. This should be removed when the UI has refactored itself not to use batch
-    // POSTs in place of GETs (see http spec for reasons by thats bad)
-    if (User.ANON_USER.equals(request.getRemoteUser())) {
-      if (!"GET".equals(requestInfo.getMethod())) {
-        response.reset();
-        throw new ServletException("Anon Users may only perform GET operations");
-      }
-    }
+    long start = System.currentTimeMillis();
     String requestPath = requestInfo.getUrl();
     ResourceResolver resourceResolver = request.getResourceResolver();
     Resource resource = resourceResolver.resolve(request, requestPath);
@@ -166,7 +259,7 @@ public class BatchHelper {
         responseWrapper.setStatus(HttpServletResponse.SC_INTERNAL_SERVER_ERROR);
       }
       // Write the response (status, headers, body) back to the client.
-      writeResponse(write, responseWrapper, requestInfo);
+      writeResponse(write, responseWrapper, requestInfo, System.currentTimeMillis() - start);
     } catch (ServletException e) {
       writeFailedRequest(write, requestInfo);
     } catch (IOException e) {
@@ -175,8 +268,114 @@ public class BatchHelper {
 
   }
 
+  /**
+   * Run safe requests in parallel, at most {@link #parallelPerBatch} at once, and write
+   * their results in order.
+   */
+  private void doParallelRequests(ThreadPoolExecutor executor,
+      SlingHttpServletRequest request, SlingHttpServletResponse response,
+      List<RequestInfo> requests, JSONWriter write) throws JSONException {
+    int n = requests.size();
+    List<FutureTask<BatchResponseWrapper>> tasks =
+        new ArrayList<FutureTask<BatchResponseWrapper>>(n);
+    long[] started = new long[n];
+    try {
+      for (int i = 0; i < n; i++) {
+        // keep the next requests running while this one is waited for.
+        while (tasks.size() < n && tasks.size() < i + parallelPerBatch) {
+          int next = tasks.size();
+          started[next] = System.currentTimeMillis();
+          tasks.add(submitRequest(executor, request, response, requests.get(next)));
+        }
+        RequestInfo requestInfo = requests.get(i);
+        FutureTask<BatchResponseWrapper> task = tasks.get(i);
+        try {
+          long wait = Math.max(1L, started[i] + parallelTimeout - System.currentTimeMillis());
+          BatchResponseWrapper responseWrapper = task.get(wait, TimeUnit.MILLISECONDS);
+          if (responseWrapper == null) {
+            writeFailedRequest(write, requestInfo);
+          } else {
+            // the time the request ran for, not the time it waited to be written.
+            writeResponse(write, responseWrapper, requestInfo, responseWrapper.getTime());
+          }
+        } catch (TimeoutException e) {
+          LOGGER.info("Batched request {} timed out", requestInfo.getUrl());
+          task.cancel(true);
+          writeFailedRequest(write, requestInfo);
+        } catch (ExecutionException e) {
+          LOGGER.warn("Batched request {} failed: {}", requestInfo.getUrl(), e.getCause());
+          writeFailedRequest(write, requestInfo);
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+          writeFailedRequest(write, requestInfo);
+        }
+      }
+    } finally {
+      // stop anything still running if the results could not all be written.
+      for (FutureTask<BatchResponseWrapper> task : tasks) {
+        task.cancel(true);
+      }
+    }
+  }
+
+  /**
+   * Start a batched request on the executor, or run it here if no thread is free. The
+   * resource resolver is cloned on the request thread, which owns the original, and is
+   * closed by the task, or when the task is cancelled before it starts.
+   *
+   * @return the task, which gives the buffered response, or null if the request could not
+   *         be processed.
+   */
+  private FutureTask<BatchResponseWrapper> submitRequest(ThreadPoolExecutor executor,
+      SlingHttpServletRequest request, SlingHttpServletResponse response,
+      final RequestInfo requestInfo) {
+    ResourceResolver clone = null;
+    try {
+      clone = request.getResourceResolver().clone(null);
+    } catch (LoginException e) {
+      LOGGER.warn("Unable to get a resource resolver for batched request {}: {}",
+          requestInfo.getUrl(), e.getMessage());
+    }
+    final ResourceResolver resourceResolver = clone;
+    final BatchRequestWrapper requestWrapper = new BatchRequestWrapper(request, requestInfo);
+    final BatchResponseWrapper responseWrapper = new BatchResponseWrapper(response);
+    // whichever of the task and its cancellation gets here first closes the resolver.
+    final AtomicBoolean claimed = new AtomicBoolean();
+    FutureTask<BatchResponseWrapper> task = new FutureTask<BatchResponseWrapper>(
+        new Callable<BatchResponseWrapper>() {
+          public BatchResponseWrapper call() throws Exception {
+            if (resourceResolver == null || !claimed.compareAndSet(false, true)) {
+              return null;
+            }
+            long start = System.currentTimeMillis();
+            try {
+              LOGGER.debug("Processing batched request path='{}'", requestInfo.getUrl());
+              slingRequestProcessor.processRequest(requestWrapper, responseWrapper,
+                  resourceResolver);
+              return responseWrapper;
+            } finally {
+              responseWrapper.setTime(System.currentTimeMillis() - start);
+              resourceResolver.close();
+            }
+          }
+        }) {
+      @Override
+      protected void done() {
+        if (isCancelled() && resourceResolver != null && claimed.compareAndSet(false, true)) {
+          resourceResolver.close();
+        }
+      }
+    };
+    try {
+      executor.execute(task);
+    } catch (RejectedExecutionException e) {
+      task.run();
+    }
+    return task;
+  }
+
   private void writeResponse(JSONWriter write, ResponseWrapper responseWrapper,
-      RequestInfo requestData) throws JSONException {
+      RequestInfo requestData, long time) throws JSONException {
     try {
       String body = responseWrapper.getDataAsString();
       write.object();
@@ -188,6 +387,8 @@ public class BatchHelper {
       write.value(body);
       write.key("status");
       write.value(responseWrapper.getResponseStatus());
+      write.key("time");
+      write.value(time);
       write.key("headers");
       write.object();
       Dictionary<String, String> headers = responseWrapper.getResponseHeaders();
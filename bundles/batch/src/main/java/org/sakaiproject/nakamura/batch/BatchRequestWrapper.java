@@ -0,0 +1,83 @@
+/**
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.batch;
+
+import org.apache.sling.api.SlingHttpServletRequest;
+import org.sakaiproject.nakamura.util.RequestInfo;
+import org.sakaiproject.nakamura.util.RequestWrapper;
+
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * A batched request that is processed as a request of its own, on another thread, rather
+ * than forwarded. It keeps its own attributes, copied from the batch request when it is
+ * made, so the sub-requests of a batch never touch the batch request's attributes while
+ * they run. The attributes Sling keeps for the batch request itself are not copied, as the
+ * sub-request gets its own.
+ */
+class BatchRequestWrapper extends RequestWrapper {
+
+  private final Map<String, Object> attributes = new HashMap<String, Object>();
+
+  BatchRequestWrapper(SlingHttpServletRequest request, RequestInfo requestInfo) {
+    super(request, requestInfo);
+    for (Enumeration<?> names = request.getAttributeNames(); names.hasMoreElements();) {
+      String name = (String) names.nextElement();
+      if (!name.startsWith("org.apache.sling.") && !name.startsWith("javax.servlet.")) {
+        attributes.put(name, request.getAttribute(name));
+      }
+    }
+  }
+
+  @Override
+  public String getPathInfo() {
+    return getPathTranslated();
+  }
+
+  @Override
+  public String getServletPath() {
+    return "";
+  }
+
+  @Override
+  public Object getAttribute(String name) {
+    return attributes.get(name);
+  }
+
+  @Override
+  public Enumeration<String> getAttributeNames() {
+    return Collections.enumeration(attributes.keySet());
+  }
+
+  @Override
+  public void setAttribute(String name, Object value) {
+    if (value == null) {
+      attributes.remove(name);
+    } else {
+      attributes.put(name, value);
+    }
+  }
+
+  @Override
+  public void removeAttribute(String name) {
+    attributes.remove(name);
+  }
+}
@@ -0,0 +1,67 @@
+/**
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.batch;
+
+import org.apache.sling.api.SlingHttpServletResponse;
+import org.sakaiproject.nakamura.util.ResponseWrapper;
+
+import java.util.Locale;
+
+import javax.servlet.http.Cookie;
+
+/**
+ * Buffers the response of a batched request that runs on another thread. Nothing is
+ * passed on to the batch response, which is being written by the request thread.
+ */
+class BatchResponseWrapper extends ResponseWrapper {
+
+  private long time;
+
+  BatchResponseWrapper(SlingHttpServletResponse response) {
+    super(response);
+  }
+
+  /**
+   * @return how long, in ms, the request took to process on its thread.
+   */
+  long getTime() {
+    return time;
+  }
+
+  void setTime(long time) {
+    this.time = time;
+  }
+
+  @Override
+  public boolean containsHeader(String name) {
+    return getResponseHeaders().get(name) != null;
+  }
+
+  @Override
+  public void addCookie(Cookie cookie) {
+    // a batched response has no way to carry cookies.
+  }
+
+  @Override
+  public void setLocale(Locale locale) {
+  }
+
+  @Override
+  public void setBufferSize(int size) {
+  }
+}
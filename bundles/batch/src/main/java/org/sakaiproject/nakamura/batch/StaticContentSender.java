@@ -0,0 +1,94 @@
+/**
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.batch;
+
+import org.sakaiproject.nakamura.api.batch.StaticContent;
+
+import java.io.IOException;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * Sends {@link StaticContent}. Requests that already have the content get a 304, clients
+ * that accept gzip get the gzipped copy, and a request that names the current version
+ * of the content in the <code>v</code> parameter may cache it for good.
+ */
+final class StaticContentSender {
+
+  /**
+   * The request parameter that holds the version (hash) of the content.
+   */
+  static final String VERSION_PARAM = "v";
+
+  /**
+   * One year, the longest time HTTP/1.1 allows.
+   */
+  private static final String IMMUTABLE_CACHE_CONTROL = "public, max-age=31536000";
+
+  private StaticContentSender() {
+  }
+
+  static void send(StaticContent content, HttpServletRequest request,
+      HttpServletResponse response) throws IOException {
+    String version = request.getParameter(VERSION_PARAM);
+    if (version != null) {
+      // A URL with the current version never changes, any other version has gone.
+      response.setHeader("Cache-Control",
+          content.getHash().equals(version) ? IMMUTABLE_CACHE_CONTROL : "no-cache");
+    }
+    response.setHeader("ETag", content.getETag());
+    byte[] gzipped = content.getGzipped();
+    if (gzipped != null) {
+      response.addHeader("Vary", "Accept-Encoding");
+    }
+
+    if (matches(request.getHeader("If-None-Match"), content.getETag())) {
+      response.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+      return;
+    }
+
+    response.setContentType(content.getContentType());
+    response.setCharacterEncoding("UTF-8");
+    String acceptEncoding = request.getHeader("Accept-Encoding");
+    if (gzipped != null && acceptEncoding != null && acceptEncoding.indexOf("gzip") >= 0) {
+      response.setHeader("Content-Encoding", "gzip");
+      response.setContentLength(gzipped.length);
+      response.getOutputStream().write(gzipped);
+    } else {
+      response.setContentLength(content.getLength());
+      response.getWriter().write(content.getContent());
+    }
+  }
+
+  /**
+   * @return true if the If-None-Match header holds the ETag or is a wildcard.
+   */
+  private static boolean matches(String ifNoneMatch, String etag) {
+    if (ifNoneMatch == null) {
+      return false;
+    }
+    for (String tag : ifNoneMatch.split(",")) {
+      tag = tag.trim();
+      if ("*".equals(tag) || etag.equals(tag)) {
+        return true;
+      }
+    }
+    return false;
+  }
+}
@@ -23,19 +23,28 @@ import org.apache.sling.api.SlingHttpServletRequest;
 import org.apache.sling.api.SlingHttpServletResponse;
 import org.apache.sling.api.request.RequestParameter;
 import org.apache.sling.api.servlets.SlingSafeMethodsServlet;
+import org.apache.sling.api.wrappers.SlingHttpServletResponseWrapper;
 import org.apache.sling.commons.json.JSONArray;
 import org.apache.sling.commons.json.JSONException;
 import org.apache.sling.commons.json.JSONObject;
+import org.sakaiproject.nakamura.api.batch.StaticContent;
+import org.sakaiproject.nakamura.api.batch.WidgetService;
 import org.sakaiproject.nakamura.api.doc.BindingType;
 import org.sakaiproject.nakamura.api.doc.ServiceBinding;
 import org.sakaiproject.nakamura.api.doc.ServiceDocumentation;
 import org.sakaiproject.nakamura.api.doc.ServiceMethod;
 import org.sakaiproject.nakamura.api.doc.ServiceParameter;
 import org.sakaiproject.nakamura.api.doc.ServiceResponse;
+import org.sakaiproject.nakamura.api.memory.Cache;
+import org.sakaiproject.nakamura.api.memory.CacheManagerService;
+import org.sakaiproject.nakamura.api.memory.CacheScope;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+
 import javax.servlet.ServletException;
 import javax.servlet.http.HttpServletResponse;
 
@@ -43,16 +52,23 @@ import javax.servlet.http.HttpServletResponse;
 @ServiceDocumentation(name = "StaticFilesServlet", okForVersion = "1.2",
     shortDescription = "Bundles multiple static files into a single response.",
     description = "Allows multiple requests for static files to be executed in a single request. " +
-        "Only suitable for static files that have the same content for all users.",
+        "Only suitable for static files that have the same content for all users. " +
+        "When all the files are under the widget folders the response is built once and kept until a widget changes.",
     bindings = @ServiceBinding(type = BindingType.PATH, bindings = "/system/staticfiles"),
     methods = @ServiceMethod(
         name = "GET",
         description = "Get multiple request responses into a single response. Only GET operations are allowed.",
-        parameters = @ServiceParameter(
+        parameters = {
+          @ServiceParameter(
             name = "f",
             description = "A string (optionally multi-valued) representing a static file (or files) to get. <br />Example:" +
                 "<pre>http://localhost:8080/system/staticfiles?f=/path/to/a/node&f=/path/to/another/node</pre>"
-        ),
+          ),
+          @ServiceParameter(
+            name = "v",
+            description = "The version of the files under the widget folders, as given in the ETag of an earlier response. If it is the current version the response may be cached for good."
+          )
+        },
         response = {
             @ServiceResponse(code = 200,
                 description = {
@@ -62,6 +78,7 @@ import javax.servlet.http.HttpServletResponse;
                     "{\"url\": \"/~admin/public/authprofile.json\",\n \"body\": \"{\"user\"...\",\n \"success\":true, \"status\": 200,\n \"headers\":{\"Content-Type\":\"application/json\"}\n} \n]</pre>"
                 }
             ),
+            @ServiceResponse(code = 304, description = "The If-None-Match header holds the ETag of the current version of files under the widget folders."),
             @ServiceResponse(code = 400, description = "The 'f' parameter was malformed."),
             @ServiceResponse(code = 500, description = "Unable to get and parse all requests.")
         }))
@@ -77,6 +94,12 @@ public class StaticFilesServlet extends SlingSafeMethodsServlet {
   @Reference
   BatchHelper helper;
 
+  @Reference
+  protected transient WidgetService widgetService;
+
+  @Reference
+  protected transient CacheManagerService cacheManagerService;
+
   @Override
   protected void doGet(SlingHttpServletRequest request,
                        SlingHttpServletResponse response) throws ServletException, IOException {
@@ -97,7 +120,110 @@ public class StaticFilesServlet extends SlingSafeMethodsServlet {
     } catch (JSONException e) {
       LOGGER.error("Got a JSON error building our own JSON object, should never happen", e);
     }
-    helper.batchRequest(request, response, requests, false, false);
+
+    String key = getCacheKey(filenames);
+    if (key == null) {
+      helper.batchRequest(request, response, requests, false, false);
+      return;
+    }
+
+    // All the files are widget files, which are the same for everyone and only change
+    // through WidgetService#updateWidget, which clears this cache.
+    Cache<StaticContent> cache = cacheManagerService.getCache(
+        WidgetServiceImpl.CACHE_NAME_STATIC_FILES, CacheScope.INSTANCE);
+    StaticContent content = cache.get(key);
+    if (content == null) {
+      CapturingResponse capture = new CapturingResponse(response);
+      helper.batchRequest(request, capture, requests, false, false);
+      if (capture.isError()) {
+        // the error has been sent as it is.
+        return;
+      }
+      content = new StaticContent(capture.getContent(), "application/json");
+      cache.put(key, content);
+    }
+    StaticContentSender.send(content, request, response);
+  }
+
+  /**
+   * @return A key for the files, or null if any of them are not under a widget folder.
+   */
+  private String getCacheKey(RequestParameter[] filenames) {
+    StringBuilder key = new StringBuilder();
+    for (RequestParameter filename : filenames) {
+      String path = filename.getString();
+      if (path.indexOf("..") >= 0 || !isWidgetPath(path)) {
+        return null;
+      }
+      key.append(path).append('\n');
+    }
+    return key.toString();
+  }
+
+  private boolean isWidgetPath(String path) {
+    for (String folder : widgetService.getWidgetFolders()) {
+      if (path.startsWith(folder + "/")) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Keeps what is written to the writer, and notes if an error is sent instead. The
+   * status of each file is in the body, an error is only sent if the batch fails.
+   */
+  private static class CapturingResponse extends SlingHttpServletResponseWrapper {
+    private StringWriter content = new StringWriter();
+    private PrintWriter writer = new PrintWriter(content);
+    private boolean error;
+
+    CapturingResponse(SlingHttpServletResponse response) {
+      super(response);
+    }
+
+    @Override
+    public PrintWriter getWriter() {
+      return writer;
+    }
+
+    @Override
+    public void flushBuffer() {
+      writer.flush();
+    }
+
+    @Override
+    public void reset() {
+      super.reset();
+      resetBuffer();
+    }
+
+    @Override
+    public void resetBuffer() {
+      writer.flush();
+      content.getBuffer().setLength(0);
+    }
+
+    @Override
+    public void sendError(int sc) throws IOException {
+      error = true;
+      super.sendError(sc);
+    }
+
+    @Override
+    public void sendError(int sc, String msg) throws IOException {
+      error = true;
+      super.sendError(sc, msg);
+    }
+
+    boolean isError() {
+      return error;
+    }
+
+    String getContent() {
+      writer.flush();
+      return content.toString();
+    }
   }
 
 }
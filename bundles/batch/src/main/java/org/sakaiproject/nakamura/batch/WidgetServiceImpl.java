@@ -22,6 +22,8 @@ import org.apache.felix.scr.annotations.Component;
 import org.apache.felix.scr.annotations.Modified;
 import org.apache.felix.scr.annotations.Property;
 import org.apache.felix.scr.annotations.Reference;
+import org.apache.felix.scr.annotations.ReferenceCardinality;
+import org.apache.felix.scr.annotations.ReferencePolicy;
 import org.apache.felix.scr.annotations.Service;
 import org.apache.sling.api.resource.NonExistingResource;
 import org.apache.sling.api.resource.Resource;
@@ -30,7 +32,9 @@ import org.apache.sling.api.resource.ValueMap;
 import org.apache.sling.commons.json.JSONException;
 import org.apache.sling.commons.osgi.PropertiesUtil;
 import org.apache.tika.metadata.Metadata;
+import org.sakaiproject.nakamura.api.batch.StaticContent;
 import org.sakaiproject.nakamura.api.batch.WidgetService;
+import org.sakaiproject.nakamura.api.http.cache.StaticContentResponseCache;
 import org.sakaiproject.nakamura.api.memory.Cache;
 import org.sakaiproject.nakamura.api.memory.CacheManagerService;
 import org.sakaiproject.nakamura.api.memory.CacheScope;
@@ -72,6 +76,9 @@ public class WidgetServiceImpl implements WidgetService {
   @Reference
   protected TikaService tikaService;
 
+  @Reference(cardinality = ReferenceCardinality.OPTIONAL_UNARY, policy = ReferencePolicy.DYNAMIC)
+  protected StaticContentResponseCache staticContentResponseCache;
+
   /**
    * The name for the cache that holds all the HTML, CSS, .. files for widgets
    */
@@ -84,6 +91,19 @@ public class WidgetServiceImpl implements WidgetService {
   static final String CACHE_NAME_WIDGET_CONFIGS = WidgetServiceImpl.class.getName()
       + "_configs";
 
+  /**
+   * The name for the cache that holds the ready to send JSON for widgets.
+   */
+  static final String CACHE_NAME_WIDGET_CONTENT = WidgetServiceImpl.class.getName()
+      + "_content";
+
+  /**
+   * The name for the cache that holds bundles of static files under the widget folders.
+   * It is filled by the {@link StaticFilesServlet} and cleared when any widget changes.
+   */
+  static final String CACHE_NAME_STATIC_FILES = WidgetServiceImpl.class.getName()
+      + "_staticfiles";
+
   private static final Logger LOGGER = LoggerFactory.getLogger(WidgetServiceImpl.class);
 
   private List<String> skipDirectories;
@@ -104,6 +124,8 @@ public class WidgetServiceImpl implements WidgetService {
     // clear the cache so changes in widgetFolders et al are picked up
     cacheManagerService.getCache(CACHE_NAME_WIDGET_CONFIGS, CacheScope.INSTANCE).clear();
     cacheManagerService.getCache(CACHE_NAME_WIDGET_FILES, CacheScope.INSTANCE).clear();
+    cacheManagerService.getCache(CACHE_NAME_WIDGET_CONTENT, CacheScope.INSTANCE).clear();
+    cacheManagerService.getCache(CACHE_NAME_STATIC_FILES, CacheScope.INSTANCE).clear();
   }
 
   /**
@@ -153,14 +175,7 @@ public class WidgetServiceImpl implements WidgetService {
 
     try {
       // There is nothing in the cache, create it and put it in there.
-      StringWriter sw = new StringWriter();
-      ExtendedJSONWriter writer = new ExtendedJSONWriter(sw);
-      writer.object();
-      outputWidget(resource, writer, locale);
-      writer.endObject();
-      sw.flush();
-      String content = sw.toString();
-      ValueMap map = new JsonValueMap(content);
+      ValueMap map = new JsonValueMap(renderWidget(resource, locale));
 
       // Put the map in the cache.
       widgetCache.put(locale.toString(), map);
@@ -172,6 +187,62 @@ public class WidgetServiceImpl implements WidgetService {
     }
   }
 
+  /**
+   * {@inheritDoc}
+   *
+   * @see org.sakaiproject.nakamura.api.batch.WidgetService#getWidgetContent(java.lang.String,
+   *      java.util.Locale, org.apache.sling.api.resource.ResourceResolver)
+   */
+  public StaticContent getWidgetContent(String path, Locale locale,
+      ResourceResolver resolver) {
+    if (path == null) {
+      throw new IllegalArgumentException("The path cannot be null.");
+    }
+    if (resolver == null) {
+      throw new IllegalArgumentException("The resource resolver cannot be null.");
+    }
+    if (locale == null) {
+      locale = Locale.getDefault();
+    }
+
+    // Check the cache before the resolver, the content is only ever put there for a
+    // valid widget and it is removed when the widget changes.
+    String key = path + ";" + locale.toString();
+    Cache<Map<String, StaticContent>> cache = cacheManagerService.getCache(
+        CACHE_NAME_WIDGET_CONTENT, CacheScope.INSTANCE);
+    Map<String, StaticContent> widgetCache = cache.get(path.substring(path
+        .lastIndexOf('/') + 1));
+    if (widgetCache != null) {
+      StaticContent content = widgetCache.get(key);
+      if (content != null) {
+        return content;
+      }
+    }
+
+    Resource resource = resolver.getResource(path);
+    if (!checkValidWidget(resource)) {
+      throw new IllegalArgumentException(
+          "The provided path does not point to a valid widget.");
+    }
+
+    try {
+      StaticContent content = new StaticContent(renderWidget(resource, locale),
+          "application/json");
+
+      // Copy the map rather than change one that other requests may be reading.
+      String widgetName = resource.getName();
+      widgetCache = cache.get(widgetName);
+      widgetCache = (widgetCache == null) ? new HashMap<String, StaticContent>()
+          : new HashMap<String, StaticContent>(widgetCache);
+      widgetCache.put(key, content);
+      cache.put(widgetName, widgetCache);
+
+      return content;
+    } catch (JSONException e) {
+      throw new RuntimeException("Could not parse this widget to JSON.");
+    }
+  }
+
   /**
    * {@inheritDoc}
    * 
@@ -242,6 +313,17 @@ public class WidgetServiceImpl implements WidgetService {
         }
         cache.remove(widget);
       }
+      cacheManagerService.getCache(CACHE_NAME_WIDGET_CONTENT, CacheScope.INSTANCE)
+          .remove(widget);
+    }
+
+    // Any bundle of static files could hold this resource.
+    cacheManagerService.getCache(CACHE_NAME_STATIC_FILES, CacheScope.INSTANCE).clear();
+
+    // The response cache keeps whole widget responses, drop those too.
+    StaticContentResponseCache responseCache = staticContentResponseCache;
+    if (responseCache != null) {
+      responseCache.clear();
     }
 
     // Invalidate the configs cache.
@@ -252,6 +334,20 @@ public class WidgetServiceImpl implements WidgetService {
 
   // --- Implementation
 
+  /**
+   * @return The JSON for a widget and its language bundles.
+   * @throws JSONException
+   */
+  private String renderWidget(Resource resource, Locale locale) throws JSONException {
+    StringWriter sw = new StringWriter();
+    ExtendedJSONWriter writer = new ExtendedJSONWriter(sw);
+    writer.object();
+    outputWidget(resource, writer, locale);
+    writer.endObject();
+    sw.flush();
+    return sw.toString();
+  }
+
   /**
    * @param resource
    * @param writer
@@ -24,9 +24,8 @@ import org.apache.sling.api.SlingHttpServletRequest;
 import org.apache.sling.api.SlingHttpServletResponse;
 import org.apache.sling.api.request.RequestParameter;
 import org.apache.sling.api.resource.ResourceResolver;
-import org.apache.sling.api.resource.ValueMap;
 import org.apache.sling.api.servlets.SlingSafeMethodsServlet;
-import org.apache.sling.commons.json.JSONException;
+import org.sakaiproject.nakamura.api.batch.StaticContent;
 import org.sakaiproject.nakamura.api.batch.WidgetService;
 import org.sakaiproject.nakamura.api.doc.BindingType;
 import org.sakaiproject.nakamura.api.doc.ServiceBinding;
@@ -36,7 +35,6 @@ import org.sakaiproject.nakamura.api.doc.ServiceMethod;
 import org.sakaiproject.nakamura.api.doc.ServiceParameter;
 import org.sakaiproject.nakamura.api.doc.ServiceResponse;
 import org.sakaiproject.nakamura.api.doc.ServiceSelector;
-import org.sakaiproject.nakamura.util.ExtendedJSONWriter;
 import org.sakaiproject.nakamura.util.StringUtils;
 
 import java.io.IOException;
@@ -58,7 +56,9 @@ import javax.servlet.http.HttpServletResponse;
         description = "Fetches all the resources and specified language bundles for a widget in one request.",
         parameters = {
           @ServiceParameter(name = "locale",
-            description = "What locale should be used for the language bundle. This should be in the ISO3 format. ie: en_US or zh_CN.")
+            description = "What locale should be used for the language bundle. This should be in the ISO3 format. ie: en_US or zh_CN."),
+          @ServiceParameter(name = "v",
+            description = "The version of the widget, as given in the ETag of an earlier response. If it is the current version the response may be cached for good.")
         },
         response = {
           @ServiceResponse(code = 200,
@@ -70,6 +70,7 @@ import javax.servlet.http.HttpServletResponse;
               "Widget files",
               "The servlet will walk down the tree and try to get the content of each resource. It will then try to get the mime type of this file. If the mime type is in the list of allowed mime types it will be outputted. This list can be modified in the Felix admin console."
             }),
+          @ServiceResponse(code = 304, description = "The If-None-Match header holds the ETag of the current version of the widget."),
           @ServiceResponse(code = 403, description = "The resource where this action is performed on is not a valid widget.")
         })
     })
@@ -103,25 +104,16 @@ public class WidgetizeServlet extends SlingSafeMethodsServlet {
     }
 
     // Get the values.
-    ValueMap map = null;
+    StaticContent content = null;
     try {
-      map = widgetService.getWidget(path, locale, resolver);
+      content = widgetService.getWidgetContent(path, locale, resolver);
     } catch (IllegalArgumentException e) {
       response.sendError(HttpServletResponse.SC_FORBIDDEN,
           "The current resource is not a widget.");
       return;
     }
 
-    // Make sure that we're outputting proper json.
-    response.setContentType("application/json");
-    response.setCharacterEncoding("UTF-8");
-
-    // Output all the widget info.
-    try {
-      ExtendedJSONWriter writer = new ExtendedJSONWriter(response.getWriter());
-      writer.valueMap(map);
-    } catch (JSONException e) {
-      throw new ServletException("Could not output proper JSON.", e);
-    }
+    // Output all the widget info, or a 304 if the client has it already.
+    StaticContentSender.send(content, request, response);
   }
 }
@@ -17,6 +17,10 @@
  */
 package org.sakaiproject.nakamura.batch;
 
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Matchers.any;
+import static org.mockito.Mockito.doAnswer;
 import static org.mockito.Mockito.mock;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
@@ -26,16 +30,26 @@ import org.apache.sling.api.SlingHttpServletRequest;
 import org.apache.sling.api.SlingHttpServletResponse;
 import org.apache.sling.api.resource.Resource;
 import org.apache.sling.api.resource.ResourceResolver;
+import org.apache.sling.commons.json.JSONArray;
+import org.apache.sling.commons.json.JSONObject;
+import org.apache.sling.engine.SlingRequestProcessor;
 import org.junit.Before;
 import org.junit.Test;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
 import org.sakaiproject.nakamura.api.http.cache.DynamicContentResponseCache;
 
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Vector;
 
 import javax.servlet.RequestDispatcher;
 import javax.servlet.ServletException;
+import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 
 /**
@@ -83,4 +97,45 @@ public class BatchServletTest {
     servlet.doPost(request, response);
   }
 
+  @Test
+  public void testParallelRequests() throws Exception {
+    SlingRequestProcessor processor = mock(SlingRequestProcessor.class);
+    servlet.helper.slingRequestProcessor = processor;
+    Map<String, Object> props = new HashMap<String, Object>();
+    props.put(BatchHelper.PARALLEL_THREADS, 2);
+    props.put(BatchHelper.PARALLEL_PER_BATCH, 2);
+    servlet.helper.activate(props);
+
+    String json = "[{\"url\" : \"/a\",\"method\" : \"GET\"},{\"url\" : \"/b\",\"method\" : \"GET\"},{\"url\" : \"/c?x=1\",\"method\" : \"GET\"}]";
+    when(request.getParameter(REQUESTS_PARAMETER)).thenReturn(json);
+    when(request.getAttributeNames()).thenReturn(new Vector<String>().elements());
+    ResourceResolver resourceResolver = mock(ResourceResolver.class);
+    when(request.getResourceResolver()).thenReturn(resourceResolver);
+    when(resourceResolver.clone(null)).thenReturn(mock(ResourceResolver.class));
+    doAnswer(new Answer<Object>() {
+      public Object answer(InvocationOnMock invocation) throws Throwable {
+        HttpServletRequest req = (HttpServletRequest) invocation.getArguments()[0];
+        HttpServletResponse resp = (HttpServletResponse) invocation.getArguments()[1];
+        resp.getWriter().write("body" + req.getPathInfo());
+        return null;
+      }
+    }).when(processor).processRequest(any(HttpServletRequest.class),
+        any(HttpServletResponse.class), any(ResourceResolver.class));
+    StringWriter out = new StringWriter();
+    when(response.getWriter()).thenReturn(new PrintWriter(out));
+
+    servlet.doGet(request, response);
+    servlet.helper.deactivate();
+
+    JSONArray results = new JSONObject(out.toString()).getJSONArray("results");
+    assertEquals(3, results.length());
+    String[] paths = new String[] { "/a", "/b", "/c" };
+    for (int i = 0; i < paths.length; i++) {
+      JSONObject result = results.getJSONObject(i);
+      assertTrue(result.getBoolean("success"));
+      assertEquals("body" + paths[i], result.getString("body"));
+      assertTrue(result.has("time"));
+    }
+  }
+
 }
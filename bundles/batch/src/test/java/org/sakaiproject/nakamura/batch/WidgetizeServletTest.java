@@ -19,7 +19,9 @@ package org.sakaiproject.nakamura.batch;
 
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertNotNull;
+import static org.mockito.Mockito.atLeastOnce;
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
@@ -27,13 +29,19 @@ import org.apache.sling.api.resource.Resource;
 import org.apache.sling.commons.json.JSONObject;
 import org.junit.Before;
 import org.junit.Test;
+import org.mockito.ArgumentCaptor;
 import org.mockito.Mockito;
 import org.sakaiproject.nakamura.api.memory.Cache;
 import org.sakaiproject.nakamura.api.memory.CacheScope;
 
 import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Locale;
 import java.util.Properties;
+import java.util.zip.GZIPInputStream;
 
+import javax.servlet.ServletOutputStream;
 import javax.servlet.http.HttpServletResponse;
 
 /**
@@ -108,6 +116,66 @@ public class WidgetizeServletTest extends AbstractWidgetServletTest {
         "content"));
   }
 
+  @SuppressWarnings("unchecked")
+  @Test
+  public void testNotModified() throws Exception {
+    Cache<Object> cache = mock(Cache.class);
+    when(
+        cacheManagerService
+            .getCache(Mockito.anyString(), Mockito.eq(CacheScope.INSTANCE))).thenReturn(
+        cache);
+    Resource twitterResource = resolver.getResource("/widgets/twitter");
+    when(request.getResource()).thenReturn(twitterResource);
+
+    // Build the content once and have the cache hand it back.
+    String etag = widgetService.getWidgetContent("/widgets/twitter", new Locale("nl", "NL"),
+        resolver).getETag();
+    ArgumentCaptor<Object> cached = ArgumentCaptor.forClass(Object.class);
+    verify(cache).put(Mockito.eq("twitter"), cached.capture());
+    when(cache.get("twitter")).thenReturn(cached.getValue());
+    when(request.getHeader("If-None-Match")).thenReturn(etag);
+
+    servlet.doGet(request, response);
+
+    verify(response).setHeader("ETag", etag);
+    verify(response).setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+    verify(response, never()).getWriter();
+  }
+
+  @SuppressWarnings("unchecked")
+  @Test
+  public void testGzipped() throws Exception {
+    Cache<Object> cache = mock(Cache.class);
+    when(
+        cacheManagerService
+            .getCache(Mockito.anyString(), Mockito.eq(CacheScope.INSTANCE))).thenReturn(
+        cache);
+    Resource twitterResource = resolver.getResource("/widgets/twitter");
+    when(request.getResource()).thenReturn(twitterResource);
+    when(request.getHeader("Accept-Encoding")).thenReturn("gzip, deflate");
+    final ByteArrayOutputStream baos = new ByteArrayOutputStream();
+    when(response.getOutputStream()).thenReturn(new ServletOutputStream() {
+      @Override
+      public void write(int b) throws IOException {
+        baos.write(b);
+      }
+    });
+
+    servlet.doGet(request, response);
+
+    verify(response).setHeader("Content-Encoding", "gzip");
+    verify(response, atLeastOnce()).addHeader("Vary", "Accept-Encoding");
+    verify(response).setContentLength(baos.size());
+    GZIPInputStream in = new GZIPInputStream(new ByteArrayInputStream(baos.toByteArray()));
+    ByteArrayOutputStream unzipped = new ByteArrayOutputStream();
+    byte[] buffer = new byte[1024];
+    for (int n = in.read(buffer); n >= 0; n = in.read(buffer)) {
+      unzipped.write(buffer, 0, n);
+    }
+    JSONObject json = new JSONObject(unzipped.toString("UTF-8"));
+    assertNotNull(json.getJSONObject("bundles").get("nl_NL"));
+  }
+
   @SuppressWarnings("unchecked")
   @Test
   public void testBadWidget() throws Exception {
@@ -0,0 +1,83 @@
+/**
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.api.cluster;
+
+/**
+ * Encodes IDs from the {@link UniqueIdService} as 12 letters and digits. The encoded
+ * strings sort in the same order as the IDs, and because they are always 12 characters
+ * long they can't collide with the shorter IDs generated before 64 bit IDs were used.
+ */
+public final class UniqueIdEncoder {
+
+  public static final int LENGTH = 12;
+
+  private static final char[] DIGITS = "0123456789ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz"
+      .toCharArray();
+
+  private UniqueIdEncoder() {
+  }
+
+  /**
+   * @param id
+   *          a positive ID.
+   * @return the ID as a string of {@link #LENGTH} characters.
+   */
+  public static String encode(long id) {
+    if (id < 0) {
+      throw new IllegalArgumentException("IDs are never negative: " + id);
+    }
+    char[] encoded = new char[LENGTH];
+    for (int i = LENGTH - 1; i >= 0; i--) {
+      encoded[i] = DIGITS[(int) (id % DIGITS.length)];
+      id = id / DIGITS.length;
+    }
+    return new String(encoded);
+  }
+
+  /**
+   * @param encoded
+   *          a string produced by {@link #encode(long)}.
+   * @return the ID.
+   */
+  public static long decode(String encoded) {
+    if (encoded == null || encoded.length() != LENGTH) {
+      throw new IllegalArgumentException("Not an encoded ID: " + encoded);
+    }
+    long id = 0;
+    for (int i = 0; i < LENGTH; i++) {
+      int digit = digit(encoded.charAt(i));
+      if (digit < 0 || id > (Long.MAX_VALUE - digit) / DIGITS.length) {
+        throw new IllegalArgumentException("Not an encoded ID: " + encoded);
+      }
+      id = id * DIGITS.length + digit;
+    }
+    return id;
+  }
+
+  private static int digit(char c) {
+    if (c >= '0' && c <= '9') {
+      return c - '0';
+    } else if (c >= 'A' && c <= 'Z') {
+      return c - 'A' + 10;
+    } else if (c >= 'a' && c <= 'z') {
+      return c - 'a' + 36;
+    }
+    return -1;
+  }
+
+}
@@ -0,0 +1,46 @@
+/**
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.api.cluster;
+
+/**
+ * Hands out 64 bit IDs that are unique in the cluster. An ID is made from the time it was
+ * issued, the number of the server that issued it and a sequence within the millisecond,
+ * so IDs from one server always increase.
+ */
+public interface UniqueIdService {
+
+  /**
+   * @return an ID that is unique in the cluster.
+   */
+  long nextId();
+
+  /**
+   * @return the next ID encoded with {@link UniqueIdEncoder}.
+   */
+  String nextIdString();
+
+  /**
+   * Reserve a block of IDs in one step, for bulk imports.
+   *
+   * @param count
+   *          the number of IDs wanted, at least 1 and at most 65536.
+   * @return the reserved IDs, nothing else will be given them.
+   */
+  UniqueIdBlock reserve(int count);
+
+}
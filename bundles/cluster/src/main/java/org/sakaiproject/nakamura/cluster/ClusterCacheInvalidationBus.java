@@ -0,0 +1,473 @@
+/**
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.cluster;
+
+import org.apache.felix.scr.annotations.Activate;
+import org.apache.felix.scr.annotations.Component;
+import org.apache.felix.scr.annotations.Deactivate;
+import org.apache.felix.scr.annotations.Property;
+import org.apache.felix.scr.annotations.Reference;
+import org.apache.felix.scr.annotations.Service;
+import org.apache.sling.commons.osgi.PropertiesUtil;
+import org.sakaiproject.nakamura.api.activemq.ConnectionFactoryService;
+import org.sakaiproject.nakamura.api.cluster.ClusterTrackingService;
+import org.sakaiproject.nakamura.api.memory.CacheInvalidationBus;
+import org.sakaiproject.nakamura.api.memory.CacheInvalidationListener;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import javax.jms.BytesMessage;
+import javax.jms.Connection;
+import javax.jms.DeliveryMode;
+import javax.jms.JMSException;
+import javax.jms.Message;
+import javax.jms.MessageConsumer;
+import javax.jms.MessageListener;
+import javax.jms.MessageProducer;
+import javax.jms.Session;
+import javax.jms.Topic;
+
+/**
+ * Sends the keys invalidated in cluster invalidated caches to the other servers over a
+ * JMS topic, and applies the invalidations they send to the caches on this server.
+ * Invalidations are collected for a short window and sent as one message, repeats of a
+ * key within the window are only sent once. Every message carries a sequence number and
+ * a heartbeat repeats the last one when there is nothing to send, so a receiver that
+ * misses a message notices and flushes all of its cluster invalidated caches rather than
+ * serving stale values.
+ */
+@Component(label = "Cache Invalidation Bus", description = "Carries cluster cache invalidations over JMS", metatype = true)
+@Service(value = CacheInvalidationBus.class)
+public class ClusterCacheInvalidationBus implements CacheInvalidationBus, MessageListener {
+
+  public static final String TOPIC = "org/sakaiproject/nakamura/cluster/cache/invalidation";
+
+  static final String PROP_SERVER_ID = "clusterServerId";
+  static final String PROP_EPOCH = "invalidationEpoch";
+  static final String PROP_SEQUENCE = "invalidationSequence";
+
+  public static final long DEFAULT_BATCH_WINDOW = 50L;
+  public static final int DEFAULT_MAX_KEYS = 500;
+  public static final long DEFAULT_HEARTBEAT_INTERVAL = 10000L;
+
+  @Property(longValue = DEFAULT_BATCH_WINDOW, description = "Milliseconds to collect invalidations for before sending them.")
+  public static final String BATCH_WINDOW = "batch-window";
+
+  @Property(intValue = DEFAULT_MAX_KEYS, description = "If more keys than this are invalidated in one cache within a window, the whole cache is flushed instead.")
+  public static final String MAX_KEYS = "max-keys";
+
+  @Property(longValue = DEFAULT_HEARTBEAT_INTERVAL, description = "Milliseconds of quiet after which the last sequence number is sent again so that lost messages are noticed.")
+  public static final String HEARTBEAT_INTERVAL = "heartbeat-interval";
+
+  private static final Logger LOGGER = LoggerFactory
+      .getLogger(ClusterCacheInvalidationBus.class);
+
+  @Reference
+  protected ConnectionFactoryService connFactoryService;
+  @Reference
+  protected ClusterTrackingService clusterTrackingService;
+  @Reference
+  protected CacheInvalidationListener invalidationListener;
+
+  private long batchWindow = DEFAULT_BATCH_WINDOW;
+  private int maxKeys = DEFAULT_MAX_KEYS;
+  private long heartbeatInterval = DEFAULT_HEARTBEAT_INTERVAL;
+  private String serverId;
+  /**
+   * Identifies this run of the bus, the sequence starts again when it changes.
+   */
+  private String epoch;
+
+  private final Object lock = new Object();
+  /**
+   * Invalidations waiting to be sent, by cache name. Guarded by lock.
+   */
+  private Map<String, PendingInvalidations> pending = new LinkedHashMap<String, PendingInvalidations>();
+  /**
+   * True when a send has been scheduled for the pending invalidations. Guarded by lock.
+   */
+  private boolean sendScheduled;
+  private ScheduledExecutorService executor;
+
+  /**
+   * The last sequence number sent, only used by the executor thread.
+   */
+  private long sequence;
+  private volatile long lastSent;
+
+  /**
+   * The position of each server that has sent to us, only used by the JMS session
+   * thread.
+   */
+  private Map<String, SenderPosition> senders = new HashMap<String, SenderPosition>();
+  private Connection connection;
+
+  /**
+   * The invalidations of one cache within a window.
+   */
+  private static class PendingInvalidations {
+    private boolean flush;
+    private final Set<String> keys = new LinkedHashSet<String>();
+    private final Set<String> children = new LinkedHashSet<String>();
+
+    private void flush() {
+      flush = true;
+      keys.clear();
+      children.clear();
+    }
+  }
+
+  /**
+   * The last sequence number seen from another server.
+   */
+  private static class SenderPosition {
+    private final String epoch;
+    private long sequence;
+
+    private SenderPosition(String epoch, long sequence) {
+      this.epoch = epoch;
+      this.sequence = sequence;
+    }
+  }
+
+  private final Runnable sendPending = new Runnable() {
+    public void run() {
+      sendPending();
+    }
+  };
+
+  private final Runnable heartbeat = new Runnable() {
+    public void run() {
+      if (System.currentTimeMillis() - lastSent >= heartbeatInterval) {
+        send(null);
+      }
+    }
+  };
+
+  @Activate
+  protected void activate(Map<String, Object> properties) {
+    batchWindow = PropertiesUtil.toLong(properties.get(BATCH_WINDOW), DEFAULT_BATCH_WINDOW);
+    maxKeys = PropertiesUtil.toInteger(properties.get(MAX_KEYS), DEFAULT_MAX_KEYS);
+    heartbeatInterval = PropertiesUtil.toLong(properties.get(HEARTBEAT_INTERVAL),
+        DEFAULT_HEARTBEAT_INTERVAL);
+    serverId = clusterTrackingService.getCurrentServerId();
+    epoch = UUID.randomUUID().toString();
+    sequence = 0;
+    lastSent = System.currentTimeMillis();
+
+    try {
+      connection = connFactoryService.getDefaultConnectionFactory().createConnection();
+      Session session = connection.createSession(false, Session.AUTO_ACKNOWLEDGE);
+      Topic dest = session.createTopic(TOPIC);
+      MessageConsumer consumer = session.createConsumer(dest);
+      consumer.setMessageListener(this);
+      connection.start();
+    } catch (JMSException e) {
+      LOGGER.error(e.getMessage(), e);
+      if (connection != null) {
+        try {
+          connection.close();
+        } catch (JMSException e1) {
+        }
+        connection = null;
+      }
+    }
+
+    ScheduledExecutorService newExecutor = Executors
+        .newSingleThreadScheduledExecutor(new ThreadFactory() {
+          public Thread newThread(Runnable r) {
+            Thread t = new Thread(r, "Cache Invalidation Sender");
+            t.setDaemon(true);
+            return t;
+          }
+        });
+    newExecutor.scheduleWithFixedDelay(heartbeat, heartbeatInterval, heartbeatInterval,
+        TimeUnit.MILLISECONDS);
+    synchronized (lock) {
+      executor = newExecutor;
+    }
+  }
+
+  @Deactivate
+  protected void deactivate() {
+    ScheduledExecutorService oldExecutor;
+    synchronized (lock) {
+      oldExecutor = executor;
+      executor = null;
+    }
+    if (oldExecutor != null) {
+      // a scheduled send still runs after shutdown, the heartbeat does not.
+      oldExecutor.shutdown();
+      try {
+        oldExecutor.awaitTermination(batchWindow + 5000L, TimeUnit.MILLISECONDS);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+    }
+    sendPending();
+    if (connection != null) {
+      try {
+        connection.close();
+      } catch (JMSException e) {
+      }
+      connection = null;
+    }
+  }
+
+  /**
+   * {@inheritDoc}
+   * @see org.sakaiproject.nakamura.api.memory.CacheInvalidationBus#invalidate(java.lang.String, java.lang.String)
+   */
+  public void invalidate(String cacheName, String key) {
+    synchronized (lock) {
+      PendingInvalidations invalidations = getPending(cacheName);
+      if (invalidations != null && !invalidations.flush) {
+        invalidations.keys.add(key);
+        checkSize(invalidations);
+      }
+    }
+  }
+
+  /**
+   * {@inheritDoc}
+   * @see org.sakaiproject.nakamura.api.memory.CacheInvalidationBus#invalidateChildren(java.lang.String, java.lang.String)
+   */
+  public void invalidateChildren(String cacheName, String key) {
+    synchronized (lock) {
+      PendingInvalidations invalidations = getPending(cacheName);
+      if (invalidations != null && !invalidations.flush) {
+        String prefix = key.endsWith("/") ? key : key + "/";
+        for (Iterator<String> i = invalidations.keys.iterator(); i.hasNext();) {
+          String k = i.next();
+          if (k.equals(key) || k.startsWith(prefix)) {
+            i.remove();
+          }
+        }
+        invalidations.children.add(key);
+        checkSize(invalidations);
+      }
+    }
+  }
+
+  /**
+   * {@inheritDoc}
+   * @see org.sakaiproject.nakamura.api.memory.CacheInvalidationBus#flush(java.lang.String)
+   */
+  public void flush(String cacheName) {
+    synchronized (lock) {
+      PendingInvalidations invalidations = getPending(cacheName);
+      if (invalidations != null) {
+        invalidations.flush();
+      }
+    }
+  }
+
+  /**
+   * Get the pending invalidations for a cache, scheduling a send if this is the first
+   * invalidation in the window. Must be called holding lock.
+   *
+   * @return the pending invalidations, or null if the bus is not active.
+   */
+  private PendingInvalidations getPending(String cacheName) {
+    if (executor == null) {
+      return null;
+    }
+    PendingInvalidations invalidations = pending.get(cacheName);
+    if (invalidations == null) {
+      invalidations = new PendingInvalidations();
+      pending.put(cacheName, invalidations);
+    }
+    if (!sendScheduled) {
+      executor.schedule(sendPending, batchWindow, TimeUnit.MILLISECONDS);
+      sendScheduled = true;
+    }
+    return invalidations;
+  }
+
+  private void checkSize(PendingInvalidations invalidations) {
+    if (invalidations.keys.size() + invalidations.children.size() > maxKeys) {
+      invalidations.flush();
+    }
+  }
+
+  private void sendPending() {
+    Map<String, PendingInvalidations> batch;
+    synchronized (lock) {
+      batch = pending;
+      pending = new LinkedHashMap<String, PendingInvalidations>();
+      sendScheduled = false;
+    }
+    if (!batch.isEmpty()) {
+      send(batch);
+    }
+  }
+
+  /**
+   * Send a batch of invalidations, or a heartbeat carrying the last sequence number if
+   * the batch is null. A batch that can't be sent still uses up its sequence number, so
+   * the other servers see the gap and flush.
+   */
+  private void send(Map<String, PendingInvalidations> batch) {
+    if (batch != null) {
+      sequence++;
+    }
+    Connection conn = null;
+    Session session = null;
+    try {
+      conn = connFactoryService.getDefaultPooledConnectionFactory().createConnection();
+      session = conn.createSession(false, Session.AUTO_ACKNOWLEDGE);
+      Message message;
+      if (batch == null) {
+        message = session.createMessage();
+      } else {
+        BytesMessage bytes = session.createBytesMessage();
+        writeBatch(bytes, batch);
+        message = bytes;
+      }
+      message.setStringProperty(PROP_SERVER_ID, serverId);
+      message.setStringProperty(PROP_EPOCH, epoch);
+      message.setLongProperty(PROP_SEQUENCE, sequence);
+      MessageProducer producer = session.createProducer(session.createTopic(TOPIC));
+      producer.setDeliveryMode(DeliveryMode.NON_PERSISTENT);
+      producer.send(message);
+      lastSent = System.currentTimeMillis();
+    } catch (JMSException e) {
+      LOGGER.warn("Unable to send cache invalidations {}, other servers will flush: {}",
+          sequence, e.getMessage());
+      LOGGER.debug(e.getMessage(), e);
+    } finally {
+      try {
+        if (session != null) {
+          session.close();
+        }
+      } catch (Exception e) {
+        LOGGER.error(e.getMessage(), e);
+      }
+      try {
+        if (conn != null) {
+          conn.close();
+        }
+      } catch (Exception e) {
+        LOGGER.error(e.getMessage(), e);
+      }
+    }
+  }
+
+  private void writeBatch(BytesMessage message, Map<String, PendingInvalidations> batch)
+      throws JMSException {
+    message.writeInt(batch.size());
+    for (Entry<String, PendingInvalidations> e : batch.entrySet()) {
+      PendingInvalidations invalidations = e.getValue();
+      message.writeUTF(e.getKey());
+      message.writeBoolean(invalidations.flush);
+      message.writeInt(invalidations.keys.size());
+      for (String key : invalidations.keys) {
+        message.writeUTF(key);
+      }
+      message.writeInt(invalidations.children.size());
+      for (String key : invalidations.children) {
+        message.writeUTF(key);
+      }
+    }
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * @see javax.jms.MessageListener#onMessage(javax.jms.Message)
+   */
+  public void onMessage(Message message) {
+    try {
+      String fromServer = message.getStringProperty(PROP_SERVER_ID);
+      if (fromServer == null || fromServer.equals(serverId)) {
+        return;
+      }
+      String fromEpoch = String.valueOf(message.getStringProperty(PROP_EPOCH));
+      long fromSequence = message.getLongProperty(PROP_SEQUENCE);
+      boolean isBatch = message instanceof BytesMessage;
+      if (!inSequence(fromServer, fromEpoch, fromSequence, isBatch)) {
+        LOGGER.warn("Missed cache invalidations from {}, flushing all cluster invalidated caches",
+            fromServer);
+        invalidationListener.allFlushed();
+      } else if (isBatch) {
+        applyBatch((BytesMessage) message);
+      }
+    } catch (JMSException e) {
+      LOGGER.error(e.getMessage(), e);
+      invalidationListener.allFlushed();
+    }
+  }
+
+  /**
+   * Track the sequence of messages from a server. A batch should be one more than the
+   * last sequence number seen, a heartbeat should be the same as it. Anything later
+   * means messages were lost, and a new epoch means the server restarted and may not
+   * have sent everything it invalidated before it went down.
+   *
+   * @return true if no messages from the server have been missed.
+   */
+  private boolean inSequence(String fromServer, String fromEpoch, long fromSequence,
+      boolean isBatch) {
+    SenderPosition position = senders.get(fromServer);
+    if (position == null) {
+      senders.put(fromServer, new SenderPosition(fromEpoch, fromSequence));
+      return true;
+    }
+    if (!position.epoch.equals(fromEpoch)) {
+      senders.put(fromServer, new SenderPosition(fromEpoch, fromSequence));
+      return false;
+    }
+    long expected = isBatch ? position.sequence + 1 : position.sequence;
+    if (fromSequence > position.sequence) {
+      position.sequence = fromSequence;
+    }
+    return fromSequence <= expected;
+  }
+
+  private void applyBatch(BytesMessage message) throws JMSException {
+    int caches = message.readInt();
+    for (int i = 0; i < caches; i++) {
+      String cacheName = message.readUTF();
+      if (message.readBoolean()) {
+        invalidationListener.cacheFlushed(cacheName);
+      }
+      int keys = message.readInt();
+      for (int j = 0; j < keys; j++) {
+        invalidationListener.keyInvalidated(cacheName, message.readUTF());
+      }
+      int children = message.readInt();
+      for (int j = 0; j < children; j++) {
+        invalidationListener.childrenInvalidated(cacheName, message.readUTF());
+      }
+    }
+  }
+
+}
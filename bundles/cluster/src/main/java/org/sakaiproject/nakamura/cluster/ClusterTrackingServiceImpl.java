@@ -30,6 +30,8 @@ import org.osgi.service.event.EventAdmin;
 import org.sakaiproject.nakamura.api.cluster.ClusterServer;
 import org.sakaiproject.nakamura.api.cluster.ClusterTrackingService;
 import org.sakaiproject.nakamura.api.cluster.ClusterUser;
+import org.sakaiproject.nakamura.api.cluster.UniqueIdBlock;
+import org.sakaiproject.nakamura.api.cluster.UniqueIdService;
 import org.sakaiproject.nakamura.api.cluster.cache.ClusterServerImpl;
 import org.sakaiproject.nakamura.api.cluster.cache.ClusterUserImpl;
 import org.sakaiproject.nakamura.api.memory.Cache;
@@ -59,11 +61,12 @@ import javax.servlet.http.HttpServletResponse;
  * users with a cluster replicated shared cache.
  */
 @Component(description = "Cluster tracking, tracks app servers and users within the cluster", label = "Cluster Tracking", metatype=true)
-@Service({ ClusterTrackingService.class, Runnable.class })
+@Service({ ClusterTrackingService.class, UniqueIdService.class, Runnable.class })
 @Properties(value = {
     @Property(name = Scheduler.PROPERTY_SCHEDULER_CONCURRENT, boolValue = false),
     @Property(name = Scheduler.PROPERTY_SCHEDULER_PERIOD, longValue = 300L) })
-public class ClusterTrackingServiceImpl implements ClusterTrackingService, Runnable {
+public class ClusterTrackingServiceImpl implements ClusterTrackingService,
+    UniqueIdService, Runnable {
 
   /**
    * The logger for the service.
@@ -118,6 +121,7 @@ public class ClusterTrackingServiceImpl implements ClusterTrackingService, Runna
   private int serverNumber;
   private String thisSecureUrl;
   private UniqueIdGenerator uniqueIdGenerator;
+  private ObjectName uniqueIdObjectName;
 
   /**
    * Constructor for testing purposes only.
@@ -150,9 +154,24 @@ public class ClusterTrackingServiceImpl implements ClusterTrackingService, Runna
     isActive = true;
     pingInstance();
     uniqueIdGenerator = new UniqueIdGenerator(serverNumber);
+    registerMBean(uniqueIdGenerator);
     isReady = true;
   }
 
+  private void registerMBean(UniqueIdGenerator generator) {
+    try {
+      ObjectName name = new ObjectName("org.sakaiproject.nakamura.cluster:type=UniqueIdGenerator");
+      MBeanServer mbeanServer = ManagementFactory.getPlatformMBeanServer();
+      if (mbeanServer.isRegistered(name)) {
+        mbeanServer.unregisterMBean(name);
+      }
+      mbeanServer.registerMBean(generator, name);
+      uniqueIdObjectName = name;
+    } catch (Exception e) {
+      LOGGER.warn("Unable to register unique id statistics {} ", e.getMessage());
+    }
+  }
+
   /**
    * Remove the registration for the instance.
    *
@@ -160,6 +179,14 @@ public class ClusterTrackingServiceImpl implements ClusterTrackingService, Runna
    * @throws Exception
    */
   protected void deactivate(ComponentContext ctx) throws Exception {
+    if (uniqueIdObjectName != null) {
+      try {
+        ManagementFactory.getPlatformMBeanServer().unregisterMBean(uniqueIdObjectName);
+      } catch (Exception e) {
+        LOGGER.debug("Unable to unregister {} {} ", uniqueIdObjectName, e.getMessage());
+      }
+      uniqueIdObjectName = null;
+    }
     try {
       removeInstance(serverId);
     } catch ( IllegalStateException e ) {
@@ -489,7 +516,34 @@ public class ClusterTrackingServiceImpl implements ClusterTrackingService, Runna
    * @see org.sakaiproject.nakamura.api.cluster.ClusterTrackingService#getClusterUniqueId()
    */
   public String getClusterUniqueId() {
+    return uniqueIdGenerator.nextIdString();
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * @see org.sakaiproject.nakamura.api.cluster.UniqueIdService#nextId()
+   */
+  public long nextId() {
     return uniqueIdGenerator.nextId();
   }
 
+  /**
+   * {@inheritDoc}
+   *
+   * @see org.sakaiproject.nakamura.api.cluster.UniqueIdService#nextIdString()
+   */
+  public String nextIdString() {
+    return uniqueIdGenerator.nextIdString();
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * @see org.sakaiproject.nakamura.api.cluster.UniqueIdService#reserve(int)
+   */
+  public UniqueIdBlock reserve(int count) {
+    return uniqueIdGenerator.reserve(count);
+  }
+
 }
@@ -17,69 +17,204 @@
  */
 package org.sakaiproject.nakamura.cluster;
 
-import org.sakaiproject.nakamura.util.StringUtils;
+import org.sakaiproject.nakamura.api.cluster.UniqueIdBlock;
+import org.sakaiproject.nakamura.api.cluster.UniqueIdEncoder;
 
-import java.math.BigInteger;
 import java.util.GregorianCalendar;
+import java.util.concurrent.atomic.AtomicLong;
 
-public class UniqueIdGenerator {
+/**
+ * Generates IDs that are unique in the cluster without taking a lock. An ID is a positive
+ * long made of 41 bits of milliseconds since the epoch, 10 bits of server number and 12
+ * bits of sequence within the millisecond. The last millisecond and sequence issued are
+ * kept packed in a single AtomicLong, so taking an ID is one compare and set. When the
+ * sequence for a millisecond runs out, or the clock goes backwards, IDs carry on from the
+ * last one issued into later milliseconds rather than waiting for the clock. They are
+ * never let run more than {@link #MAX_AHEAD} ms ahead of it though, so a server that
+ * restarts with the same number can not issue the same IDs again, and the time of an ID
+ * stays close to when it was issued. Reserved blocks are limited to
+ * {@link #MAX_BLOCK_SIZE} IDs for the same reason.
+ */
+public class UniqueIdGenerator implements UniqueIdGeneratorMBean {
+
+  private static final int SEQUENCE_BITS = 12;
+  private static final int SERVER_BITS = 10;
+  private static final long SEQUENCE_MASK = (1L << SEQUENCE_BITS) - 1;
+  public static final int MAX_SERVER_NUMBER = (1 << SERVER_BITS) - 1;
+
+  /**
+   * The most IDs in one reserved block, 16 ms of sequence.
+   */
+  public static final int MAX_BLOCK_SIZE = 1 << 16;
+
+  /**
+   * The furthest, in ms, the IDs issued may run ahead of the clock before taking more
+   * waits for it.
+   */
+  static final long MAX_AHEAD = 100;
+
+  /**
+   * The last position issued, as milliseconds << SEQUENCE_BITS | sequence.
+   */
+  private final AtomicLong position = new AtomicLong();
+  private final long epoch;
+  private final int serverNumber;
+  private final long serverBits;
+
+  private volatile long lastClock;
+  /**
+   * The latest the clock has been, so a clock set back does not make taking IDs wait.
+   */
+  private volatile long highClock;
+  private volatile long maxClockBackwards;
+  private final AtomicLong clockBackwards = new AtomicLong();
+  private final AtomicLong sequenceExhausted = new AtomicLong();
+  private final AtomicLong reservedCount = new AtomicLong();
+
+  /**
+   * A block of consecutive positions.
+   */
+  private class Block implements UniqueIdBlock {
+    private final long first;
+    private final int size;
+
+    private Block(long first, int size) {
+      this.first = first;
+      this.size = size;
+    }
 
-  private Object lockObject = new Object();
-  private long next = 0;
-  private long epoch;
-  private long last = 0;
-  private long micro = 0;
-  private int serverId;
-  private int rollover;
+    public int size() {
+      return size;
+    }
+
+    public long getId(int index) {
+      if (index < 0 || index >= size) {
+        throw new IndexOutOfBoundsException(index + " is not in a block of " + size);
+      }
+      return toId(first + index);
+    }
+  }
 
-  public UniqueIdGenerator(int serverId) {
-    this.serverId = serverId;
+  public UniqueIdGenerator(int serverNumber) {
+    if (serverNumber < 0 || serverNumber > MAX_SERVER_NUMBER) {
+      throw new IllegalArgumentException("Server numbers must be between 0 and "
+          + MAX_SERVER_NUMBER + ", not " + serverNumber);
+    }
+    this.serverNumber = serverNumber;
+    this.serverBits = ((long) serverNumber) << SEQUENCE_BITS;
     GregorianCalendar calendar = new GregorianCalendar(2010, 8, 6);
     epoch = calendar.getTimeInMillis();
   }
 
-  public String nextId() {
-    return StringUtils.encode(nextIdNum().toByteArray(), StringUtils.URL_SAFE_ENCODING);
+  public long nextId() {
+    return toId(take(1));
+  }
+
+  public String nextIdString() {
+    return UniqueIdEncoder.encode(nextId());
+  }
+
+  public UniqueIdBlock reserve(int count) {
+    if (count < 1 || count > MAX_BLOCK_SIZE) {
+      throw new IllegalArgumentException("Can't reserve " + count + " IDs, blocks are from 1 to "
+          + MAX_BLOCK_SIZE);
+    }
+    reservedCount.addAndGet(count);
+    return new Block(take(count), count);
+  }
+
+  /**
+   * Take count consecutive positions. A sequence that overflows carries into the next
+   * millisecond, so the positions are always unique and increasing. If the positions
+   * already taken are more than {@link #MAX_AHEAD} ms past the latest clock seen, this
+   * waits for the clock first.
+   *
+   * @return the first position taken.
+   */
+  private long take(int count) {
+    long now = clock();
+    long start = now << SEQUENCE_BITS;
+    boolean interrupted = false;
+    for (;;) {
+      long current = position.get();
+      long ahead = (current >>> SEQUENCE_BITS) - Math.max(now, highClock);
+      if (ahead > MAX_AHEAD && !interrupted) {
+        try {
+          Thread.sleep(ahead - MAX_AHEAD);
+        } catch (InterruptedException e) {
+          // take the IDs anyway rather than fail.
+          interrupted = true;
+          Thread.currentThread().interrupt();
+        }
+        now = clock();
+        start = now << SEQUENCE_BITS;
+        continue;
+      }
+      long first = Math.max(start, current + 1);
+      long last = first + count - 1;
+      if (position.compareAndSet(current, last)) {
+        if ((last >>> SEQUENCE_BITS) > Math.max(now, current >>> SEQUENCE_BITS)) {
+          sequenceExhausted.incrementAndGet();
+        }
+        return first;
+      }
+    }
   }
-  
-  public BigInteger nextIdNum() {
-    // single threaded this benchmarks at 0.5 ns per invocation, so rollover is possible
-    synchronized (lockObject) {
-      next = System.currentTimeMillis() - epoch;
-      if (next == last) { // 2 in the same ms
-        micro++;
-      } else if (next < last) { // roll over happend in this ms
-        next = last;
-        micro++;
-      } else { // new ms
-        micro = 0;
-        last = next;
+
+  /**
+   * @return milliseconds since the epoch, noting when the clock goes backwards.
+   */
+  private long clock() {
+    long now = System.currentTimeMillis() - epoch;
+    long last = lastClock;
+    if (now > last) {
+      lastClock = now;
+      if (now > highClock) {
+        highClock = now;
       }
-      // catch any rollover in micro.
-      if (micro > 999) {
-        rollover++;
-        next++;
-        micro = 0;
-        last = next;
+    } else if (last - now > 1) {
+      // threads racing each other can see a millisecond of difference, anything more is
+      // the clock being set back.
+      clockBackwards.incrementAndGet();
+      if (last - now > maxClockBackwards) {
+        maxClockBackwards = last - now;
       }
+      lastClock = now;
     }
-    // Collision analysis
-    // The server number is unique in the cluster so no 2 servers with the same number can
-    // exist at the same time
-    // The Id Num is of the form 1SSSNNNN where SS ranges from 0 to 999 servers in a
-    // cluster and NNNN is a real positive number.
-    // Even when NNNN rols over to 1NNNN and again to 2NNNN there is no collision since
-    // the server part of the number is prefixed
-    // by 1 as in 1SSSS therefore this ID can never collide in the cluster or by rollover
-    // provided we have < 9001 servers in the cluster.
-    BigInteger idNum = BigInteger.valueOf(next*1000+micro);
-    idNum = idNum.multiply(BigInteger.valueOf(10000));
-    idNum = idNum.add(BigInteger.valueOf(serverId));
-    return idNum;
+    return now;
+  }
+
+  private long toId(long position) {
+    return ((position >>> SEQUENCE_BITS) << (SERVER_BITS + SEQUENCE_BITS)) | serverBits
+        | (position & SEQUENCE_MASK);
+  }
+
+  /**
+   * @param id
+   * @return the time in ms at which the ID was issued.
+   */
+  public long getTime(long id) {
+    return (id >>> (SERVER_BITS + SEQUENCE_BITS)) + epoch;
+  }
+
+  public int getServerNumber() {
+    return serverNumber;
+  }
+
+  public long getClockBackwardsCount() {
+    return clockBackwards.get();
   }
-  
-  public int getRollover() {
-    return rollover;
+
+  public long getMaxClockBackwards() {
+    return maxClockBackwards;
+  }
+
+  public long getSequenceExhaustedCount() {
+    return sequenceExhausted.get();
+  }
+
+  public long getReservedCount() {
+    return reservedCount.get();
   }
 
 }
@@ -0,0 +1,52 @@
+/**
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.cluster;
+
+/**
+ * Statistics of the unique ID generator exposed over JMX.
+ */
+public interface UniqueIdGeneratorMBean {
+
+  /**
+   * @return the server number encoded in every ID.
+   */
+  int getServerNumber();
+
+  /**
+   * @return the number of times the clock was seen to go backwards by more than a
+   *         millisecond. IDs keep increasing, using the last millisecond issued.
+   */
+  long getClockBackwardsCount();
+
+  /**
+   * @return the largest step backwards of the clock seen, in milliseconds.
+   */
+  long getMaxClockBackwards();
+
+  /**
+   * @return the number of times all the sequence numbers in a millisecond were used and
+   *         IDs were taken from the following millisecond.
+   */
+  long getSequenceExhaustedCount();
+
+  /**
+   * @return the number of IDs handed out in reserved blocks.
+   */
+  long getReservedCount();
+
+}
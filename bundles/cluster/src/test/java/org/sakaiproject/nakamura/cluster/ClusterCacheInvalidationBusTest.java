@@ -0,0 +1,216 @@
+/**
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.cluster;
+
+import static org.easymock.EasyMock.expect;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.apache.activemq.ActiveMQConnectionFactory;
+import org.apache.activemq.command.ActiveMQBytesMessage;
+import org.apache.activemq.command.ActiveMQMessage;
+import org.easymock.EasyMock;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.sakaiproject.nakamura.api.activemq.ConnectionFactoryService;
+import org.sakaiproject.nakamura.api.cluster.ClusterTrackingService;
+import org.sakaiproject.nakamura.api.memory.CacheInvalidationListener;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.jms.ConnectionFactory;
+
+/**
+ * Sends invalidations between two buses through an embedded broker.
+ */
+public class ClusterCacheInvalidationBusTest {
+
+  private ConnectionFactory connectionFactory;
+  private List<ClusterCacheInvalidationBus> buses;
+
+  private static class RecordingListener implements CacheInvalidationListener {
+    private final List<String> events = new ArrayList<String>();
+
+    public synchronized void keyInvalidated(String cacheName, String key) {
+      events.add("key " + cacheName + " " + key);
+    }
+
+    public synchronized void childrenInvalidated(String cacheName, String key) {
+      events.add("children " + cacheName + " " + key);
+    }
+
+    public synchronized void cacheFlushed(String cacheName) {
+      events.add("flush " + cacheName);
+    }
+
+    public synchronized void allFlushed() {
+      events.add("all");
+    }
+
+    private synchronized List<String> getEvents() {
+      return new ArrayList<String>(events);
+    }
+
+    private List<String> waitFor(int count) throws InterruptedException {
+      long end = System.currentTimeMillis() + 5000L;
+      while (getEvents().size() < count && System.currentTimeMillis() < end) {
+        Thread.sleep(20);
+      }
+      // give anything unexpected a chance to arrive too.
+      Thread.sleep(200);
+      return getEvents();
+    }
+  }
+
+  @Before
+  public void before() {
+    connectionFactory = new ActiveMQConnectionFactory(
+        "vm://invalidation?broker.persistent=false&broker.useJmx=false");
+    buses = new ArrayList<ClusterCacheInvalidationBus>();
+  }
+
+  @After
+  public void after() {
+    for (ClusterCacheInvalidationBus bus : buses) {
+      bus.deactivate();
+    }
+  }
+
+  private ClusterCacheInvalidationBus createBus(String serverId,
+      CacheInvalidationListener listener, Map<String, Object> properties) {
+    ConnectionFactoryService connectionFactoryService = EasyMock
+        .createMock(ConnectionFactoryService.class);
+    expect(connectionFactoryService.getDefaultConnectionFactory()).andReturn(
+        connectionFactory).anyTimes();
+    expect(connectionFactoryService.getDefaultPooledConnectionFactory()).andReturn(
+        connectionFactory).anyTimes();
+    ClusterTrackingService clusterTrackingService = EasyMock
+        .createMock(ClusterTrackingService.class);
+    expect(clusterTrackingService.getCurrentServerId()).andReturn(serverId).anyTimes();
+    EasyMock.replay(connectionFactoryService, clusterTrackingService);
+
+    ClusterCacheInvalidationBus bus = new ClusterCacheInvalidationBus();
+    bus.connFactoryService = connectionFactoryService;
+    bus.clusterTrackingService = clusterTrackingService;
+    bus.invalidationListener = listener;
+    bus.activate(properties);
+    buses.add(bus);
+    return bus;
+  }
+
+  @Test
+  public void testInvalidationsAreCoalesced() throws Exception {
+    Map<String, Object> properties = new HashMap<String, Object>();
+    properties.put(ClusterCacheInvalidationBus.BATCH_WINDOW, 200L);
+    RecordingListener listenerA = new RecordingListener();
+    RecordingListener listenerB = new RecordingListener();
+    ClusterCacheInvalidationBus busA = createBus("serverA", listenerA, properties);
+    createBus("serverB", listenerB, properties);
+
+    busA.invalidate("cache", "k");
+    busA.invalidate("cache", "k");
+    busA.invalidate("cache", "x/y");
+    busA.invalidateChildren("cache", "x");
+    busA.invalidate("other", "k");
+
+    assertEquals(Arrays.asList("key cache k", "children cache x", "key other k"),
+        listenerB.waitFor(3));
+    assertTrue(listenerA.getEvents().isEmpty());
+  }
+
+  @Test
+  public void testTooManyKeysFlushTheCache() throws Exception {
+    Map<String, Object> properties = new HashMap<String, Object>();
+    properties.put(ClusterCacheInvalidationBus.MAX_KEYS, 2);
+    RecordingListener listenerB = new RecordingListener();
+    ClusterCacheInvalidationBus busA = createBus("serverA", new RecordingListener(),
+        properties);
+    createBus("serverB", listenerB, properties);
+
+    busA.invalidate("cache", "a");
+    busA.invalidate("cache", "b");
+    busA.invalidate("cache", "c");
+    busA.invalidate("cache", "d");
+    busA.invalidate("other", "a");
+    busA.flush("other");
+
+    assertEquals(Arrays.asList("flush cache", "flush other"), listenerB.waitFor(2));
+  }
+
+  @Test
+  public void testMissedMessagesFlushEverything() throws Exception {
+    RecordingListener listener = new RecordingListener();
+    ClusterCacheInvalidationBus bus = createBus("serverB", listener,
+        new HashMap<String, Object>());
+
+    // the first message from a server sets where it is up to.
+    bus.onMessage(heartbeat("serverA", "first", 3));
+    bus.onMessage(heartbeat("serverA", "first", 3));
+    bus.onMessage(batch("serverA", "first", 4, "cache", "k"));
+    assertEquals(Arrays.asList("key cache k"), listener.getEvents());
+
+    // a heartbeat ahead of the last batch means a batch was lost.
+    bus.onMessage(heartbeat("serverA", "first", 5));
+    assertEquals(Arrays.asList("key cache k", "all"), listener.getEvents());
+
+    // so does a batch that skips a number.
+    bus.onMessage(batch("serverA", "first", 7, "cache", "k"));
+    assertEquals(Arrays.asList("key cache k", "all", "all"), listener.getEvents());
+
+    // a restarted server may not have sent everything.
+    bus.onMessage(heartbeat("serverA", "second", 0));
+    assertEquals(Arrays.asList("key cache k", "all", "all", "all"), listener.getEvents());
+
+    // our own messages are ignored.
+    bus.onMessage(heartbeat("serverB", "other", 100));
+    assertEquals(4, listener.getEvents().size());
+  }
+
+  private ActiveMQMessage heartbeat(String serverId, String epoch, long sequence)
+      throws Exception {
+    ActiveMQMessage message = new ActiveMQMessage();
+    setProperties(message, serverId, epoch, sequence);
+    return message;
+  }
+
+  private ActiveMQBytesMessage batch(String serverId, String epoch, long sequence,
+      String cacheName, String key) throws Exception {
+    ActiveMQBytesMessage message = new ActiveMQBytesMessage();
+    setProperties(message, serverId, epoch, sequence);
+    message.writeInt(1);
+    message.writeUTF(cacheName);
+    message.writeBoolean(false);
+    message.writeInt(1);
+    message.writeUTF(key);
+    message.writeInt(0);
+    message.reset();
+    return message;
+  }
+
+  private void setProperties(ActiveMQMessage message, String serverId, String epoch,
+      long sequence) throws Exception {
+    message.setStringProperty(ClusterCacheInvalidationBus.PROP_SERVER_ID, serverId);
+    message.setStringProperty(ClusterCacheInvalidationBus.PROP_EPOCH, epoch);
+    message.setLongProperty(ClusterCacheInvalidationBus.PROP_SEQUENCE, sequence);
+  }
+}
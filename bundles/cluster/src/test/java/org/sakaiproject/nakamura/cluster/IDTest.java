@@ -20,11 +20,11 @@ package org.sakaiproject.nakamura.cluster;
 import junit.framework.Assert;
 
 import org.junit.Test;
-import org.sakaiproject.nakamura.util.StringUtils;
+import org.sakaiproject.nakamura.api.cluster.UniqueIdBlock;
+import org.sakaiproject.nakamura.api.cluster.UniqueIdEncoder;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import java.math.BigInteger;
 import java.util.HashSet;
 import java.util.Map;
 import java.util.Map.Entry;
@@ -37,7 +37,7 @@ import java.util.concurrent.ConcurrentHashMap;
 public class IDTest {
 
   private static final Logger LOGGER = LoggerFactory.getLogger(IDTest.class);
-  private Map<BigInteger, BigInteger> hash = new ConcurrentHashMap<BigInteger, BigInteger>();
+  private Map<Long, Long> hash = new ConcurrentHashMap<Long, Long>();
   private Object lockObject = new Object();
   private int nrunning = 0;
   protected int failed;
@@ -56,7 +56,7 @@ public class IDTest {
           }
           try {
             for (int j = 0; j < 100; j++) {
-              BigInteger id = idGenerator.nextIdNum();
+              Long id = idGenerator.nextId();
               if (hash.containsKey(id)) {
                 failed++;
               }
@@ -81,12 +81,9 @@ public class IDTest {
       }
     } while (nrunning > 0);
 
-    for (Entry<BigInteger, BigInteger> e : hash.entrySet()) {
-      LOGGER.info(" Entry is "
-          + e.getValue()
-          + " "
-          + StringUtils.encode(e.getValue().toByteArray(), StringUtils.URL_SAFE_ENCODING)
-              .trim());
+    for (Entry<Long, Long> e : hash.entrySet()) {
+      LOGGER.info(" Entry is " + e.getValue() + " "
+          + UniqueIdEncoder.encode(e.getValue()));
 
     }
     LOGGER.info("Finished Running,  Hash Size is " + hash.size() + " Collisions "
@@ -101,12 +98,12 @@ public class IDTest {
     int testSize = 100000;
     long s = System.currentTimeMillis();
     for (int i = 0; i < testSize; i++) {
-      uniqueIdGenerator.nextIdNum();
+      uniqueIdGenerator.nextId();
     }
     double t = System.currentTimeMillis() - s;
     t = (t * 1000) / testSize;
-    LOGGER.info("Time per Id " + t + " ns, rollover happend "
-        + uniqueIdGenerator.getRollover());
+    LOGGER.info("Time per Id " + t + " ns, sequence exhausted "
+        + uniqueIdGenerator.getSequenceExhaustedCount());
   }
 
   @Test
@@ -114,15 +111,102 @@ public class IDTest {
     UniqueIdGenerator uniqueIdGenerator = new UniqueIdGenerator(1);
     int testSize = 10000;
     for (int j = 0; j < 100; j++) {
-      Set<BigInteger> collision = new HashSet<BigInteger>(testSize);
+      Set<Long> collision = new HashSet<Long>(testSize);
       for (int i = 0; i < testSize; i++) {
-        BigInteger id = uniqueIdGenerator.nextIdNum();
+        Long id = uniqueIdGenerator.nextId();
         Assert.assertFalse(collision.contains(id));
         collision.add(id);
       }
     }
-    LOGGER.info("No Collisions, rollover happend "
-        + uniqueIdGenerator.getRollover());
+    LOGGER.info("No Collisions, sequence exhausted "
+        + uniqueIdGenerator.getSequenceExhaustedCount());
+  }
+
+  @Test
+  public void testIdsIncrease() {
+    UniqueIdGenerator uniqueIdGenerator = new UniqueIdGenerator(5);
+    long start = System.currentTimeMillis();
+    long last = uniqueIdGenerator.nextId();
+    String lastEncoded = UniqueIdEncoder.encode(last);
+    for (int i = 0; i < 100000; i++) {
+      long id = uniqueIdGenerator.nextId();
+      String encoded = UniqueIdEncoder.encode(id);
+      Assert.assertTrue(id > last);
+      Assert.assertTrue(encoded.compareTo(lastEncoded) > 0);
+      Assert.assertEquals(id, UniqueIdEncoder.decode(encoded));
+      last = id;
+      lastEncoded = encoded;
+    }
+    // the server number survives, and the time is close unless the sequence ran out.
+    Assert.assertEquals(5, (last >>> 12) & 1023);
+    Assert.assertTrue(uniqueIdGenerator.getTime(last) >= start);
+  }
+
+  @Test
+  public void testReserve() {
+    UniqueIdGenerator uniqueIdGenerator = new UniqueIdGenerator(7);
+    long before = uniqueIdGenerator.nextId();
+    // more than the sequence in one millisecond, so the block spans several.
+    UniqueIdBlock block = uniqueIdGenerator.reserve(10000);
+    long after = uniqueIdGenerator.nextId();
+    Assert.assertEquals(10000, block.size());
+    Assert.assertEquals(10000, uniqueIdGenerator.getReservedCount());
+    long last = before;
+    Set<Long> ids = new HashSet<Long>();
+    for (int i = 0; i < block.size(); i++) {
+      long id = block.getId(i);
+      Assert.assertTrue(id > last);
+      Assert.assertTrue(ids.add(id));
+      last = id;
+    }
+    Assert.assertTrue(after > last);
+    try {
+      block.getId(10000);
+      Assert.fail();
+    } catch (IndexOutOfBoundsException e) {
+      // expected
+    }
+  }
+
+  @Test
+  public void testReserveIsCapped() {
+    UniqueIdGenerator uniqueIdGenerator = new UniqueIdGenerator(7);
+    try {
+      uniqueIdGenerator.reserve(UniqueIdGenerator.MAX_BLOCK_SIZE + 1);
+      Assert.fail();
+    } catch (IllegalArgumentException e) {
+      // expected
+    }
+    try {
+      uniqueIdGenerator.reserve(Integer.MAX_VALUE);
+      Assert.fail();
+    } catch (IllegalArgumentException e) {
+      // expected
+    }
+    // many full blocks wait for the clock rather than run far ahead of it.
+    for (int i = 0; i < 20; i++) {
+      UniqueIdBlock block = uniqueIdGenerator.reserve(UniqueIdGenerator.MAX_BLOCK_SIZE);
+      long ahead = uniqueIdGenerator.getTime(block.getId(block.size() - 1))
+          - System.currentTimeMillis();
+      Assert.assertTrue(ahead + " ms ahead", ahead <= UniqueIdGenerator.MAX_AHEAD + 20);
+    }
+    Assert.assertTrue(uniqueIdGenerator.getTime(uniqueIdGenerator.nextId())
+        - System.currentTimeMillis() <= UniqueIdGenerator.MAX_AHEAD + 20);
+  }
+
+  @Test
+  public void testEncoding() {
+    Assert.assertEquals("000000000000", UniqueIdEncoder.encode(0));
+    Assert.assertEquals(Long.MAX_VALUE,
+        UniqueIdEncoder.decode(UniqueIdEncoder.encode(Long.MAX_VALUE)));
+    Assert.assertEquals(UniqueIdEncoder.LENGTH, UniqueIdEncoder.encode(Long.MAX_VALUE)
+        .length());
+    try {
+      UniqueIdEncoder.decode("zzzzzzzzzzzz");
+      Assert.fail();
+    } catch (IllegalArgumentException e) {
+      // expected
+    }
   }
 
 }
@@ -63,4 +63,30 @@ public interface ConnectionConstants {
    */
   public static final String EVENT_TOPIC_BASE = "org/sakaiproject/nakamura/connections/";
 
+  /**
+   * The topic of the event posted whenever a connection between two users changes state.
+   * The event carries both user ids and the state of both sides before and after the
+   * change, so listeners can keep derived counts without reading the contact store.
+   */
+  public static final String EVENT_TOPIC_STATE_CHANGED = EVENT_TOPIC_BASE + "state/CHANGED";
+
+  /**
+   * The user the connection operation was performed for, on a state change event.
+   */
+  public static final String EVENT_PROP_USER = "user";
+
+  /**
+   * The other user in the connection, on a state change event.
+   */
+  public static final String EVENT_PROP_OTHER_USER = "otherUser";
+
+  /**
+   * The {@link ConnectionState} names of the user's and the other user's side of the
+   * connection before and after the change.
+   */
+  public static final String EVENT_PROP_USER_FROM = "userFrom";
+  public static final String EVENT_PROP_USER_TO = "userTo";
+  public static final String EVENT_PROP_OTHER_USER_FROM = "otherUserFrom";
+  public static final String EVENT_PROP_OTHER_USER_TO = "otherUserTo";
+
 }
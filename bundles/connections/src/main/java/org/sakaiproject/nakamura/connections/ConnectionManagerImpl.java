@@ -45,6 +45,8 @@ import org.apache.felix.scr.annotations.Service;
 import org.apache.sling.api.SlingHttpServletRequest;
 import org.apache.sling.api.resource.Resource;
 import org.apache.sling.commons.json.JSONException;
+import org.osgi.service.event.Event;
+import org.osgi.service.event.EventAdmin;
 import org.sakaiproject.nakamura.api.connections.ConnectionConstants;
 import org.sakaiproject.nakamura.api.connections.ConnectionException;
 import org.sakaiproject.nakamura.api.connections.ConnectionManager;
@@ -75,7 +77,9 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.util.Arrays;
+import java.util.Dictionary;
 import java.util.HashMap;
+import java.util.Hashtable;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
@@ -103,6 +107,9 @@ public class ConnectionManagerImpl implements ConnectionManager {
   @Reference
   protected AuthorizableCountChanger authorizableCountChanger;
 
+  @Reference
+  protected transient EventAdmin eventAdmin;
+
   private static Map<TransitionKey, StatePair> stateMap = new HashMap<TransitionKey, StatePair>();
 
   static {
@@ -287,6 +294,9 @@ public class ConnectionManagerImpl implements ConnectionManager {
       contentManager.update(thisNode);
       contentManager.update(otherNode);
 
+      postStateChange(thisUserId, otherUserId, thisState, otherState,
+          getConnectionState(thisNode), getConnectionState(otherNode));
+
       if (operation == ConnectionOperation.invite) {
         throw new ConnectionException(200, "Invitation made between "
             + thisNode.getPath() + " and " + otherNode.getPath());
@@ -308,6 +318,32 @@ public class ConnectionManagerImpl implements ConnectionManager {
     return true;
   }
 
+  /**
+   * Post an event describing a connection state change, so that anything keeping counts
+   * of connections by state can apply the change without querying for it.
+   */
+  protected void postStateChange(String thisUserId, String otherUserId,
+      ConnectionState thisFrom, ConnectionState otherFrom, ConnectionState thisTo,
+      ConnectionState otherTo) {
+    if (eventAdmin == null || (thisFrom == thisTo && otherFrom == otherTo)) {
+      return;
+    }
+    Dictionary<String, Object> properties = new Hashtable<String, Object>();
+    properties.put(ConnectionConstants.EVENT_PROP_USER, thisUserId);
+    properties.put(ConnectionConstants.EVENT_PROP_OTHER_USER, otherUserId);
+    properties.put(ConnectionConstants.EVENT_PROP_USER_FROM, thisFrom.toString());
+    properties.put(ConnectionConstants.EVENT_PROP_USER_TO, thisTo.toString());
+    properties.put(ConnectionConstants.EVENT_PROP_OTHER_USER_FROM, otherFrom.toString());
+    properties.put(ConnectionConstants.EVENT_PROP_OTHER_USER_TO, otherTo.toString());
+    try {
+      eventAdmin.postEvent(new Event(ConnectionConstants.EVENT_TOPIC_STATE_CHANGED,
+          properties));
+    } catch (Exception e) {
+      LOGGER.warn("Failed to post connection state change event, cause {} ",
+          e.getMessage(), e);
+    }
+  }
+
   /**
    * {@inheritDoc}
    *
@@ -134,6 +134,18 @@ public class LiteOutgoingEmailMessageListener implements MessageListener {
       @PropertyOption(name = OP_DISABLED, value = "Disabled")
   })
   static final String OPERATION_MODE = "sakai.email.operation.mode";
+  @Property(intValue = 4)
+  static final String CONSUMERS = "sakai.email.consumers";
+  @Property(intValue = 0)
+  static final String MAX_RATE = "sakai.email.maxRatePerSecond";
+  @Property(intValue = 300)
+  static final String RECIPIENT_CACHE_TTL = "sakai.email.recipientCacheSeconds";
+  @Property(intValue = 4)
+  static final String SMTP_POOL_SIZE = "sakai.smtp.pool.size";
+  @Property(intValue = 100)
+  static final String SMTP_MESSAGES_PER_CONNECTION = "sakai.smtp.pool.messagesPerConnection";
+  @Property(intValue = 30)
+  static final String SMTP_IDLE_TIMEOUT = "sakai.smtp.pool.idleTimeoutSeconds";
 
   static final String QUEUE_NAME = "org/sakaiproject/nakamura/message/email/outgoing";
   
@@ -169,6 +181,13 @@ public class LiteOutgoingEmailMessageListener implements MessageListener {
    */
   private static final String NOT_SET_TMPL = "%s not set";
 
+  /**
+   * Marks a recipient that is not a group in the group member cache.
+   */
+  private static final String[] NOT_A_GROUP = new String[0];
+
+  private static final int RECIPIENT_CACHE_SIZE = 10000;
+
   private Connection connection = null;
   private String smtpServer;
   private Integer smtpPort;
@@ -181,6 +200,10 @@ public class LiteOutgoingEmailMessageListener implements MessageListener {
   private String replyAsAddress;
   private String replyAsName;
   private String operationMode;
+  private javax.mail.Session mailSession;
+  private SmtpTransportPool transportPool;
+  private RecipientCache<String[]> groupMembers = new RecipientCache<String[]>(0, 1);
+  private RecipientCache<String> emailAddresses = new RecipientCache<String>(0, 1);
 
   public LiteOutgoingEmailMessageListener() {
   }
@@ -238,18 +261,19 @@ public class LiteOutgoingEmailMessageListener implements MessageListener {
                     && messageContent.hasProperty(MessageConstants.PROP_SAKAI_FROM)) {
                   // make a commons-email message from the message
                   MultiPartEmail email = null;
+                  MimeMessage prepared = null;
                   try {
                     email = constructMessage(messageContent, recipients, adminSession,
                         sparseSession);
 
-                    setOptions(email);
+                    email.setMailSession(mailSession);
+                    email.buildMimeMessage();
                     if (LOGGER.isDebugEnabled() || OP_LOG.equals(operationMode)) {
-                      // build wrapped message in order to log it
-                      email.buildMimeMessage();
                       logEmail(email);
                     }
                     if (OP_SEND.equals(operationMode)) {
-                      email.send();
+                      prepared = email.getMimeMessage();
+                      send(prepared);
                     } else {
                       LOGGER.info("Email sending is not enabled [{}]", operationMode);
                     }
@@ -271,7 +295,7 @@ public class LiteOutgoingEmailMessageListener implements MessageListener {
                         int errorCode = Integer.parseInt(smtpError.substring(0, 3));
                         // All retry-able SMTP errors should have codes starting
                         // with 4
-                        scheduleRetry(errorCode, messageContent);
+                        scheduleRetry(errorCode, messageContent, prepared);
                         rescheduled = true;
                       } catch (NumberFormatException nfe) {
                         // smtpError didn't start with an error code, let's dig for
@@ -282,11 +306,11 @@ public class LiteOutgoingEmailMessageListener implements MessageListener {
                             && (rindex + searchFor.length()) < smtpError.length()) {
                           int errorCode = Integer.parseInt(smtpError.substring(
                               searchFor.length(), searchFor.length() + 3));
-                          scheduleRetry(errorCode, messageContent);
+                          scheduleRetry(errorCode, messageContent, prepared);
                           rescheduled = true;
                         }
                         else if (!rescheduled && cause.toString().contains("java.net.ConnectException")){
-                          scheduleRetry(messageContent);
+                          scheduleRetry(messageContent, prepared);
                           rescheduled = true;
                         }
                       }
@@ -341,23 +365,36 @@ public class LiteOutgoingEmailMessageListener implements MessageListener {
   }
 
   /**
-   * Set transfer options on the email based on configuration of this service.
+   * Send a built message on a pooled SMTP connection.
    *
-   * @param email The email where to set options.
+   * @param message The message to send.
+   * @throws EmailException if the message could not be sent, wrapping the SMTP failure.
    */
-  private void setOptions(MultiPartEmail email) {
-    email.setHostName(smtpServer);
-    email.setTLS(useTls);
-    email.setSSL(useSsl);
-    if (useSsl) {
-      email.setSslSmtpPort(Integer.toString(smtpPort));
-    } else {
-      email.setSmtpPort(smtpPort);
+  private void send(MimeMessage message) throws EmailException {
+    try {
+      transportPool.send(message);
+    } catch (MessagingException e) {
+      throw new EmailException("Sending the email to the following server failed : "
+          + smtpServer + ":" + smtpPort, e);
     }
+  }
 
-    if (!StringUtils.isBlank(authUser) && !StringUtils.isBlank(authPass)) {
-      email.setAuthentication(authUser, authPass);
+  /**
+   * Create the mail session messages are built in and transports are taken from, based
+   * on configuration of this service.
+   */
+  private javax.mail.Session createMailSession() {
+    String protocol = useSsl ? "smtps" : "smtp";
+    Properties properties = new Properties();
+    properties.setProperty("mail.transport.protocol", protocol);
+    properties.setProperty("mail." + protocol + ".host", smtpServer);
+    properties.setProperty("mail." + protocol + ".port", Integer.toString(smtpPort));
+    properties.setProperty("mail." + protocol + ".connectiontimeout", "60000");
+    properties.setProperty("mail." + protocol + ".timeout", "60000");
+    if (useTls) {
+      properties.setProperty("mail." + protocol + ".starttls.enable", "true");
     }
+    return javax.mail.Session.getInstance(properties);
   }
 
   protected MultiPartEmail constructMessage(Content contentNode, List<String> recipients,
@@ -496,14 +533,13 @@ public class LiteOutgoingEmailMessageListener implements MessageListener {
       AccessDeniedException {
     for (String recipient : recipients) {
       LOGGER.debug("Checking recipient: " + recipient);
-      Authorizable au = session.getAuthorizableManager().findAuthorizable(recipient);
-      if (au != null && au instanceof Group) {
+      String[] members = getGroupMembers(recipient, session);
+      if (members != null) {
         // Prevent infinite recursion in cyclic group references
         if (!groupsAlreadyProcessed.contains(recipient)) {
-          Group group = (Group) au;
           groupsAlreadyProcessed.add(recipient);
           // Recurse with the group members
-          setRecipients(Arrays.asList(group.getMembers()),
+          setRecipients(Arrays.asList(members),
               session,
               newRecipients,
               groupsAlreadyProcessed);
@@ -516,31 +552,130 @@ public class LiteOutgoingEmailMessageListener implements MessageListener {
     return newRecipients;
   }
 
+  /**
+   * @return the members of the recipient if it is a group, null if it is not.
+   */
+  private String[] getGroupMembers(String recipient,
+      org.sakaiproject.nakamura.api.lite.Session session) throws StorageClientException,
+      AccessDeniedException {
+    String[] members = groupMembers.get(recipient);
+    if (members == null) {
+      Authorizable au = session.getAuthorizableManager().findAuthorizable(recipient);
+      if (au != null && au instanceof Group) {
+        members = ((Group) au).getMembers();
+      } else {
+        members = NOT_A_GROUP;
+      }
+      groupMembers.put(recipient, members);
+    }
+    return members == NOT_A_GROUP ? null : members;
+  }
+
   private String convertToEmail(String address,
       org.sakaiproject.nakamura.api.lite.Session session) throws StorageClientException,
       AccessDeniedException, RepositoryException {
     if (address.indexOf('@') < 0) {
-      Authorizable user = session.getAuthorizableManager().findAuthorizable(address);
-      String emailAddress = OutgoingEmailUtils.getEmailAddress(user, session, basicUserInfo, profileService, repository);
-
-      if (!StringUtils.isBlank(emailAddress)) {
-        address = emailAddress;
-      } else {
-        address = address + "@" + smtpServer;
+      String userId = address;
+      address = emailAddresses.get(userId);
+      if (address == null) {
+        Authorizable user = session.getAuthorizableManager().findAuthorizable(userId);
+        String emailAddress = OutgoingEmailUtils.getEmailAddress(user, session, basicUserInfo, profileService, repository);
+
+        if (!StringUtils.isBlank(emailAddress)) {
+          address = emailAddress;
+        } else {
+          address = userId + "@" + smtpServer;
+        }
+        emailAddresses.put(userId, address);
       }
     }
     return address;
   }
 
   protected void scheduleRetry(int errorCode, Content contentNode) {
+    scheduleRetry(errorCode, contentNode, null);
+  }
+
+  protected void scheduleRetry(int errorCode, Content contentNode, MimeMessage prepared) {
     // All retry-able SMTP errors should have codes starting with 4
     if ((errorCode / 100) == 4) {
-      scheduleRetry(contentNode);
+      scheduleRetry(contentNode, prepared);
     } else {
       LOGGER.warn("Not scheduling a retry for error code not of the form 4xx.");
     }
   }
 
+  /**
+   * Schedule a retry. A message that was built before the send failed is sent again as
+   * it is, without resolving its recipients and template again.
+   *
+   * @param contentNode the message content.
+   * @param prepared the built message, or null if the message was not built.
+   */
+  protected void scheduleRetry(Content contentNode, MimeMessage prepared) {
+    if (prepared == null) {
+      scheduleRetry(contentNode);
+    } else {
+      scheduleResend(contentNode.getPath(), prepared, 1);
+    }
+  }
+
+  private void scheduleResend(final String path, final MimeMessage prepared,
+      final int attempt) {
+    if (attempt > maxRetries) {
+      LOGGER.error("Unable to send message {}, exhausted SMTP retries.", path);
+      return;
+    }
+    Job job = new Job() {
+
+      public void execute(JobContext jc) {
+        try {
+          transportPool.send(prepared);
+          LOGGER.info("Email {} sent on retry {} ", path, attempt);
+        } catch (MessagingException e) {
+          if (isRetryable(e)) {
+            LOGGER.info("Email {} failed on retry {}, rescheduling: {}", new Object[] {
+                path, attempt, e.getMessage() });
+            scheduleResend(path, prepared, attempt + 1);
+          } else {
+            LOGGER.error("Unable to send message " + path + ": " + e.getMessage(), e);
+          }
+        }
+      }
+    };
+
+    Date nextTry = new Date(System.currentTimeMillis() + (retryInterval * 60000L));
+    try {
+      scheduler.fireJobAt(null, job, new HashMap<String, Serializable>(), nextTry);
+    } catch (Exception e) {
+      LOGGER.error(e.getMessage(), e);
+    }
+  }
+
+  /**
+   * @return true if the failure was a 4xx SMTP reply or the server could not be reached.
+   */
+  private boolean isRetryable(MessagingException e) {
+    for (Throwable t = e; t != null; t = t.getCause()) {
+      if (t instanceof java.net.ConnectException) {
+        return true;
+      }
+      String message = t.getMessage();
+      if (message != null) {
+        message = message.trim();
+        int rindex = message.indexOf("response:");
+        if (rindex > -1) {
+          message = message.substring(rindex + "response:".length()).trim();
+        }
+        if (message.length() >= 3 && message.charAt(0) == '4'
+            && Character.isDigit(message.charAt(1)) && Character.isDigit(message.charAt(2))) {
+          return true;
+        }
+      }
+    }
+    return false;
+  }
+
   protected void scheduleRetry(Content contentNode) {
 
     long retryCount = 0;
@@ -646,6 +781,31 @@ public class LiteOutgoingEmailMessageListener implements MessageListener {
     authUser = PropertiesUtil.toString(props.get(SMTP_AUTH_USER), "");
     authPass = PropertiesUtil.toString(props.get(SMTP_AUTH_PASS), "");
 
+    long recipientCacheTtl = PropertiesUtil.toInteger(props.get(RECIPIENT_CACHE_TTL), 300) * 1000L;
+    groupMembers = new RecipientCache<String[]>(recipientCacheTtl, RECIPIENT_CACHE_SIZE);
+    emailAddresses = new RecipientCache<String>(recipientCacheTtl, RECIPIENT_CACHE_SIZE);
+
+    if (transportPool != null) {
+      transportPool.close();
+    }
+    mailSession = createMailSession();
+    transportPool = new SmtpTransportPool(mailSession, useSsl ? "smtps" : "smtp", smtpServer,
+        smtpPort, StringUtils.isBlank(authUser) ? null : authUser,
+        StringUtils.isBlank(authPass) ? null : authPass,
+        PropertiesUtil.toInteger(props.get(SMTP_POOL_SIZE), 4),
+        PropertiesUtil.toInteger(props.get(SMTP_MESSAGES_PER_CONNECTION), 100),
+        PropertiesUtil.toInteger(props.get(SMTP_IDLE_TIMEOUT), 30) * 1000L,
+        PropertiesUtil.toInteger(props.get(MAX_RATE), 0));
+
+    if (connection != null) {
+      // reconfigured, drop the consumers of the last configuration
+      try {
+        connection.close();
+      } catch (JMSException e) {
+      }
+      connection = null;
+    }
+
     operationMode = PropertiesUtil.toString(props.get(OPERATION_MODE), OP_SEND);
     if (OP_DISABLED.equals(operationMode)) {
       LOGGER.info("Email sending is completely disabled and not connected to JMS. Set to 'noop' to see a log entry per message send request.");
@@ -654,10 +814,14 @@ public class LiteOutgoingEmailMessageListener implements MessageListener {
 
     try {
       connection = connFactoryService.getDefaultConnectionFactory().createConnection();
-      Session session = connection.createSession(false, Session.AUTO_ACKNOWLEDGE);
-      Queue dest = session.createQueue(QUEUE_NAME);
-      MessageConsumer consumer = session.createConsumer(dest);
-      consumer.setMessageListener(this);
+      // each session delivers to its consumer on its own thread
+      int consumers = Math.max(1, PropertiesUtil.toInteger(props.get(CONSUMERS), 4));
+      for (int i = 0; i < consumers; i++) {
+        Session session = connection.createSession(false, Session.AUTO_ACKNOWLEDGE);
+        Queue dest = session.createQueue(QUEUE_NAME);
+        MessageConsumer consumer = session.createConsumer(dest);
+        consumer.setMessageListener(this);
+      }
       connection.start();
     } catch (JMSException e) {
       LOGGER.error(e.getMessage(), e);
@@ -678,6 +842,10 @@ public class LiteOutgoingEmailMessageListener implements MessageListener {
         connection.close();
       } catch (JMSException e) {
       }
+      connection = null;
+    }
+    if (transportPool != null) {
+      transportPool.close();
     }
   }
 
@@ -0,0 +1,75 @@
+/**
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.email.outgoing;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Remembers how recipients resolved for a short while, so a message to a large group, or
+ * a run of messages to the same people, does not look up every authorizable again.
+ */
+class RecipientCache<V> {
+
+  private static class Entry<V> {
+    private final V value;
+    private final long expires;
+
+    Entry(V value, long expires) {
+      this.value = value;
+      this.expires = expires;
+    }
+  }
+
+  private final ConcurrentMap<String, Entry<V>> entries = new ConcurrentHashMap<String, Entry<V>>();
+  private final long ttl;
+  private final int maxSize;
+
+  /**
+   * @param ttl
+   *          how long, in ms, to remember a recipient, 0 to not remember at all.
+   * @param maxSize
+   *          the most recipients to remember. The cache is emptied when it is reached.
+   */
+  RecipientCache(long ttl, int maxSize) {
+    this.ttl = ttl;
+    this.maxSize = maxSize;
+  }
+
+  V get(String key) {
+    Entry<V> entry = entries.get(key);
+    if (entry == null) {
+      return null;
+    }
+    if (entry.expires < System.currentTimeMillis()) {
+      entries.remove(key, entry);
+      return null;
+    }
+    return entry.value;
+  }
+
+  void put(String key, V value) {
+    if (ttl <= 0 || value == null) {
+      return;
+    }
+    if (entries.size() >= maxSize) {
+      entries.clear();
+    }
+    entries.put(key, new Entry<V>(value, System.currentTimeMillis() + ttl));
+  }
+}
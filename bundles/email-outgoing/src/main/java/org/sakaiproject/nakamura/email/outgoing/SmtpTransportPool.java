@@ -0,0 +1,254 @@
+/**
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.email.outgoing;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.LinkedList;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.mail.MessagingException;
+import javax.mail.Session;
+import javax.mail.Transport;
+import javax.mail.internet.MimeMessage;
+
+/**
+ * A pool of connected SMTP transports. Messages sent through the pool reuse an open
+ * connection, so a run of queued messages costs one connect (and TLS handshake) per
+ * connection rather than one per message. A connection is closed once it has sent
+ * <code>maxMessagesPerConnection</code> messages or has been idle for
+ * <code>idleTimeout</code> ms. Sends can be limited to a number of messages per second
+ * across all connections.
+ */
+public class SmtpTransportPool {
+
+  private static final Logger LOGGER = LoggerFactory.getLogger(SmtpTransportPool.class);
+
+  private static class PooledTransport {
+    private final Transport transport;
+    private int sent;
+    private long lastUsed;
+
+    PooledTransport(Transport transport) {
+      this.transport = transport;
+    }
+  }
+
+  private final Session mailSession;
+  private final String protocol;
+  private final String host;
+  private final int port;
+  private final String user;
+  private final String password;
+  private final int maxMessagesPerConnection;
+  private final long idleTimeout;
+  private final long sendIntervalNanos;
+  private final Semaphore connections;
+  private final LinkedList<PooledTransport> idle = new LinkedList<PooledTransport>();
+  private final AtomicLong sent = new AtomicLong();
+  private final AtomicLong opened = new AtomicLong();
+  private long nextSend;
+  private volatile boolean closed;
+
+  /**
+   * @param mailSession
+   *          the mail session transports are taken from.
+   * @param protocol
+   *          smtp or smtps.
+   * @param host
+   *          the SMTP server.
+   * @param port
+   *          the SMTP port.
+   * @param user
+   *          the user to authenticate as, or null.
+   * @param password
+   *          the password to authenticate with, or null.
+   * @param maxConnections
+   *          the most connections to have open at once.
+   * @param maxMessagesPerConnection
+   *          the most messages to send on one connection, 0 for no limit.
+   * @param idleTimeout
+   *          how long, in ms, a connection may sit idle before it is closed.
+   * @param maxRate
+   *          the most messages to send per second, 0 for no limit.
+   */
+  public SmtpTransportPool(Session mailSession, String protocol, String host, int port,
+      String user, String password, int maxConnections, int maxMessagesPerConnection,
+      long idleTimeout, double maxRate) {
+    this.mailSession = mailSession;
+    this.protocol = protocol;
+    this.host = host;
+    this.port = port;
+    this.user = user;
+    this.password = password;
+    this.connections = new Semaphore(Math.max(1, maxConnections), true);
+    this.maxMessagesPerConnection = maxMessagesPerConnection;
+    this.idleTimeout = idleTimeout;
+    this.sendIntervalNanos = maxRate > 0 ? (long) (TimeUnit.SECONDS.toNanos(1) / maxRate)
+        : 0;
+  }
+
+  /**
+   * Send a message on a pooled connection, waiting for a connection and for the rate
+   * limit if need be.
+   *
+   * @param message
+   *          the message to send, to all of its recipients.
+   * @throws MessagingException
+   *           if the message could not be sent.
+   */
+  public void send(MimeMessage message) throws MessagingException {
+    if (closed) {
+      throw new MessagingException("The SMTP transport pool is closed");
+    }
+    try {
+      throttle();
+      connections.acquire();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new MessagingException("Interrupted waiting to send", e);
+    }
+    try {
+      // Transport.send would do this, sendMessage does not
+      message.saveChanges();
+      PooledTransport pooled = borrow();
+      boolean reused = pooled.sent > 0;
+      try {
+        pooled.transport.sendMessage(message, message.getAllRecipients());
+      } catch (MessagingException e) {
+        close(pooled);
+        if (!reused) {
+          throw e;
+        }
+        // the server may have dropped a connection that looked open, try a new one
+        LOGGER.debug("Pooled SMTP connection failed, retrying on a new connection {} ",
+            e.getMessage());
+        pooled = connect();
+        try {
+          pooled.transport.sendMessage(message, message.getAllRecipients());
+        } catch (MessagingException e2) {
+          close(pooled);
+          throw e2;
+        }
+      }
+      pooled.sent++;
+      sent.incrementAndGet();
+      release(pooled);
+    } finally {
+      connections.release();
+    }
+  }
+
+  /**
+   * Close all idle connections and refuse further sends. Connections in use are closed
+   * when they are returned.
+   */
+  public void close() {
+    closed = true;
+    synchronized (idle) {
+      for (PooledTransport pooled : idle) {
+        close(pooled);
+      }
+      idle.clear();
+    }
+  }
+
+  /**
+   * @return the number of messages sent.
+   */
+  public long getSent() {
+    return sent.get();
+  }
+
+  /**
+   * @return the number of connections opened.
+   */
+  public long getOpened() {
+    return opened.get();
+  }
+
+  /**
+   * @return the number of connections open and waiting for a message.
+   */
+  public int getIdle() {
+    synchronized (idle) {
+      return idle.size();
+    }
+  }
+
+  private void throttle() throws InterruptedException {
+    if (sendIntervalNanos <= 0) {
+      return;
+    }
+    long wait;
+    synchronized (this) {
+      long now = System.nanoTime();
+      long at = Math.max(now, nextSend);
+      nextSend = at + sendIntervalNanos;
+      wait = at - now;
+    }
+    if (wait > 0) {
+      TimeUnit.NANOSECONDS.sleep(wait);
+    }
+  }
+
+  private PooledTransport borrow() throws MessagingException {
+    long now = System.currentTimeMillis();
+    synchronized (idle) {
+      while (!idle.isEmpty()) {
+        // most recently used first, so surplus connections age out
+        PooledTransport pooled = idle.removeFirst();
+        if (now - pooled.lastUsed < idleTimeout && pooled.transport.isConnected()) {
+          return pooled;
+        }
+        close(pooled);
+      }
+    }
+    return connect();
+  }
+
+  private void release(PooledTransport pooled) {
+    if (closed
+        || (maxMessagesPerConnection > 0 && pooled.sent >= maxMessagesPerConnection)) {
+      close(pooled);
+      return;
+    }
+    pooled.lastUsed = System.currentTimeMillis();
+    synchronized (idle) {
+      idle.addFirst(pooled);
+    }
+  }
+
+  private PooledTransport connect() throws MessagingException {
+    Transport transport = mailSession.getTransport(protocol);
+    transport.connect(host, port, user, password);
+    opened.incrementAndGet();
+    return new PooledTransport(transport);
+  }
+
+  private void close(PooledTransport pooled) {
+    try {
+      pooled.transport.close();
+    } catch (MessagingException e) {
+      LOGGER.debug("Failed to close SMTP connection {} ", e.getMessage());
+    }
+  }
+}
@@ -0,0 +1,130 @@
+/**
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.email.outgoing;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.subethamail.wiser.Wiser;
+
+import java.net.ServerSocket;
+import java.util.Properties;
+
+import javax.mail.Message.RecipientType;
+import javax.mail.MessagingException;
+import javax.mail.Session;
+import javax.mail.internet.InternetAddress;
+import javax.mail.internet.MimeMessage;
+
+public class SmtpTransportPoolTest {
+
+  Wiser smtpServer;
+  int smtpPort;
+  Session mailSession;
+
+  @Before
+  public void setUp() throws Exception {
+    // find a local open port to start the smtp test server on
+    ServerSocket ss = new ServerSocket(0);
+    smtpPort = ss.getLocalPort();
+    ss.close();
+
+    smtpServer = new Wiser();
+    smtpServer.setPort(smtpPort);
+    smtpServer.start();
+
+    mailSession = Session.getInstance(new Properties());
+  }
+
+  @After
+  public void tearDown() throws Exception {
+    if (smtpServer != null) {
+      smtpServer.stop();
+    }
+  }
+
+  @Test
+  public void testReusesConnection() throws Exception {
+    SmtpTransportPool pool = createPool(2, 0, 0);
+    for (int i = 0; i < 5; i++) {
+      pool.send(createMessage(i));
+    }
+    pool.close();
+    assertEquals(5, smtpServer.getMessages().size());
+    assertEquals(5, pool.getSent());
+    assertEquals(1, pool.getOpened());
+    assertEquals(0, pool.getIdle());
+  }
+
+  @Test
+  public void testMessagesPerConnection() throws Exception {
+    SmtpTransportPool pool = createPool(1, 2, 0);
+    for (int i = 0; i < 5; i++) {
+      pool.send(createMessage(i));
+    }
+    pool.close();
+    assertEquals(5, smtpServer.getMessages().size());
+    assertEquals(3, pool.getOpened());
+  }
+
+  @Test
+  public void testRateLimit() throws Exception {
+    SmtpTransportPool pool = createPool(1, 0, 20);
+    long start = System.currentTimeMillis();
+    for (int i = 0; i < 5; i++) {
+      pool.send(createMessage(i));
+    }
+    pool.close();
+    // the first message goes straight away, each of the others waits 50ms
+    assertTrue(System.currentTimeMillis() - start >= 200);
+    assertEquals(5, smtpServer.getMessages().size());
+  }
+
+  @Test(expected = MessagingException.class)
+  public void testServerDown() throws Exception {
+    smtpServer.stop();
+    smtpServer = null;
+    createPool(1, 0, 0).send(createMessage(0));
+  }
+
+  @Test(expected = MessagingException.class)
+  public void testClosed() throws Exception {
+    SmtpTransportPool pool = createPool(1, 0, 0);
+    pool.close();
+    pool.send(createMessage(0));
+  }
+
+  private SmtpTransportPool createPool(int maxConnections, int messagesPerConnection,
+      double maxRate) {
+    return new SmtpTransportPool(mailSession, "smtp", "localhost", smtpPort, null, null,
+        maxConnections, messagesPerConnection, 30000L, maxRate);
+  }
+
+  private MimeMessage createMessage(int i) throws MessagingException {
+    MimeMessage message = new MimeMessage(mailSession);
+    message.setFrom(new InternetAddress("unittestfrom@localhost.localdomain"));
+    message.setRecipient(RecipientType.TO, new InternetAddress(
+        "unittestto@localhost.localdomain"));
+    message.setSubject("Message " + i);
+    message.setText("Body " + i);
+    return message;
+  }
+}
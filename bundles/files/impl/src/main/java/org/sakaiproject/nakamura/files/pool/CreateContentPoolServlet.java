@@ -27,8 +27,12 @@ import static org.sakaiproject.nakamura.api.files.FilesConstants.POOLED_NEEDS_PR
 
 import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
 
 import org.apache.commons.io.FilenameUtils;
+import org.apache.felix.scr.annotations.Activate;
+import org.apache.felix.scr.annotations.Deactivate;
+import org.apache.felix.scr.annotations.Modified;
 import org.apache.felix.scr.annotations.Properties;
 import org.apache.felix.scr.annotations.Property;
 import org.apache.felix.scr.annotations.Reference;
@@ -43,6 +47,7 @@ import org.apache.sling.api.request.RequestPathInfo;
 import org.apache.sling.api.servlets.SlingAllMethodsServlet;
 import org.apache.sling.commons.json.JSONException;
 import org.apache.sling.commons.json.io.JSONWriter;
+import org.apache.sling.commons.osgi.PropertiesUtil;
 import org.osgi.service.event.EventAdmin;
 import org.sakaiproject.nakamura.api.activity.ActivityUtils;
 import org.sakaiproject.nakamura.api.cluster.ClusterTrackingService;
@@ -76,6 +81,7 @@ import org.sakaiproject.nakamura.api.user.AuthorizableCountChanger;
 import org.sakaiproject.nakamura.api.user.UserConstants;
 import org.sakaiproject.nakamura.util.ExtendedJSONWriter;
 import org.sakaiproject.nakamura.util.StringUtils;
+import org.sakaiproject.nakamura.util.telemetry.TelemetryCounter;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -90,6 +96,13 @@ import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
 import java.util.Set;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArraySet;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 import javax.jcr.RepositoryException;
 import javax.servlet.ServletException;
@@ -98,7 +111,10 @@ import javax.servlet.http.HttpServletResponse;
 @SlingServlet(methods = "POST", paths = "/system/pool/createfile")
 @Properties(value = {
     @Property(name = "service.vendor", value = "The Sakai Foundation"),
-    @Property(name = "service.description", value = "Allows for uploading files to the pool.") })
+    @Property(name = "service.description", value = "Allows for uploading files to the pool."),
+    @Property(name = CreateContentPoolServlet.ASYNC_HANDLERS_PROP, boolValue = false),
+    @Property(name = CreateContentPoolServlet.HANDLER_THREADS_PROP, intValue = CreateContentPoolServlet.DEFAULT_HANDLER_THREADS),
+    @Property(name = CreateContentPoolServlet.SPOOL_THRESHOLD_PROP, intValue = CreateContentPoolServlet.DEFAULT_SPOOL_THRESHOLD) })
 @ServiceDocumentation(name="Create Content Pool Servlet", okForVersion = "1.2",
     description="Creates and Updates files in the pool",
     shortDescription="Creates and Updates files in the pool",
@@ -159,7 +175,31 @@ public class CreateContentPoolServlet extends SlingAllMethodsServlet {
   private static final Logger LOGGER = LoggerFactory
       .getLogger(CreateContentPoolServlet.class);
 
-  private Set<FileUploadHandler> fileUploadHandlers = new HashSet<FileUploadHandler>();
+  /**
+   * If true the FileUploadHandlers run on a thread pool and the upload request does not
+   * wait for them. Anything they add to the results is not sent to the client.
+   */
+  static final String ASYNC_HANDLERS_PROP = "upload.handlers.async";
+
+  static final String HANDLER_THREADS_PROP = "upload.handlers.threads";
+
+  static final int DEFAULT_HANDLER_THREADS = 2;
+
+  /**
+   * Uploads up to this many bytes are kept in memory for the FileUploadHandlers, larger
+   * ones are spooled to a temporary file.
+   */
+  static final String SPOOL_THRESHOLD_PROP = "upload.handlers.spool.threshold";
+
+  static final int DEFAULT_SPOOL_THRESHOLD = 1024 * 1024;
+
+  private int spoolThreshold = DEFAULT_SPOOL_THRESHOLD;
+
+  private ExecutorService handlerExecutor;
+
+  private final ConcurrentMap<String, HandlerTiming> handlerTimings = Maps.newConcurrentMap();
+
+  private Set<FileUploadHandler> fileUploadHandlers = new CopyOnWriteArraySet<FileUploadHandler>();
 
   public void bindFileUploadHandler(FileUploadHandler fileUploadHandler) {
     fileUploadHandlers.add(fileUploadHandler);
@@ -181,23 +221,169 @@ public class CreateContentPoolServlet extends SlingAllMethodsServlet {
   }
 
 
-  private void notifyFileUploadHandlers(Map<String, Object> results, Session session,
-                                        String poolId, RequestParameter p,
-                                        String userId, boolean isNew)
+  @Activate
+  @Modified
+  protected void activate(Map<String, Object> properties) {
+    spoolThreshold = PropertiesUtil.toInteger(properties.get(SPOOL_THRESHOLD_PROP),
+        DEFAULT_SPOOL_THRESHOLD);
+    ExecutorService executor = null;
+    if (PropertiesUtil.toBoolean(properties.get(ASYNC_HANDLERS_PROP), false)) {
+      final AtomicInteger threadNumber = new AtomicInteger();
+      executor = Executors.newFixedThreadPool(
+          PropertiesUtil.toInteger(properties.get(HANDLER_THREADS_PROP),
+              DEFAULT_HANDLER_THREADS), new ThreadFactory() {
+            public Thread newThread(Runnable r) {
+              Thread t = new Thread(r, "FileUploadHandler-" + threadNumber.incrementAndGet());
+              t.setDaemon(true);
+              return t;
+            }
+          });
+    }
+    ExecutorService old = handlerExecutor;
+    handlerExecutor = executor;
+    if (old != null) {
+      old.shutdown();
+    }
+  }
+
+  @Deactivate
+  protected void deactivate(Map<String, Object> properties) {
+    if (handlerExecutor != null) {
+      handlerExecutor.shutdown();
+      handlerExecutor = null;
+    }
+  }
+
+  /**
+   * @return a spool to copy the upload into as it is stored, or null if there is nobody to
+   *         read it. The handlers are always given the main body, so an upload to an
+   *         alternative stream is not spooled.
+   */
+  private UploadSpool createSpool(String alternativeStream) {
+    if (fileUploadHandlers.isEmpty() || alternativeStream != null) {
+      return null;
+    }
+    return new UploadSpool(spoolThreshold);
+  }
+
+  private void notifyFileUploadHandlers(final Map<String, Object> results, Session session,
+                                        final String poolId, final RequestParameter p,
+                                        final String userId, final boolean isNew,
+                                        final UploadSpool spool)
     throws AccessDeniedException, StorageClientException
   {
-    ContentManager contentManager = session.getContentManager();
+    ExecutorService executor = handlerExecutor;
+    for (final FileUploadHandler fileUploadHandler : fileUploadHandlers) {
+      if (executor == null) {
+        notifyFileUploadHandler(fileUploadHandler, results, session, poolId, p, userId,
+            isNew, spool);
+        continue;
+      }
+      // the response may already be sent, so the handler gets its own results.
+      final Map<String, Object> handlerResults = new HashMap<String, Object>(results);
+      if (spool != null) {
+        spool.retain();
+      }
+      executor.execute(new Runnable() {
+        public void run() {
+          Session adminSession = null;
+          try {
+            if (spool == null) {
+              adminSession = sparseRepository.loginAdministrative();
+            }
+            notifyFileUploadHandler(fileUploadHandler, handlerResults, adminSession,
+                poolId, p, userId, isNew, spool);
+          } catch (Throwable t) {
+            LOGGER.error(t.getMessage(), t);
+          } finally {
+            if (spool != null) {
+              spool.release();
+            }
+            if (adminSession != null) {
+              try {
+                adminSession.logout();
+              } catch (ClientPoolException e) {
+                LOGGER.warn(e.getMessage(), e);
+              }
+            }
+          }
+        }
+      });
+    }
+  }
 
-    for (FileUploadHandler fileUploadHandler : fileUploadHandlers) {
+  /**
+   * Give the upload to one handler, reading it from the spool if there is one and from the
+   * content store if not.
+   */
+  private void notifyFileUploadHandler(FileUploadHandler fileUploadHandler,
+      Map<String, Object> results, Session session, String poolId, RequestParameter p,
+      String userId, boolean isNew, UploadSpool spool) {
+    String name = fileUploadHandler.getClass().getName();
+    long start = System.currentTimeMillis();
+    boolean failed = false;
+    try {
+      InputStream inputStream = spool == null ? null : spool.openInputStream();
+      if (inputStream == null) {
+        inputStream = session.getContentManager().getInputStream(poolId);
+      }
       try {
-        InputStream inputStream = contentManager.getInputStream(poolId);
         fileUploadHandler.handleFile(results, poolId, inputStream, userId, isNew);
+      } finally {
         inputStream.close();
-      } catch (Throwable t) {
-        LOGGER.error("FileUploadHandler '{}' failed to handle upload of file '{}' for userid '{}': {}",
-                     new Object[] { fileUploadHandler, p.getFileName(), userId, t.getMessage()});
-        LOGGER.error(t.getMessage(), t);
       }
+    } catch (Throwable t) {
+      failed = true;
+      TelemetryCounter.incrementValue("files", "FileUploadHandler-failed", name);
+      LOGGER.error("FileUploadHandler '{}' failed to handle upload of file '{}' for userid '{}': {}",
+                   new Object[] { fileUploadHandler, p.getFileName(), userId, t.getMessage()});
+      LOGGER.error(t.getMessage(), t);
+    }
+    long time = System.currentTimeMillis() - start;
+    HandlerTiming timing = handlerTimings.get(name);
+    if (timing == null) {
+      handlerTimings.putIfAbsent(name, new HandlerTiming());
+      timing = handlerTimings.get(name);
+    }
+    timing.record(time, failed);
+    TelemetryCounter.incrementValue("files", "FileUploadHandler-calls", name);
+    LOGGER.debug("FileUploadHandler {} took {} ms for {}, {} ", new Object[] { name, time,
+        poolId, timing });
+  }
+
+  /**
+   * @return the timing of every FileUploadHandler that has been called, by class name.
+   */
+  Map<String, HandlerTiming> getHandlerTimings() {
+    return handlerTimings;
+  }
+
+  /**
+   * How often and for how long a FileUploadHandler has run.
+   */
+  static final class HandlerTiming {
+    final AtomicLong calls = new AtomicLong();
+    final AtomicLong failures = new AtomicLong();
+    final AtomicLong totalMillis = new AtomicLong();
+    final AtomicLong maxMillis = new AtomicLong();
+
+    void record(long millis, boolean failed) {
+      calls.incrementAndGet();
+      if (failed) {
+        failures.incrementAndGet();
+      }
+      totalMillis.addAndGet(millis);
+      long max = maxMillis.get();
+      while (millis > max && !maxMillis.compareAndSet(max, millis)) {
+        max = maxMillis.get();
+      }
+    }
+
+    @Override
+    public String toString() {
+      long n = calls.get();
+      return "calls " + n + " failures " + failures.get() + " mean "
+          + (n == 0 ? 0 : totalMillis.get() / n) + " ms max " + maxMillis.get() + " ms";
     }
   }
 
@@ -245,23 +431,30 @@ public class CreateContentPoolServlet extends SlingAllMethodsServlet {
             // This is a file upload.
             // Generate an ID and store it.
             String fileName = FilenameUtils.getName(p.getFileName()); // IE still sends in an absolute path sometimes.
-            if ( poolId == null ) {
-              String createPoolId = generatePoolId();
-              Content content = createFile(createPoolId, null, adminSession, p, au, true);
-              results.put(fileName, ImmutableMap.of("poolId", (Object)createPoolId, "item", content.getProperties()));
-              statusCode = HttpServletResponse.SC_CREATED;
-              fileUpload = true;
-
-              notifyFileUploadHandlers(results, adminSession, createPoolId, p, au.getId(), true);
-            } else {
-              // Add it to the map so we can output something to the UI.
-              Content content = createFile(poolId, alternativeStream, session, p, au, false);
-              results.put(fileName, ImmutableMap.of("poolId", (Object)poolId, "item", content.getProperties()));
-              statusCode = HttpServletResponse.SC_OK;
-              fileUpload = true;
-
-              notifyFileUploadHandlers(results, adminSession, poolId, p, au.getId(), false);
-              break;
+            UploadSpool spool = createSpool(alternativeStream);
+            try {
+              if ( poolId == null ) {
+                String createPoolId = generatePoolId();
+                Content content = createFile(createPoolId, null, adminSession, p, au, true, spool);
+                results.put(fileName, ImmutableMap.of("poolId", (Object)createPoolId, "item", content.getProperties()));
+                statusCode = HttpServletResponse.SC_CREATED;
+                fileUpload = true;
+
+                notifyFileUploadHandlers(results, adminSession, createPoolId, p, au.getId(), true, spool);
+              } else {
+                // Add it to the map so we can output something to the UI.
+                Content content = createFile(poolId, alternativeStream, session, p, au, false, spool);
+                results.put(fileName, ImmutableMap.of("poolId", (Object)poolId, "item", content.getProperties()));
+                statusCode = HttpServletResponse.SC_OK;
+                fileUpload = true;
+
+                notifyFileUploadHandlers(results, adminSession, poolId, p, au.getId(), false, spool);
+                break;
+              }
+            } finally {
+              if (spool != null) {
+                spool.release();
+              }
             }
 
           }
@@ -391,7 +584,7 @@ public class CreateContentPoolServlet extends SlingAllMethodsServlet {
 
 
   private Content createFile(String poolId, String alternativeStream, Session session, RequestParameter value,
-      Authorizable au, boolean create) throws IOException, AccessDeniedException, StorageClientException {
+      Authorizable au, boolean create, UploadSpool spool) throws IOException, AccessDeniedException, StorageClientException {
     // Get the content type.
     String contentType = getContentType(value);
 
@@ -413,8 +606,14 @@ public class CreateContentPoolServlet extends SlingAllMethodsServlet {
       contentManager.update(content);
       
       InputStream inputStream = filterUploadInputStream(poolId, value.getInputStream(), contentType, value);
+      if (spool != null) {
+        inputStream = spool.tee(inputStream);
+      }
 
       contentManager.writeBody(poolId, inputStream);
+      if (spool != null) {
+        spool.complete();
+      }
       
       
       // deny anon everything
@@ -448,7 +647,13 @@ public class CreateContentPoolServlet extends SlingAllMethodsServlet {
       contentManager.update(content);
 
       InputStream inputStream = filterUploadInputStream(poolId, value.getInputStream(), contentType, value);
+      if (spool != null) {
+        inputStream = spool.tee(inputStream);
+      }
       contentManager.writeBody(poolId, inputStream, alternativeStream);
+      if (spool != null) {
+        spool.complete();
+      }
       ActivityUtils.postActivity(eventAdmin, au.getId(), poolId, "Content", "default", "pooled content", "UPDATED_FILE", null);
     }
     return contentManager.get(poolId);
@@ -18,19 +18,35 @@
 package org.sakaiproject.nakamura.files.pool;
 
 import static javax.servlet.http.HttpServletResponse.SC_NOT_MODIFIED;
+import static javax.servlet.http.HttpServletResponse.SC_PARTIAL_CONTENT;
+import static javax.servlet.http.HttpServletResponse.SC_PRECONDITION_FAILED;
+import static javax.servlet.http.HttpServletResponse.SC_REQUESTED_RANGE_NOT_SATISFIABLE;
 import static org.apache.sling.api.servlets.HttpConstants.HEADER_IF_MODIFIED_SINCE;
 import static org.apache.sling.api.servlets.HttpConstants.HEADER_LAST_MODIFIED;
 
-import org.apache.commons.io.IOUtils;
 import org.apache.sling.api.resource.Resource;
 import org.sakaiproject.nakamura.api.lite.StorageClientException;
 import org.sakaiproject.nakamura.api.lite.StorageClientUtils;
 import org.sakaiproject.nakamura.api.lite.accesscontrol.AccessDeniedException;
 import org.sakaiproject.nakamura.api.lite.content.Content;
 import org.sakaiproject.nakamura.api.lite.content.ContentManager;
+import org.sakaiproject.nakamura.util.StringUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
+import java.io.EOFException;
+import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
 import java.util.Map;
 
 import javax.jcr.RepositoryException;
@@ -38,46 +54,266 @@ import javax.servlet.ServletContext;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 
+/**
+ * Streams the body of a content item. All the conditional headers (If-Match,
+ * If-Unmodified-Since, If-None-Match, If-Modified-Since, If-Range) and the Range header
+ * are checked against the content properties before the body is opened, so a request
+ * that is answered with a 304, 412 or 416 never touches the body store. One or more byte
+ * ranges may be requested; several ranges are sent as multipart/byteranges.
+ */
 public class StreamHelper {
 
+  private static final Logger LOGGER = LoggerFactory.getLogger(StreamHelper.class);
+
+  private static final String HEADER_ETAG = "ETag";
+  private static final String HEADER_IF_MATCH = "If-Match";
+  private static final String HEADER_IF_NONE_MATCH = "If-None-Match";
+  private static final String HEADER_IF_UNMODIFIED_SINCE = "If-Unmodified-Since";
+  private static final String HEADER_IF_RANGE = "If-Range";
+  private static final String HEADER_RANGE = "Range";
+  private static final String HEADER_ACCEPT_RANGES = "Accept-Ranges";
+  private static final String HEADER_CONTENT_RANGE = "Content-Range";
+
+  /**
+   * The properties sparse keeps about where the body is stored. They change whenever the
+   * body is replaced, so they go into the ETag.
+   */
+  private static final String[] BODY_FIELDS = { "_bodyLocation", "_blockId" };
+
+  /**
+   * More ranges than this in one request are not worth the multipart overhead, the whole
+   * body is sent instead.
+   */
+  static final int MAX_RANGES = 20;
+
+  private static final int BUFFER_SIZE = 8192;
+
   public void stream(HttpServletRequest request, ContentManager contentManager, Content node, String alternativeStream, HttpServletResponse response, Resource resource, ServletContext servletContext) throws IOException, StorageClientException, AccessDeniedException {
-    InputStream dataStream = contentManager.getInputStream(node.getPath(), alternativeStream);
+    Map<String, Object> properties = node.getProperties();
+    long modifTime = StorageClientUtils.toLong(properties.get(StorageClientUtils.getAltField(Content.LASTMODIFIED_FIELD, alternativeStream)));
+    long length = StorageClientUtils.toLong(properties.get(StorageClientUtils.getAltField(Content.LENGTH_FIELD, alternativeStream)));
+    String etag = getETag(node.getPath(), properties, alternativeStream, modifTime, length);
 
-    if ( dataStream == null ) {
-      response.sendError(HttpServletResponse.SC_NOT_FOUND);
+    if (etag != null) {
+      response.setHeader(HEADER_ETAG, etag);
+    }
+    if (modifTime > 0) {
+      response.setDateHeader(HEADER_LAST_MODIFIED, modifTime);
+    }
+    if (preconditionFailed(request, etag, modifTime)) {
+      response.sendError(SC_PRECONDITION_FAILED);
       return;
     }
-    
-    Map<String, Object> properties = node.getProperties();
-    long modifTime = StorageClientUtils.toLong(properties.get(StorageClientUtils.getAltField(Content.LASTMODIFIED_FIELD, alternativeStream)));
-    if (unmodified(request, modifTime)) {
+    if (unmodified(request, etag, modifTime)) {
       response.setStatus(SC_NOT_MODIFIED);
       return;
     }
 
-    setHeaders(properties, resource, response, alternativeStream, servletContext);
-    setContentLength(properties, response, alternativeStream);
-    IOUtils.copyLarge(dataStream, response.getOutputStream());
-    dataStream.close();
+    List<long[]> ranges = null;
+    if (length > 0) {
+      response.setHeader(HEADER_ACCEPT_RANGES, "bytes");
+      if (ifRangeMatches(request, etag, modifTime)) {
+        ranges = parseRanges(request.getHeader(HEADER_RANGE), length);
+        if (ranges != null && ranges.isEmpty()) {
+          response.setHeader(HEADER_CONTENT_RANGE, "bytes */" + length);
+          response.sendError(SC_REQUESTED_RANGE_NOT_SATISFIABLE);
+          return;
+        }
+      }
+    }
+
+    InputStream dataStream = contentManager.getInputStream(node.getPath(), alternativeStream);
+    if ( dataStream == null ) {
+      response.sendError(HttpServletResponse.SC_NOT_FOUND);
+      return;
+    }
+    try {
+      setHeaders(properties, resource, response, alternativeStream, servletContext);
+      if (ranges == null) {
+        setContentLength(response, length);
+        copy(dataStream, 0, -1, response.getOutputStream());
+      } else if (ranges.size() == 1) {
+        long[] range = ranges.get(0);
+        response.setStatus(SC_PARTIAL_CONTENT);
+        response.setHeader(HEADER_CONTENT_RANGE, contentRange(range, length));
+        setContentLength(response, range[1] - range[0] + 1);
+        copy(dataStream, range[0], range[1] - range[0] + 1, response.getOutputStream());
+      } else {
+        streamMultipart(dataStream, ranges, length, etag, response);
+      }
+    } finally {
+      dataStream.close();
+    }
+  }
+
+  /**
+   * Send several ranges as a multipart/byteranges body. The ranges are in ascending order
+   * and do not overlap, so the body is read once from start to end.
+   */
+  private void streamMultipart(InputStream dataStream, List<long[]> ranges, long length,
+      String etag, HttpServletResponse response) throws IOException {
+    String contentType = response.getContentType();
+    String boundary = "nakamura-" + (etag == null ? Long.toHexString(System.nanoTime())
+        : etag.substring(1, Math.min(17, etag.length() - 1)));
+    List<byte[]> partHeaders = new ArrayList<byte[]>(ranges.size());
+    long total = 0;
+    for (long[] range : ranges) {
+      StringBuilder sb = new StringBuilder();
+      sb.append("\r\n--").append(boundary).append("\r\n");
+      if (contentType != null) {
+        sb.append("Content-Type: ").append(contentType).append("\r\n");
+      }
+      sb.append("Content-Range: ").append(contentRange(range, length)).append("\r\n\r\n");
+      byte[] header = sb.toString().getBytes("ISO-8859-1");
+      partHeaders.add(header);
+      total += header.length + range[1] - range[0] + 1;
+    }
+    byte[] end = ("\r\n--" + boundary + "--\r\n").getBytes("ISO-8859-1");
+    total += end.length;
+
+    response.setStatus(SC_PARTIAL_CONTENT);
+    response.setContentType("multipart/byteranges; boundary=" + boundary);
+    setContentLength(response, total);
+    OutputStream out = response.getOutputStream();
+    long position = 0;
+    for (int i = 0; i < ranges.size(); i++) {
+      long[] range = ranges.get(i);
+      out.write(partHeaders.get(i));
+      copy(dataStream, range[0] - position, range[1] - range[0] + 1, out);
+      position = range[1] + 1;
+    }
+    out.write(end);
   }
 
   /**
-   * Returns <code>true</code> if the request has a <code>If-Modified-Since</code> header
-   * whose date value is later than the last modification time given as
-   * <code>modifTime</code>.
+   * Copy count bytes, after skipping skip bytes, from the body to the response. A body
+   * held in a file is positioned with a seek rather than by reading past the skipped
+   * bytes, and is only sent with transferTo when the response output is itself a
+   * channel. Wrapping a servlet stream in a channel would copy through a heap buffer
+   * anyway, so otherwise the plain buffered copy is used.
+   *
+   * @param count
+   *          the number of bytes to copy, or -1 to copy to the end of the body.
+   */
+  private void copy(InputStream in, long skip, long count, OutputStream out)
+      throws IOException {
+    if (in instanceof FileInputStream) {
+      FileChannel channel = ((FileInputStream) in).getChannel();
+      long position = channel.position() + skip;
+      if (out instanceof WritableByteChannel) {
+        WritableByteChannel target = (WritableByteChannel) out;
+        long end = count < 0 ? channel.size() : position + count;
+        while (position < end) {
+          long n = channel.transferTo(position, end - position, target);
+          if (n <= 0) {
+            if (count < 0) {
+              break;
+            }
+            throw new EOFException("Body ended before " + end);
+          }
+          position += n;
+        }
+        // leave the stream where a plain read would have, the next range starts from here.
+        channel.position(position);
+        return;
+      }
+      channel.position(position);
+      skip = 0;
+    }
+    while (skip > 0) {
+      long n = in.skip(skip);
+      if (n <= 0) {
+        if (in.read() < 0) {
+          throw new EOFException("Body ended before range start");
+        }
+        n = 1;
+      }
+      skip -= n;
+    }
+    byte[] buffer = new byte[BUFFER_SIZE];
+    while (count != 0) {
+      int n = in.read(buffer, 0, count < 0 ? buffer.length : (int) Math.min(buffer.length, count));
+      if (n < 0) {
+        if (count < 0) {
+          break;
+        }
+        throw new EOFException("Body ended before range end");
+      }
+      out.write(buffer, 0, n);
+      if (count > 0) {
+        count -= n;
+      }
+    }
+  }
+
+  /**
+   * Build a strong ETag for the body from the properties that change whenever the body
+   * changes. Sparse does not store a hash of the body, so where it is, its length and its
+   * modification time stand in for one. The same body gives the same ETag on every server
+   * in the cluster.
+   *
+   * @return the quoted ETag, or null if there is nothing to build it from.
+   */
+  static String getETag(String path, Map<String, Object> properties, String alternativeStream,
+      long modifTime, long length) {
+    if (modifTime <= 0 && length <= 0) {
+      return null;
+    }
+    StringBuilder sb = new StringBuilder();
+    sb.append(path).append(':').append(alternativeStream).append(':').append(modifTime)
+        .append(':').append(length);
+    for (String field : BODY_FIELDS) {
+      sb.append(':').append(properties.get(StorageClientUtils.getAltField(field, alternativeStream)));
+    }
+    try {
+      return '"' + StringUtils.sha1Hash(sb.toString()) + '"';
+    } catch (UnsupportedEncodingException e) {
+      LOGGER.warn(e.getMessage(), e);
+    } catch (NoSuchAlgorithmException e) {
+      LOGGER.warn(e.getMessage(), e);
+    }
+    return null;
+  }
+
+  /**
+   * Returns <code>true</code> if an <code>If-Match</code> header does not hold the
+   * ETag, or an <code>If-Unmodified-Since</code> header is older than the content.
+   */
+  private boolean preconditionFailed(HttpServletRequest request, String etag, long modifTime) {
+    String ifMatch = request.getHeader(HEADER_IF_MATCH);
+    if (ifMatch != null) {
+      return !matches(ifMatch, etag, false);
+    }
+    if (modifTime > 0) {
+      long ius = getDateHeader(request, HEADER_IF_UNMODIFIED_SINCE);
+      return ius >= 0 && modifTime / 1000 > ius / 1000;
+    }
+    return false;
+  }
+
+  /**
+   * Returns <code>true</code> if the client already has the content. An
+   * <code>If-None-Match</code> header is used if there is one, otherwise the
+   * <code>If-Modified-Since</code> header is compared with the last modification time
+   * given as <code>modifTime</code>.
    *
    * @param request
-   *          The <code>ComponentRequest</code> checked for the
-   *          <code>If-Modified-Since</code> header.
+   *          The <code>ComponentRequest</code> checked for the conditional headers.
+   * @param etag
+   *          The ETag of the content, may be null.
    * @param modifTime
    *          The last modification time to compare the header to.
-   * @return <code>true</code> if the <code>modifTime</code> is less than or equal to the
-   *         time of the <code>If-Modified-Since</code> header.
+   * @return <code>true</code> if the ETag matches or the <code>modifTime</code> is less
+   *         than or equal to the time of the <code>If-Modified-Since</code> header.
    */
-  private boolean unmodified(HttpServletRequest request, long modifTime) {
+  private boolean unmodified(HttpServletRequest request, String etag, long modifTime) {
+    String ifNoneMatch = request.getHeader(HEADER_IF_NONE_MATCH);
+    if (ifNoneMatch != null) {
+      return matches(ifNoneMatch, etag, true);
+    }
     if (modifTime > 0) {
       long modTime = modifTime / 1000; // seconds
-      long ims = request.getDateHeader(HEADER_IF_MODIFIED_SINCE) / 1000;
+      long ims = getDateHeader(request, HEADER_IF_MODIFIED_SINCE) / 1000;
       return modTime <= ims;
     }
 
@@ -85,20 +321,136 @@ public class StreamHelper {
     return false;
   }
 
+  /**
+   * Returns <code>true</code> if a Range header should be honoured, that is when there is
+   * no <code>If-Range</code> header or it holds the current ETag or modification time.
+   */
+  private boolean ifRangeMatches(HttpServletRequest request, String etag, long modifTime) {
+    String ifRange = request.getHeader(HEADER_IF_RANGE);
+    if (ifRange == null) {
+      return true;
+    }
+    ifRange = ifRange.trim();
+    if (ifRange.startsWith("\"") || ifRange.startsWith("W/")) {
+      return etag != null && etag.equals(ifRange);
+    }
+    long date = getDateHeader(request, HEADER_IF_RANGE);
+    return modifTime > 0 && date >= 0 && modifTime / 1000 == date / 1000;
+  }
+
+  /**
+   * @param weak
+   *          true if a weak ETag in the header may match, as it may for If-None-Match.
+   * @return true if the header is a wildcard or holds the ETag.
+   */
+  private boolean matches(String header, String etag, boolean weak) {
+    for (String tag : header.split(",")) {
+      tag = tag.trim();
+      if ("*".equals(tag)) {
+        return true;
+      }
+      if (weak && tag.startsWith("W/")) {
+        tag = tag.substring(2);
+      }
+      if (etag != null && etag.equals(tag)) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  private long getDateHeader(HttpServletRequest request, String name) {
+    try {
+      return request.getDateHeader(name);
+    } catch (IllegalArgumentException e) {
+      LOGGER.debug("Ignoring {} header that is not a date {} ", name, e.getMessage());
+      return -1;
+    }
+  }
+
+  /**
+   * Parse a Range header into the byte ranges to send, in ascending order with
+   * overlapping and adjacent ranges merged.
+   *
+   * @return null if the whole body should be sent, because there is no Range header or it
+   *         can not be understood. An empty list if none of the ranges can be satisfied.
+   */
+  static List<long[]> parseRanges(String header, long length) {
+    if (header == null) {
+      return null;
+    }
+    header = header.trim();
+    if (!header.startsWith("bytes=")) {
+      return null;
+    }
+    List<long[]> ranges = new ArrayList<long[]>();
+    for (String spec : header.substring(6).split(",")) {
+      spec = spec.trim();
+      int dash = spec.indexOf('-');
+      if (dash < 0) {
+        return null;
+      }
+      long start;
+      long end;
+      try {
+        if (dash == 0) {
+          // the last n bytes
+          long suffix = Long.parseLong(spec.substring(1));
+          if (suffix <= 0) {
+            continue;
+          }
+          start = Math.max(0, length - suffix);
+          end = length - 1;
+        } else {
+          start = Long.parseLong(spec.substring(0, dash));
+          end = dash == spec.length() - 1 ? Long.MAX_VALUE : Long.parseLong(spec
+              .substring(dash + 1));
+          if (end < start) {
+            return null;
+          }
+          if (start >= length) {
+            continue;
+          }
+          end = Math.min(end, length - 1);
+        }
+      } catch (NumberFormatException e) {
+        return null;
+      }
+      ranges.add(new long[] { start, end });
+    }
+    if (ranges.size() > MAX_RANGES) {
+      return null;
+    }
+    Collections.sort(ranges, new Comparator<long[]>() {
+      public int compare(long[] o1, long[] o2) {
+        return o1[0] < o2[0] ? -1 : (o1[0] == o2[0] ? 0 : 1);
+      }
+    });
+    List<long[]> merged = new ArrayList<long[]>(ranges.size());
+    for (long[] range : ranges) {
+      long[] last = merged.isEmpty() ? null : merged.get(merged.size() - 1);
+      if (last != null && range[0] <= last[1] + 1) {
+        last[1] = Math.max(last[1], range[1]);
+      } else {
+        merged.add(range);
+      }
+    }
+    return merged;
+  }
+
+  private String contentRange(long[] range, long length) {
+    return "bytes " + range[0] + "-" + range[1] + "/" + length;
+  }
+
   /**
    * @param resource
    * @param request
    * @param response
-   * @param servletContext 
+   * @param servletContext
    * @throws RepositoryException
    */
   private void setHeaders(Map<String, Object> properties, Resource resource, HttpServletResponse response, String alternativeStream, ServletContext servletContext) {
 
-    long modifTime = StorageClientUtils.toLong(properties.get(StorageClientUtils.getAltField(Content.LASTMODIFIED_FIELD, alternativeStream)));
-    if (modifTime > 0) {
-      response.setDateHeader(HEADER_LAST_MODIFIED, modifTime);
-    }
-
     String contentType = (String) properties.get(StorageClientUtils.getAltField(Content.MIMETYPE_FIELD, alternativeStream));
     if (contentType == null && servletContext != null) {
       final String ct = servletContext.getMimeType(resource.getPath());
@@ -128,8 +480,7 @@ public class StreamHelper {
    *          The content length to be set. If this value is equal to or less than zero,
    *          the header is not set.
    */
-  private void setContentLength(Map<String,Object> properties, HttpServletResponse response, String alternativeStream) {
-    long length = StorageClientUtils.toLong(properties.get(StorageClientUtils.getAltField(Content.LENGTH_FIELD, alternativeStream)));
+  private void setContentLength(HttpServletResponse response, long length) {
     if (length > 0) {
       if (length < Integer.MAX_VALUE) {
         response.setContentLength((int) length);
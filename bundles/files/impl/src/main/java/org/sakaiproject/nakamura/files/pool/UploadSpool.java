@@ -0,0 +1,113 @@
+/**
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.files.pool;
+
+import org.apache.commons.io.input.TeeInputStream;
+import org.apache.commons.io.output.DeferredFileOutputStream;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.UUID;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Keeps a copy of an upload as it is written to the content store, so that the
+ * FileUploadHandlers can each read it without going back to the store. Small uploads are
+ * held in memory, anything over the threshold is spilled to a temporary file. Every
+ * reader gets its own stream, so a slow handler holds nobody else up.
+ * <p>
+ * The spool starts with one reference, held by whoever created it. Each asynchronous
+ * reader takes another with {@link #retain()}, the temporary file goes when the last
+ * reference is released.
+ * </p>
+ */
+class UploadSpool {
+
+  private static final Logger LOGGER = LoggerFactory.getLogger(UploadSpool.class);
+
+  private final DeferredFileOutputStream output;
+  private final File file;
+  private final AtomicInteger references = new AtomicInteger(1);
+  private InputStream tee;
+  private volatile boolean complete;
+
+  UploadSpool(int threshold) {
+    // the file is only created if the upload grows past the threshold.
+    file = new File(System.getProperty("java.io.tmpdir"), "upload-" + UUID.randomUUID()
+        + ".spool");
+    output = new DeferredFileOutputStream(threshold, file);
+  }
+
+  /**
+   * @return a stream that reads from in and keeps a copy of everything read in the spool.
+   */
+  InputStream tee(InputStream in) {
+    tee = new TeeInputStream(in, output);
+    return tee;
+  }
+
+  /**
+   * Mark the upload as fully read. Anything the store did not read is read now, so the
+   * spool holds the whole upload.
+   */
+  void complete() throws IOException {
+    if (tee != null) {
+      byte[] buffer = new byte[4096];
+      while (tee.read(buffer) >= 0) {
+        // drain
+      }
+    }
+    output.close();
+    complete = true;
+  }
+
+  /**
+   * @return a new stream over the whole upload, or null if the upload was not completed.
+   */
+  InputStream openInputStream() throws IOException {
+    if (!complete) {
+      return null;
+    }
+    if (output.isInMemory()) {
+      return new ByteArrayInputStream(output.getData());
+    }
+    return new FileInputStream(output.getFile());
+  }
+
+  void retain() {
+    references.incrementAndGet();
+  }
+
+  void release() {
+    if (references.decrementAndGet() == 0) {
+      try {
+        output.close();
+      } catch (IOException e) {
+        LOGGER.debug(e.getMessage(), e);
+      }
+      if (file.exists() && !file.delete()) {
+        LOGGER.warn("Unable to delete upload spool {} ", file);
+      }
+    }
+  }
+}
@@ -309,4 +309,38 @@ public class CreateContentPoolServletTest {
     Assert.assertTrue(notifiedFiles.size () == 3);
   }
 
+  @Test
+  public void testFileUploadHandlersReadTheUpload() throws Exception {
+
+    StringWriter stringWriter = new StringWriter();
+    when(response.getWriter()).thenReturn(new PrintWriter(stringWriter));
+
+    final ArrayList<Integer> lengths = new ArrayList<Integer>();
+    FileUploadHandler handler = new FileUploadHandler() {
+      public void handleFile(Map<String, Object> results, String poolId, InputStream fileInputStream,
+                             String userId, boolean isNew) throws IOException {
+        int length = 0;
+        while (fileInputStream.read() >= 0) {
+          length++;
+        }
+        lengths.add(length);
+      }
+    };
+    cp.bindFileUploadHandler(handler);
+    cp.bindFileUploadHandler(new FileUploadHandler() {
+      public void handleFile(Map<String, Object> results, String poolId, InputStream fileInputStream,
+                             String userId, boolean isNew) throws IOException {
+        lengths.add(fileInputStream.read(new byte[20]));
+      }
+    });
+
+    cp.doPost(request, response);
+    // every handler gets the whole upload, however the others read it.
+    Assert.assertEquals(6, lengths.size());
+    for (Integer length : lengths) {
+      Assert.assertEquals(10, length.intValue());
+    }
+    Assert.assertEquals(3L, cp.getHandlerTimings().get(handler.getClass().getName()).calls.get());
+  }
+
 }
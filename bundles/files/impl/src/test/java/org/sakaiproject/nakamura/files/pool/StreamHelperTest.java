@@ -0,0 +1,207 @@
+/**
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.files.pool;
+
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import com.google.common.collect.ImmutableMap;
+
+import junit.framework.Assert;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+import org.sakaiproject.nakamura.api.lite.content.Content;
+import org.sakaiproject.nakamura.api.lite.content.ContentManager;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.List;
+import java.util.Map;
+
+import javax.servlet.ServletOutputStream;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+public class StreamHelperTest {
+
+  private static final String BODY = "0123456789abcdefghijklmnopqrstuvwxyz";
+
+  @Mock
+  private HttpServletRequest request;
+  @Mock
+  private HttpServletResponse response;
+  @Mock
+  private ContentManager contentManager;
+
+  private Content content;
+  private ByteArrayOutputStream output;
+
+  @Before
+  public void setUp() throws Exception {
+    MockitoAnnotations.initMocks(this);
+    Map<String, Object> properties = ImmutableMap.of(Content.LENGTH_FIELD,
+        (Object) Long.valueOf(BODY.length()), Content.LASTMODIFIED_FIELD,
+        Long.valueOf(1309276646000L), Content.MIMETYPE_FIELD, "text/plain");
+    content = new Content("hESoXumAT", properties);
+    when(contentManager.getInputStream("hESoXumAT", null)).thenReturn(
+        new ByteArrayInputStream(BODY.getBytes("UTF-8")));
+    when(request.getDateHeader(anyString())).thenReturn(-1L);
+    output = new ByteArrayOutputStream();
+    when(response.getOutputStream()).thenReturn(new ServletOutputStream() {
+      @Override
+      public void write(int b) throws IOException {
+        output.write(b);
+      }
+    });
+  }
+
+  private void stream() throws Exception {
+    new StreamHelper().stream(request, contentManager, content, null, response, null, null);
+  }
+
+  private String etag() {
+    return StreamHelper.getETag("hESoXumAT", content.getProperties(), null, 1309276646000L,
+        BODY.length());
+  }
+
+  @Test
+  public void testWholeBody() throws Exception {
+    stream();
+    verify(response).setHeader("ETag", etag());
+    verify(response).setHeader("Accept-Ranges", "bytes");
+    verify(response).setContentLength(BODY.length());
+    Assert.assertEquals(BODY, output.toString("UTF-8"));
+  }
+
+  @Test
+  public void testIfNoneMatchDoesNotOpenBody() throws Exception {
+    when(request.getHeader("If-None-Match")).thenReturn("\"other\", " + etag());
+    stream();
+    verify(response).setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+    verify(contentManager, never()).getInputStream("hESoXumAT", null);
+  }
+
+  @Test
+  public void testIfModifiedSinceDoesNotOpenBody() throws Exception {
+    when(request.getDateHeader("If-Modified-Since")).thenReturn(1309276647000L);
+    stream();
+    verify(response).setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+    verify(contentManager, never()).getInputStream("hESoXumAT", null);
+  }
+
+  @Test
+  public void testIfMatchFails() throws Exception {
+    when(request.getHeader("If-Match")).thenReturn("\"other\"");
+    stream();
+    verify(response).sendError(HttpServletResponse.SC_PRECONDITION_FAILED);
+    verify(contentManager, never()).getInputStream("hESoXumAT", null);
+  }
+
+  @Test
+  public void testSingleRange() throws Exception {
+    when(request.getHeader("Range")).thenReturn("bytes=10-15");
+    stream();
+    verify(response).setStatus(HttpServletResponse.SC_PARTIAL_CONTENT);
+    verify(response).setHeader("Content-Range", "bytes 10-15/36");
+    verify(response).setContentLength(6);
+    Assert.assertEquals("abcdef", output.toString("UTF-8"));
+  }
+
+  @Test
+  public void testSuffixRange() throws Exception {
+    when(request.getHeader("Range")).thenReturn("bytes=-4");
+    stream();
+    verify(response).setHeader("Content-Range", "bytes 32-35/36");
+    Assert.assertEquals("wxyz", output.toString("UTF-8"));
+  }
+
+  @Test
+  public void testMultipleRanges() throws Exception {
+    when(request.getHeader("Range")).thenReturn("bytes=30-31,0-1,2-3");
+    when(response.getContentType()).thenReturn("text/plain");
+    stream();
+    verify(response).setStatus(HttpServletResponse.SC_PARTIAL_CONTENT);
+    String body = output.toString("UTF-8");
+    Assert.assertTrue(body.contains("Content-Range: bytes 0-3/36\r\n\r\n0123\r\n"));
+    Assert.assertTrue(body.contains("Content-Range: bytes 30-31/36\r\n\r\nuv\r\n"));
+    Assert.assertTrue(body.indexOf("0123") < body.indexOf("uv"));
+    verify(response).setContentLength(body.length());
+  }
+
+  @Test
+  public void testRangesOfFileBody() throws Exception {
+    File file = File.createTempFile("streamhelper", ".txt");
+    try {
+      FileOutputStream out = new FileOutputStream(file);
+      out.write(BODY.getBytes("UTF-8"));
+      out.close();
+      FileInputStream in = new FileInputStream(file);
+      when(contentManager.getInputStream("hESoXumAT", null)).thenReturn(in);
+      when(request.getHeader("Range")).thenReturn("bytes=2-3,30-31");
+      stream();
+      String body = output.toString("UTF-8");
+      Assert.assertTrue(body.contains("Content-Range: bytes 2-3/36\r\n\r\n23\r\n"));
+      Assert.assertTrue(body.contains("Content-Range: bytes 30-31/36\r\n\r\nuv\r\n"));
+      in.close();
+    } finally {
+      file.delete();
+    }
+  }
+
+  @Test
+  public void testUnsatisfiableRange() throws Exception {
+    when(request.getHeader("Range")).thenReturn("bytes=100-");
+    stream();
+    verify(response).setHeader("Content-Range", "bytes */36");
+    verify(response).sendError(HttpServletResponse.SC_REQUESTED_RANGE_NOT_SATISFIABLE);
+    verify(contentManager, never()).getInputStream("hESoXumAT", null);
+  }
+
+  @Test
+  public void testStaleIfRangeSendsWholeBody() throws Exception {
+    when(request.getHeader("Range")).thenReturn("bytes=10-15");
+    when(request.getHeader("If-Range")).thenReturn("\"stale\"");
+    stream();
+    verify(response, never()).setStatus(HttpServletResponse.SC_PARTIAL_CONTENT);
+    Assert.assertEquals(BODY, output.toString("UTF-8"));
+  }
+
+  @Test
+  public void testParseRanges() {
+    Assert.assertNull(StreamHelper.parseRanges(null, 100));
+    Assert.assertNull(StreamHelper.parseRanges("items=0-1", 100));
+    Assert.assertNull(StreamHelper.parseRanges("bytes=5-1", 100));
+    Assert.assertNull(StreamHelper.parseRanges("bytes=a-b", 100));
+    Assert.assertTrue(StreamHelper.parseRanges("bytes=100-200", 100).isEmpty());
+    List<long[]> ranges = StreamHelper.parseRanges("bytes=50-, 0-10, 5-20", 100);
+    Assert.assertEquals(2, ranges.size());
+    Assert.assertEquals(0, ranges.get(0)[0]);
+    Assert.assertEquals(20, ranges.get(0)[1]);
+    Assert.assertEquals(50, ranges.get(1)[0]);
+    Assert.assertEquals(99, ranges.get(1)[1]);
+  }
+}
@@ -18,6 +18,8 @@
 
 package org.sakaiproject.nakamura.api.http.cache;
 
+import java.io.IOException;
+
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 
@@ -25,6 +27,10 @@ import javax.servlet.http.HttpServletResponse;
  * Use this to cache http response that are for dynamic, user-specific content.
  * The caching mechanism is ETag validation. If the client presents a fresh ETag
  * in the http If-None-Match header, the server will return http 304 Not Modified.
+ * <p>
+ * Categories can also be configured to keep whole responses on the server, per user and
+ * request. Those are sent by {@link #sendCachedResponse} for requests from clients
+ * without a fresh ETag, until the category is invalidated for the user.
  */
 public interface DynamicContentResponseCache {
 
@@ -60,6 +66,33 @@ public interface DynamicContentResponseCache {
   boolean send304WhenClientHasFreshETag(String cacheCategory, HttpServletRequest request,
                                         HttpServletResponse response);
 
+  /**
+   * Sends the response kept for this user and request, if the body of the category is
+   * cached and there is a response cached.
+   *
+   * @param cacheCategory The application category of the cache, eg. "User Info"
+   * @param request       The request to use as the basis for a cache key
+   * @param response      The response to send the cached response to.
+   * @return True if the cached response was sent; false otherwise.
+   * @throws IOException if the cached response could not be written.
+   */
+  boolean sendCachedResponse(String cacheCategory, HttpServletRequest request,
+                             HttpServletResponse response) throws IOException;
+
+  /**
+   * Returns a response to write to so the response can be kept by
+   * {@link #recordResponse(String, HttpServletRequest, HttpServletResponse)}, which must
+   * be passed the returned response after the whole body has been written. If the body of
+   * the category is not cached the response is returned as it is.
+   *
+   * @param cacheCategory The application category of the cache, eg. "User Info"
+   * @param request       The request to use as the basis for a cache key
+   * @param response      The response to capture
+   * @return the response to write to.
+   */
+  HttpServletResponse captureResponse(String cacheCategory, HttpServletRequest request,
+                                      HttpServletResponse response);
+
   /**
    * Drop all entries from the cache.
    */
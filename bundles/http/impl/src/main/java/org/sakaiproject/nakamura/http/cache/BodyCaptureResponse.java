@@ -0,0 +1,70 @@
+/**
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.http.cache;
+
+import javax.servlet.http.Cookie;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * Captures a response so {@link DynamicContentResponseCacheImpl} can keep its body, see
+ * {@link DynamicContentResponseCacheImpl#captureResponse}.
+ */
+class BodyCaptureResponse extends FilterResponseWrapper {
+
+  private final String cacheCategory;
+  private final String owner;
+  private final String key;
+  private final long generation;
+  private boolean cookieSet;
+
+  BodyCaptureResponse(HttpServletResponse response, String cacheCategory, String owner,
+      String key, long generation) {
+    super(response, true, true, true);
+    this.cacheCategory = cacheCategory;
+    this.owner = owner;
+    this.key = key;
+    this.generation = generation;
+  }
+
+  @Override
+  public void addCookie(Cookie cookie) {
+    super.addCookie(cookie);
+    // cookies are not replayed, so the response can't be.
+    cookieSet = true;
+  }
+
+  boolean canCache() {
+    return !cookieSet && getResponseOperation().canCache();
+  }
+
+  String getCacheCategory() {
+    return cacheCategory;
+  }
+
+  String getOwner() {
+    return owner;
+  }
+
+  String getKey() {
+    return key;
+  }
+
+  long getGeneration() {
+    return generation;
+  }
+}
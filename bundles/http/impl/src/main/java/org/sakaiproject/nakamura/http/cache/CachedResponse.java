@@ -17,45 +17,261 @@
  */
 package org.sakaiproject.nakamura.http.cache;
 
+import org.sakaiproject.nakamura.api.memory.Weighable;
+
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.Serializable;
+import java.util.Locale;
+import java.util.zip.GZIPOutputStream;
 
+import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 
 /**
-  A pojo to contain the response redo log and content.
+ * A cached response, the headers from the redo log flattened into arrays and the body
+ * held once as bytes, with a gzipped copy when that is worth having. Replaying a
+ * response sets the headers and writes the body in one go, without allocating.
  */
-public class CachedResponse implements Serializable {
+public class CachedResponse implements Serializable, Weighable {
+
+  private static final long serialVersionUID = -533080549451000117L;
 
   /**
-   *
+   * Bodies smaller than this are not worth compressing.
    */
-  private static final long serialVersionUID = -533080549451000116L;
-  private long expires;
-  private Operation[] operations;
-  private byte[] byteContent;
-  private String stringContent;
+  private static final int MIN_GZIP_SIZE = 512;
+
+  private static final String DEFAULT_ENCODING = "ISO-8859-1";
+
+  private final long expires;
+  private final byte[] ops;
+  private final String[] names;
+  private final String[] values;
+  private final long[] numbers;
+  private final Locale locale;
+  private final byte[] body;
+  private final byte[] gzipBody;
 
   public CachedResponse(OperationResponseCapture responseOperation, int cacheAge) throws IOException {
     expires = System.currentTimeMillis() + cacheAge*1000L;
     responseOperation.setDateHeader("X-Nakamura-Cache", System.currentTimeMillis());
-    operations = responseOperation.getRedoLog();
-    byteContent = responseOperation.getByteContent();
-    stringContent = responseOperation.getStringContent();
+    Operation[] operations = responseOperation.getRedoLog();
+    ops = new byte[operations.length];
+    names = new String[operations.length];
+    values = new String[operations.length];
+    numbers = new long[operations.length];
+    String contentType = null;
+    String characterEncoding = null;
+    String contentEncoding = null;
+    Locale lastLocale = null;
+    int localeOp = -1;
+    for (int i = 0; i < operations.length; i++) {
+      Operation o = operations[i];
+      ops[i] = (byte) o.getOperation();
+      switch (o.getOperation()) {
+      case OperationResponseCapture.ADD_DATE_HEADER:
+      case OperationResponseCapture.SET_DATE_HEADER:
+        names[i] = o.get(0);
+        numbers[i] = (Long) o.get(1);
+        break;
+      case OperationResponseCapture.ADD_INT_HEADER:
+      case OperationResponseCapture.SET_INT_HEADER:
+        names[i] = o.get(0);
+        numbers[i] = (Integer) o.get(1);
+        break;
+      case OperationResponseCapture.ADD_HEADER:
+      case OperationResponseCapture.SET_HEADER:
+        names[i] = o.get(0);
+        values[i] = o.get(1);
+        if ("Content-Encoding".equalsIgnoreCase(names[i])) {
+          contentEncoding = values[i];
+        }
+        break;
+      case OperationResponseCapture.SET_CHARACTER_ENCODING:
+        values[i] = o.get(0);
+        characterEncoding = values[i];
+        break;
+      case OperationResponseCapture.SET_CONTENT_TYPE:
+        values[i] = o.get(0);
+        contentType = values[i];
+        break;
+      case OperationResponseCapture.SET_CONTENT_LENGTH:
+        numbers[i] = (Integer) o.get(0);
+        break;
+      case OperationResponseCapture.SET_LOCALE:
+        // only the last locale counts, it is set where it was set.
+        if (localeOp >= 0) {
+          ops[localeOp] = 0;
+        }
+        localeOp = i;
+        lastLocale = new Locale((String) o.get(0), (String) o.get(1));
+        break;
+      case OperationResponseCapture.SET_STATUS:
+        numbers[i] = (Integer) o.get(0);
+        break;
+      case OperationResponseCapture.SET_STATUS_WITH_MESSAGE:
+        numbers[i] = (Integer) o.get(0);
+        values[i] = o.get(1);
+        break;
+      }
+    }
+    locale = lastLocale;
+
+    byte[] byteContent = responseOperation.getByteContent();
+    if (byteContent == null) {
+      String stringContent = responseOperation.getStringContent();
+      String encoding = responseOperation.getCharacterEncoding();
+      if (encoding == null) {
+        encoding = getEncoding(characterEncoding, contentType);
+      }
+      byteContent = (stringContent == null) ? new byte[0] : stringContent.getBytes(encoding);
+    }
+    body = byteContent;
+    gzipBody = (contentEncoding == null && isCompressible(contentType)) ? gzip(body) : null;
   }
 
   public boolean isValid() {
     return expires > System.currentTimeMillis();
   }
 
+  /**
+   * Replay the response without content encoding.
+   */
   public void replay(HttpServletResponse response) throws IOException {
-    OperationResponseReplay responseOperation = new OperationResponseReplay(operations, byteContent, stringContent);
-    responseOperation.replay(response);
+    replay(null, response);
+  }
+
+  /**
+   * Replay the response, gzipped if the request accepts that and there is a gzipped
+   * body.
+   */
+  @SuppressWarnings("deprecation")
+  public void replay(HttpServletRequest request, HttpServletResponse response) throws IOException {
+    for (int i = 0; i < ops.length; i++) {
+      switch (ops[i]) {
+      case OperationResponseCapture.ADD_DATE_HEADER:
+        response.addDateHeader(names[i], numbers[i]);
+        break;
+      case OperationResponseCapture.ADD_HEADER:
+        response.addHeader(names[i], values[i]);
+        break;
+      case OperationResponseCapture.ADD_INT_HEADER:
+        response.addIntHeader(names[i], (int) numbers[i]);
+        break;
+      case OperationResponseCapture.SET_CHARACTER_ENCODING:
+        response.setCharacterEncoding(values[i]);
+        break;
+      case OperationResponseCapture.SET_CONTENT_TYPE:
+        response.setContentType(values[i]);
+        break;
+      case OperationResponseCapture.SET_DATE_HEADER:
+        response.setDateHeader(names[i], numbers[i]);
+        break;
+      case OperationResponseCapture.SET_HEADER:
+        response.setHeader(names[i], values[i]);
+        break;
+      case OperationResponseCapture.SET_INT_HEADER:
+        response.setIntHeader(names[i], (int) numbers[i]);
+        break;
+      case OperationResponseCapture.SET_LOCALE:
+        response.setLocale(locale);
+        break;
+      case OperationResponseCapture.SET_STATUS:
+        response.setStatus((int) numbers[i]);
+        break;
+      case OperationResponseCapture.SET_STATUS_WITH_MESSAGE:
+        response.setStatus((int) numbers[i], values[i]);
+        break;
+      }
+      // the content length is set from the body that is sent.
+    }
+
+    byte[] content = body;
+    if (gzipBody != null) {
+      response.addHeader("Vary", "Accept-Encoding");
+      if (acceptsGzip(request)) {
+        response.setHeader("Content-Encoding", "gzip");
+        content = gzipBody;
+      }
+    }
+    response.setContentLength(content.length);
+    if (content.length > 0) {
+      response.getOutputStream().write(content, 0, content.length);
+    }
+  }
+
+  /**
+   * @return the approximate size of the cached content in bytes.
+   */
+  public int getSize() {
+    return body.length + (gzipBody == null ? 0 : gzipBody.length);
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * @see org.sakaiproject.nakamura.api.memory.Weighable#getWeight()
+   */
+  public long getWeight() {
+    long weight = 128 + getSize() + 24L * ops.length;
+    for (int i = 0; i < ops.length; i++) {
+      weight += (names[i] == null ? 0 : 2 * names[i].length())
+          + (values[i] == null ? 0 : 2 * values[i].length());
+    }
+    return weight;
+  }
+
+  private static boolean acceptsGzip(HttpServletRequest request) {
+    if (request == null) {
+      return false;
+    }
+    String acceptEncoding = request.getHeader("Accept-Encoding");
+    return acceptEncoding != null && acceptEncoding.indexOf("gzip") >= 0;
+  }
+
+  private static String getEncoding(String characterEncoding, String contentType) {
+    if (characterEncoding != null) {
+      return characterEncoding;
+    }
+    if (contentType != null) {
+      int i = contentType.toLowerCase(Locale.ENGLISH).indexOf("charset=");
+      if (i >= 0) {
+        String charset = contentType.substring(i + "charset=".length()).trim();
+        int end = charset.indexOf(';');
+        return (end < 0) ? charset : charset.substring(0, end).trim();
+      }
+    }
+    return DEFAULT_ENCODING;
+  }
+
+  private static boolean isCompressible(String contentType) {
+    if (contentType == null) {
+      return false;
+    }
+    String type = contentType.toLowerCase(Locale.ENGLISH);
+    return type.startsWith("text/") || type.indexOf("json") >= 0
+        || type.indexOf("javascript") >= 0 || type.indexOf("xml") >= 0;
+  }
+
+  /**
+   * @return the gzipped content or null if that would not be smaller.
+   */
+  private static byte[] gzip(byte[] content) throws IOException {
+    if (content.length < MIN_GZIP_SIZE) {
+      return null;
+    }
+    ByteArrayOutputStream out = new ByteArrayOutputStream(content.length / 3);
+    GZIPOutputStream gzip = new GZIPOutputStream(out);
+    gzip.write(content, 0, content.length);
+    gzip.close();
+    byte[] compressed = out.toByteArray();
+    return (compressed.length < content.length) ? compressed : null;
   }
 
   @Override
   public String toString() {
-    return "redo "+operations.length+" operations "+String.valueOf(stringContent==null?byteContent.length:stringContent.length());
+    return "redo " + ops.length + " operations " + body.length;
   }
 
 }
@@ -24,6 +24,7 @@ import org.apache.felix.scr.annotations.Properties;
 import org.apache.felix.scr.annotations.Property;
 import org.apache.felix.scr.annotations.Reference;
 import org.apache.felix.scr.annotations.Service;
+import org.apache.sling.api.servlets.HttpConstants;
 import org.apache.sling.commons.osgi.PropertiesUtil;
 import org.osgi.service.component.ComponentContext;
 import org.perf4j.aop.Profiled;
@@ -33,10 +34,19 @@ import org.sakaiproject.nakamura.api.memory.CacheManagerService;
 import org.sakaiproject.nakamura.api.memory.CacheScope;
 import org.sakaiproject.nakamura.util.StringUtils;
 import org.sakaiproject.nakamura.util.telemetry.TelemetryCounter;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
+import java.io.IOException;
 import java.io.UnsupportedEncodingException;
+import java.lang.management.ManagementFactory;
 import java.security.NoSuchAlgorithmException;
+import java.util.Collections;
 import java.util.Dictionary;
+import java.util.HashSet;
+import java.util.Set;
+
+import javax.management.ObjectName;
 
 import javax.servlet.ServletException;
 import javax.servlet.http.HttpServletRequest;
@@ -48,7 +58,10 @@ import javax.servlet.http.HttpServletResponse;
     @Property(name = "service.description", value = "Nakamura Dynamic Response Cache"),
     @Property(name = "service.vendor", value = "The Sakai Foundation")})
 @Service
-public class DynamicContentResponseCacheImpl implements DynamicContentResponseCache {
+public class DynamicContentResponseCacheImpl implements DynamicContentResponseCache,
+    DynamicContentResponseCacheStatsMBean {
+
+  private static final Logger LOGGER = LoggerFactory.getLogger(DynamicContentResponseCacheImpl.class);
 
   @Property(boolValue = false)
   static final String DISABLE_CACHE_FOR_UI_DEV = "disable.cache.for.dev.mode";
@@ -56,6 +69,15 @@ public class DynamicContentResponseCacheImpl implements DynamicContentResponseCa
   @Property(boolValue = true)
   static final String BYPASS_CACHE_FOR_LOCALHOST = "bypass.cache.for.localhost";
 
+  @Property(value = {})
+  static final String BODY_CACHE_CATEGORIES = "body.cache.categories";
+
+  @Property(longValue = 16777216L)
+  static final String BODY_CACHE_MAX_BYTES = "body.cache.max.bytes";
+
+  @Property(intValue = 3600)
+  static final String BODY_CACHE_MAX_AGE = "body.cache.max.age";
+
   @Reference
   protected CacheManagerService cacheManagerService;
 
@@ -65,6 +87,14 @@ public class DynamicContentResponseCacheImpl implements DynamicContentResponseCa
 
   private boolean bypassForLocalhost;
 
+  private Set<String> bodyCacheCategories = Collections.emptySet();
+
+  private int bodyCacheMaxAge;
+
+  private ResponseBodyCache bodyCache;
+
+  private ObjectName objectName;
+
   @SuppressWarnings("UnusedParameters")
   @Activate
   protected void activate(ComponentContext componentContext) throws ServletException {
@@ -76,11 +106,43 @@ public class DynamicContentResponseCacheImpl implements DynamicContentResponseCa
 
     disableForDevMode = PropertiesUtil.toBoolean(properties.get(DISABLE_CACHE_FOR_UI_DEV), false);
     bypassForLocalhost = PropertiesUtil.toBoolean(properties.get(BYPASS_CACHE_FOR_LOCALHOST), true);
+
+    String[] categories = PropertiesUtil.toStringArray(properties.get(BODY_CACHE_CATEGORIES));
+    bodyCacheCategories = new HashSet<String>();
+    if (categories != null) {
+      for (String category : categories) {
+        if (category.trim().length() > 0) {
+          bodyCacheCategories.add(category.trim());
+        }
+      }
+    }
+    bodyCacheMaxAge = PropertiesUtil.toInteger(properties.get(BODY_CACHE_MAX_AGE), 3600);
+    bodyCache = new ResponseBodyCache(PropertiesUtil.toLong(properties.get(BODY_CACHE_MAX_BYTES),
+        16777216L));
+
+    if (objectName == null) {
+      try {
+        objectName = new ObjectName("org.sakaiproject.nakamura.http:type=DynamicContentResponseCache");
+        ManagementFactory.getPlatformMBeanServer().registerMBean(this, objectName);
+      } catch (Exception e) {
+        LOGGER.warn("Unable to register response cache statistics {} ", e.getMessage());
+        objectName = null;
+      }
+    }
   }
 
   @SuppressWarnings({"UnusedParameters", "UnusedDeclaration"})
   public void deactivate(ComponentContext componentContext) {
     cache.clear();
+    bodyCache.clear();
+    if (objectName != null) {
+      try {
+        ManagementFactory.getPlatformMBeanServer().unregisterMBean(objectName);
+      } catch (Exception e) {
+        LOGGER.debug("Unable to unregister {} {} ", objectName, e.getMessage());
+      }
+      objectName = null;
+    }
   }
 
   @Override
@@ -96,6 +158,9 @@ public class DynamicContentResponseCacheImpl implements DynamicContentResponseCa
       TelemetryCounter.incrementValue("http", "DynamicContentResponseCache-save", cacheCategory);
     }
     setHeaders(response, etag);
+    if (response instanceof BodyCaptureResponse) {
+      saveBody((BodyCaptureResponse) response);
+    }
   }
 
   @Override
@@ -104,11 +169,13 @@ public class DynamicContentResponseCacheImpl implements DynamicContentResponseCa
       return;
     }
     String key = buildCacheKey(cacheCategory, userID);
+    bodyCache.invalidate(key);
     if (cache.containsKey(key)) {
       invalidateEntry(cacheCategory, key);
       TelemetryCounter.incrementValue("http", "DynamicContentResponseCache-invalidation", cacheCategory);
     }
     String wildcardKey = buildCacheKey("*", userID);
+    bodyCache.invalidate(wildcardKey);
     if (cache.containsKey(wildcardKey)) {
       invalidateEntry("*", wildcardKey);
       TelemetryCounter.incrementValue("http", "DynamicContentResponseCache-invalidation", "*");
@@ -132,11 +199,58 @@ public class DynamicContentResponseCacheImpl implements DynamicContentResponseCa
     return false;
   }
 
+  @Override
+  public boolean sendCachedResponse(String cacheCategory, HttpServletRequest request,
+      HttpServletResponse response) throws IOException {
+    if (!isBodyCached(cacheCategory, request)) {
+      return false;
+    }
+    String owner = buildCacheKey(cacheCategory, request.getRemoteUser());
+    CachedResponse cachedResponse = bodyCache.get(cacheCategory, buildBodyKey(owner, request));
+    // the body carries the ETag, which must still be the current one.
+    if (cachedResponse == null || !cache.containsKey(owner)) {
+      return false;
+    }
+    hitBody(cacheCategory, request, response, cachedResponse);
+    TelemetryCounter.incrementValue("http", "DynamicContentResponseCache-bodyhit", cacheCategory);
+    return true;
+  }
+
+  @Override
+  public HttpServletResponse captureResponse(String cacheCategory, HttpServletRequest request,
+      HttpServletResponse response) {
+    if (!isBodyCached(cacheCategory, request)) {
+      return response;
+    }
+    String owner = buildCacheKey(cacheCategory, request.getRemoteUser());
+    return new BodyCaptureResponse(response, cacheCategory, owner, buildBodyKey(owner, request),
+        bodyCache.getGeneration(owner));
+  }
+
   @Override
   public void clear() {
     if (cache != null) {
       cache.clear();
     }
+    if (bodyCache != null) {
+      bodyCache.clear();
+    }
+  }
+
+  public long getBodyCacheBytes() {
+    return bodyCache.getBytes();
+  }
+
+  public int getBodyCacheEntries() {
+    return bodyCache.getEntries();
+  }
+
+  public String[] getCategoryStatistics() {
+    return bodyCache.getCategoryStatistics();
+  }
+
+  public void reset() {
+    bodyCache.resetStatistics();
   }
 
   private String buildETag(HttpServletRequest request) {
@@ -154,6 +268,24 @@ public class DynamicContentResponseCacheImpl implements DynamicContentResponseCa
   String buildCacheKey(String cacheCategory, String userID) {
     return userID + ':' + cacheCategory;
   }
+
+  private String buildBodyKey(String owner, HttpServletRequest request) {
+    return owner + ':' + request.getPathInfo() + '?' + request.getQueryString();
+  }
+
+  private void saveBody(BodyCaptureResponse response) {
+    try {
+      if (response.canCache()) {
+        bodyCache.put(response.getCacheCategory(), response.getOwner(), response.getKey(),
+            new CachedResponse(response.getResponseOperation(), bodyCacheMaxAge),
+            response.getGeneration());
+        TelemetryCounter.incrementValue("http", "DynamicContentResponseCache-bodysave",
+            response.getCacheCategory());
+      }
+    } catch (IOException e) {
+      LOGGER.info("Failed to save response in cache ", e);
+    }
+  }
   
   @Profiled(tag="http:DynamicContentResponseCache:save:{$0}", el=true)
   private void saveEntry(String cacheCategory, String key, String value) {
@@ -170,6 +302,17 @@ public class DynamicContentResponseCacheImpl implements DynamicContentResponseCa
     response.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
   }
 
+  @Profiled(tag="http:DynamicResponseCache:bodyhit:{$0}")
+  private void hitBody(String cacheCategory, HttpServletRequest request,
+      HttpServletResponse response, CachedResponse cachedResponse) throws IOException {
+    cachedResponse.replay(request, response);
+  }
+
+  private boolean isBodyCached(String cacheCategory, HttpServletRequest request) {
+    return bodyCacheCategories.contains(cacheCategory) && !isDisabled(request)
+        && HttpConstants.METHOD_GET.equals(request.getMethod());
+  }
+
   private boolean isDisabled(HttpServletRequest request) {
     return disableForDevMode || (bypassForLocalhost && ("localhost".equals(request.getServerName())
         || "127.0.0.1".equals(request.getServerName())));
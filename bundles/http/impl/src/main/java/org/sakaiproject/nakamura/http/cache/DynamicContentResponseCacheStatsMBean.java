@@ -0,0 +1,43 @@
+/**
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.http.cache;
+
+/**
+ * JMX view of the response bodies held by the dynamic content response cache,
+ * registered as org.sakaiproject.nakamura.http:type=DynamicContentResponseCache.
+ */
+public interface DynamicContentResponseCacheStatsMBean {
+
+  /**
+   * @return the approximate number of bytes held in cached response bodies.
+   */
+  long getBodyCacheBytes();
+
+  /**
+   * @return the number of response bodies cached.
+   */
+  int getBodyCacheEntries();
+
+  /**
+   * @return one line per category with the body cache hits, misses, evictions, bytes
+   *         stored and bytes served.
+   */
+  String[] getCategoryStatistics();
+
+  void reset();
+}
@@ -194,7 +194,7 @@ public class FilterResponseWrapper extends HttpServletResponseWrapper {
   
   @Override
   public PrintWriter getWriter() throws IOException {
-    return capture.getWriter(super.getWriter());
+    return capture.getWriter(super.getWriter(), getCharacterEncoding());
   }
   
   
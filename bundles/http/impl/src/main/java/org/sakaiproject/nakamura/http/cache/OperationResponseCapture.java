@@ -49,6 +49,7 @@ public class OperationResponseCapture {
   private SplitOutputStream outputStream;
   private boolean cacheable;
   private SplitWriter splitWriter;
+  private String characterEncoding;
   private List<Operation> operations = new ArrayList<Operation>();
 
   public OperationResponseCapture() {
@@ -56,6 +57,17 @@ public class OperationResponseCapture {
     resetRedoLog();
   }
 
+  /**
+   * @param characterEncoding
+   *          the encoding the base writer writes in.
+   */
+  public PrintWriter getWriter(PrintWriter baseWriter, String characterEncoding) {
+    if (writer == null) {
+      this.characterEncoding = characterEncoding;
+    }
+    return getWriter(baseWriter);
+  }
+
   public PrintWriter getWriter(PrintWriter baseWriter) {
     if (outputStream != null) {
       throw new IllegalStateException();
@@ -123,6 +135,9 @@ public class OperationResponseCapture {
   }
 
   public void setHeader(String name, String value) {
+    if (isContentEncoding(name)) {
+      dropCache();
+    }
     if (cacheable && cacheHeader(name)) {
       operations.add(new Operation(SET_HEADER, name, value));
     }
@@ -155,6 +170,9 @@ public class OperationResponseCapture {
   }
 
   public void addHeader(String name, String value) {
+    if (isContentEncoding(name)) {
+      dropCache();
+    }
     if (cacheable && cacheHeader(name)) {
       operations.add(new Operation(ADD_HEADER, name, value));
     }
@@ -166,6 +184,14 @@ public class OperationResponseCapture {
     }
   }
 
+  /**
+   * An encoded body is only right for requests that accept the encoding, so a response
+   * that arrives encoded is not kept.
+   */
+  private boolean isContentEncoding(String name) {
+    return "content-encoding".equalsIgnoreCase(name);
+  }
+
   private boolean cacheHeader(String name) {
     String lc = name.toLowerCase();
     return (DONT_CACHE.indexOf(lc) == -1);
@@ -212,6 +238,13 @@ public class OperationResponseCapture {
     return null;
   }
 
+  /**
+   * @return the encoding of the string content, if known.
+   */
+  public String getCharacterEncoding() {
+    return characterEncoding;
+  }
+
   public boolean canCache() {
     return cacheable;
   }
@@ -0,0 +1,243 @@
+/**
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.http.cache;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Holds whole responses for the {@link DynamicContentResponseCacheImpl}, within a memory
+ * budget. Responses are kept per owner (user and category) and request, the least
+ * recently used being evicted first when the budget is exceeded.
+ */
+class ResponseBodyCache {
+
+  /**
+   * A response may use at most this fraction of the budget, so one large response does
+   * not flush everything else.
+   */
+  private static final int MAX_ENTRY_FRACTION = 8;
+
+  private final long maxBytes;
+
+  /**
+   * Entries in least recently used order.
+   */
+  private final LinkedHashMap<String, BodyEntry> entries = new LinkedHashMap<String, BodyEntry>(
+      16, 0.75f, true);
+
+  /**
+   * The keys of the entries held for each owner.
+   */
+  private final Map<String, Set<String>> owners = new HashMap<String, Set<String>>();
+
+  /**
+   * Invalidation generation of each owner, a response captured before an invalidation of
+   * its owner is not saved.
+   */
+  private final Map<String, Long> generations = new HashMap<String, Long>();
+
+  private long generation;
+
+  private long bytes;
+
+  private final ConcurrentMap<String, Statistics> statistics = new ConcurrentHashMap<String, Statistics>();
+
+  ResponseBodyCache(long maxBytes) {
+    this.maxBytes = maxBytes;
+  }
+
+  /**
+   * @return the generation to pass to {@link #put} when the response of this owner
+   *         being captured now is saved.
+   */
+  synchronized long getGeneration(String owner) {
+    Long ownerGeneration = generations.get(owner);
+    return (ownerGeneration == null) ? generation : ownerGeneration;
+  }
+
+  /**
+   * @return the response or null if none is cached.
+   */
+  synchronized CachedResponse get(String category, String key) {
+    Statistics stats = getStatistics(category);
+    BodyEntry entry = entries.get(key);
+    if (entry != null && !entry.response.isValid()) {
+      remove(key);
+      entry = null;
+    }
+    if (entry == null) {
+      stats.misses.incrementAndGet();
+      return null;
+    }
+    stats.hits.incrementAndGet();
+    stats.bytesServed.addAndGet(entry.size);
+    return entry.response;
+  }
+
+  /**
+   * Save a response unless its owner was invalidated since the capture started.
+   */
+  synchronized void put(String category, String owner, String key,
+      CachedResponse response, long capturedGeneration) {
+    if (getGeneration(owner) != capturedGeneration) {
+      return;
+    }
+    int size = response.getSize() + key.length() * 2;
+    if (size > maxBytes / MAX_ENTRY_FRACTION) {
+      return;
+    }
+    remove(key);
+    entries.put(key, new BodyEntry(category, owner, response, size));
+    Set<String> keys = owners.get(owner);
+    if (keys == null) {
+      keys = new HashSet<String>();
+      owners.put(owner, keys);
+    }
+    keys.add(key);
+    bytes += size;
+    getStatistics(category).bytesStored.addAndGet(size);
+    Iterator<Entry<String, BodyEntry>> lru = entries.entrySet().iterator();
+    while (bytes > maxBytes && lru.hasNext()) {
+      Entry<String, BodyEntry> eldest = lru.next();
+      lru.remove();
+      removed(eldest.getKey(), eldest.getValue());
+      getStatistics(eldest.getValue().category).evictions.incrementAndGet();
+    }
+  }
+
+  /**
+   * Drop every response of an owner, including any being captured now.
+   */
+  synchronized void invalidate(String owner) {
+    generation++;
+    generations.put(owner, generation);
+    Set<String> keys = owners.get(owner);
+    if (keys != null) {
+      for (String key : new ArrayList<String>(keys)) {
+        remove(key);
+      }
+    }
+    if (generations.size() > entries.size() + 1024) {
+      // owners with nothing cached only need a generation while a capture is running.
+      generations.keySet().retainAll(owners.keySet());
+    }
+  }
+
+  synchronized void clear() {
+    generation++;
+    generations.clear();
+    entries.clear();
+    owners.clear();
+    bytes = 0;
+  }
+
+  synchronized long getBytes() {
+    return bytes;
+  }
+
+  synchronized int getEntries() {
+    return entries.size();
+  }
+
+  /**
+   * @return one line per category with hits, misses, evictions and bytes.
+   */
+  String[] getCategoryStatistics() {
+    List<String> lines = new ArrayList<String>();
+    for (Entry<String, Statistics> e : statistics.entrySet()) {
+      lines.add(e.getKey() + " " + e.getValue());
+    }
+    Collections.sort(lines);
+    return lines.toArray(new String[lines.size()]);
+  }
+
+  void resetStatistics() {
+    statistics.clear();
+  }
+
+  private void remove(String key) {
+    BodyEntry entry = entries.remove(key);
+    if (entry != null) {
+      removed(key, entry);
+    }
+  }
+
+  private void removed(String key, BodyEntry entry) {
+    bytes -= entry.size;
+    Set<String> keys = owners.get(entry.owner);
+    if (keys != null) {
+      keys.remove(key);
+      if (keys.isEmpty()) {
+        owners.remove(entry.owner);
+      }
+    }
+  }
+
+  private Statistics getStatistics(String category) {
+    Statistics stats = statistics.get(category);
+    if (stats == null) {
+      Statistics newStats = new Statistics();
+      stats = statistics.putIfAbsent(category, newStats);
+      if (stats == null) {
+        stats = newStats;
+      }
+    }
+    return stats;
+  }
+
+  private static class BodyEntry {
+    private final String category;
+    private final String owner;
+    private final CachedResponse response;
+    private final int size;
+
+    BodyEntry(String category, String owner, CachedResponse response, int size) {
+      this.category = category;
+      this.owner = owner;
+      this.response = response;
+      this.size = size;
+    }
+  }
+
+  private static class Statistics {
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+    private final AtomicLong bytesStored = new AtomicLong();
+    private final AtomicLong bytesServed = new AtomicLong();
+
+    @Override
+    public String toString() {
+      return "hits=" + hits.get() + " misses=" + misses.get() + " evictions="
+          + evictions.get() + " bytesStored=" + bytesStored.get() + " bytesServed="
+          + bytesServed.get();
+    }
+  }
+}
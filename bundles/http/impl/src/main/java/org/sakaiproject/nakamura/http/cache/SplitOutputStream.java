@@ -38,6 +38,12 @@ public class SplitOutputStream extends ServletOutputStream {
     baseStream.write(b);
     store.write(b);
   }
+
+  @Override
+  public void write(byte[] b, int off, int len) throws IOException {
+    baseStream.write(b, off, len);
+    store.write(b, off, len);
+  }
   
   @Override
   public void flush() throws IOException {
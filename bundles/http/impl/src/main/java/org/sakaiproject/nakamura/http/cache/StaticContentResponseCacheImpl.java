@@ -259,7 +259,7 @@ public class StaticContentResponseCacheImpl implements Filter, StaticContentResp
     if (cachedResponse != null && cachedResponse.isValid()) {
       String key = getCacheKey(request);
       TelemetryCounter.incrementValue("http", "StaticContentResponseCacheImpl-hit", key);
-      hitEntry(key, response, cachedResponse);
+      hitEntry(key, request, response, cachedResponse);
       return true;
     }
 
@@ -301,9 +301,9 @@ public class StaticContentResponseCacheImpl implements Filter, StaticContentResp
   }
   
   @Profiled(tag="http:StaticContentResponseCacheImpl:hit:{$0}")
-  private void hitEntry(String key, HttpServletResponse response, CachedResponse cachedResponse)
-      throws IOException {
-    cachedResponse.replay(response);
+  private void hitEntry(String key, HttpServletRequest request, HttpServletResponse response,
+      CachedResponse cachedResponse) throws IOException {
+    cachedResponse.replay(request, response);
   }
   
   @Profiled(tag="http:StaticContentResponseCacheImpl:save:{$0}")
@@ -17,27 +17,36 @@
  */
 package org.sakaiproject.nakamura.http.i18n;
 
-import java.io.ByteArrayOutputStream;
-import java.io.CharArrayWriter;
 import java.io.IOException;
 import java.io.PrintWriter;
-import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.Charset;
 
 import javax.servlet.ServletOutputStream;
 import javax.servlet.http.HttpServletResponse;
 import javax.servlet.http.HttpServletResponseWrapper;
 
 /**
- * Response wrapper to filter i18n keys into language messages.
+ * Response wrapper to filter i18n keys into language messages. Whatever is written to the
+ * wrapper, as characters or as UTF-8 bytes, passes through a {@link SubstitutingWriter} on
+ * its way to the response. The length of the response changes, so any content length set
+ * by the wrapped servlet is dropped.
  */
 public class CapturingHttpServletResponse extends HttpServletResponseWrapper {
-  private final CharArrayWriter caw;
-  private final ByteArrayOutputStream baos;
+  private static final String CONTENT_LENGTH = "Content-Length";
 
-  public CapturingHttpServletResponse(HttpServletResponse response) {
+  private final SubstitutingWriter substitutingWriter;
+  private PrintWriter writer;
+  private DecodingOutputStream outputStream;
+
+  public CapturingHttpServletResponse(HttpServletResponse response,
+      SubstitutingWriter substitutingWriter) {
     super(response);
-    caw = new CharArrayWriter();
-    baos = new ByteArrayOutputStream();
+    this.substitutingWriter = substitutingWriter;
   }
 
   @Override
@@ -46,13 +55,10 @@ public class CapturingHttpServletResponse extends HttpServletResponseWrapper {
     super.getOutputStream();
 
     // we've passed the super call, return a stream
-    return new ServletOutputStream() {
-
-      @Override
-      public void write(int b) throws IOException {
-        baos.write(b);
-      }
-    };
+    if (outputStream == null) {
+      outputStream = new DecodingOutputStream(substitutingWriter);
+    }
+    return outputStream;
   }
 
   @Override
@@ -61,21 +67,120 @@ public class CapturingHttpServletResponse extends HttpServletResponseWrapper {
     super.getWriter();
 
     // we've passed the super call, return a print writer
-    return new PrintWriter(caw);
+    if (writer == null) {
+      writer = new PrintWriter(substitutingWriter);
+    }
+    return writer;
   }
 
   @Override
-  public String toString() {
-    String retval = "";
-    if (baos.size() > 0) {
-      try {
-        retval = baos.toString("UTF-8");
-      } catch (UnsupportedEncodingException e) {
-        retval = "unsupported encoding: UTF-8";
+  public void setContentLength(int len) {
+  }
+
+  @Override
+  public void setHeader(String name, String value) {
+    if (!CONTENT_LENGTH.equalsIgnoreCase(name)) {
+      super.setHeader(name, value);
+    }
+  }
+
+  @Override
+  public void addHeader(String name, String value) {
+    if (!CONTENT_LENGTH.equalsIgnoreCase(name)) {
+      super.addHeader(name, value);
+    }
+  }
+
+  @Override
+  public void setIntHeader(String name, int value) {
+    if (!CONTENT_LENGTH.equalsIgnoreCase(name)) {
+      super.setIntHeader(name, value);
+    }
+  }
+
+  @Override
+  public void addIntHeader(String name, int value) {
+    if (!CONTENT_LENGTH.equalsIgnoreCase(name)) {
+      super.addIntHeader(name, value);
+    }
+  }
+
+  /**
+   * Write out whatever is still held back once the wrapped servlet is done.
+   */
+  public void finish() throws IOException {
+    if (outputStream != null) {
+      outputStream.finish();
+    }
+    if (writer != null) {
+      writer.flush();
+    }
+    substitutingWriter.finish();
+  }
+
+  /**
+   * Decodes UTF-8 bytes into the substituting writer.
+   */
+  private static class DecodingOutputStream extends ServletOutputStream {
+    private final SubstitutingWriter out;
+    private final CharsetDecoder decoder = Charset.forName("UTF-8").newDecoder()
+        .onMalformedInput(CodingErrorAction.REPLACE)
+        .onUnmappableCharacter(CodingErrorAction.REPLACE);
+    private final ByteBuffer bytes = ByteBuffer.allocate(4096);
+    private final CharBuffer chars = CharBuffer.allocate(4096);
+
+    DecodingOutputStream(SubstitutingWriter out) {
+      this.out = out;
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+      if (!bytes.hasRemaining()) {
+        decode(false);
+      }
+      bytes.put((byte) b);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+      while (len > 0) {
+        if (!bytes.hasRemaining()) {
+          decode(false);
+        }
+        int n = Math.min(len, bytes.remaining());
+        bytes.put(b, off, n);
+        off += n;
+        len -= n;
       }
-    } else if (caw.size() > 0) {
-      retval = caw.toString();
     }
-    return retval;
+
+    @Override
+    public void flush() throws IOException {
+      decode(false);
+      out.flush();
+    }
+
+    void finish() throws IOException {
+      decode(true);
+      decoder.flush(chars);
+      drain();
+    }
+
+    private void decode(boolean endOfInput) throws IOException {
+      bytes.flip();
+      CoderResult result;
+      do {
+        result = decoder.decode(bytes, chars, endOfInput);
+        drain();
+      } while (result.isOverflow());
+      // keep any partial character for the next write
+      bytes.compact();
+    }
+
+    private void drain() throws IOException {
+      chars.flip();
+      out.write(chars.array(), chars.arrayOffset() + chars.position(), chars.remaining());
+      chars.clear();
+    }
   }
-}
\ No newline at end of file
+}
@@ -17,24 +17,35 @@
  */
 package org.sakaiproject.nakamura.http.i18n;
 
-import org.apache.commons.lang.StringUtils;
 import org.apache.felix.scr.annotations.Activate;
 import org.apache.felix.scr.annotations.Component;
 import org.apache.felix.scr.annotations.Modified;
 import org.apache.felix.scr.annotations.Property;
 import org.apache.felix.scr.annotations.Service;
+import org.apache.sling.api.SlingConstants;
 import org.apache.sling.api.SlingHttpServletRequest;
 import org.apache.sling.commons.osgi.PropertiesUtil;
 import org.osgi.framework.Constants;
+import org.osgi.service.event.Event;
+import org.osgi.service.event.EventConstants;
+import org.osgi.service.event.EventHandler;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
 import java.io.InputStream;
-import java.util.ArrayList;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.Locale;
 import java.util.Map;
 import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
@@ -53,34 +64,65 @@ import javax.servlet.http.HttpServletResponse;
 
 /**
  * Filter to transform __MSG_*__ i18n message keys into i18n messages.
+ * <p>
+ * The output is scanned for keys as it is written and passed straight on. Language
+ * bundles are parsed once and kept until something under the bundles path changes. For
+ * each page, the result of the last scan is kept as a {@link SubstitutionPlan}, so the
+ * next time the page is the same it only has to be compared, not scanned.
  */
 @Component(metatype = true, enabled=false)
-@Service
+@Service(value = { Filter.class, EventHandler.class })
 @org.apache.felix.scr.annotations.Properties(value = {
     @Property(name = Constants.SERVICE_VENDOR, value = "The Sakai Foundation"),
     @Property(name = Constants.SERVICE_DESCRIPTION, value = "Nakamura i18n Filter"),
     @Property(name = Constants.SERVICE_RANKING, intValue = 10, propertyPrivate = true),
     @Property(name = "sling.filter.scope", value = "REQUEST", propertyPrivate = true),
+    @Property(name = EventConstants.EVENT_TOPIC, value = {
+        SlingConstants.TOPIC_RESOURCE_ADDED, SlingConstants.TOPIC_RESOURCE_CHANGED,
+        SlingConstants.TOPIC_RESOURCE_REMOVED }, propertyPrivate = true),
     @Property(name = I18nFilter.BUNDLES_PATH, value = I18nFilter.DEFAULT_BUNDLES_PATH),
     @Property(name = I18nFilter.MESSAGE_KEY_PATTERN, value = I18nFilter.DEFAULT_MESSAGE_KEY_PATTERN),
-    @Property(name = I18nFilter.SHOW_MISSING_KEYS, boolValue = I18nFilter.DEFAULT_SHOW_MISSING_KEYS)
+    @Property(name = I18nFilter.SHOW_MISSING_KEYS, boolValue = I18nFilter.DEFAULT_SHOW_MISSING_KEYS),
+    @Property(name = I18nFilter.MAX_PLANS, intValue = I18nFilter.DEFAULT_MAX_PLANS)
 })
-public class I18nFilter implements Filter {
+public class I18nFilter implements Filter, EventHandler {
   public static final String PARAM_LANGUAGE = "l";
   public static final String DEFAULT_BUNDLES_PATH = "/dev/bundle";
   public static final String DEFAULT_MESSAGE_KEY_PATTERN = "__MSG__(.+?)__";
   public static final boolean DEFAULT_SHOW_MISSING_KEYS = true;
+  public static final int DEFAULT_MAX_PLANS = 200;
 
   private static final Logger logger = LoggerFactory.getLogger(I18nFilter.class);
 
   static final String BUNDLES_PATH = "sakai.filter.i18n.bundles.path";
   static final String MESSAGE_KEY_PATTERN = "sakai.filter.i18n.message_key.pattern";
   static final String SHOW_MISSING_KEYS = "sakai.filter.i18n.message_key.show_missing";
+  static final String MAX_PLANS = "sakai.filter.i18n.plans.max";
+
+  /**
+   * Pages bigger than this, in characters, are scanned every time.
+   */
+  static final int MAX_PLAN_SIZE = 512 * 1024;
+
+  /**
+   * A pattern that is a literal prefix and suffix around the key.
+   */
+  private static final Pattern LITERAL_KEY_PATTERN = Pattern
+      .compile("([^\\\\^$.|?*+()\\[\\]{}]+)\\(\\.\\+\\?\\)([^\\\\^$.|?*+()\\[\\]{}]+)");
+
+  /**
+   * Marks a bundle that does not exist in the bundle cache.
+   */
+  private static final Properties NO_BUNDLE = new Properties();
 
   private String bundlesPath;
   private String keyPattern;
   private Pattern messageKeyPattern;
+  private String keyPrefix;
+  private String keySuffix;
   private boolean showMissingKeys;
+  private final ConcurrentMap<String, Properties> bundles = new ConcurrentHashMap<String, Properties>();
+  private Map<String, SubstitutionPlan> plans = Collections.emptyMap();
 
   @Activate @Modified
   public void modified(Map<?, ?> props) {
@@ -89,9 +131,57 @@ public class I18nFilter implements Filter {
     keyPattern = PropertiesUtil.toString(props.get(MESSAGE_KEY_PATTERN),
         DEFAULT_MESSAGE_KEY_PATTERN);
     messageKeyPattern = Pattern.compile(keyPattern);
+    Matcher literal = LITERAL_KEY_PATTERN.matcher(keyPattern);
+    if (literal.matches()) {
+      keyPrefix = literal.group(1);
+      keySuffix = literal.group(2);
+    } else {
+      logger.warn("Message key pattern {} is not of the form prefix(.+?)suffix, responses "
+          + "will be held in memory to be filtered", keyPattern);
+      keyPrefix = null;
+      keySuffix = null;
+    }
 
     showMissingKeys = PropertiesUtil.toBoolean(props.get(SHOW_MISSING_KEYS),
         DEFAULT_SHOW_MISSING_KEYS);
+
+    final int maxPlans = PropertiesUtil.toInteger(props.get(MAX_PLANS), DEFAULT_MAX_PLANS);
+    plans = Collections.synchronizedMap(new LinkedHashMap<String, SubstitutionPlan>(16,
+        0.75f, true) {
+      private static final long serialVersionUID = 1L;
+
+      @Override
+      protected boolean removeEldestEntry(Map.Entry<String, SubstitutionPlan> eldest) {
+        return size() > maxPlans;
+      }
+    });
+    bundles.clear();
+  }
+
+  // ---------- EventHandler interface ----------
+  /**
+   * {@inheritDoc}
+   *
+   * Drops the cached bundles when anything under the bundles path changes, and the plan
+   * for a page that changes.
+   *
+   * @see org.osgi.service.event.EventHandler#handleEvent(org.osgi.service.event.Event)
+   */
+  public void handleEvent(Event event) {
+    String path = (String) event.getProperty(SlingConstants.PROPERTY_PATH);
+    if (path == null) {
+      return;
+    }
+    if (path.startsWith(bundlesPath)) {
+      bundles.clear();
+    }
+    synchronized (plans) {
+      for (Iterator<String> i = plans.keySet().iterator(); i.hasNext();) {
+        if (path.startsWith(i.next())) {
+          i.remove();
+        }
+      }
+    }
   }
 
   // ---------- Filter interface ----------
@@ -128,100 +218,129 @@ public class I18nFilter implements Filter {
     // get path info
     SlingHttpServletRequest srequest = (SlingHttpServletRequest) request;
     HttpServletResponse httpResponse = (HttpServletResponse) response;
-    String path = srequest.getPathInfo();
+    final String path = srequest.getPathInfo();
 
     // check that the path is something we should filter.
-    boolean filter = false;
     if ((path.startsWith("/dev/") || path.startsWith("/devwidgets/"))
         && path.endsWith(".html")) {
-      httpResponse = new CapturingHttpServletResponse(httpResponse);
-      filter = true;
-    }
-
-    // allow the chain to process so we can capture the response
-    chain.doFilter(request, httpResponse);
-
-    // if the path was set to be filtered, get the output and filter it
-    // otherwise the response isn't wrapped and doesn't require us to intervene
-    if (filter) {
-      String output = httpResponse.toString();
-      if (!StringUtils.isBlank(output)) {
-        long start = System.currentTimeMillis();
+      long start = System.currentTimeMillis();
+      SubstitutingWriter substitutingWriter;
+      if (keyPrefix != null) {
+        substitutingWriter = new SubstitutingWriter(new RequestMessages(srequest),
+            new ResponseOutput(response), keyPrefix, keySuffix, plans.get(path),
+            new SubstitutingWriter.PlanStore() {
+              public void put(SubstitutionPlan plan) {
+                plans.put(path, plan);
+              }
+            }, MAX_PLAN_SIZE);
+      } else {
+        substitutingWriter = new SubstitutingWriter(new RequestMessages(srequest),
+            new ResponseOutput(response), messageKeyPattern);
+      }
+      CapturingHttpServletResponse capturingResponse = new CapturingHttpServletResponse(
+          httpResponse, substitutingWriter);
 
-        writeFilteredResponse(srequest, response, output);
+      // let the chain write through the filtering response
+      chain.doFilter(request, capturingResponse);
+      capturingResponse.finish();
 
-        long end = System.currentTimeMillis();
-        logger.debug("Filtered {} in {}ms", path, (end - start));
-      }
+      long end = System.currentTimeMillis();
+      logger.debug("Filtered {} in {}ms", path, (end - start));
+    } else {
+      // the response isn't wrapped and doesn't require us to intervene
+      chain.doFilter(request, httpResponse);
     }
   }
 
   /**
-   * Filter <code>output</code> of any message keys by replacing them with the matching
-   * message from the language bundle associated to the user.
-   *
-   * @param srequest
-   * @param response
-   * @param output
-   * @throws IOException
+   * The messages for the language bundle associated to the user, falling back to the
+   * default bundle. Bundles are loaded on the first key found.
    */
-  private void writeFilteredResponse(SlingHttpServletRequest srequest,
-      ServletResponse response, String output) throws IOException {
-    StringBuilder sb = new StringBuilder(output);
-    try {
-      Session session = srequest.getResourceResolver().adaptTo(Session.class);
-      Node bundlesNode = session.getNode(bundlesPath);
-
-      // load the language bundle
-      Locale locale = getLocale(srequest);
-      Properties bndLang = getLangBundle(bundlesNode, locale.toString());
-
-      // load the default bundle
-      Properties bndLangDefault = getLangBundle(bundlesNode, "default");
-
-      // check for message keys and replace them with the appropriate message
-      Matcher m = messageKeyPattern.matcher(output);
-      ArrayList<String> matchedKeys = new ArrayList<String>();
-      while (m.find()) {
-        String msgKey = m.group(0);
-        String key = m.group(1);
-        if (!matchedKeys.contains(key)) {
-          String message = "";
-
-          if (bndLang.containsKey(key)) {
-            message = bndLang.getProperty(key);
-          } else if (bndLangDefault.containsKey(key)) {
-            message = bndLangDefault.getProperty(key);
-          } else {
-            String msg = "[MESSAGE KEY NOT FOUND '" + key + "']";
-            logger.warn(msg);
-            if (showMissingKeys) {
-              message = msg;
-            }
-          }
+  private class RequestMessages implements SubstitutingWriter.Messages {
+    private final SlingHttpServletRequest srequest;
+    private boolean loaded;
+    private Properties bndLang;
+    private Properties bndLangDefault;
+    private Set<String> missingKeys;
+
+    RequestMessages(SlingHttpServletRequest srequest) {
+      this.srequest = srequest;
+    }
 
-          // replace all instances of msgKey with the actual message
-          int keyStart = sb.indexOf(msgKey);
-          while (keyStart >= 0) {
-            sb.replace(keyStart, keyStart + msgKey.length(), message);
-            keyStart = sb.indexOf(msgKey, keyStart);
+    public String getMessage(String key) {
+      if (!loaded) {
+        loaded = true;
+        try {
+          // load the language bundle
+          Locale locale = getLocale(srequest);
+          bndLang = getLangBundle(locale.toString());
+
+          // load the default bundle
+          bndLangDefault = getLangBundle("default");
+          if (bndLangDefault == null) {
+            logger.error("No default bundle found in {} ", bundlesPath);
           }
+        } catch (RepositoryException e) {
+          logger.error(e.getMessage(), e);
+        } catch (IOException e) {
+          logger.error(e.getMessage(), e);
+        }
+      }
+      if (bndLangDefault == null) {
+        // without bundles, leave the keys as they are
+        return keyPrefix != null ? keyPrefix + key + keySuffix : key;
+      }
 
-          // track the group so we don't try to replace it again
-          matchedKeys.add(key);
+      String message = bndLang == null ? null : bndLang.getProperty(key);
+      if (message == null) {
+        message = bndLangDefault.getProperty(key);
+      }
+      if (message == null) {
+        String msg = "[MESSAGE KEY NOT FOUND '" + key + "']";
+        if (missingKeys == null) {
+          missingKeys = new HashSet<String>();
+        }
+        if (missingKeys.add(key)) {
+          logger.warn(msg);
+        }
+        message = showMissingKeys ? msg : "";
+      }
+      return message;
+    }
+
+    private Properties getLangBundle(String name) throws RepositoryException, IOException {
+      Properties bundle = bundles.get(name);
+      if (bundle == null) {
+        try {
+          Session session = srequest.getResourceResolver().adaptTo(Session.class);
+          bundle = loadLangBundle(session.getNode(bundlesPath), name);
+        } catch (PathNotFoundException e) {
+          logger.debug("No {} bundle in {} ", name, bundlesPath);
+          bundle = NO_BUNDLE;
         }
+        bundles.put(name, bundle);
       }
-    } catch (RepositoryException e) {
-      logger.error(e.getMessage(), e);
+      return bundle == NO_BUNDLE ? null : bundle;
     }
+  }
+
+  /**
+   * Opens the response writer, or a UTF-8 writer on the output stream if the writer is
+   * not available.
+   */
+  private static class ResponseOutput implements SubstitutingWriter.Output {
+    private final ServletResponse response;
 
-    response.setContentLength(sb.length());
+    ResponseOutput(ServletResponse response) {
+      this.response = response;
+    }
 
-    // send the output to the actual response
-    try {
-      response.getWriter().write(sb.toString());
-    } catch (IllegalStateException e) {
-      response.getOutputStream().write(sb.toString().getBytes("UTF-8"));
+    public Writer open() throws IOException {
+      try {
+        return response.getWriter();
+      } catch (IllegalStateException e) {
+        return new OutputStreamWriter(response.getOutputStream(), "UTF-8");
+      }
     }
   }
 
@@ -239,7 +358,7 @@ public class I18nFilter implements Filter {
     return l;
   }
 
-  private Properties getLangBundle(Node bundlesNode, String name)
+  private Properties loadLangBundle(Node bundlesNode, String name)
       throws PathNotFoundException, RepositoryException, ValueFormatException,
       IOException {
     Node langNode = bundlesNode.getNode(name + ".properties");
@@ -0,0 +1,121 @@
+/**
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.http.i18n;
+
+/**
+ * Finds message keys, such as <code>__MSG__KEY__</code>, in text that is fed to it one
+ * character at a time. It matches what the pattern <code>prefix(.+?)suffix</code> would
+ * find, holding back only the characters that may still turn out to be part of a key.
+ */
+class MessageKeyScanner {
+
+  /**
+   * Receives the text and keys found by the scanner, in order.
+   */
+  interface Listener {
+    void text(char c);
+
+    void key(String key);
+  }
+
+  /**
+   * Keys longer than this are not looked for, so a stray prefix does not hold back the
+   * rest of the page.
+   */
+  static final int MAX_KEY_LENGTH = 256;
+
+  private final String prefix;
+  private final String suffix;
+  private final Listener listener;
+  private final StringBuilder pending = new StringBuilder();
+  private boolean inKey;
+
+  MessageKeyScanner(String prefix, String suffix, Listener listener) {
+    this.prefix = prefix;
+    this.suffix = suffix;
+    this.listener = listener;
+  }
+
+  void write(char c) {
+    if (!inKey) {
+      if (c == prefix.charAt(pending.length())) {
+        pending.append(c);
+        inKey = pending.length() == prefix.length();
+      } else if (pending.length() == 0) {
+        listener.text(c);
+      } else {
+        pending.append(c);
+        restart();
+      }
+      return;
+    }
+    pending.append(c);
+    int keyLength = pending.length() - prefix.length() - suffix.length();
+    if (c == '\n' || c == '\r' || c == '\u0085' || c == '\u2028' || c == '\u2029'
+        || keyLength > MAX_KEY_LENGTH) {
+      // keys do not span lines
+      restart();
+    } else if (keyLength > 0 && endsWithSuffix()) {
+      String key = pending.substring(prefix.length(), prefix.length() + keyLength);
+      pending.setLength(0);
+      inKey = false;
+      listener.key(key);
+    }
+  }
+
+  /**
+   * Give up any partial key held back, at the end of the text.
+   */
+  void finish() {
+    while (pending.length() > 0) {
+      restart();
+    }
+  }
+
+  /**
+   * @return true if no characters are held back.
+   */
+  boolean isClean() {
+    return pending.length() == 0;
+  }
+
+  /**
+   * The key that started at the first pending character can not match, so let that
+   * character through and look again from the next one.
+   */
+  private void restart() {
+    char first = pending.charAt(0);
+    String rest = pending.substring(1);
+    pending.setLength(0);
+    inKey = false;
+    listener.text(first);
+    for (int i = 0; i < rest.length(); i++) {
+      write(rest.charAt(i));
+    }
+  }
+
+  private boolean endsWithSuffix() {
+    int offset = pending.length() - suffix.length();
+    for (int i = 0; i < suffix.length(); i++) {
+      if (pending.charAt(offset + i) != suffix.charAt(i)) {
+        return false;
+      }
+    }
+    return true;
+  }
+}
@@ -0,0 +1,341 @@
+/**
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.http.i18n;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Writes text through to the response, replacing message keys with messages as it goes.
+ * <p>
+ * When it is given the plan made the last time the same page was written, the text is
+ * compared with the plan's raw text instead of being scanned, and the plan's pieces are
+ * written as they are passed. If the text turns out to differ, scanning takes over from the
+ * end of the last piece written. When it is given somewhere to keep a plan, a new plan is
+ * made from the scan.
+ * <p>
+ * A key pattern that is not a literal prefix and suffix around <code>(.+?)</code> can
+ * not be scanned for, in that case the text is held until {@link #finish()} and replaced
+ * with the pattern.
+ */
+class SubstitutingWriter extends Writer implements MessageKeyScanner.Listener {
+
+  /**
+   * Supplies the messages for keys.
+   */
+  interface Messages {
+    /**
+     * @return the text to write in place of the key.
+     */
+    String getMessage(String key);
+  }
+
+  /**
+   * Opens the writer the output goes to, the first time there is output.
+   */
+  interface Output {
+    Writer open() throws IOException;
+  }
+
+  /**
+   * Keeps a plan made by the writer.
+   */
+  interface PlanStore {
+    void put(SubstitutionPlan plan);
+  }
+
+  private static final int BUFFER_SIZE = 8192;
+
+  private final Messages messages;
+  private final Output output;
+  private final StringBuilder buffer = new StringBuilder(BUFFER_SIZE);
+  private Writer out;
+
+  // scanning
+  private final MessageKeyScanner scanner;
+  private final Pattern keyPattern;
+
+  // following a plan
+  private SubstitutionPlan plan;
+  private int planPosition;
+  private int planPiece;
+
+  // making a plan
+  private final PlanStore planStore;
+  private final int maxPlanSize;
+  private StringBuilder raw;
+  private List<Integer> rawEnds;
+  private List<String> values;
+  private List<Boolean> keys;
+  private final List<String> segmentValues = new ArrayList<String>();
+  private final List<Boolean> segmentKeys = new ArrayList<Boolean>();
+  private final StringBuilder segmentText = new StringBuilder();
+
+  private boolean finished;
+
+  /**
+   * Scan for keys between a literal prefix and suffix.
+   *
+   * @param plan
+   *          the plan made the last time this page was written, or null.
+   * @param planStore
+   *          where to keep a new plan, or null to not make one.
+   * @param maxPlanSize
+   *          the largest page, in characters, to make a plan for.
+   */
+  SubstitutingWriter(Messages messages, Output output, String prefix, String suffix,
+      SubstitutionPlan plan, PlanStore planStore, int maxPlanSize) {
+    this.messages = messages;
+    this.output = output;
+    this.scanner = new MessageKeyScanner(prefix, suffix, this);
+    this.keyPattern = null;
+    this.plan = plan;
+    this.planStore = planStore;
+    this.maxPlanSize = maxPlanSize;
+    if (planStore != null) {
+      raw = new StringBuilder();
+      rawEnds = new ArrayList<Integer>();
+      values = new ArrayList<String>();
+      keys = new ArrayList<Boolean>();
+    }
+  }
+
+  /**
+   * Hold the text and replace keys matching <code>keyPattern</code> on
+   * {@link #finish()}. The first group of the pattern is the key.
+   */
+  SubstitutingWriter(Messages messages, Output output, Pattern keyPattern) {
+    this.messages = messages;
+    this.output = output;
+    this.scanner = null;
+    this.keyPattern = keyPattern;
+    this.planStore = null;
+    this.maxPlanSize = 0;
+  }
+
+  @Override
+  public void write(int c) throws IOException {
+    feed((char) c);
+    flushIfFull();
+  }
+
+  @Override
+  public void write(char[] cbuf, int off, int len) throws IOException {
+    for (int i = off; i < off + len; i++) {
+      feed(cbuf[i]);
+    }
+    flushIfFull();
+  }
+
+  @Override
+  public void write(String str, int off, int len) throws IOException {
+    for (int i = off; i < off + len; i++) {
+      feed(str.charAt(i));
+    }
+    flushIfFull();
+  }
+
+  /**
+   * Passes on what has been written so far. Characters that may be part of a key are held
+   * back until the key is complete.
+   */
+  @Override
+  public void flush() throws IOException {
+    if (keyPattern == null && buffer.length() > 0) {
+      writeBuffer();
+      out.flush();
+    }
+  }
+
+  /**
+   * Writes out anything held back. The response itself is not closed.
+   */
+  @Override
+  public void close() throws IOException {
+    finish();
+  }
+
+  /**
+   * Writes out anything held back and keeps the plan if one was made. The response itself
+   * is not closed.
+   */
+  public void finish() throws IOException {
+    if (finished) {
+      return;
+    }
+    finished = true;
+    if (keyPattern != null) {
+      replaceAll();
+    } else {
+      if (plan != null && planPosition < plan.getRaw().length()) {
+        // the page ended early
+        leavePlan();
+      }
+      if (plan == null) {
+        scanner.finish();
+        endSegment();
+        if (raw != null && raw.length() > 0) {
+          planStore.put(new SubstitutionPlan(raw.toString(), rawEnds, values, keys));
+        }
+      }
+    }
+    if (buffer.length() > 0) {
+      writeBuffer();
+    }
+    if (out != null) {
+      out.flush();
+    }
+  }
+
+  // ---------- MessageKeyScanner.Listener -------------------------------
+
+  public void text(char c) {
+    buffer.append(c);
+    if (raw != null) {
+      segmentText.append(c);
+    }
+  }
+
+  public void key(String key) {
+    buffer.append(messages.getMessage(key));
+    if (raw != null) {
+      endText();
+      segmentValues.add(key);
+      segmentKeys.add(Boolean.TRUE);
+    }
+  }
+
+  // ---------- internals ------------------------------------------------
+
+  private void feed(char c) {
+    if (keyPattern != null) {
+      buffer.append(c);
+      return;
+    }
+    if (plan != null) {
+      String planRaw = plan.getRaw();
+      if (planPosition < planRaw.length() && planRaw.charAt(planPosition) == c) {
+        planPosition++;
+        while (planPiece < plan.size() && plan.getRawEnd(planPiece) <= planPosition) {
+          String value = plan.getValue(planPiece);
+          buffer.append(plan.isKey(planPiece) ? messages.getMessage(value) : value);
+          planPiece++;
+        }
+        return;
+      }
+      leavePlan();
+    }
+    scan(c);
+  }
+
+  private void scan(char c) {
+    if (raw != null) {
+      if (raw.length() >= maxPlanSize) {
+        // too big to keep, stop making a plan
+        raw = null;
+      } else {
+        raw.append(c);
+      }
+    }
+    scanner.write(c);
+    // end a segment only after a key, or once the text is long enough that holding it back
+    // while following the plan would matter. Plain text in between stays one piece.
+    if (raw != null && scanner.isClean()
+        && (!segmentKeys.isEmpty() || segmentText.length() >= BUFFER_SIZE)) {
+      endSegment();
+    }
+  }
+
+  /**
+   * The page differs from the plan. Keep the pieces of the plan already written and scan
+   * from the end of the last of them.
+   */
+  private void leavePlan() {
+    SubstitutionPlan left = plan;
+    plan = null;
+    int rawEnd = planPiece == 0 ? 0 : left.getRawEnd(planPiece - 1);
+    if (raw != null) {
+      raw.append(left.getRaw(), 0, rawEnd);
+      for (int i = 0; i < planPiece; i++) {
+        rawEnds.add(left.getRawEnd(i));
+        values.add(left.getValue(i));
+        keys.add(left.isKey(i));
+      }
+    }
+    String replay = left.getRaw().substring(rawEnd, planPosition);
+    for (int i = 0; i < replay.length(); i++) {
+      scan(replay.charAt(i));
+    }
+  }
+
+  private void endText() {
+    if (segmentText.length() > 0) {
+      segmentValues.add(segmentText.toString());
+      segmentKeys.add(Boolean.FALSE);
+      segmentText.setLength(0);
+    }
+  }
+
+  /**
+   * The scanner holds nothing back, so what it has produced since the last segment ends
+   * here. The text and key of a segment all end at the same place in the raw text.
+   */
+  private void endSegment() {
+    if (raw == null) {
+      return;
+    }
+    endText();
+    for (int i = 0; i < segmentValues.size(); i++) {
+      rawEnds.add(raw.length());
+      values.add(segmentValues.get(i));
+      keys.add(segmentKeys.get(i));
+    }
+    segmentValues.clear();
+    segmentKeys.clear();
+  }
+
+  private void replaceAll() {
+    String text = buffer.toString();
+    buffer.setLength(0);
+    Matcher m = keyPattern.matcher(text);
+    int last = 0;
+    while (m.find()) {
+      buffer.append(text, last, m.start()).append(messages.getMessage(m.group(1)));
+      last = m.end();
+    }
+    buffer.append(text, last, text.length());
+  }
+
+  private void flushIfFull() throws IOException {
+    if (keyPattern == null && buffer.length() >= BUFFER_SIZE) {
+      writeBuffer();
+    }
+  }
+
+  private void writeBuffer() throws IOException {
+    if (out == null) {
+      out = output.open();
+    }
+    out.write(buffer.toString());
+    buffer.setLength(0);
+  }
+}
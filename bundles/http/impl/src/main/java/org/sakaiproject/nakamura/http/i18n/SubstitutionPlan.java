@@ -0,0 +1,71 @@
+/**
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.http.i18n;
+
+import java.util.List;
+
+/**
+ * The result of scanning a page for message keys: its raw text, cut into pieces that are
+ * either literal text or a message key. Rendering the plan for a locale is a matter of
+ * writing the literals and looking up the keys. Each piece ends at a point in the raw text
+ * where the scanner held nothing back, so a scan can take over from the end of any piece.
+ */
+class SubstitutionPlan {
+
+  private final String raw;
+  private final int[] rawEnds;
+  private final String[] values;
+  private final boolean[] keys;
+
+  SubstitutionPlan(String raw, List<Integer> rawEnds, List<String> values, List<Boolean> keys) {
+    this.raw = raw;
+    this.rawEnds = new int[rawEnds.size()];
+    this.values = values.toArray(new String[values.size()]);
+    this.keys = new boolean[keys.size()];
+    for (int i = 0; i < this.rawEnds.length; i++) {
+      this.rawEnds[i] = rawEnds.get(i);
+      this.keys[i] = keys.get(i);
+    }
+  }
+
+  String getRaw() {
+    return raw;
+  }
+
+  int size() {
+    return rawEnds.length;
+  }
+
+  /**
+   * @return the position in the raw text just after piece <code>i</code>.
+   */
+  int getRawEnd(int i) {
+    return rawEnds[i];
+  }
+
+  /**
+   * @return the literal text or message key of piece <code>i</code>.
+   */
+  String getValue(int i) {
+    return values[i];
+  }
+
+  boolean isKey(int i) {
+    return keys[i];
+  }
+}
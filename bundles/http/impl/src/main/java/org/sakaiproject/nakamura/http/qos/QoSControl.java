@@ -19,24 +19,85 @@ package org.sakaiproject.nakamura.http.qos;
 
 import org.mortbay.util.ajax.Continuation;
 
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Queue;
 import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
 
 import javax.servlet.ServletRequest;
 
-public class QoSControl {
+/**
+ * Controls the number of concurrent requests in one category.
+ * <p>
+ * In adaptive mode the limit follows the latency of the category: after each window of
+ * requests the average latency is compared with the lowest seen, and the limit is cut
+ * when latency has more than doubled, or raised by one when the limit was reached
+ * without latency suffering. The limit stays between 1 and the maximum configured.
+ */
+public class QoSControl implements QoSControlMBean {
+
+  /**
+   * Upper bounds of the latency histogram buckets, ms.
+   */
+  private static final long[] LATENCY_BUCKETS = { 10, 25, 50, 100, 250, 500, 1000, 2500,
+      5000, 10000 };
+
+  private static final double LATENCY_TOLERANCE = 2.0;
 
-  private Semaphore semaphore;
+  private static final double DECREASE_FACTOR = 0.8;
+
+  private static final int MIN_WINDOW = 10;
+
+  private AdjustableSemaphore semaphore;
   private int priority;
   private Queue<Continuation>[] priorityQueue;
   private long timeout;
 
+  private final boolean adaptive;
+  private final int initialLimit;
+  private final int maxLimit;
+  private final long queueBudget;
+  private volatile int limit;
+
+  private final AtomicInteger inFlight = new AtomicInteger();
+  private final AtomicInteger queued = new AtomicInteger();
+  private final AtomicLong rejected = new AtomicLong();
+  private final AtomicLong completed = new AtomicLong();
+  private final AtomicLong totalLatency = new AtomicLong();
+  private final AtomicLongArray histogram = new AtomicLongArray(LATENCY_BUCKETS.length + 1);
+
+  // the current window, guarded by this.
+  private int windowSamples;
+  private long windowLatency;
+  private int windowMaxInFlight;
+  private long baselineLatency = -1;
+  private long lastAverageLatency;
+
   public QoSControl(Queue<Continuation>[] priorityQueue, int nRequests, int priority,
       long timeout) {
-    semaphore = new Semaphore(nRequests, true);
+    this(priorityQueue, nRequests, priority, timeout, false, nRequests, 0);
+  }
+
+  /**
+   * @param maxRequests
+   *          the highest limit adaptive mode may set.
+   * @param queueBudget
+   *          the longest time (ms) a request should wait in the queue, 0 for no budget.
+   */
+  public QoSControl(Queue<Continuation>[] priorityQueue, int nRequests, int priority,
+      long timeout, boolean adaptive, int maxRequests, long queueBudget) {
+    semaphore = new AdjustableSemaphore(nRequests);
     this.priority = priority;
     this.priorityQueue = priorityQueue.clone();
     this.timeout = timeout;
+    this.adaptive = adaptive;
+    this.initialLimit = nRequests;
+    this.maxLimit = Math.max(nRequests, maxRequests);
+    this.queueBudget = queueBudget;
+    this.limit = nRequests;
   }
 
   public Semaphore getSemaphore() {
@@ -51,8 +112,175 @@ public class QoSControl {
     return priorityQueue;
   }
 
+  /**
+   * @return the time a request may be suspended, no longer than the queue budget.
+   */
   public long getTimeout() {
+    if (queueBudget > 0 && (timeout <= 0 || queueBudget < timeout)) {
+      return queueBudget;
+    }
     return timeout;
   }
 
+  /**
+   * @return true if a request queued now is not expected to get through within the queue
+   *         budget.
+   */
+  public boolean isOverloaded() {
+    return queueBudget > 0 && getExpectedWait() > queueBudget;
+  }
+
+  /**
+   * @return the expected wait (ms) for a request queued now.
+   */
+  public long getExpectedWait() {
+    return (queued.get() + 1) * lastAverageLatency / Math.max(1, limit);
+  }
+
+  /**
+   * @return the number of seconds a rejected client should wait before retrying.
+   */
+  public int getRetryAfter() {
+    return (int) Math.max(1, (getExpectedWait() + 999) / 1000);
+  }
+
+  void started() {
+    int n = inFlight.incrementAndGet();
+    synchronized (this) {
+      if (n > windowMaxInFlight) {
+        windowMaxInFlight = n;
+      }
+    }
+  }
+
+  void finished(long latency) {
+    inFlight.decrementAndGet();
+    completed.incrementAndGet();
+    totalLatency.addAndGet(latency);
+    int bucket = 0;
+    while (bucket < LATENCY_BUCKETS.length && latency > LATENCY_BUCKETS[bucket]) {
+      bucket++;
+    }
+    histogram.incrementAndGet(bucket);
+    endSample(latency);
+  }
+
+  void queued() {
+    queued.incrementAndGet();
+  }
+
+  void dequeued() {
+    queued.decrementAndGet();
+  }
+
+  void rejected() {
+    rejected.incrementAndGet();
+  }
+
+  private synchronized void endSample(long latency) {
+    windowSamples++;
+    windowLatency += latency;
+    if (windowSamples < Math.max(MIN_WINDOW, limit)) {
+      return;
+    }
+    long average = windowLatency / windowSamples;
+    int maxInFlight = windowMaxInFlight;
+    windowSamples = 0;
+    windowLatency = 0;
+    windowMaxInFlight = inFlight.get();
+    lastAverageLatency = average;
+    if (baselineLatency < 0 || average < baselineLatency) {
+      baselineLatency = average;
+    } else {
+      // let the baseline drift up so a lasting change in the work is accepted.
+      baselineLatency += (average - baselineLatency) / 20;
+    }
+    if (!adaptive) {
+      return;
+    }
+    if (average > Math.max(1, baselineLatency) * LATENCY_TOLERANCE) {
+      setLimit(Math.max(1, (int) (limit * DECREASE_FACTOR)));
+    } else if (maxInFlight >= limit && limit < maxLimit) {
+      setLimit(limit + 1);
+    }
+  }
+
+  private void setLimit(int newLimit) {
+    int delta = newLimit - limit;
+    limit = newLimit;
+    if (delta > 0) {
+      semaphore.release(delta);
+    } else if (delta < 0) {
+      semaphore.reducePermits(-delta);
+    }
+  }
+
+  // ---------- QoSControlMBean -------------------------------------------
+
+  public int getLimit() {
+    return limit;
+  }
+
+  public int getInFlight() {
+    return inFlight.get();
+  }
+
+  public int getQueued() {
+    return queued.get();
+  }
+
+  public long getRejected() {
+    return rejected.get();
+  }
+
+  public long getCompleted() {
+    return completed.get();
+  }
+
+  public long getAverageLatency() {
+    long n = completed.get();
+    return (n == 0) ? 0 : totalLatency.get() / n;
+  }
+
+  public String[] getLatencyHistogram() {
+    List<String> lines = new ArrayList<String>();
+    for (int i = 0; i < histogram.length(); i++) {
+      String bound = (i < LATENCY_BUCKETS.length) ? "<=" + LATENCY_BUCKETS[i] + "ms" : ">"
+          + LATENCY_BUCKETS[LATENCY_BUCKETS.length - 1] + "ms";
+      lines.add(bound + " " + histogram.get(i));
+    }
+    return lines.toArray(new String[lines.size()]);
+  }
+
+  public void reset() {
+    rejected.set(0);
+    completed.set(0);
+    totalLatency.set(0);
+    for (int i = 0; i < histogram.length(); i++) {
+      histogram.set(i, 0);
+    }
+    synchronized (this) {
+      baselineLatency = -1;
+      if (adaptive) {
+        setLimit(initialLimit);
+      }
+    }
+  }
+
+  /**
+   * A semaphore whose permits can be taken away.
+   */
+  private static class AdjustableSemaphore extends Semaphore {
+
+    private static final long serialVersionUID = 2379478564632787412L;
+
+    AdjustableSemaphore(int permits) {
+      super(permits, true);
+    }
+
+    @Override
+    protected void reducePermits(int reduction) {
+      super.reducePermits(reduction);
+    }
+  }
 }
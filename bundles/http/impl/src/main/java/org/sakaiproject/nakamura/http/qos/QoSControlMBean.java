@@ -0,0 +1,59 @@
+/**
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.http.qos;
+
+/**
+ * JMX view of a QoS category, registered as
+ * org.sakaiproject.nakamura.http:type=QoS,category=&lt;category&gt;.
+ */
+public interface QoSControlMBean {
+
+  /**
+   * @return the number of requests allowed to run at once.
+   */
+  int getLimit();
+
+  /**
+   * @return the number of requests running.
+   */
+  int getInFlight();
+
+  /**
+   * @return the number of requests suspended waiting to run.
+   */
+  int getQueued();
+
+  /**
+   * @return the number of requests turned away with a 503.
+   */
+  long getRejected();
+
+  long getCompleted();
+
+  /**
+   * @return the average time requests took to run, ms.
+   */
+  long getAverageLatency();
+
+  /**
+   * @return the number of requests that took up to each bucket's time to run.
+   */
+  String[] getLatencyHistogram();
+
+  void reset();
+}
@@ -33,12 +33,18 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
 import java.util.Dictionary;
+import java.util.List;
 import java.util.Map;
+import java.util.Map.Entry;
 import java.util.Queue;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentLinkedQueue;
 
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
 import javax.servlet.Filter;
 import javax.servlet.FilterChain;
 import javax.servlet.FilterConfig;
@@ -51,6 +57,11 @@ import javax.servlet.http.HttpServletResponse;
 /**
  * Provides a configurable QoS filter that manages request in and out of the server, based on number of concurrent requests. Pending requests are prioritiezed into queue, taken out of the queue based on priority and time of entry. If the request does not match any Quality of Service Configuration, the default configuration will be used.
  * Configuration is via the
+ * <p>
+ * In adaptive mode the limit of each category follows its latency, see {@link QoSControl}.
+ * With a queue budget, requests that are not expected to get through the queue within
+ * the budget are rejected with a 503 and a Retry-After header rather than queued.
+ * Each category is visible over JMX as org.sakaiproject.nakamura.http:type=QoS.
  */
 @Component(metatype = true)
 @Properties(value = {
@@ -104,6 +115,24 @@ public class QoSFilter implements Filter {
    */
   @Property(value={})
   private static final String QOS_CATEGORIES_CONFIG = "qos.categories";
+  /**
+   * If true the limit of each category is adjusted to its latency, starting at the
+   * configured limit.
+   */
+  @Property(boolValue=false)
+  private static final String QOS_ADAPTIVE_CONFIG = "qos.adaptive";
+  /**
+   * In adaptive mode, how many times its configured limit a category may grow to.
+   */
+  @Property(intValue=4)
+  private static final String QOS_ADAPTIVE_MAX_FACTOR_CONFIG = "qos.adaptive.maxFactor";
+  /**
+   * The longest time (ms) a request should wait in the queue, requests expected to wait
+   * longer are rejected. 0 for no budget.
+   */
+  @Property(longValue=0)
+  private static final String QOS_QUEUE_BUDGET_CONFIG = "qos.queue.budget";
+  private static final String DEFAULT_CATEGORY = "default";
   private static final Logger LOGGER = LoggerFactory.getLogger(QoSFilter.class);
   private String suspendedAttributeName=this.getClass().getName()+this.hashCode();
 
@@ -111,11 +140,15 @@ public class QoSFilter implements Filter {
   protected ExtHttpService extHttpService;
 
   private long waitMs;
+  private boolean adaptive;
+  private int maxFactor;
+  private long queueBudget;
 
 
   private Queue<Continuation>[] priorityQueue;
   private QoSControl defaultQoSControl;
   private Map<String, QoSControl> qoSControMap = new ConcurrentHashMap<String, QoSControl>();
+  private List<ObjectName> objectNames = new ArrayList<ObjectName>();
 
   public void init(FilterConfig filterConfig) throws ServletException {
   }
@@ -134,11 +167,15 @@ public class QoSFilter implements Filter {
         if (accepted) {
           request.setAttribute(suspendedAttributeName, Boolean.FALSE);
         } else {
+          if (qoSToken.isOverloaded()) {
+            reject(qoSToken, response);
+            return;
+          }
           LOGGER.debug("Suspending request");
           request.setAttribute(suspendedAttributeName, Boolean.TRUE);
           Continuation continuation = ContinuationSupport.getContinuation((HttpServletRequest)request, qoSToken.getMutex());
-          continuation.suspend(qoSToken.getSuspendTime());
           qoSToken.queue(continuation);
+          continuation.suspend(qoSToken.getSuspendTime());
           return;
         }
       } else {
@@ -163,9 +200,7 @@ public class QoSFilter implements Filter {
       if (accepted) {
         chain.doFilter(request, response);
       } else {
-        LOGGER.warn("QoS filter rejecting request");
-        ((HttpServletResponse) response)
-            .sendError(HttpServletResponse.SC_SERVICE_UNAVAILABLE);
+        reject(qoSToken, response);
       }
     } catch (InterruptedException e) {
       LOGGER.warn("QoS", e);
@@ -178,6 +213,13 @@ public class QoSFilter implements Filter {
     }
   }
 
+  private void reject(QoSToken qoSToken, ServletResponse response) throws IOException {
+    LOGGER.warn("QoS filter rejecting request");
+    HttpServletResponse hresponse = (HttpServletResponse) response;
+    hresponse.setIntHeader("Retry-After", qoSToken.reject());
+    hresponse.sendError(HttpServletResponse.SC_SERVICE_UNAVAILABLE);
+  }
+
   private QoSToken getQoSControl(ServletRequest request) {
     QoSToken control = (QoSToken) request.getAttribute(QoSToken.CONTROL_ATTR);
     if  ( control != null ) {
@@ -188,7 +230,7 @@ public class QoSFilter implements Filter {
 
     HttpServletRequest hrequest = (HttpServletRequest) request;
     String requestPath = hrequest.getRequestURI();
-    String[] pathElements = StringUtils.split(requestPath, "/", 1);
+    String[] pathElements = StringUtils.split(requestPath, "/", 2);
     if ( pathElements != null && pathElements.length > 0 ) {
       String method = StringUtils.lowerCase(hrequest.getMethod());
 
@@ -223,6 +265,10 @@ public class QoSFilter implements Filter {
       priorityQueue[i] = new ConcurrentLinkedQueue<Continuation>();
     }
 
+    adaptive = PropertiesUtil.toBoolean(properties.get(QOS_ADAPTIVE_CONFIG), false);
+    maxFactor = Math.max(1, PropertiesUtil.toInteger(properties.get(QOS_ADAPTIVE_MAX_FACTOR_CONFIG), 4));
+    queueBudget = PropertiesUtil.toLong(properties.get(QOS_QUEUE_BUDGET_CONFIG), 0);
+
     // path, max requests, priority, timeout
     qoSControMap.clear();
     String[] qosLocations = PropertiesUtil.toStringArray(properties.get(QOS_CATEGORIES_CONFIG));
@@ -231,11 +277,11 @@ public class QoSFilter implements Filter {
         String[] settings = StringUtils.split(qosLocation,";");
         if ( settings != null ) {
           if ( settings.length > 3 ) {
-            qoSControMap.put(settings[0], new QoSControl(priorityQueue, Integer.parseInt(settings[1]), Integer.parseInt(settings[2]), Long.parseLong(settings[3])));
+            qoSControMap.put(settings[0], createQoSControl(Integer.parseInt(settings[1]), Integer.parseInt(settings[2]), Long.parseLong(settings[3])));
           } else if ( settings.length > 2 ) {
-            qoSControMap.put(settings[0], new QoSControl(priorityQueue, Integer.parseInt(settings[1]), Integer.parseInt(settings[2]), defaultTimeout));
+            qoSControMap.put(settings[0], createQoSControl(Integer.parseInt(settings[1]), Integer.parseInt(settings[2]), defaultTimeout));
           } else if ( settings.length > 1 ) {
-            qoSControMap.put(settings[0], new QoSControl(priorityQueue, Integer.parseInt(settings[1]), maxPriorityNumber, defaultTimeout));
+            qoSControMap.put(settings[0], createQoSControl(Integer.parseInt(settings[1]), maxPriorityNumber, defaultTimeout));
           }
         }
       }
@@ -247,7 +293,12 @@ public class QoSFilter implements Filter {
     long qosDefaultTimeout = PropertiesUtil.toLong(properties.get(QOS_DEFAULT_REQUEST_TIMEOUT_CONF),defaultTimeout);
     waitMs = PropertiesUtil.toLong(properties.get(QOS_SEMAPHOREWAIT_CONF),50);
 
-    defaultQoSControl = new QoSControl(priorityQueue, qosDefaultLimit, qosDefaultPriority, qosDefaultTimeout);
+    defaultQoSControl = createQoSControl(qosDefaultLimit, qosDefaultPriority, qosDefaultTimeout);
+
+    registerMBean(DEFAULT_CATEGORY, defaultQoSControl);
+    for (Entry<String, QoSControl> e : qoSControMap.entrySet()) {
+      registerMBean(e.getKey(), e.getValue());
+    }
 
     int filterPriority = PropertiesUtil.toInteger(properties.get(FILTER_PRIORITY_CONF),10);
 
@@ -255,13 +306,40 @@ public class QoSFilter implements Filter {
 
   }
 
+  private QoSControl createQoSControl(int limit, int priority, long timeout) {
+    return new QoSControl(priorityQueue, limit, priority, timeout, adaptive, limit * maxFactor, queueBudget);
+  }
+
+  private void registerMBean(String category, QoSControl qoSControl) {
+    try {
+      ObjectName objectName = new ObjectName("org.sakaiproject.nakamura.http:type=QoS,category="
+          + ObjectName.quote(category));
+      MBeanServer mbeanServer = ManagementFactory.getPlatformMBeanServer();
+      if (mbeanServer.isRegistered(objectName)) {
+        mbeanServer.unregisterMBean(objectName);
+      }
+      mbeanServer.registerMBean(qoSControl, objectName);
+      objectNames.add(objectName);
+    } catch (Exception e) {
+      LOGGER.warn("Unable to register QoS statistics for {} {} ", category, e.getMessage());
+    }
+  }
+
   @Deactivate
   public void deactivate(ComponentContext componentContext) {
     extHttpService.unregisterFilter(this);
+    for (ObjectName objectName : objectNames) {
+      try {
+        ManagementFactory.getPlatformMBeanServer().unregisterMBean(objectName);
+      } catch (Exception e) {
+        LOGGER.debug("Unable to unregister {} {} ", objectName, e.getMessage());
+      }
+    }
+    objectNames.clear();
     // resume any continuations held by the filter
     for (int p = priorityQueue.length; p-- > 0;) {
       Continuation continutaion = priorityQueue[p].poll();
-      if (continutaion != null && continutaion.isResumed()) {
+      if (continutaion != null && continutaion.isPending()) {
         continutaion.resume();
         break;
       }
@@ -64,4 +64,16 @@ public interface QoSToken {
    */
   void queue(Continuation continuation);
 
+  /**
+   * @return true if the request should be rejected now rather than queued, as it is not
+   *         expected to get through the queue in time.
+   */
+  boolean isOverloaded();
+
+  /**
+   * Record that the request has been rejected.
+   * @return the number of seconds the client should wait before trying again.
+   */
+  int reject();
+
 }
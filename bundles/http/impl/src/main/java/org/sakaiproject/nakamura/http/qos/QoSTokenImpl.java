@@ -28,6 +28,8 @@ public class QoSTokenImpl implements QoSToken {
 
   private QoSControl qoSControl;
   private int priority;
+  private boolean queued;
+  private long started;
 
   public QoSTokenImpl(QoSControl qoSControl, ServletRequest request) {
     this.qoSControl = qoSControl;
@@ -40,10 +42,11 @@ public class QoSTokenImpl implements QoSToken {
   }
 
   public void release() {
+    qoSControl.finished(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - started));
     Queue<Continuation>[] priorityQueue = qoSControl.getPriorityQueue();
     for (int p = priorityQueue.length; p-- > 0;) {
       Continuation continutaion = priorityQueue[p].poll();
-      if (continutaion != null && continutaion.isResumed()) {
+      if (continutaion != null && continutaion.isPending()) {
         continutaion.resume();// this assumes only 1 will be resumed, that may not be right and we might want to think how the proprity queues are managed.
         break;
       }
@@ -56,15 +59,45 @@ public class QoSTokenImpl implements QoSToken {
   }
 
   public void queue(Continuation continuation) {
+    queued = true;
+    qoSControl.queued();
     qoSControl.getPriorityQueue()[priority].add(continuation);
   }
 
   public boolean acquire(long waitMs) throws InterruptedException {
-    return qoSControl.getSemaphore().tryAcquire(waitMs, TimeUnit.MILLISECONDS);
+    leaveQueue();
+    if (qoSControl.getSemaphore().tryAcquire(waitMs, TimeUnit.MILLISECONDS)) {
+      start();
+      return true;
+    }
+    return false;
   }
 
   public void acquire() throws InterruptedException {
+    leaveQueue();
     qoSControl.getSemaphore().acquire();
+    start();
+  }
+
+  public boolean isOverloaded() {
+    return qoSControl.isOverloaded();
+  }
+
+  public int reject() {
+    qoSControl.rejected();
+    return qoSControl.getRetryAfter();
+  }
+
+  private void leaveQueue() {
+    if (queued) {
+      queued = false;
+      qoSControl.dequeued();
+    }
+  }
+
+  private void start() {
+    started = System.nanoTime();
+    qoSControl.started();
   }
 
 }
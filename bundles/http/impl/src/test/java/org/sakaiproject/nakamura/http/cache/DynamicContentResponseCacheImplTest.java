@@ -27,6 +27,7 @@ import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
 import junit.framework.Assert;
+import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
 import org.junit.runner.RunWith;
@@ -38,9 +39,14 @@ import org.sakaiproject.nakamura.api.memory.Cache;
 import org.sakaiproject.nakamura.api.memory.CacheManagerService;
 import org.sakaiproject.nakamura.api.memory.CacheScope;
 
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.StringWriter;
 import java.util.Dictionary;
 import java.util.Hashtable;
 import javax.servlet.ServletException;
+import javax.servlet.ServletOutputStream;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 
@@ -74,6 +80,11 @@ public class DynamicContentResponseCacheImplTest {
     dynamicContentResponseCache.activate(componentContext);
   }
 
+  @After
+  public void tearDown() {
+    dynamicContentResponseCache.deactivate(componentContext);
+  }
+
   @Test
   public void recordResponseAndInvalidate() {
     String cat = "TestCat";
@@ -123,4 +134,49 @@ public class DynamicContentResponseCacheImplTest {
     verify(cache).clear();
   }
 
+  @Test
+  public void bodyNotCachedByDefault() {
+    when(request.getMethod()).thenReturn("GET");
+    Assert.assertSame(response, dynamicContentResponseCache.captureResponse("TestCat", request, response));
+  }
+
+  @Test
+  public void bodyCacheHitAndInvalidate() throws Exception {
+    Dictionary<String, Object> properties = new Hashtable<String, Object>();
+    properties.put(DynamicContentResponseCacheImpl.BODY_CACHE_CATEGORIES, new String[] {"TestCat"});
+    when(componentContext.getProperties()).thenReturn(properties);
+    dynamicContentResponseCache.activate(componentContext);
+
+    String cat = "TestCat";
+    String user = "joe";
+    when(request.getMethod()).thenReturn("GET");
+    when(request.getPathInfo()).thenReturn("/system/me");
+    when(request.getRemoteUser()).thenReturn(user);
+    when(response.getWriter()).thenReturn(new PrintWriter(new StringWriter()));
+    Assert.assertFalse(dynamicContentResponseCache.sendCachedResponse(cat, request, response));
+
+    HttpServletResponse capture = dynamicContentResponseCache.captureResponse(cat, request, response);
+    capture.setContentType("application/json");
+    capture.getWriter().write("{\"user\":\"joe\"}");
+    dynamicContentResponseCache.recordResponse(cat, request, capture);
+    when(cache.containsKey(dynamicContentResponseCache.buildCacheKey(cat, user))).thenReturn(true);
+
+    HttpServletResponse replayed = mock(HttpServletResponse.class);
+    final ByteArrayOutputStream replayedBody = new ByteArrayOutputStream();
+    when(replayed.getOutputStream()).thenReturn(new ServletOutputStream() {
+      @Override
+      public void write(int b) throws IOException {
+        replayedBody.write(b);
+      }
+    });
+    Assert.assertTrue(dynamicContentResponseCache.sendCachedResponse(cat, request, replayed));
+    verify(replayed).setContentType("application/json");
+    Assert.assertEquals("{\"user\":\"joe\"}", replayedBody.toString("ISO-8859-1"));
+    Assert.assertEquals(1, dynamicContentResponseCache.getBodyCacheEntries());
+
+    dynamicContentResponseCache.invalidate(cat, user);
+    Assert.assertFalse(dynamicContentResponseCache.sendCachedResponse(cat, request, replayed));
+    Assert.assertEquals(0, dynamicContentResponseCache.getBodyCacheEntries());
+  }
+
 }
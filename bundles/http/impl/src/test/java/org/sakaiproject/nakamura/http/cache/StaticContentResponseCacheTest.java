@@ -26,6 +26,8 @@ import static org.mockito.Mockito.when;
 import org.apache.felix.http.api.ExtHttpService;
 import org.apache.sling.api.SlingHttpServletRequest;
 import org.apache.sling.api.SlingHttpServletResponse;
+import junit.framework.Assert;
+
 import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
@@ -40,6 +42,7 @@ import org.sakaiproject.nakamura.api.memory.Cache;
 import org.sakaiproject.nakamura.api.memory.CacheManagerService;
 import org.sakaiproject.nakamura.api.memory.CacheScope;
 
+import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.PrintWriter;
@@ -47,6 +50,7 @@ import java.io.StringWriter;
 import java.util.Dictionary;
 import java.util.Hashtable;
 import java.util.Locale;
+import java.util.zip.GZIPInputStream;
 
 import javax.servlet.FilterChain;
 import javax.servlet.FilterConfig;
@@ -192,6 +196,39 @@ public class StaticContentResponseCacheTest {
     
     
     
+  }
+
+  @Test
+  public void checkReplayGzipped() throws Exception {
+    StringBuilder content = new StringBuilder();
+    for (int i = 0; i < 200; i++) {
+      content.append("ABCDEF\u00e9");
+    }
+    OperationResponseCapture sresponse = new OperationResponseCapture();
+    sresponse.setContentType("text/plain");
+    sresponse.setContentLength(10);
+    sresponse.getWriter(new PrintWriter(new StringWriter()), "UTF-8").write(content.toString());
+    CachedResponse cachedResponse = new CachedResponse(sresponse, 30);
+
+    when(request.getHeader("Accept-Encoding")).thenReturn("gzip, deflate");
+    final ByteArrayOutputStream baos = new ByteArrayOutputStream();
+    when(response.getOutputStream()).thenReturn(new ServletOutputStream() {
+      @Override
+      public void write(int b) throws IOException {
+        baos.write(b);
+      }
+    });
+    cachedResponse.replay(request, response);
+
+    verify(response).setHeader("Content-Encoding", "gzip");
+    verify(response).setContentLength(baos.size());
+    GZIPInputStream in = new GZIPInputStream(new ByteArrayInputStream(baos.toByteArray()));
+    ByteArrayOutputStream unzipped = new ByteArrayOutputStream();
+    byte[] buffer = new byte[1024];
+    for (int n = in.read(buffer); n >= 0; n = in.read(buffer)) {
+      unzipped.write(buffer, 0, n);
+    }
+    Assert.assertEquals(content.toString(), unzipped.toString("UTF-8"));
   }
 
   @Test
@@ -0,0 +1,210 @@
+/**
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.http.i18n;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertSame;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.util.Random;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ *
+ */
+public class SubstitutingWriterTest {
+
+  private static final Pattern KEY_PATTERN = Pattern.compile(I18nFilter.DEFAULT_MESSAGE_KEY_PATTERN);
+
+  private static final SubstitutingWriter.Messages MESSAGES = new SubstitutingWriter.Messages() {
+    public String getMessage(String key) {
+      return "<" + key.toLowerCase() + ">";
+    }
+  };
+
+  private SubstitutionPlan plan;
+
+  private static class StringOutput implements SubstitutingWriter.Output {
+    StringWriter out = new StringWriter();
+
+    public Writer open() throws IOException {
+      return out;
+    }
+  }
+
+  private SubstitutingWriter.PlanStore planStore = new SubstitutingWriter.PlanStore() {
+    public void put(SubstitutionPlan plan) {
+      SubstitutingWriterTest.this.plan = plan;
+    }
+  };
+
+  private String expected(String text) {
+    StringBuffer sb = new StringBuffer();
+    Matcher m = KEY_PATTERN.matcher(text);
+    while (m.find()) {
+      m.appendReplacement(sb, Matcher.quoteReplacement(MESSAGES.getMessage(m.group(1))));
+    }
+    m.appendTail(sb);
+    return sb.toString();
+  }
+
+  private String scan(String text, SubstitutionPlan usePlan) throws IOException {
+    StringOutput output = new StringOutput();
+    SubstitutingWriter writer = new SubstitutingWriter(MESSAGES, output, "__MSG__", "__",
+        usePlan, planStore, 1024 * 1024);
+    // write in uneven chunks so keys are split across writes
+    int i = 0;
+    int chunk = 1;
+    while (i < text.length()) {
+      int end = Math.min(text.length(), i + chunk);
+      writer.write(text, i, end - i);
+      i = end;
+      chunk = chunk % 7 + 1;
+    }
+    writer.finish();
+    return output.out.toString();
+  }
+
+  @Test
+  public void testReplacesKeys() throws Exception {
+    String text = "<p>__MSG__HELLO__ and __MSG__WORLD__, __MSG__HELLO__</p>";
+    assertEquals("<p><hello> and <world>, <hello></p>", scan(text, null));
+  }
+
+  @Test
+  public void testMatchesPattern() throws Exception {
+    String[] texts = { "__MSG__", "__MSG____", "__MSG_____", "___MSG__A__", "__MSG__A___",
+        "__MSG____X__", "__MSG__A\n__MSG__B__", "__MS__MSG__C__", "_", "__", "abc",
+        "__MSG__ab __MSG__X__", "__MSG__unterminated", "x__MSG__A____MSG__B__y" };
+    for (String text : texts) {
+      assertEquals(text, expected(text), scan(text, null));
+    }
+  }
+
+  @Test
+  public void testMatchesPatternOnRandomText() throws Exception {
+    Random random = new Random(42);
+    char[] alphabet = { '_', '_', '_', 'M', 'S', 'G', 'A', 'b', ' ', '\n' };
+    for (int n = 0; n < 2000; n++) {
+      StringBuilder sb = new StringBuilder();
+      int length = random.nextInt(60);
+      for (int i = 0; i < length; i++) {
+        if (random.nextInt(10) == 0) {
+          sb.append("__MSG__");
+        } else {
+          sb.append(alphabet[random.nextInt(alphabet.length)]);
+        }
+      }
+      String text = sb.toString();
+      assertEquals(text, expected(text), scan(text, null));
+    }
+  }
+
+  @Test
+  public void testFollowsPlan() throws Exception {
+    String text = "<p>__MSG__HELLO__ and __MSG__WORLD__</p>";
+    assertEquals(expected(text), scan(text, null));
+    SubstitutionPlan made = plan;
+    assertNotNull(made);
+
+    // the same page only follows the plan and keeps it
+    plan = null;
+    assertEquals(expected(text), scan(text, made));
+    assertEquals(null, plan);
+
+    // a changed page takes over from the plan and makes a new one
+    String changed = "<p>__MSG__HELLO__ and __MSG__WORLD_WIDE__</p>";
+    assertEquals(expected(changed), scan(changed, made));
+    assertNotNull(plan);
+    SubstitutionPlan remade = plan;
+    plan = null;
+    assertEquals(expected(changed), scan(changed, remade));
+    assertEquals(null, plan);
+
+    // shorter and longer pages
+    assertEquals(expected("<p>__MSG__HELLO__"), scan("<p>__MSG__HELLO__", made));
+    assertEquals(expected(text + "__MSG__MORE__"), scan(text + "__MSG__MORE__", made));
+  }
+
+  @Test
+  public void testPlansOnRandomText() throws Exception {
+    Random random = new Random(7);
+    char[] alphabet = { '_', '_', 'M', 'S', 'G', 'A', ' ' };
+    for (int n = 0; n < 500; n++) {
+      StringBuilder sb = new StringBuilder();
+      int length = random.nextInt(40);
+      for (int i = 0; i < length; i++) {
+        sb.append(alphabet[random.nextInt(alphabet.length)]);
+      }
+      String first = sb.toString();
+      plan = null;
+      scan(first, null);
+      SubstitutionPlan made = plan;
+      // change one character and check the plan still gives the right answer
+      if (length > 0) {
+        sb.setCharAt(random.nextInt(length), alphabet[random.nextInt(alphabet.length)]);
+      }
+      String second = sb.toString();
+      assertEquals(first + " -> " + second, expected(second), scan(second, made));
+    }
+  }
+
+  @Test
+  public void testPlanKeepsTextInOnePiece() throws Exception {
+    StringBuilder sb = new StringBuilder();
+    for (int i = 0; i < 1000; i++) {
+      sb.append("<p class=\"text\">Some plain text</p>__MSG__KEY_").append(i).append("__");
+    }
+    sb.append("<p>the end</p>");
+    String text = sb.toString();
+    assertEquals(expected(text), scan(text, null));
+    // one piece for the text before each key, one for the key and one for the end.
+    assertEquals(2001, plan.size());
+    SubstitutionPlan made = plan;
+    assertEquals(expected(text), scan(text, made));
+  }
+
+  @Test
+  public void testPattern() throws Exception {
+    StringOutput output = new StringOutput();
+    SubstitutingWriter writer = new SubstitutingWriter(MESSAGES, output,
+        Pattern.compile("\\{\\{(\\w+)\\}\\}"));
+    writer.write("a {{KEY}} b");
+    writer.finish();
+    assertEquals("a <key> b", output.out.toString());
+  }
+
+  @Test
+  public void testNothingWritten() throws Exception {
+    SubstitutingWriter writer = new SubstitutingWriter(MESSAGES,
+        new SubstitutingWriter.Output() {
+          public Writer open() throws IOException {
+            throw new AssertionError("Opened output without anything to write");
+          }
+        }, "__MSG__", "__", null, planStore, 1024);
+    writer.flush();
+    writer.finish();
+    assertSame(null, plan);
+  }
+}
@@ -0,0 +1,93 @@
+/**
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.http.qos;
+
+import junit.framework.Assert;
+
+import org.junit.Test;
+import org.mortbay.util.ajax.Continuation;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+public class QoSControlTest {
+
+  @SuppressWarnings("unchecked")
+  private Queue<Continuation>[] createQueues() {
+    Queue<Continuation>[] queues = new Queue[3];
+    for (int i = 0; i < queues.length; i++) {
+      queues[i] = new ConcurrentLinkedQueue<Continuation>();
+    }
+    return queues;
+  }
+
+  private void runWindow(QoSControl control, int concurrent, long latency) {
+    for (int i = 0; i < concurrent; i++) {
+      control.started();
+    }
+    for (int i = 0; i < concurrent; i++) {
+      control.finished(latency);
+    }
+  }
+
+  @Test
+  public void testAdaptiveLimit() {
+    QoSControl control = new QoSControl(createQueues(), 10, 1, 60000, true, 20, 0);
+    Assert.assertEquals(10, control.getLimit());
+
+    // the limit is reached and latency holds, so it grows.
+    runWindow(control, 10, 20);
+    Assert.assertEquals(11, control.getLimit());
+    runWindow(control, 11, 20);
+    Assert.assertEquals(12, control.getLimit());
+    Assert.assertEquals(12, control.getSemaphore().availablePermits());
+
+    // latency more than doubles, so it is cut.
+    runWindow(control, 12, 100);
+    Assert.assertEquals(9, control.getLimit());
+    Assert.assertEquals(9, control.getSemaphore().availablePermits());
+
+    Assert.assertEquals(33, control.getCompleted());
+    Assert.assertEquals(0, control.getInFlight());
+  }
+
+  @Test
+  public void testFixedLimit() {
+    QoSControl control = new QoSControl(createQueues(), 10, 1, 60000);
+    runWindow(control, 10, 20);
+    runWindow(control, 10, 200);
+    Assert.assertEquals(10, control.getLimit());
+    Assert.assertEquals(10, control.getSemaphore().availablePermits());
+  }
+
+  @Test
+  public void testQueueBudget() {
+    QoSControl control = new QoSControl(createQueues(), 10, 1, 60000, false, 10, 1000);
+    Assert.assertEquals(1000, control.getTimeout());
+    Assert.assertFalse(control.isOverloaded());
+
+    runWindow(control, 10, 2000);
+    // one request queued behind 10 running ones taking 2s each is expected to wait 0.2s.
+    Assert.assertFalse(control.isOverloaded());
+    for (int i = 0; i < 50; i++) {
+      control.queued();
+    }
+    Assert.assertTrue(control.isOverloaded());
+    Assert.assertEquals(11, control.getRetryAfter());
+  }
+}
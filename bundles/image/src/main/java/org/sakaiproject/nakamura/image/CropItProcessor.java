@@ -24,7 +24,6 @@ import org.apache.sanselan.ImageInfo;
 import org.apache.sanselan.ImageReadException;
 import org.apache.sanselan.ImageWriteException;
 import org.apache.sanselan.Sanselan;
-import org.apache.sanselan.util.IOUtils;
 import org.apache.sling.api.resource.Resource;
 import org.apache.sling.api.resource.ResourceResolver;
 import org.sakaiproject.nakamura.api.jcr.JCRConstants;
@@ -40,15 +39,26 @@ import org.slf4j.LoggerFactory;
 
 import java.awt.Dimension;
 import java.awt.Graphics2D;
+import java.awt.Rectangle;
 import java.awt.RenderingHints;
 import java.awt.image.BufferedImage;
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
 import java.util.List;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
 
 import javax.imageio.ImageIO;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.stream.ImageInputStream;
 import javax.jcr.Binary;
 import javax.jcr.Node;
 import javax.jcr.PathNotFoundException;
@@ -59,6 +69,25 @@ public class CropItProcessor {
 
   private static final Logger LOGGER = LoggerFactory.getLogger(CropItProcessor.class);
 
+  /**
+   * The most crops that run at once. A decoded image can take hundreds of MB, so crops
+   * beyond this wait for one to finish rather than all competing for the heap.
+   */
+  private static final int MAX_CONCURRENT_CROPS = Math.max(1, Runtime.getRuntime()
+      .availableProcessors());
+
+  private static final Semaphore CROP_PERMITS = new Semaphore(MAX_CONCURRENT_CROPS, true);
+
+  /**
+   * How long a crop waits for a permit before it is refused with a 503.
+   */
+  private static final long CROP_WAIT_SECONDS = 30;
+
+  /**
+   * The largest number of pixels a crop will decode, after subsampling.
+   */
+  private static final long MAX_DECODED_PIXELS = 40L * 1000L * 1000L;
+
   /**
    *
    * @param session
@@ -128,53 +157,53 @@ public class CropItProcessor {
         if ( in.available() > 100L*1024L*1024L ) {
           throw new ImageException(406, "Image "+img+" too large to crop > 100MB Si "+in.available());
         }
+        acquireCropPermit(img);
         try {
+          CroppedImage cropped = readCropped(in, x, y, width, height, dimensions);
 
-          // NOTE: I'd prefer to use the InputStream, but I don't see a way to get the
-          // ImageInfo _and_ the BufferedImage.
-          // I've tried using a BufferedInputStream which allows you to reset, but for BMP
-          // this doesn't help.
-          byte[] bytes = IOUtils.getInputStreamBytes(in);
-          ImageInfo info = Sanselan.getImageInfo(bytes);
-          BufferedImage imgBuf = getBufferedImage(bytes, info);
-
-          // Set the correct width & height.
-          width = (width <= 0) ? info.getWidth() : width;
-          height = (height <= 0) ? info.getHeight() : height;
-
-          if (x + width > info.getWidth()) {
-            width = info.getWidth() - x;
-          }
-          if (y + height > info.getHeight()) {
-            height = info.getHeight() - y;
+          // Scale the largest sizes first, so each smaller one can start from the last.
+          List<Integer> order = new ArrayList<Integer>(dimensions.size());
+          for (int i = 0; i < dimensions.size(); i++) {
+            order.add(i);
           }
-
-          // Cut the desired piece out of the image.
-          BufferedImage subImage = imgBuf.getSubimage(x, y, width, height);
-
-          // Loop the dimensions and create and save an image for each
-          // one.
+          final int[][] sizes = new int[dimensions.size()][];
           for (int i = 0; i < dimensions.size(); i++) {
-
             Dimension d = dimensions.get(i);
+            sizes[i] = new int[] { (d.width <= 0) ? cropped.sourceWidth : d.width,
+                (d.height <= 0) ? cropped.sourceHeight : d.height };
+          }
+          Collections.sort(order, new Comparator<Integer>() {
+            public int compare(Integer o1, Integer o2) {
+              long a1 = (long) sizes[o1][0] * sizes[o1][1];
+              long a2 = (long) sizes[o2][0] * sizes[o2][1];
+              return a1 > a2 ? -1 : (a1 == a2 ? 0 : 1);
+            }
+          });
+
+          BufferedImage previous = null;
+          for (int i : order) {
 
             // get dimension size
-            int iWidth = d.width;
-            int iHeight = d.height;
+            int iWidth = sizes[i][0];
+            int iHeight = sizes[i][1];
 
-            iWidth = (iWidth <= 0) ? info.getWidth() : iWidth;
-            iHeight = (iHeight <= 0) ? info.getHeight() : iHeight;
+            BufferedImage source = cropped.image;
+            if (previous != null && previous.getWidth() >= iWidth
+                && previous.getHeight() >= iHeight) {
+              source = previous;
+            }
+            BufferedImage imgScaled = getScaledInstance(source, iWidth, iHeight);
 
             // Create the image.
-            byte[] image = scaleAndWriteToByteArray(iWidth, iHeight, subImage, imgName, info);
-
-            if ( image != null ) {
+            ImageBuffer image = new ImageBuffer();
+            if ( write(imgScaled, cropped, image) ) {
 
               String sPath = save + "/" + iWidth + "x" + iHeight + "_" + imgName;
               // Save new image to JCR.
-              saveImageToContentStore(sPath, info.getMimeType(), image, session);
+              saveImageToContentStore(sPath, cropped.mimeType, image.getInputStream(), session);
 
               arrFiles[i] = sPath;
+              previous = imgScaled;
             } else {
               LOGGER.warn("Failed to scale image "+img+" to "+iWidth+" by "+iHeight+" defaulting to full size");
               arrFiles[i] = img;
@@ -185,10 +214,8 @@ public class CropItProcessor {
           LOGGER.error("Can't parse this format. Image {}, mime Type {} :{}", new Object[]{img, mimeType, e.getMessage()});
           LOGGER.debug("Cause: ", e);
           throw new ImageException(406, "Can't parse this format.  Image "+img+", mime Type "+mimeType);
-        } catch (ImageWriteException e) {
-          LOGGER.error("Can't crop this Image {}, mime Type {}  :{} ", new Object[]{img, mimeType, e.getMessage()});
-          LOGGER.debug("Cause: ", e);
-          throw new ImageException(406, "Can't crop this Image "+img+", mime Type "+mimeType);
+        } finally {
+          CROP_PERMITS.release();
         }
 
     } catch (IOException e) {
@@ -216,6 +243,167 @@ public class CropItProcessor {
     return arrFiles;
   }
 
+  private static void acquireCropPermit(String img) throws ImageException {
+    try {
+      if (CROP_PERMITS.tryAcquire(CROP_WAIT_SECONDS, TimeUnit.SECONDS)) {
+        return;
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+    LOGGER.warn("Gave up waiting to crop {}, {} crops already running ", img,
+        MAX_CONCURRENT_CROPS);
+    throw new ImageException(503, "Too many images are being cropped, try again later.");
+  }
+
+  /**
+   * The piece of the image that was asked for, and what is needed to write it back out.
+   */
+  static final class CroppedImage {
+    BufferedImage image;
+    int sourceWidth;
+    int sourceHeight;
+    String mimeType;
+    /**
+     * The ImageIO format to write the scaled images in, null to write them with Sanselan.
+     */
+    String formatName;
+    ImageInfo info;
+  }
+
+  /**
+   * Read the piece of the image that is to be cropped. Where ImageIO can read and write the
+   * format only the crop region is decoded, subsampled down to about twice the largest
+   * size that is wanted, so neither the file nor the full image is ever held in memory. Other formats
+   * are read whole with Sanselan.
+   */
+  static CroppedImage readCropped(InputStream in, int x, int y, int width, int height,
+      List<Dimension> dimensions) throws IOException, ImageReadException, ImageException {
+    ImageInputStream iis = ImageIO.createImageInputStream(in);
+    if (iis == null) {
+      return readCroppedWithSanselan(readFully(in), x, y, width, height);
+    }
+    try {
+      Iterator<ImageReader> readers = ImageIO.getImageReaders(iis);
+      if (readers.hasNext()) {
+        ImageReader reader = readers.next();
+        String formatName = reader.getFormatName();
+        if (ImageIO.getImageWritersByFormatName(formatName).hasNext()) {
+          try {
+            reader.setInput(iis, true, true);
+            return readCropped(reader, formatName, x, y, width, height, dimensions);
+          } catch (IOException e) {
+            // KERN-1113 ImageIO can't read some images that Sanselan can.
+            LOGGER.debug("ImageIO could not read the image, trying Sanselan {} ", e.getMessage());
+          } finally {
+            reader.dispose();
+          }
+        }
+      }
+      // everything read so far is cached by the stream.
+      iis.seek(0);
+      return readCroppedWithSanselan(readFully(iis), x, y, width, height);
+    } finally {
+      iis.close();
+    }
+  }
+
+  private static CroppedImage readCropped(ImageReader reader, String formatName, int x,
+      int y, int width, int height, List<Dimension> dimensions) throws IOException,
+      ImageException {
+    CroppedImage cropped = new CroppedImage();
+    cropped.sourceWidth = reader.getWidth(0);
+    cropped.sourceHeight = reader.getHeight(0);
+    Rectangle region = getCropRegion(x, y, width, height, cropped.sourceWidth,
+        cropped.sourceHeight);
+
+    // the largest size needed from the region sets how far it can be subsampled. Only go
+    // down to about twice that size, subsampling drops pixels rather than averaging them
+    // and would alias; getScaledInstance takes the last steps with bilinear passes.
+    int maxWidth = 1;
+    int maxHeight = 1;
+    for (Dimension d : dimensions) {
+      maxWidth = Math.max(maxWidth, (d.width <= 0) ? cropped.sourceWidth : d.width);
+      maxHeight = Math.max(maxHeight, (d.height <= 0) ? cropped.sourceHeight : d.height);
+    }
+    int subsampling = Math.max(1,
+        Math.min(region.width / maxWidth, region.height / maxHeight) / 2);
+    checkDecodedSize(region, subsampling);
+
+    ImageReadParam param = reader.getDefaultReadParam();
+    param.setSourceRegion(region);
+    param.setSourceSubsampling(subsampling, subsampling, 0, 0);
+    cropped.image = reader.read(0, param);
+    cropped.formatName = formatName;
+    String[] mimeTypes = reader.getOriginatingProvider().getMIMETypes();
+    cropped.mimeType = (mimeTypes != null && mimeTypes.length > 0) ? mimeTypes[0]
+        : "image/" + formatName.toLowerCase();
+    return cropped;
+  }
+
+  private static CroppedImage readCroppedWithSanselan(byte[] bytes, int x, int y,
+      int width, int height) throws ImageReadException, IOException, ImageException {
+    CroppedImage cropped = new CroppedImage();
+    cropped.info = Sanselan.getImageInfo(bytes);
+    cropped.sourceWidth = cropped.info.getWidth();
+    cropped.sourceHeight = cropped.info.getHeight();
+    Rectangle region = getCropRegion(x, y, width, height, cropped.sourceWidth,
+        cropped.sourceHeight);
+    checkDecodedSize(new Rectangle(cropped.sourceWidth, cropped.sourceHeight), 1);
+    BufferedImage imgBuf = getBufferedImage(bytes, cropped.info);
+
+    // Cut the desired piece out of the image.
+    cropped.image = imgBuf.getSubimage(region.x, region.y, region.width, region.height);
+    cropped.mimeType = cropped.info.getMimeType();
+    return cropped;
+  }
+
+  private static Rectangle getCropRegion(int x, int y, int width, int height,
+      int imageWidth, int imageHeight) throws ImageException {
+    // Set the correct width & height.
+    width = (width <= 0) ? imageWidth : width;
+    height = (height <= 0) ? imageHeight : height;
+
+    if (x + width > imageWidth) {
+      width = imageWidth - x;
+    }
+    if (y + height > imageHeight) {
+      height = imageHeight - y;
+    }
+    if (width <= 0 || height <= 0) {
+      throw new ImageException(406, "The crop lies outside the image.");
+    }
+    return new Rectangle(x, y, width, height);
+  }
+
+  private static void checkDecodedSize(Rectangle region, int subsampling)
+      throws ImageException {
+    long pixels = ((long) region.width / subsampling) * ((long) region.height / subsampling);
+    if (pixels > MAX_DECODED_PIXELS) {
+      throw new ImageException(406, "Image too large to crop, " + pixels + " pixels");
+    }
+  }
+
+  private static byte[] readFully(InputStream in) throws IOException {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    byte[] buffer = new byte[8192];
+    int n;
+    while ((n = in.read(buffer)) >= 0) {
+      out.write(buffer, 0, n);
+    }
+    return out.toByteArray();
+  }
+
+  private static byte[] readFully(ImageInputStream in) throws IOException {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    byte[] buffer = new byte[8192];
+    int n;
+    while ((n = in.read(buffer)) >= 0) {
+      out.write(buffer, 0, n);
+    }
+    return out.toByteArray();
+  }
+
   /**
    * @param bytes
    * @param info
@@ -254,16 +442,15 @@ public class CropItProcessor {
    *          The JCR path to save the image in.
    * @param mimetype
    *          The Mime type of the node that will be saved.
-   * @param out
+   * @param image
    *          The stream you wish to save.
    * @throws ImageException
    * @throws StorageClientException
    */
   protected static void saveImageToContentStore(String path, String mimetype,
-      byte[] image, Session session) throws ImageException, StorageClientException {
+      InputStream image, Session session) throws ImageException, StorageClientException {
     ContentManager contentManager = session.getContentManager();
 
-    ByteArrayInputStream bais = null;
     try {
       Content node = contentManager.get(path);
       if (node != null) {
@@ -272,21 +459,47 @@ public class CropItProcessor {
       } else {
         contentManager.update(new Content(path, ImmutableMap.of("mimeType", (Object)mimetype)));
       }
-      // convert stream to inputstream
-      bais = new ByteArrayInputStream(image);
-      contentManager.writeBody(path, bais);
+      contentManager.writeBody(path, image);
 
     } catch (Exception e) {
       LOGGER.warn("Repository exception: " + e.getMessage());
       throw new ImageException(500, "Unable to save image to JCR.");
     } finally {
-      if (bais != null) {
-        try {
-          bais.close();
-        } catch (IOException e) {
-          LOGGER.warn("Unable to close inputstream.");
-        }
+      try {
+        image.close();
+      } catch (IOException e) {
+        LOGGER.warn("Unable to close inputstream.");
+      }
+    }
+  }
+
+  /**
+   * Encode a scaled image in the format of the original.
+   *
+   * @return false if the image could not be encoded.
+   */
+  private static boolean write(BufferedImage imgScaled, CroppedImage cropped,
+      OutputStream out) {
+    try {
+      if (cropped.formatName != null) {
+        return ImageIO.write(imgScaled, cropped.formatName, out);
       }
+      writeImage(imgScaled, cropped.info, out);
+      return true;
+    } catch (Exception e) {
+      LOGGER.error("Failed to process image "+e.getMessage(), e);
+    }
+    return false;
+  }
+
+  private static void writeImage(BufferedImage imgScaled, ImageInfo info, OutputStream out)
+      throws IOException, ImageWriteException {
+    if (info.getFormat() == ImageFormat.IMAGE_FORMAT_JPEG) {
+      ImageIO.write(imgScaled, "jpg", out);
+    } else if (info.getFormat() == ImageFormat.IMAGE_FORMAT_PNG) {
+      ImageIO.write(imgScaled, "png", out);
+    } else {
+      Sanselan.writeImage(imgScaled, out, info.getFormat(), null);
     }
   }
 
@@ -321,13 +534,7 @@ public class CropItProcessor {
       ByteArrayOutputStream out = new ByteArrayOutputStream();
 
       // Write to stream.
-      if (info.getFormat() == ImageFormat.IMAGE_FORMAT_JPEG) {
-        ImageIO.write(imgScaled, "jpg", out);
-      } else if (info.getFormat() == ImageFormat.IMAGE_FORMAT_PNG) {
-        ImageIO.write(imgScaled, "png", out);
-      } else {
-        Sanselan.writeImage(imgScaled, out, info.getFormat(), null);
-      }
+      writeImage(imgScaled, info, out);
       out.close();
       return out.toByteArray();
     } catch (Exception e) {
@@ -336,6 +543,19 @@ public class CropItProcessor {
     return null;
   }
 
+  /**
+   * A buffer for an encoded image that is read back by the content store without being
+   * copied.
+   */
+  private static final class ImageBuffer extends ByteArrayOutputStream {
+    ImageBuffer() {
+      super(16 * 1024);
+    }
+
+    InputStream getInputStream() {
+      return new ByteArrayInputStream(buf, 0, count);
+    }
+  }
 
   /**
    * Image scaling routine as prescribed by
@@ -357,6 +577,13 @@ public class CropItProcessor {
     // until the target size is reached
     int w = img.getWidth();
     int h = img.getHeight();
+    int type = img.getType();
+    if (type == BufferedImage.TYPE_CUSTOM || type == BufferedImage.TYPE_BYTE_INDEXED
+        || type == BufferedImage.TYPE_BYTE_BINARY) {
+      // these can't be drawn into at a new size without losing colours.
+      type = img.getColorModel().hasAlpha() ? BufferedImage.TYPE_INT_ARGB
+          : BufferedImage.TYPE_INT_RGB;
+    }
 
     while (w > targetWidth || h > targetHeight) {
       // Bit shifting by one is faster than dividing by 2.
@@ -371,7 +598,7 @@ public class CropItProcessor {
         h = targetHeight;
       }
 
-      BufferedImage tmp = new BufferedImage(w, h, img.getType());
+      BufferedImage tmp = new BufferedImage(w, h, type);
       Graphics2D g2 = tmp.createGraphics();
       g2.setRenderingHint(RenderingHints.KEY_INTERPOLATION,
           RenderingHints.VALUE_INTERPOLATION_BILINEAR);
@@ -41,9 +41,12 @@ import org.sakaiproject.nakamura.api.resource.lite.SparseContentResource;
 import org.sakaiproject.nakamura.lite.BaseMemoryRepository;
 import org.sakaiproject.nakamura.lite.jackrabbit.SparseMapUserManager;
 
+import java.awt.Color;
 import java.awt.Dimension;
+import java.awt.Graphics2D;
 import java.awt.image.BufferedImage;
 import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.util.ArrayList;
@@ -149,4 +152,27 @@ public class CropItProcessorTest {
     assertEquals(scaledImage.getHeight(), 50);
   }
 
+  @Test
+  public void testReadCroppedDecodesOnlyWhatIsNeeded() throws Exception {
+    BufferedImage source = new BufferedImage(3000, 2000, BufferedImage.TYPE_INT_RGB);
+    Graphics2D g = source.createGraphics();
+    g.setColor(Color.RED);
+    g.fillRect(0, 0, 3000, 2000);
+    g.setColor(Color.BLUE);
+    g.fillRect(1000, 500, 500, 500);
+    g.dispose();
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    ImageIO.write(source, "png", out);
+
+    // the crop is subsampled down to twice the largest size wanted, not decoded in full.
+    CropItProcessor.CroppedImage cropped = CropItProcessor.readCropped(
+        new ByteArrayInputStream(out.toByteArray()), 1000, 500, 500, 500, dimensions);
+    assertEquals(3000, cropped.sourceWidth);
+    assertEquals(2000, cropped.sourceHeight);
+    assertEquals(100, cropped.image.getWidth());
+    assertEquals(100, cropped.image.getHeight());
+    assertEquals(Color.BLUE.getRGB(), cropped.image.getRGB(50, 50));
+    assertEquals("image/png", cropped.mimeType);
+  }
+
 }
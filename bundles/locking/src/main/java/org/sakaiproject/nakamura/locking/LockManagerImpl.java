@@ -20,10 +20,14 @@ package org.sakaiproject.nakamura.locking;
 
 import edu.umd.cs.findbugs.annotations.SuppressWarnings;
 
+import org.apache.felix.scr.annotations.Activate;
 import org.apache.felix.scr.annotations.Component;
+import org.apache.felix.scr.annotations.Deactivate;
+import org.apache.felix.scr.annotations.Modified;
 import org.apache.felix.scr.annotations.Property;
 import org.apache.felix.scr.annotations.Reference;
 import org.apache.felix.scr.annotations.Service;
+import org.apache.sling.commons.osgi.PropertiesUtil;
 import org.sakaiproject.nakamura.api.locking.Lock;
 import org.sakaiproject.nakamura.api.locking.LockManager;
 import org.sakaiproject.nakamura.api.locking.LockTimeoutException;
@@ -34,16 +38,34 @@ import org.sakaiproject.nakamura.api.memory.CacheScope;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.lang.management.ManagementFactory;
 import java.security.NoSuchAlgorithmException;
 import java.security.SecureRandom;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import javax.management.ObjectName;
 
 /**
- * A lock manager that uses a cluster replicated cache to manage the locks
+ * A lock manager that keeps the state of each lock in a local map and publishes the
+ * locks in a cluster replicated cache.
+ * <p>
+ * Each locked id has its own state object, so locking one id never waits on another.
+ * Threads waiting for a lock queue up in order on that state and are woken when it is
+ * unlocked; a lock held by another node in the cluster can't wake anyone here, so
+ * waiters for one of those check again every {@link #FOREIGN_LOCK_POLL} ms.
  */
-@Component
+@Component(metatype = true, label = "Lock Manager", description = "Locks ids across the cluster")
 @Service
 @SuppressWarnings(justification="Circular dependency noted ", value={"CD_CIRCULAR_DEPENDENCY"})
-public class LockManagerImpl implements LockManager {
+public class LockManagerImpl implements LockManager, LockManagerStatsMBean {
 
   /**
    * The name of the cluster replicated cache. This cache must be configured with a
@@ -63,6 +85,15 @@ public class LockManagerImpl implements LockManager {
    * debug flag set at service creation.
    */
   private static final boolean debug = LOGGER.isDebugEnabled();
+  /**
+   * How often, in ms, a waiter checks again for a lock held by another node.
+   */
+  private static final long FOREIGN_LOCK_POLL = 100L;
+  /**
+   * Prefixes beyond this many share one set of statistics.
+   */
+  private static final int MAX_STATISTICS_PREFIXES = 1000;
+  private static final String OTHER_PREFIX = "(other)";
 
   @Property(value = "The Sakai Foundation")
   static final String SERVICE_VENDOR = "service.vendor";
@@ -70,6 +101,18 @@ public class LockManagerImpl implements LockManager {
   @Property(value = "In JVM Lock Manager")
   static final String SERVICE_DESCRIPTION = "service.description";
 
+  /**
+   * How long, in ms, {@link #waitForLock(String)} waits before giving up.
+   */
+  @Property(longValue = 30000L, label = "Lock timeout", description = "How long, in ms, to wait for a lock before giving up")
+  static final String LOCK_TIMEOUT = "lockTimeout";
+
+  /**
+   * The number of path segments of the locked ids that statistics are kept by.
+   */
+  @Property(intValue = 2, label = "Statistics prefix depth", description = "The number of path segments of the locked ids that lock statistics are kept by")
+  static final String STATISTICS_PREFIX_DEPTH = "statisticsPrefixDepth";
+
   /**
    * Service dependency, the Cache Manager
    */
@@ -79,6 +122,14 @@ public class LockManagerImpl implements LockManager {
    * container for Locks.
    */
   private Cache<LockImpl> lockMap;
+  /**
+   * The state of the ids locked or waited for on this node.
+   */
+  private final ConcurrentMap<String, LockState> lockStates = new ConcurrentHashMap<String, LockState>();
+  /**
+   * Statistics by path prefix.
+   */
+  private final ConcurrentMap<String, LockStatistics> statistics = new ConcurrentHashMap<String, LockStatistics>();
   /**
    * The id of this instance of this class.
    */
@@ -101,7 +152,33 @@ public class LockManagerImpl implements LockManager {
       return random.nextLong();
     }
   };
-  private Object monitor = new Object();
+
+  private long lockTimeout = 30000L;
+
+  private int statisticsPrefixDepth = 2;
+
+  private ObjectName objectName;
+
+  /**
+   * The lock state for one id. Everything in it is guarded by the object's own monitor,
+   * which waiters also wait on.
+   */
+  private static final class LockState {
+    /**
+     * The lock held on this node, or null.
+     */
+    private LockImpl holder;
+    private long acquiredAt;
+    /**
+     * One ticket per waiting thread, in the order they started waiting.
+     */
+    private final Deque<Object> waiters = new ArrayDeque<Object>();
+    /**
+     * Set once the state has been removed from the map; anyone still holding it must
+     * look it up again.
+     */
+    private boolean retired;
+  }
 
   /**
    * @throws NoSuchAlgorithmException
@@ -113,33 +190,77 @@ public class LockManagerImpl implements LockManager {
     instanceId = random.nextLong();
   }
 
+  @Activate
+  @Modified
+  protected void activate(Map<?, ?> properties) {
+    lockTimeout = PropertiesUtil.toLong(properties.get(LOCK_TIMEOUT), 30000L);
+    statisticsPrefixDepth = PropertiesUtil.toInteger(
+        properties.get(STATISTICS_PREFIX_DEPTH), 2);
+    if (objectName == null) {
+      try {
+        objectName = new ObjectName("org.sakaiproject.nakamura.locking:type=LockManager");
+        ManagementFactory.getPlatformMBeanServer().registerMBean(this, objectName);
+      } catch (Exception e) {
+        LOGGER.warn("Unable to register lock manager statistics {} ", e.getMessage());
+        objectName = null;
+      }
+    }
+  }
+
+  @Deactivate
+  protected void deactivate() {
+    if (objectName != null) {
+      try {
+        ManagementFactory.getPlatformMBeanServer().unregisterMBean(objectName);
+      } catch (Exception e) {
+        LOGGER.debug("Unable to unregister {} {} ", objectName, e.getMessage());
+      }
+      objectName = null;
+    }
+  }
+
   public Lock getLock(String id) {
     return getLock(id, true);
   }
 
   /**
+   * Get the lock on an id, taking it if it is free and create is true. This does not
+   * wait, and does not queue behind threads that are waiting for the lock.
+   *
    * @param id
-   * @return
+   * @return the lock, which is not owned by the current thread if someone else holds
+   *         it; null if create is false and the id is not locked.
    */
   public Lock getLock(String id, boolean create) {
-    LockImpl lock = lockMap.get(id);
     if (create) {
-      if (lock == null || !lock.isLocked()) {
-        synchronized (monitor) {
-          lock = lockMap.get(id);
-          if (lock == null || !lock.isLocked()) {
-            Cache<LockImpl> requestLocks = getRequestLocks();
-            lock = new LockImpl(id, random.nextLong(), threadId.get(), instanceId);
-            lockMap.put(id, lock);
-            requestLocks.put(id, lock);
+      for (;;) {
+        LockState state = getLockState(id);
+        synchronized (state) {
+          if (state.retired) {
+            continue;
           }
+          LockImpl lock = acquire(id, state);
+          if (lock != null) {
+            getStatistics(id).acquired(0);
+            return lock;
+          }
+          if (state.holder != null) {
+            return state.holder;
+          }
+          // held elsewhere in the cluster.
+          return getClusterLock(id);
         }
       }
     }
-    if (lock != null) {
-      lock.bind(this);
+    LockState state = lockStates.get(id);
+    if (state != null) {
+      synchronized (state) {
+        if (state.holder != null) {
+          return state.holder;
+        }
+      }
     }
-    return lock;
+    return getClusterLock(id);
   }
 
   /**
@@ -149,6 +270,66 @@ public class LockManagerImpl implements LockManager {
     return cacheManagerService.getCache(REQUEST_LOCKS, CacheScope.REQUEST);
   }
 
+  /**
+   * @return the lock for the id in the cluster cache, bound to this manager, or null.
+   */
+  private LockImpl getClusterLock(String id) {
+    LockImpl lock = lockMap.get(id);
+    if (lock != null) {
+      lock.bind(this);
+    }
+    return lock;
+  }
+
+  /**
+   * @return the state for an id, creating it if there is none.
+   */
+  private LockState getLockState(String id) {
+    LockState state = lockStates.get(id);
+    if (state == null) {
+      LockState newState = new LockState();
+      state = lockStates.putIfAbsent(id, newState);
+      if (state == null) {
+        state = newState;
+      }
+    }
+    return state;
+  }
+
+  /**
+   * Take the lock if it is free, must be called holding the state's monitor.
+   *
+   * @return the lock if the current thread now owns it, or null.
+   */
+  private LockImpl acquire(String id, LockState state) {
+    long owner = threadId.get();
+    if (state.holder != null) {
+      return (state.holder.isOwner()) ? state.holder : null;
+    }
+    LockImpl clusterLock = getClusterLock(id);
+    if (clusterLock != null && clusterLock.isLocked() && !clusterLock.isLocal()) {
+      return null;
+    }
+    LockImpl lock = new LockImpl(id, random.nextLong(), owner, instanceId);
+    lock.bind(this);
+    state.holder = lock;
+    state.acquiredAt = System.currentTimeMillis();
+    lockMap.put(id, lock);
+    getRequestLocks().put(id, lock);
+    return lock;
+  }
+
+  /**
+   * Drop the state if nothing holds or waits for it, must be called holding the state's
+   * monitor.
+   */
+  private void retireIfUnused(String id, LockState state) {
+    if (state.holder == null && state.waiters.isEmpty() && !state.retired) {
+      state.retired = true;
+      lockStates.remove(id, state);
+    }
+  }
+
   /**
    * Unlock only if the current thread is the owner.
    *
@@ -156,12 +337,28 @@ public class LockManagerImpl implements LockManager {
    */
   public void unlock(LockImpl lock) {
     if (lock.isOwner() && lock.isLocked()) {
+      String id = lock.getLocked();
       if (debug) {
-        LOGGER.debug(Thread.currentThread() + " unlocked " + lock.getLocked());
+        LOGGER.debug(Thread.currentThread() + " unlocked " + id);
       }
-      lock.setLocked(false);
-      synchronized (monitor) {
-        lockMap.remove(lock.getLocked());
+      LockState state = lockStates.get(id);
+      if (state == null) {
+        lock.setLocked(false);
+        lockMap.remove(id);
+        return;
+      }
+      synchronized (state) {
+        lock.setLocked(false);
+        lockMap.remove(id);
+        if (state.holder == lock) {
+          state.holder = null;
+          getStatistics(id).released(System.currentTimeMillis() - state.acquiredAt);
+          if (state.waiters.isEmpty()) {
+            retireIfUnused(id, state);
+          } else {
+            state.notifyAll();
+          }
+        }
       }
     }
   }
@@ -186,36 +383,65 @@ public class LockManagerImpl implements LockManager {
    * @see org.sakaiproject.nakamura.api.locking.LockManager#lock(java.lang.String)
    */
   public Lock waitForLock(String id) throws LockTimeoutException {
-    long sleepTime = 100;
-    int tries = 0;
     if (debug) {
       LOGGER.debug(Thread.currentThread() + " locking " + id);
     }
-    while (tries++ < 300) {
-      Lock lock = getLock(id);
-      if (lock != null && lock.isOwner()) {
-        if (debug) {
-          LOGGER.debug(Thread.currentThread() + " lock Granted " + lock.getLocked());
+    final long start = System.currentTimeMillis();
+    final long deadline = start + lockTimeout;
+    final Object ticket = new Object();
+    for (;;) {
+      LockState state = getLockState(id);
+      synchronized (state) {
+        if (state.retired) {
+          continue;
         }
-        return lock;
-      }
-      if (sleepTime < 500) {
-        sleepTime = sleepTime + 10;
-      }
-      try {
-       
-        if (debug && tries % 5 == 0) {
-          LOGGER.debug(Thread.currentThread() + " locking " + id);
+        if (state.waiters.isEmpty() || (state.holder != null && state.holder.isOwner())) {
+          LockImpl lock = acquire(id, state);
+          if (lock != null) {
+            getStatistics(id).acquired(0);
+            return lock;
+          }
         }
-        if (tries % 100 == 0) {
-          LOGGER.warn(Thread.currentThread() + " Waiting for " + sleepTime
-              + " ms " + tries);
+        state.waiters.addLast(ticket);
+        try {
+          for (;;) {
+            boolean clusterHeld = false;
+            if (state.waiters.peekFirst() == ticket && state.holder == null) {
+              LockImpl lock = acquire(id, state);
+              if (lock != null) {
+                long waited = System.currentTimeMillis() - start;
+                getStatistics(id).acquired(Math.max(1, waited));
+                if (debug) {
+                  LOGGER.debug(Thread.currentThread() + " lock Granted " + id + " after "
+                      + waited + " ms");
+                }
+                return lock;
+              }
+              clusterHeld = true;
+            }
+            long remaining = deadline - System.currentTimeMillis();
+            if (remaining <= 0) {
+              getStatistics(id).timedOut(System.currentTimeMillis() - start);
+              LOGGER.warn(Thread.currentThread() + " timed out after " + lockTimeout
+                  + " ms waiting for " + id);
+              throw new LockTimeoutException("Failed to lock node " + id);
+            }
+            try {
+              state.wait(clusterHeld ? Math.min(remaining, FOREIGN_LOCK_POLL) : remaining);
+            } catch (InterruptedException e) {
+              Thread.currentThread().interrupt();
+              throw new LockTimeoutException("Interrupted waiting to lock node " + id, e);
+            }
+          }
+        } finally {
+          // if we were at the head of the queue the next waiter may now go.
+          if (state.waiters.remove(ticket)) {
+            state.notifyAll();
+          }
+          retireIfUnused(id, state);
         }
-        Thread.sleep(sleepTime);
-      } catch (InterruptedException e) {
       }
     }
-    throw new LockTimeoutException("Failed to lock node " + id);
   }
 
   /**
@@ -229,7 +455,76 @@ public class LockManagerImpl implements LockManager {
     requestLocks.clear();
   }
 
- 
+  /**
+   * @return the statistics for the prefix of the id.
+   */
+  private LockStatistics getStatistics(String id) {
+    String prefix = getPrefix(id, statisticsPrefixDepth);
+    LockStatistics stats = statistics.get(prefix);
+    if (stats == null) {
+      if (statistics.size() >= MAX_STATISTICS_PREFIXES) {
+        prefix = OTHER_PREFIX;
+      }
+      LockStatistics newStats = new LockStatistics();
+      stats = statistics.putIfAbsent(prefix, newStats);
+      if (stats == null) {
+        stats = newStats;
+      }
+    }
+    return stats;
+  }
+
+  /**
+   * @return the id up to, but not including, the separator after the depth'th segment.
+   */
+  static String getPrefix(String id, int depth) {
+    int end = 0;
+    for (int i = 0; i < depth; i++) {
+      end = id.indexOf('/', end + 1);
+      if (end < 0) {
+        return id;
+      }
+    }
+    return (depth <= 0) ? "/" : id.substring(0, end);
+  }
+
+  // ---------- LockManagerStatsMBean -------------------------------------------
+
+  public int getLocksHeld() {
+    int held = 0;
+    for (LockState state : lockStates.values()) {
+      synchronized (state) {
+        if (state.holder != null) {
+          held++;
+        }
+      }
+    }
+    return held;
+  }
+
+  public int getWaiters() {
+    int waiting = 0;
+    for (LockState state : lockStates.values()) {
+      synchronized (state) {
+        waiting += state.waiters.size();
+      }
+    }
+    return waiting;
+  }
+
+  public String[] getPrefixStatistics() {
+    List<String> lines = new ArrayList<String>();
+    for (Entry<String, LockStatistics> e : statistics.entrySet()) {
+      lines.add(e.getKey() + " " + e.getValue());
+    }
+    Collections.sort(lines);
+    return lines.toArray(new String[lines.size()]);
+  }
+
+  public void reset() {
+    statistics.clear();
+  }
+
   /**
    * @param cacheManagerService
    */
@@ -244,6 +539,6 @@ public class LockManagerImpl implements LockManager {
     this.cacheManagerService = null;
     lockMap = null;
   }
- 
- 
+
+
 }
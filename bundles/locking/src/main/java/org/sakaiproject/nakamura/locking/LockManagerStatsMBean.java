@@ -0,0 +1,43 @@
+/**
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.locking;
+
+/**
+ * JMX view of the lock manager, registered as
+ * org.sakaiproject.nakamura.locking:type=LockManager.
+ */
+public interface LockManagerStatsMBean {
+
+  /**
+   * @return the number of locks held on this node.
+   */
+  int getLocksHeld();
+
+  /**
+   * @return the number of threads on this node waiting for a lock.
+   */
+  int getWaiters();
+
+  /**
+   * @return one line per path prefix with the number of locks taken, how many of those
+   *         had to wait, timeouts, and the average and longest wait and hold times.
+   */
+  String[] getPrefixStatistics();
+
+  void reset();
+}
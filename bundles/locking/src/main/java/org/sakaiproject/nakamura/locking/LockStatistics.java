@@ -0,0 +1,79 @@
+/**
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.locking;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Counters for the locks taken on the paths below one prefix.
+ */
+class LockStatistics {
+
+  private final AtomicLong acquired = new AtomicLong();
+  private final AtomicLong contended = new AtomicLong();
+  private final AtomicLong timeouts = new AtomicLong();
+  private final AtomicLong waitTime = new AtomicLong();
+  private final AtomicLong maxWaitTime = new AtomicLong();
+  private final AtomicLong released = new AtomicLong();
+  private final AtomicLong holdTime = new AtomicLong();
+  private final AtomicLong maxHoldTime = new AtomicLong();
+
+  /**
+   * @param waited
+   *          ms spent waiting for the lock, 0 if it was free.
+   */
+  void acquired(long waited) {
+    acquired.incrementAndGet();
+    if (waited > 0) {
+      contended.incrementAndGet();
+      waitTime.addAndGet(waited);
+      setMax(maxWaitTime, waited);
+    }
+  }
+
+  void timedOut(long waited) {
+    timeouts.incrementAndGet();
+    waitTime.addAndGet(waited);
+    setMax(maxWaitTime, waited);
+  }
+
+  void released(long held) {
+    released.incrementAndGet();
+    holdTime.addAndGet(held);
+    setMax(maxHoldTime, held);
+  }
+
+  private static void setMax(AtomicLong max, long value) {
+    long current = max.get();
+    while (value > current && !max.compareAndSet(current, value)) {
+      current = max.get();
+    }
+  }
+
+  @Override
+  public String toString() {
+    long nacquired = acquired.get();
+    long nwaits = contended.get() + timeouts.get();
+    long nreleased = released.get();
+    return "acquired=" + nacquired + " contended=" + contended.get() + " timeouts="
+        + timeouts.get() + " avgWaitMs=" + (nwaits == 0 ? 0 : waitTime.get() / nwaits)
+        + " maxWaitMs=" + maxWaitTime.get() + " avgHoldMs="
+        + (nreleased == 0 ? 0 : holdTime.get() / nreleased) + " maxHoldMs="
+        + maxHoldTime.get();
+  }
+}
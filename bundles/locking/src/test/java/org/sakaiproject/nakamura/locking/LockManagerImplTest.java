@@ -22,17 +22,25 @@ import static org.easymock.EasyMock.expect;
 import static org.easymock.EasyMock.replay;
 import static org.easymock.EasyMock.verify;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 
 import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
 import org.sakaiproject.nakamura.api.locking.Lock;
+import org.sakaiproject.nakamura.api.locking.LockTimeoutException;
 import org.sakaiproject.nakamura.api.locking.cache.LockImpl;
 import org.sakaiproject.nakamura.api.memory.Cache;
 import org.sakaiproject.nakamura.api.memory.CacheManagerService;
 import org.sakaiproject.nakamura.api.memory.CacheScope;
 import org.sakaiproject.nakamura.memory.MapCacheImpl;
 
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
 /**
  *
  */
@@ -71,6 +79,7 @@ public class LockManagerImplTest {
    */
   @After
   public void tearDown() {
+    lockManager.deactivate();
     lockManager.unbindCacheManagerService(cacheManagerService);
     verify(cacheManagerService);
   }
@@ -99,4 +108,72 @@ public class LockManagerImplTest {
     assertEquals(null, lock);
   }
 
+  @Test
+  public void testWaitForLockIsWokenByUnlock() throws Exception {
+    Lock held = lockManager.getLock("/a/b/c");
+    assertTrue(held.isOwner());
+
+    final AtomicLong acquiredAt = new AtomicLong();
+    Thread waiter = new Thread() {
+      @Override
+      public void run() {
+        try {
+          Lock lock = lockManager.waitForLock("/a/b/c");
+          if (lock.isOwner()) {
+            acquiredAt.set(System.currentTimeMillis());
+          }
+          lock.unlock();
+        } catch (LockTimeoutException e) {
+          // acquiredAt stays 0
+        }
+      }
+    };
+    waiter.start();
+    Thread.sleep(200);
+    assertEquals(0, acquiredAt.get());
+
+    long unlockedAt = System.currentTimeMillis();
+    held.unlock();
+    waiter.join(5000);
+    assertTrue(acquiredAt.get() >= unlockedAt);
+    // woken by the unlock rather than by polling.
+    assertTrue(acquiredAt.get() - unlockedAt < 1000);
+    assertEquals(0, lockManager.getLocksHeld());
+    assertEquals(0, lockManager.getWaiters());
+  }
+
+  @Test
+  public void testWaitForLockTimesOut() throws Exception {
+    Map<String, Object> properties = new HashMap<String, Object>();
+    properties.put(LockManagerImpl.LOCK_TIMEOUT, 100L);
+    lockManager.activate(properties);
+
+    final Lock[] held = new Lock[1];
+    Thread holder = new Thread() {
+      @Override
+      public void run() {
+        held[0] = lockManager.getLock("/a/b/c");
+      }
+    };
+    holder.start();
+    holder.join();
+    assertFalse(lockManager.getLock("/a/b/c").isOwner());
+
+    try {
+      lockManager.waitForLock("/a/b/c");
+      fail("Should have timed out");
+    } catch (LockTimeoutException e) {
+      // expected
+    }
+    assertEquals(0, lockManager.getWaiters());
+    assertTrue(lockManager.getPrefixStatistics()[0].startsWith("/a/b "));
+  }
+
+  @Test
+  public void testGetPrefix() {
+    assertEquals("/a/b", LockManagerImpl.getPrefix("/a/b/c/d", 2));
+    assertEquals("/a/b", LockManagerImpl.getPrefix("/a/b", 2));
+    assertEquals("/a", LockManagerImpl.getPrefix("/a/b", 1));
+  }
+
 }
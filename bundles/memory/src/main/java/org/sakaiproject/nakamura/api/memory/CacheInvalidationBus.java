@@ -0,0 +1,52 @@
+/**
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.api.memory;
+
+/**
+ * Carries invalidations of {@link CacheScope#CLUSTERINVALIDATED} caches to the other
+ * servers in the cluster. Only the keys travel, never the values, so a transport is free
+ * to batch and coalesce them. Calls are made while the cache is being modified and
+ * should return without blocking.
+ */
+public interface CacheInvalidationBus {
+
+  /**
+   * The key has been changed or removed in the named cache on this server.
+   *
+   * @param cacheName
+   * @param key
+   */
+  void invalidate(String cacheName, String key);
+
+  /**
+   * The key and all of its children have been removed from the named cache on this
+   * server.
+   *
+   * @param cacheName
+   * @param key
+   */
+  void invalidateChildren(String cacheName, String key);
+
+  /**
+   * The named cache has been cleared on this server.
+   *
+   * @param cacheName
+   */
+  void flush(String cacheName);
+
+}
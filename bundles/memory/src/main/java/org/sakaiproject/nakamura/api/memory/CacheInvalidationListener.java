@@ -0,0 +1,56 @@
+/**
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.api.memory;
+
+/**
+ * Applies invalidations received from other servers to the local copies of
+ * {@link CacheScope#CLUSTERINVALIDATED} caches. Invalidations applied through this
+ * interface are not sent back out on the {@link CacheInvalidationBus}.
+ */
+public interface CacheInvalidationListener {
+
+  /**
+   * Remove a key from the local copy of the named cache.
+   *
+   * @param cacheName
+   * @param key
+   */
+  void keyInvalidated(String cacheName, String key);
+
+  /**
+   * Remove a key and all of its children from the local copy of the named cache.
+   *
+   * @param cacheName
+   * @param key
+   */
+  void childrenInvalidated(String cacheName, String key);
+
+  /**
+   * Clear the local copy of the named cache.
+   *
+   * @param cacheName
+   */
+  void cacheFlushed(String cacheName);
+
+  /**
+   * Clear the local copy of every cluster invalidated cache, used when invalidations may
+   * have been missed.
+   */
+  void allFlushed();
+
+}
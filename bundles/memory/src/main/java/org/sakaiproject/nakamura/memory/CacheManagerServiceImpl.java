@@ -24,10 +24,16 @@ import org.apache.commons.io.IOUtils;
 import org.apache.commons.lang.StringUtils;
 import org.apache.felix.scr.annotations.Activate;
 import org.apache.felix.scr.annotations.Component;
+import org.apache.felix.scr.annotations.Deactivate;
 import org.apache.felix.scr.annotations.Property;
+import org.apache.felix.scr.annotations.Reference;
+import org.apache.felix.scr.annotations.ReferenceCardinality;
+import org.apache.felix.scr.annotations.ReferencePolicy;
 import org.apache.felix.scr.annotations.Service;
 import org.apache.sling.commons.osgi.PropertiesUtil;
 import org.sakaiproject.nakamura.api.memory.Cache;
+import org.sakaiproject.nakamura.api.memory.CacheInvalidationBus;
+import org.sakaiproject.nakamura.api.memory.CacheInvalidationListener;
 import org.sakaiproject.nakamura.api.memory.CacheManagerService;
 import org.sakaiproject.nakamura.api.memory.CacheScope;
 import org.sakaiproject.nakamura.util.ResourceLoader;
@@ -40,20 +46,26 @@ import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStream;
 import java.lang.management.ManagementFactory;
-import java.util.HashMap;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Map;
 import java.util.Scanner;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
+import javax.management.JMException;
 import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.management.StandardMBean;
 
 /**
  * The <code>CacheManagerServiceImpl</code>
  */
 @Component(metatype=true)
-@Service(value=CacheManagerService.class)
-public class CacheManagerServiceImpl implements CacheManagerService {
+@Service(value={CacheManagerService.class, CacheInvalidationListener.class})
+public class CacheManagerServiceImpl implements CacheManagerService,
+    CacheInvalidationListener {
 
   public static final String DEFAULT_CACHE_CONFIG = "sling/ehcacheConfig.xml";
   public static final String DEFAULT_BIND_ADDRESS = "127.0.0.1";
@@ -68,6 +80,22 @@ public class CacheManagerServiceImpl implements CacheManagerService {
   @Property( value = DEFAULT_CACHE_STORE)
   public static final String CACHE_STORE = "cache-store";
 
+  @Property(value = {}, cardinality = Integer.MAX_VALUE, description = "Caches to keep in the tiered "
+      + "cache engine rather than Ehcache, as name;heapBytes or name;heapBytes;offHeapBytes. "
+      + "A name ending in * matches every cache whose name starts with the rest of it.")
+  public static final String TIERED_CACHES = "tiered-caches";
+
+  @Property(longValue = DEFAULT_TIERED_OFFHEAP_THRESHOLD, description = "Values evicted "
+      + "from a tiered cache are only kept off heap if they weigh at least this many bytes.")
+  public static final String TIERED_OFFHEAP_THRESHOLD = "tiered-offheap-threshold";
+
+  @Property(intValue = DEFAULT_SCOPED_CACHE_MAX_ENTRIES, description = "The most entries "
+      + "a request or thread scoped cache holds before dropping the oldest.")
+  public static final String SCOPED_CACHE_MAX_ENTRIES = "scoped-cache-max-entries";
+
+  public static final long DEFAULT_TIERED_OFFHEAP_THRESHOLD = 16384;
+  public static final int DEFAULT_SCOPED_CACHE_MAX_ENTRIES = 10000;
+
   @Property(value = "The Sakai Foundation")
   static final String SERVICE_VENDOR = "service.vendor";
 
@@ -77,9 +105,37 @@ public class CacheManagerServiceImpl implements CacheManagerService {
   private static final String CONFIG_PATH = "res://org/sakaiproject/nakamura/memory/ehcacheConfig.xml";
   private static final Logger LOGGER = LoggerFactory.getLogger(CacheManagerServiceImpl.class);
   private CacheManager cacheManager;
-  private Map<String, Cache<?>> caches = new HashMap<String, Cache<?>>();
+  private Map<String, Cache<?>> caches = new ConcurrentHashMap<String, Cache<?>>();
   private ThreadLocalCacheMap requestCacheMapHolder = new ThreadLocalCacheMap();
   private ThreadLocalCacheMap threadCacheMapHolder = new ThreadLocalCacheMap();
+  private List<TieredConfig> tieredConfigs = new ArrayList<TieredConfig>();
+  private long tieredOffHeapThreshold = DEFAULT_TIERED_OFFHEAP_THRESHOLD;
+  private int scopedCacheMaxEntries = DEFAULT_SCOPED_CACHE_MAX_ENTRIES;
+  private List<ObjectName> registeredMBeans = new ArrayList<ObjectName>();
+
+  @Reference(cardinality = ReferenceCardinality.OPTIONAL_UNARY, policy = ReferencePolicy.DYNAMIC)
+  protected CacheInvalidationBus invalidationBus;
+
+  /**
+   * Sizes for the caches that use the tiered cache engine.
+   */
+  private static class TieredConfig {
+    private final String name;
+    private final boolean prefix;
+    private final long heapBytes;
+    private final long offHeapBytes;
+
+    private TieredConfig(String name, long heapBytes, long offHeapBytes) {
+      this.prefix = name.endsWith("*");
+      this.name = prefix ? name.substring(0, name.length() - 1) : name;
+      this.heapBytes = heapBytes;
+      this.offHeapBytes = offHeapBytes;
+    }
+
+    private boolean matches(String cacheName) {
+      return prefix ? cacheName.startsWith(name) : cacheName.equals(name);
+    }
+  }
 
   public CacheManagerServiceImpl() throws IOException {
     create();
@@ -122,6 +178,7 @@ public class CacheManagerServiceImpl implements CacheManagerService {
 
    @Activate
    protected void activate(Map<String, Object> properties) throws FileNotFoundException, IOException {
+    configureTiered(properties);
 	  String config = PropertiesUtil.toString(properties.get(CACHE_CONFIG), DEFAULT_CACHE_CONFIG);
 	  File configFile = new File(config);
 	  ClassLoader cl = Thread.currentThread().getContextClassLoader();
@@ -154,6 +211,42 @@ public class CacheManagerServiceImpl implements CacheManagerService {
 	  }
    }
 
+  private void configureTiered(Map<String, Object> properties) {
+    tieredOffHeapThreshold = PropertiesUtil.toLong(properties.get(TIERED_OFFHEAP_THRESHOLD),
+        DEFAULT_TIERED_OFFHEAP_THRESHOLD);
+    scopedCacheMaxEntries = PropertiesUtil.toInteger(properties.get(SCOPED_CACHE_MAX_ENTRIES),
+        DEFAULT_SCOPED_CACHE_MAX_ENTRIES);
+    List<TieredConfig> configs = new ArrayList<TieredConfig>();
+    for (String tiered : PropertiesUtil.toStringArray(properties.get(TIERED_CACHES),
+        new String[0])) {
+      String[] parts = StringUtils.split(tiered, ';');
+      if (parts == null || parts.length < 2) {
+        continue;
+      }
+      try {
+        long heapBytes = Long.parseLong(parts[1].trim());
+        long offHeapBytes = (parts.length > 2) ? Long.parseLong(parts[2].trim()) : 0;
+        configs.add(new TieredConfig(parts[0].trim(), heapBytes, offHeapBytes));
+      } catch (NumberFormatException e) {
+        LOGGER.warn("Ignoring tiered cache configuration {}, sizes must be in bytes", tiered);
+      }
+    }
+    tieredConfigs = configs;
+  }
+
+  @Deactivate
+  protected void deactivate() {
+    MBeanServer mBeanServer = ManagementFactory.getPlatformMBeanServer();
+    for (ObjectName name : registeredMBeans) {
+      try {
+        mBeanServer.unregisterMBean(name);
+      } catch (JMException e) {
+        LOGGER.debug("Unable to unregister {}: {}", name, e.getMessage());
+      }
+    }
+    registeredMBeans.clear();
+  }
+
   protected InputStream processConfig(InputStream configFile, Map<String,Object> properties) {
     StringBuilder config = new StringBuilder();
     Pattern p = Pattern.compile("\\$\\{([\\S]+)}");
@@ -220,7 +313,7 @@ public class CacheManagerServiceImpl implements CacheManagerService {
     Map<String, Cache<?>> threadCacheMap = threadCacheMapHolder.get();
     Cache<V> threadCache = (Cache<V>) threadCacheMap.get(name);
     if (threadCache == null) {
-      threadCache = new MapCacheImpl<V>(name, CacheScope.THREAD);
+      threadCache = new MapCacheImpl<V>(name, CacheScope.THREAD, scopedCacheMaxEntries);
       threadCacheMap.put(name, threadCache);
     }
     return threadCache;
@@ -237,7 +330,7 @@ public class CacheManagerServiceImpl implements CacheManagerService {
     Map<String, Cache<?>> requestCacheMap = requestCacheMapHolder.get();
     Cache<V> requestCache = (Cache<V>) requestCacheMap.get(name);
     if (requestCache == null) {
-      requestCache = new MapCacheImpl<V>(name, CacheScope.REQUEST);
+      requestCache = new MapCacheImpl<V>(name, CacheScope.REQUEST, scopedCacheMaxEntries);
       requestCacheMap.put(name, requestCache);
     }
     return requestCache;
@@ -254,13 +347,127 @@ public class CacheManagerServiceImpl implements CacheManagerService {
     } else {
       Cache<V> c = (Cache<V>) caches.get(name);
       if (c == null) {
-        c = new CacheImpl<V>(cacheManager, name, scope);
+        TieredConfig tiered = getTieredConfig(name, scope);
+        if (tiered != null) {
+          c = createTieredCache(name, scope, tiered);
+        } else {
+          c = new CacheImpl<V>(cacheManager, name, scope);
+        }
+        if (CacheScope.CLUSTERINVALIDATED.equals(scope)) {
+          c = new ClusterInvalidatedCache<V>(name, c, this);
+        }
         caches.put(name, c);
       }
       return c;
     }
   }
 
+  /**
+   * @return The tiered configuration for the cache, or null if it is an Ehcache cache.
+   *         Replicated caches always use Ehcache.
+   */
+  private TieredConfig getTieredConfig(String name, CacheScope scope) {
+    if (CacheScope.CLUSTERREPLICATED.equals(scope)) {
+      return null;
+    }
+    for (TieredConfig config : tieredConfigs) {
+      if (config.matches(name)) {
+        return config;
+      }
+    }
+    return null;
+  }
+
+  private <V> Cache<V> createTieredCache(String name, CacheScope scope, TieredConfig config) {
+    TieredCacheImpl<V> cache = new TieredCacheImpl<V>(name, scope, config.heapBytes,
+        config.offHeapBytes, tieredOffHeapThreshold);
+    LOGGER.info("Cache {} is tiered with {} bytes on heap and {} off heap", new Object[] {
+        name, config.heapBytes, config.offHeapBytes });
+    try {
+      ObjectName objectName = new ObjectName("org.sakaiproject.nakamura.memory:type=TieredCache,name="
+          + ObjectName.quote(name));
+      MBeanServer mBeanServer = ManagementFactory.getPlatformMBeanServer();
+      if (mBeanServer.isRegistered(objectName)) {
+        mBeanServer.unregisterMBean(objectName);
+      }
+      mBeanServer.registerMBean(new StandardMBean(cache, TieredCacheStatsMBean.class),
+          objectName);
+      registeredMBeans.add(objectName);
+    } catch (JMException e) {
+      LOGGER.warn("Unable to register statistics for cache {}: {}", name, e.getMessage());
+    }
+    return cache;
+  }
+
+  /**
+   * @return the bus that carries invalidations to the rest of the cluster, null if
+   *         there is none.
+   */
+  CacheInvalidationBus getInvalidationBus() {
+    return invalidationBus;
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * @see org.sakaiproject.nakamura.api.memory.CacheInvalidationListener#keyInvalidated(java.lang.String, java.lang.String)
+   */
+  public void keyInvalidated(String cacheName, String key) {
+    Cache<?> cache = getLocalCache(cacheName);
+    if (cache != null) {
+      cache.remove(key);
+    }
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * @see org.sakaiproject.nakamura.api.memory.CacheInvalidationListener#childrenInvalidated(java.lang.String, java.lang.String)
+   */
+  public void childrenInvalidated(String cacheName, String key) {
+    Cache<?> cache = getLocalCache(cacheName);
+    if (cache != null) {
+      cache.removeChildren(key);
+    }
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * @see org.sakaiproject.nakamura.api.memory.CacheInvalidationListener#cacheFlushed(java.lang.String)
+   */
+  public void cacheFlushed(String cacheName) {
+    Cache<?> cache = getLocalCache(cacheName);
+    if (cache != null) {
+      cache.clear();
+    }
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * @see org.sakaiproject.nakamura.api.memory.CacheInvalidationListener#allFlushed()
+   */
+  public void allFlushed() {
+    for (Cache<?> cache : caches.values()) {
+      if (cache instanceof ClusterInvalidatedCache<?>) {
+        ((ClusterInvalidatedCache<?>) cache).getLocal().clear();
+      }
+    }
+  }
+
+  /**
+   * @return the local copy of a cluster invalidated cache, or null if this server has
+   *         not created the cache.
+   */
+  private Cache<?> getLocalCache(String cacheName) {
+    Cache<?> cache = (cacheName == null) ? null : caches.get(cacheName);
+    if (cache instanceof ClusterInvalidatedCache<?>) {
+      return ((ClusterInvalidatedCache<?>) cache).getLocal();
+    }
+    return null;
+  }
+
   /**
    * {@inheritDoc}
    *
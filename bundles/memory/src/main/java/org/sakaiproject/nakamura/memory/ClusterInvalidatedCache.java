@@ -0,0 +1,132 @@
+/**
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.memory;
+
+import org.sakaiproject.nakamura.api.memory.Cache;
+import org.sakaiproject.nakamura.api.memory.CacheInvalidationBus;
+import org.sakaiproject.nakamura.api.memory.CacheScope;
+
+import java.util.List;
+
+/**
+ * A cluster invalidated cache. Values are only held on this server, every change is
+ * passed to the {@link CacheInvalidationBus}, if there is one, so that the other servers
+ * drop their copies of the key.
+ */
+public class ClusterInvalidatedCache<V> implements Cache<V> {
+
+  private final String name;
+  private final Cache<V> local;
+  private final CacheManagerServiceImpl cacheManager;
+
+  public ClusterInvalidatedCache(String name, Cache<V> local,
+      CacheManagerServiceImpl cacheManager) {
+    this.name = name;
+    this.local = local;
+    this.cacheManager = cacheManager;
+  }
+
+  /**
+   * @return the cache on this server, changes made to it are not sent to the cluster.
+   */
+  Cache<V> getLocal() {
+    return local;
+  }
+
+  /**
+   * {@inheritDoc}
+   * @see org.sakaiproject.nakamura.api.memory.Cache#put(java.lang.String, java.lang.Object)
+   */
+  public V put(String key, V payload) {
+    V previous = local.put(key, payload);
+    CacheInvalidationBus bus = cacheManager.getInvalidationBus();
+    if (bus != null) {
+      bus.invalidate(name, key);
+    }
+    return previous;
+  }
+
+  /**
+   * {@inheritDoc}
+   * @see org.sakaiproject.nakamura.api.memory.Cache#containsKey(java.lang.String)
+   */
+  public boolean containsKey(String key) {
+    return local.containsKey(key);
+  }
+
+  /**
+   * {@inheritDoc}
+   * @see org.sakaiproject.nakamura.api.memory.Cache#get(java.lang.String)
+   */
+  public V get(String key) {
+    return local.get(key);
+  }
+
+  /**
+   * {@inheritDoc}
+   * @see org.sakaiproject.nakamura.api.memory.Cache#clear()
+   */
+  public void clear() {
+    local.clear();
+    CacheInvalidationBus bus = cacheManager.getInvalidationBus();
+    if (bus != null) {
+      bus.flush(name);
+    }
+  }
+
+  /**
+   * {@inheritDoc}
+   * @see org.sakaiproject.nakamura.api.memory.Cache#remove(java.lang.String)
+   */
+  public void remove(String key) {
+    local.remove(key);
+    CacheInvalidationBus bus = cacheManager.getInvalidationBus();
+    if (bus != null) {
+      bus.invalidate(name, key);
+    }
+  }
+
+  /**
+   * {@inheritDoc}
+   * @see org.sakaiproject.nakamura.api.memory.Cache#removeChildren(java.lang.String)
+   */
+  public void removeChildren(String key) {
+    local.removeChildren(key);
+    CacheInvalidationBus bus = cacheManager.getInvalidationBus();
+    if (bus != null) {
+      bus.invalidateChildren(name, key);
+    }
+  }
+
+  /**
+   * {@inheritDoc}
+   * @see org.sakaiproject.nakamura.api.memory.Cache#list()
+   */
+  public List<V> list() {
+    return local.list();
+  }
+
+  /**
+   * {@inheritDoc}
+   * @see org.sakaiproject.nakamura.api.memory.Cache#checkCompatableScope(org.sakaiproject.nakamura.api.memory.CacheScope)
+   */
+  public void checkCompatableScope(CacheScope scope) {
+    local.checkCompatableScope(scope);
+  }
+
+}
@@ -22,14 +22,17 @@ import org.sakaiproject.nakamura.api.memory.CacheScope;
 import org.sakaiproject.nakamura.api.memory.ThreadBound;
 
 import java.util.ArrayList;
-import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
-import java.util.Set;
+import java.util.Map.Entry;
 
 /**
- *
+ * A map backed cache for the request and thread scopes. It may be bounded, in which case
+ * the oldest entries are dropped to make room, apart from {@link ThreadBound} values
+ * which are only let go when the cache is cleared or they are removed.
  */
-public class MapCacheImpl<V> extends HashMap<String, V>implements Cache<V>  {
+public class MapCacheImpl<V> extends LinkedHashMap<String, V>implements Cache<V>  {
 
 
   /**
@@ -38,10 +41,35 @@ public class MapCacheImpl<V> extends HashMap<String, V>implements Cache<V>  {
   private static final long serialVersionUID = -5400056532743570231L;
   private CacheScope scope;
   private String name;
+  private int maxEntries;
 
   public MapCacheImpl(String name, CacheScope scope) {
+    this(name, scope, Integer.MAX_VALUE);
+  }
+
+  public MapCacheImpl(String name, CacheScope scope, int maxEntries) {
     this.scope = scope;
     this.name = name;
+    this.maxEntries = maxEntries;
+  }
+
+  /**
+   * {@inheritDoc}
+   * @see org.sakaiproject.nakamura.api.memory.Cache#put(java.lang.String, java.lang.Object)
+   */
+  @Override
+  public V put(String key, V payload) {
+    V previous = super.put(key, payload);
+    if (size() > maxEntries) {
+      for (Iterator<Entry<String, V>> i = super.entrySet().iterator(); i.hasNext();) {
+        Entry<String, V> e = i.next();
+        if (!(e.getValue() instanceof ThreadBound) && !e.getKey().equals(key)) {
+          i.remove();
+          break;
+        }
+      }
+    }
+    return previous;
   }
 
   /**
@@ -96,10 +124,9 @@ public class MapCacheImpl<V> extends HashMap<String, V>implements Cache<V>  {
     if ( !key.endsWith("/") ) {
       key = key + "/";
     }
-    Set<String> keys = super.keySet();
-    for ( String k : keys) {
-      if ( (k).startsWith(key) ) {
-        super.remove(k);
+    for ( Iterator<String> i = super.keySet().iterator(); i.hasNext(); ) {
+      if ( i.next().startsWith(key) ) {
+        i.remove();
       }
     }
   }
@@ -0,0 +1,277 @@
+/**
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.memory;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.ObjectStreamClass;
+import java.io.OutputStream;
+import java.io.Serializable;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * A second tier for large values, held serialized in direct buffers outside the heap and
+ * bounded by the number of bytes held. The least recently used values are dropped when
+ * it is full. Values from other bundles are read back with the class loaders of the
+ * classes that were written, so no class has to be visible to this bundle. It is not
+ * thread safe.
+ */
+final class OffHeapStore {
+
+  private static final Logger LOGGER = LoggerFactory.getLogger(OffHeapStore.class);
+
+  /**
+   * A value held off heap.
+   */
+  static class Stored {
+    private final ByteBuffer buffer;
+    private final ClassLoader[] loaders;
+
+    private Stored(ByteBuffer buffer, ClassLoader[] loaders) {
+      this.buffer = buffer;
+      this.loaders = loaders;
+    }
+  }
+
+  /**
+   * A value serialized on heap, ready to be stored.
+   */
+  static class Serialized {
+    private final byte[] data;
+    private final ClassLoader[] loaders;
+
+    private Serialized(byte[] data, ClassLoader[] loaders) {
+      this.data = data;
+      this.loaders = loaders;
+    }
+  }
+
+  private final long maxBytes;
+  private final Map<String, Stored> entries = new LinkedHashMap<String, Stored>(16,
+      0.75f, true);
+  private long bytes;
+  private long evictions;
+
+  OffHeapStore(long maxBytes) {
+    this.maxBytes = maxBytes;
+  }
+
+  /**
+   * @return The value serialized, or null if it cannot be serialized.
+   */
+  static Serialized serialize(Object value) {
+    if (!(value instanceof Serializable)) {
+      return null;
+    }
+    try {
+      ByteArrayOutputStream baos = new ByteArrayOutputStream();
+      LoaderRecordingOutputStream oos = new LoaderRecordingOutputStream(baos);
+      oos.writeObject(value);
+      oos.close();
+      return new Serialized(baos.toByteArray(), oos.getLoaders());
+    } catch (IOException e) {
+      LOGGER.debug("Unable to serialize {} for the off heap store: {}", value.getClass(),
+          e.getMessage());
+      return null;
+    } catch (RuntimeException e) {
+      // the value may be shared and changed while it is written, drop it rather than fail
+      // the put or get that evicted it.
+      LOGGER.debug("Unable to serialize {} for the off heap store: {}", value.getClass(),
+          e.toString());
+      return null;
+    }
+  }
+
+  /**
+   * Stores a serialized value, dropping the least recently used values to make room.
+   */
+  void put(String key, Serialized value) {
+    remove(key);
+    if (value.data.length > maxBytes) {
+      return;
+    }
+    while (bytes + value.data.length > maxBytes) {
+      Iterator<Stored> eldest = entries.values().iterator();
+      bytes -= eldest.next().buffer.capacity();
+      eldest.remove();
+      evictions++;
+    }
+    ByteBuffer buffer;
+    try {
+      buffer = ByteBuffer.allocateDirect(value.data.length);
+    } catch (OutOfMemoryError e) {
+      LOGGER.warn("Out of direct memory, not keeping {} off heap", key);
+      return;
+    }
+    buffer.put(value.data);
+    buffer.flip();
+    entries.put(key, new Stored(buffer, value.loaders));
+    bytes += value.data.length;
+  }
+
+  /**
+   * Removes a value without reading it back, so it can be read with
+   * {@link #read(String, Stored)} outside any lock.
+   *
+   * @return The value held, or null if there is none.
+   */
+  Stored detach(String key) {
+    Stored stored = entries.remove(key);
+    if (stored != null) {
+      bytes -= stored.buffer.capacity();
+    }
+    return stored;
+  }
+
+  /**
+   * @return The values held, read back but left in place.
+   */
+  List<Object> values() {
+    List<Object> values = new ArrayList<Object>(entries.size());
+    for (Map.Entry<String, Stored> e : entries.entrySet()) {
+      Object value = read(e.getKey(), e.getValue());
+      if (value != null) {
+        values.add(value);
+      }
+    }
+    return values;
+  }
+
+  /**
+   * Reads a value back. This does not change the store, and may be called by several
+   * threads at once for the same value.
+   *
+   * @return The value, or null if it cannot be read.
+   */
+  static Object read(String key, Stored stored) {
+    ByteBuffer buffer = stored.buffer.duplicate();
+    byte[] data = new byte[buffer.remaining()];
+    buffer.get(data);
+    try {
+      ObjectInputStream in = new LoaderObjectInputStream(new ByteArrayInputStream(data),
+          stored.loaders);
+      return in.readObject();
+    } catch (IOException e) {
+      LOGGER.debug("Unable to read {} from the off heap store: {}", key, e.getMessage());
+    } catch (ClassNotFoundException e) {
+      LOGGER.debug("Unable to read {} from the off heap store: {}", key, e.getMessage());
+    }
+    return null;
+  }
+
+  boolean containsKey(String key) {
+    return entries.containsKey(key);
+  }
+
+  void remove(String key) {
+    Stored stored = entries.remove(key);
+    if (stored != null) {
+      bytes -= stored.buffer.capacity();
+    }
+  }
+
+  /**
+   * @return A copy of the keys held.
+   */
+  Set<String> keys() {
+    return new LinkedHashSet<String>(entries.keySet());
+  }
+
+  void clear() {
+    entries.clear();
+    bytes = 0;
+  }
+
+  int size() {
+    return entries.size();
+  }
+
+  long getBytes() {
+    return bytes;
+  }
+
+  long getMaxBytes() {
+    return maxBytes;
+  }
+
+  long getEvictions() {
+    return evictions;
+  }
+
+  /**
+   * Notes the class loader of every class written.
+   */
+  private static class LoaderRecordingOutputStream extends ObjectOutputStream {
+    private final Set<ClassLoader> loaders = new LinkedHashSet<ClassLoader>();
+
+    LoaderRecordingOutputStream(OutputStream out) throws IOException {
+      super(out);
+    }
+
+    @Override
+    protected void annotateClass(Class<?> cl) throws IOException {
+      ClassLoader loader = cl.getClassLoader();
+      if (loader != null) {
+        loaders.add(loader);
+      }
+    }
+
+    ClassLoader[] getLoaders() {
+      return loaders.toArray(new ClassLoader[loaders.size()]);
+    }
+  }
+
+  /**
+   * Resolves classes with the loaders noted when the value was written.
+   */
+  private static class LoaderObjectInputStream extends ObjectInputStream {
+    private final ClassLoader[] loaders;
+
+    LoaderObjectInputStream(InputStream in, ClassLoader[] loaders) throws IOException {
+      super(in);
+      this.loaders = loaders;
+    }
+
+    @Override
+    protected Class<?> resolveClass(ObjectStreamClass desc) throws IOException,
+        ClassNotFoundException {
+      for (ClassLoader loader : loaders) {
+        try {
+          return Class.forName(desc.getName(), false, loader);
+        } catch (ClassNotFoundException e) {
+          // try the next one
+        }
+      }
+      return super.resolveClass(desc);
+    }
+  }
+}
@@ -0,0 +1,465 @@
+/**
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.memory;
+
+import org.sakaiproject.nakamura.api.memory.Cache;
+import org.sakaiproject.nakamura.api.memory.CacheScope;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A cache bounded by the weight of its values rather than their number.
+ * <p>
+ * New values go into a small window (1% of the weight). Values leaving the window have
+ * to be used more often, by the {@link FrequencySketch}, than the least recently used
+ * value in the main part of the cache to replace it (W-TinyLFU), so one-off values do
+ * not push out popular ones. Values that are evicted from the heap and weigh at least
+ * the off heap threshold are kept serialized in an {@link OffHeapStore}, if there is
+ * one, and brought back onto the heap when they are next used.
+ */
+public class TieredCacheImpl<V> implements Cache<V>, TieredCacheStatsMBean {
+
+  private static class Node {
+    private final String key;
+    private final Object value;
+    private final long weight;
+
+    private Node(String key, Object value, long weight) {
+      this.key = key;
+      this.value = value;
+      this.weight = weight;
+    }
+  }
+
+  /**
+   * Guess at the weight of an average value, to size the frequency sketch.
+   */
+  private static final int AVERAGE_WEIGHT = 1024;
+
+  private final String name;
+  private final CacheScope scope;
+  private final long maxWeight;
+  private final long windowMaxWeight;
+  private final long mainMaxWeight;
+  private final long offHeapThreshold;
+  private final OffHeapStore offHeap;
+  private final FrequencySketch sketch;
+  private final LinkedHashMap<String, Node> window = new LinkedHashMap<String, Node>(16,
+      0.75f, true);
+  private final LinkedHashMap<String, Node> main = new LinkedHashMap<String, Node>(16,
+      0.75f, true);
+  private long windowWeight;
+  private long mainWeight;
+
+  /**
+   * Nodes that have been evicted and are being serialized outside the lock. A node is
+   * only moved off heap if it is still here when that is done, anything that changes
+   * the key removes it.
+   */
+  private final Map<String, Node> demoting = new HashMap<String, Node>();
+
+  /**
+   * Values taken from the off heap store that are being read back outside the lock. A
+   * value is only put back on the heap if it is still here when that is done, anything
+   * that changes the key removes it.
+   */
+  private final Map<String, OffHeapStore.Stored> promoting =
+      new HashMap<String, OffHeapStore.Stored>();
+
+  private long hits;
+  private long misses;
+  private long offHeapHits;
+  private long evictions;
+  private long rejections;
+  private long loadTime;
+
+  /**
+   * @param name
+   *          The name of the cache.
+   * @param scope
+   *          The scope the cache was created for.
+   * @param maxWeight
+   *          The approximate number of bytes to hold on the heap.
+   * @param offHeapMaxBytes
+   *          The number of bytes to hold off the heap, 0 for no off heap tier.
+   * @param offHeapThreshold
+   *          Only values weighing at least this many bytes are moved off heap.
+   */
+  public TieredCacheImpl(String name, CacheScope scope, long maxWeight,
+      long offHeapMaxBytes, long offHeapThreshold) {
+    this.name = name;
+    this.scope = scope;
+    this.maxWeight = maxWeight;
+    windowMaxWeight = Math.max(1, maxWeight / 100);
+    mainMaxWeight = Math.max(1, maxWeight - windowMaxWeight);
+    this.offHeapThreshold = offHeapThreshold;
+    offHeap = (offHeapMaxBytes > 0) ? new OffHeapStore(offHeapMaxBytes) : null;
+    sketch = new FrequencySketch((int) Math.min(Integer.MAX_VALUE, maxWeight
+        / AVERAGE_WEIGHT));
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * The previous value is only returned if it was on the heap.
+   *
+   * @see org.sakaiproject.nakamura.api.memory.Cache#put(java.lang.String,
+   *      java.lang.Object)
+   */
+  @SuppressWarnings("unchecked")
+  public V put(String key, V payload) {
+    Node previous;
+    List<Node> evicted = new ArrayList<Node>();
+    synchronized (this) {
+      sketch.increment(key);
+      previous = discard(key);
+      insert(new Node(key, payload, Weigher.weigh(key, payload)), evicted);
+    }
+    demote(evicted);
+    return (previous == null) ? null : (V) previous.value;
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * @see org.sakaiproject.nakamura.api.memory.Cache#get(java.lang.String)
+   */
+  @SuppressWarnings("unchecked")
+  public V get(String key) {
+    OffHeapStore.Stored stored;
+    synchronized (this) {
+      sketch.increment(key);
+      Node node = window.get(key);
+      if (node == null) {
+        node = main.get(key);
+      }
+      if (node != null) {
+        hits++;
+        return (V) node.value;
+      }
+      stored = promoting.get(key);
+      if (stored == null && offHeap != null) {
+        stored = offHeap.detach(key);
+        if (stored != null) {
+          promoting.put(key, stored);
+        }
+      }
+      if (stored == null) {
+        misses++;
+        return null;
+      }
+    }
+
+    // deserialize outside the lock, a large value would hold up every other caller.
+    long start = System.nanoTime();
+    Object value = OffHeapStore.read(key, stored);
+    long weight = (value == null) ? 0 : Weigher.weigh(key, value);
+    long elapsed = System.nanoTime() - start;
+
+    List<Node> evicted = new ArrayList<Node>();
+    synchronized (this) {
+      loadTime += elapsed;
+      if (value == null) {
+        if (promoting.get(key) == stored) {
+          promoting.remove(key);
+        }
+        misses++;
+        return null;
+      }
+      hits++;
+      offHeapHits++;
+      if (promoting.get(key) == stored) {
+        // nothing has changed the key while it was read, and no other reader put it back.
+        promoting.remove(key);
+        insert(new Node(key, value, weight), evicted);
+      }
+    }
+    demote(evicted);
+    return (V) value;
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * @see org.sakaiproject.nakamura.api.memory.Cache#containsKey(java.lang.String)
+   */
+  public synchronized boolean containsKey(String key) {
+    return window.containsKey(key) || main.containsKey(key) || promoting.containsKey(key)
+        || (offHeap != null && offHeap.containsKey(key));
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * @see org.sakaiproject.nakamura.api.memory.Cache#clear()
+   */
+  public synchronized void clear() {
+    window.clear();
+    main.clear();
+    demoting.clear();
+    promoting.clear();
+    windowWeight = 0;
+    mainWeight = 0;
+    if (offHeap != null) {
+      offHeap.clear();
+    }
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * @see org.sakaiproject.nakamura.api.memory.Cache#remove(java.lang.String)
+   */
+  public synchronized void remove(String key) {
+    discard(key);
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * @see org.sakaiproject.nakamura.api.memory.Cache#removeChildren(java.lang.String)
+   */
+  public synchronized void removeChildren(String key) {
+    discard(key);
+    if (!key.endsWith("/")) {
+      key = key + "/";
+    }
+    List<String> keys = new ArrayList<String>(window.keySet());
+    keys.addAll(main.keySet());
+    keys.addAll(demoting.keySet());
+    keys.addAll(promoting.keySet());
+    if (offHeap != null) {
+      keys.addAll(offHeap.keys());
+    }
+    for (String k : keys) {
+      if (k.startsWith(key)) {
+        discard(k);
+      }
+    }
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * @see org.sakaiproject.nakamura.api.memory.Cache#list()
+   */
+  @SuppressWarnings("unchecked")
+  public synchronized List<V> list() {
+    List<V> values = new ArrayList<V>(window.size() + main.size());
+    for (Node node : window.values()) {
+      values.add((V) node.value);
+    }
+    for (Node node : main.values()) {
+      values.add((V) node.value);
+    }
+    for (Map.Entry<String, OffHeapStore.Stored> e : promoting.entrySet()) {
+      Object value = OffHeapStore.read(e.getKey(), e.getValue());
+      if (value != null) {
+        values.add((V) value);
+      }
+    }
+    if (offHeap != null) {
+      for (Object value : offHeap.values()) {
+        values.add((V) value);
+      }
+    }
+    return values;
+  }
+
+  public void checkCompatableScope(CacheScope scope) {
+    if (!scope.equals(this.scope)) {
+      throw new IllegalStateException("The cache called " + name + " is a " + this.scope
+          + " cache and cant be re-used as a " + scope + " cache");
+    }
+  }
+
+  // ---------- TieredCacheStatsMBean ----------
+
+  public String getName() {
+    return name;
+  }
+
+  public synchronized long getHits() {
+    return hits;
+  }
+
+  public synchronized long getMisses() {
+    return misses;
+  }
+
+  public synchronized long getOffHeapHits() {
+    return offHeapHits;
+  }
+
+  public synchronized long getEvictions() {
+    return evictions;
+  }
+
+  public synchronized long getRejections() {
+    return rejections;
+  }
+
+  public synchronized long getLoadTimeMillis() {
+    return TimeUnit.NANOSECONDS.toMillis(loadTime);
+  }
+
+  public synchronized int getSize() {
+    return window.size() + main.size();
+  }
+
+  public synchronized long getWeight() {
+    return windowWeight + mainWeight;
+  }
+
+  public long getMaxWeight() {
+    return maxWeight;
+  }
+
+  public synchronized int getOffHeapSize() {
+    return (offHeap == null) ? 0 : offHeap.size();
+  }
+
+  public synchronized long getOffHeapBytes() {
+    return (offHeap == null) ? 0 : offHeap.getBytes();
+  }
+
+  public long getOffHeapMaxBytes() {
+    return (offHeap == null) ? 0 : offHeap.getMaxBytes();
+  }
+
+  public synchronized long getOffHeapEvictions() {
+    return (offHeap == null) ? 0 : offHeap.getEvictions();
+  }
+
+  // ---------- Implementation ----------
+
+  /**
+   * Adds a node to the window, and moves nodes from the window to the main part of the
+   * cache if they are used often enough.
+   *
+   * @param evicted
+   *          Nodes evicted from the heap that may be moved off heap are added to this.
+   */
+  private void insert(Node node, List<Node> evicted) {
+    if (node.weight > mainMaxWeight) {
+      // too big to go on the heap at all
+      evictions++;
+      evicted(node, evicted);
+      return;
+    }
+    window.put(node.key, node);
+    windowWeight += node.weight;
+    while (windowWeight > windowMaxWeight) {
+      Iterator<Node> eldest = window.values().iterator();
+      Node candidate = eldest.next();
+      eldest.remove();
+      windowWeight -= candidate.weight;
+      admit(candidate, evicted);
+    }
+  }
+
+  /**
+   * Moves a node from the window to the main part of the cache. While there is not room
+   * for it, it replaces the least recently used node of the main part if it has been
+   * used more often, otherwise it is evicted itself.
+   */
+  private void admit(Node candidate, List<Node> evicted) {
+    int frequency = -1;
+    while (mainWeight + candidate.weight > mainMaxWeight && !main.isEmpty()) {
+      Iterator<Node> eldest = main.values().iterator();
+      Node victim = eldest.next();
+      if (frequency < 0) {
+        frequency = sketch.frequency(candidate.key);
+      }
+      evictions++;
+      if (frequency > sketch.frequency(victim.key)) {
+        eldest.remove();
+        mainWeight -= victim.weight;
+        evicted(victim, evicted);
+      } else {
+        rejections++;
+        evicted(candidate, evicted);
+        return;
+      }
+    }
+    main.put(candidate.key, candidate);
+    mainWeight += candidate.weight;
+  }
+
+  private void evicted(Node node, List<Node> evicted) {
+    if (offHeap != null && node.weight >= offHeapThreshold) {
+      demoting.put(node.key, node);
+      evicted.add(node);
+    }
+  }
+
+  /**
+   * Serializes evicted nodes outside the lock, then moves them off heap unless their
+   * keys have changed since.
+   */
+  private void demote(List<Node> evicted) {
+    if (evicted.isEmpty()) {
+      return;
+    }
+    List<OffHeapStore.Serialized> serialized = new ArrayList<OffHeapStore.Serialized>(
+        evicted.size());
+    for (Node node : evicted) {
+      serialized.add(OffHeapStore.serialize(node.value));
+    }
+    synchronized (this) {
+      for (int i = 0; i < evicted.size(); i++) {
+        Node node = evicted.get(i);
+        if (demoting.get(node.key) == node) {
+          demoting.remove(node.key);
+          if (serialized.get(i) != null) {
+            offHeap.put(node.key, serialized.get(i));
+          }
+        }
+      }
+    }
+  }
+
+  /**
+   * Removes a key from every tier.
+   *
+   * @return The node that was on the heap, if any.
+   */
+  private Node discard(String key) {
+    demoting.remove(key);
+    promoting.remove(key);
+    if (offHeap != null) {
+      offHeap.remove(key);
+    }
+    Node node = window.remove(key);
+    if (node != null) {
+      windowWeight -= node.weight;
+      return node;
+    }
+    node = main.remove(key);
+    if (node != null) {
+      mainWeight -= node.weight;
+    }
+    return node;
+  }
+}
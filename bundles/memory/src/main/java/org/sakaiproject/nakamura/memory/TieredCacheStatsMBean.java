@@ -0,0 +1,71 @@
+/**
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.memory;
+
+/**
+ * Statistics for a tiered cache.
+ */
+public interface TieredCacheStatsMBean {
+
+  String getName();
+
+  /**
+   * @return gets that found a value, on heap or off heap.
+   */
+  long getHits();
+
+  long getMisses();
+
+  /**
+   * @return gets that found a value in the off heap tier.
+   */
+  long getOffHeapHits();
+
+  /**
+   * @return values that left the heap tier, by eviction or by being refused admission.
+   */
+  long getEvictions();
+
+  /**
+   * @return new values that were refused admission to the main heap tier because they
+   *         were used less than the value they would have replaced.
+   */
+  long getRejections();
+
+  /**
+   * @return total time spent reading values back from the off heap tier.
+   */
+  long getLoadTimeMillis();
+
+  int getSize();
+
+  long getWeight();
+
+  long getMaxWeight();
+
+  int getOffHeapSize();
+
+  long getOffHeapBytes();
+
+  long getOffHeapMaxBytes();
+
+  long getOffHeapEvictions();
+
+  void clear();
+
+}
@@ -0,0 +1,107 @@
+/**
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.memory;
+
+import org.sakaiproject.nakamura.api.memory.Weighable;
+
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Map.Entry;
+
+/**
+ * Estimates the memory taken by cached values. The estimates are rough, they only have
+ * to tell a widget map from a short string. Large collections are weighed from a sample
+ * of their elements.
+ */
+final class Weigher {
+
+  private static final int OBJECT = 16;
+  private static final int REFERENCE = 8;
+  private static final int UNKNOWN = 64;
+  private static final int MAX_DEPTH = 4;
+  private static final int SAMPLE = 32;
+
+  private Weigher() {
+  }
+
+  /**
+   * @return The approximate weight of the entry in bytes.
+   */
+  static long weigh(String key, Object value) {
+    return OBJECT + REFERENCE * 2 + weigh(key, 0) + weigh(value, 0);
+  }
+
+  private static long weigh(Object value, int depth) {
+    if (value == null) {
+      return 0;
+    }
+    if (value instanceof Weighable) {
+      return ((Weighable) value).getWeight();
+    }
+    if (value instanceof String) {
+      return 40 + 2L * ((String) value).length();
+    }
+    if (value instanceof byte[]) {
+      return OBJECT + ((byte[]) value).length;
+    }
+    if (value instanceof char[]) {
+      return OBJECT + 2L * ((char[]) value).length;
+    }
+    if (value instanceof Number || value instanceof Boolean || value instanceof Character) {
+      return OBJECT + REFERENCE;
+    }
+    if (depth >= MAX_DEPTH) {
+      return UNKNOWN;
+    }
+    if (value instanceof Map<?, ?>) {
+      Map<?, ?> map = (Map<?, ?>) value;
+      long sample = 0;
+      int n = 0;
+      for (Iterator<? extends Entry<?, ?>> i = map.entrySet().iterator(); i.hasNext()
+          && n < SAMPLE; n++) {
+        Entry<?, ?> e = i.next();
+        sample += 32 + weigh(e.getKey(), depth + 1) + weigh(e.getValue(), depth + 1);
+      }
+      return 48 + REFERENCE * map.size() + extrapolate(sample, n, map.size());
+    }
+    if (value instanceof Collection<?>) {
+      Collection<?> collection = (Collection<?>) value;
+      long sample = 0;
+      int n = 0;
+      for (Iterator<?> i = collection.iterator(); i.hasNext() && n < SAMPLE; n++) {
+        sample += weigh(i.next(), depth + 1);
+      }
+      return 40 + REFERENCE * collection.size() + extrapolate(sample, n, collection.size());
+    }
+    if (value instanceof Object[]) {
+      Object[] array = (Object[]) value;
+      long sample = 0;
+      int n = Math.min(array.length, SAMPLE);
+      for (int i = 0; i < n; i++) {
+        sample += weigh(array[i], depth + 1);
+      }
+      return OBJECT + REFERENCE * array.length + extrapolate(sample, n, array.length);
+    }
+    return UNKNOWN;
+  }
+
+  private static long extrapolate(long sample, int sampled, int size) {
+    return (sampled == 0) ? 0 : sample * size / sampled;
+  }
+}
@@ -1,15 +1,23 @@
 package org.sakaiproject.nakamura.memory;
 
 import org.junit.Test;
+import org.sakaiproject.nakamura.api.memory.Cache;
+import org.sakaiproject.nakamura.api.memory.CacheInvalidationBus;
+import org.sakaiproject.nakamura.api.memory.CacheScope;
 
 import java.io.BufferedReader;
 import java.io.ByteArrayInputStream;
 import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
 
 public class CacheManagerServiceImplTest {
 
@@ -23,4 +31,51 @@ public class CacheManagerServiceImplTest {
     BufferedReader reader = new BufferedReader(new InputStreamReader(finishedConfig));
     assertEquals(reader.readLine(), "Howdy, kind Globe!");
   }
+
+  @Test
+  public void clusterInvalidatedChangesAreSentButRemoteOnesAreNot() throws Exception {
+    CacheManagerServiceImpl cacheManagerService = new CacheManagerServiceImpl();
+    final List<String> sent = new ArrayList<String>();
+    cacheManagerService.invalidationBus = new CacheInvalidationBus() {
+      public void invalidate(String cacheName, String key) {
+        sent.add("key " + cacheName + " " + key);
+      }
+
+      public void invalidateChildren(String cacheName, String key) {
+        sent.add("children " + cacheName + " " + key);
+      }
+
+      public void flush(String cacheName) {
+        sent.add("flush " + cacheName);
+      }
+    };
+    try {
+      Cache<String> cache = cacheManagerService.getCache("invalidated",
+          CacheScope.CLUSTERINVALIDATED);
+      Cache<String> instance = cacheManagerService.getCache("instance", CacheScope.INSTANCE);
+      cache.put("a", "1");
+      cache.put("b", "2");
+      cache.put("b/c", "3");
+      cache.removeChildren("b");
+      instance.put("a", "1");
+      instance.clear();
+      cache.clear();
+      assertEquals(Arrays.asList("key invalidated a", "key invalidated b",
+          "key invalidated b/c", "children invalidated b", "flush invalidated"), sent);
+
+      sent.clear();
+      cache.put("a", "1");
+      cache.put("b", "2");
+      sent.clear();
+      cacheManagerService.keyInvalidated("invalidated", "a");
+      assertFalse(cache.containsKey("a"));
+      assertTrue(cache.containsKey("b"));
+      cacheManagerService.allFlushed();
+      assertFalse(cache.containsKey("b"));
+      cacheManagerService.keyInvalidated("unknown", "a");
+      assertTrue(sent.isEmpty());
+    } finally {
+      cacheManagerService.stop();
+    }
+  }
 }
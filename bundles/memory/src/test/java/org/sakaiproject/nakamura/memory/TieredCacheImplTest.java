@@ -0,0 +1,266 @@
+/**
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.memory;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+import org.sakaiproject.nakamura.api.memory.CacheScope;
+import org.sakaiproject.nakamura.api.memory.ThreadBound;
+import org.sakaiproject.nakamura.api.memory.Weighable;
+
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.ConcurrentModificationException;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+public class TieredCacheImplTest {
+
+  /**
+   * A large value that waits for {@link #release} while it is read back.
+   */
+  private static class SlowToRead implements Serializable, Weighable {
+    private static final long serialVersionUID = 1L;
+    private static CountDownLatch reading;
+    private static CountDownLatch release;
+
+    public long getWeight() {
+      return 1024 * 1024;
+    }
+
+    private void readObject(ObjectInputStream in) throws IOException,
+        ClassNotFoundException {
+      in.defaultReadObject();
+      reading.countDown();
+      try {
+        release.await();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+    }
+  }
+
+  /**
+   * A large value that fails while it is written, as a shared value changed at the time
+   * might.
+   */
+  private static class FailsToWrite implements Serializable, Weighable {
+    private static final long serialVersionUID = 1L;
+
+    public long getWeight() {
+      return 1024 * 1024;
+    }
+
+    private void writeObject(ObjectOutputStream out) throws IOException {
+      throw new ConcurrentModificationException();
+    }
+  }
+
+  private static String value(int size, char c) {
+    StringBuilder sb = new StringBuilder(size);
+    for (int i = 0; i < size; i++) {
+      sb.append(c);
+    }
+    return sb.toString();
+  }
+
+  @Test
+  public void testPutGetRemove() {
+    TieredCacheImpl<String> cache = new TieredCacheImpl<String>("test",
+        CacheScope.INSTANCE, 1024 * 1024, 0, 0);
+    assertNull(cache.put("/a", "1"));
+    assertEquals("1", cache.put("/a", "2"));
+    cache.put("/a/b", "3");
+    cache.put("/a/b/c", "4");
+    cache.put("/ab", "5");
+    assertEquals("2", cache.get("/a"));
+    assertTrue(cache.containsKey("/a/b"));
+    assertEquals(4, cache.list().size());
+
+    cache.removeChildren("/a");
+    assertFalse(cache.containsKey("/a"));
+    assertFalse(cache.containsKey("/a/b"));
+    assertFalse(cache.containsKey("/a/b/c"));
+    assertEquals("5", cache.get("/ab"));
+
+    cache.remove("/ab");
+    assertNull(cache.get("/ab"));
+    assertEquals(2, cache.getHits());
+    assertEquals(1, cache.getMisses());
+    assertEquals(0, cache.getWeight());
+  }
+
+  @Test
+  public void testBoundedByWeight() {
+    TieredCacheImpl<String> cache = new TieredCacheImpl<String>("test",
+        CacheScope.INSTANCE, 64 * 1024, 0, 0);
+    for (int i = 0; i < 1000; i++) {
+      cache.put("key" + i, value(1000, 'x'));
+      assertTrue(cache.getWeight() <= cache.getMaxWeight());
+    }
+    assertTrue(cache.getSize() < 64);
+    assertTrue(cache.getEvictions() > 900);
+  }
+
+  @Test
+  public void testFrequentlyUsedValuesSurviveAScan() {
+    TieredCacheImpl<String> cache = new TieredCacheImpl<String>("test",
+        CacheScope.INSTANCE, 64 * 1024, 0, 0);
+    for (int i = 0; i < 20; i++) {
+      cache.put("hot" + i, value(1000, 'h'));
+    }
+    for (int n = 0; n < 5; n++) {
+      for (int i = 0; i < 20; i++) {
+        assertEquals("hot" + i, 1000, cache.get("hot" + i).length());
+      }
+    }
+    // one-off values are not used enough to push out the hot ones
+    for (int i = 0; i < 200; i++) {
+      cache.put("cold" + i, value(1000, 'c'));
+    }
+    for (int i = 0; i < 20; i++) {
+      assertTrue("hot" + i, cache.containsKey("hot" + i));
+    }
+    assertTrue(cache.getRejections() > 0);
+  }
+
+  @Test
+  public void testOffHeap() {
+    TieredCacheImpl<HashMap<String, String>> cache = new TieredCacheImpl<HashMap<String, String>>(
+        "test", CacheScope.INSTANCE, 16 * 1024, 1024 * 1024, 1024);
+    List<HashMap<String, String>> values = new ArrayList<HashMap<String, String>>();
+    for (int i = 0; i < 40; i++) {
+      HashMap<String, String> value = new HashMap<String, String>();
+      value.put("value", value(1000, (char) ('a' + (i % 26))));
+      values.add(value);
+      cache.put("key" + i, value);
+    }
+    assertTrue(cache.getOffHeapSize() > 0);
+    assertTrue(cache.getOffHeapBytes() <= cache.getOffHeapMaxBytes());
+    for (int i = 0; i < 40; i++) {
+      assertEquals("key" + i, values.get(i), cache.get("key" + i));
+    }
+    assertTrue(cache.getOffHeapHits() > 0);
+    assertEquals(0, cache.getMisses());
+    assertEquals(40, cache.list().size());
+
+    cache.clear();
+    assertEquals(0, cache.getOffHeapSize());
+    assertEquals(0, cache.getOffHeapBytes());
+    assertNull(cache.get("key1"));
+  }
+
+  @Test
+  public void testTooBigForHeap() {
+    TieredCacheImpl<String> cache = new TieredCacheImpl<String>("test",
+        CacheScope.INSTANCE, 1024, 1024 * 1024, 0);
+    String big = value(10000, 'b');
+    cache.put("big", big);
+    assertEquals(0, cache.getSize());
+    assertEquals(1, cache.getOffHeapSize());
+    assertEquals(big, cache.get("big"));
+
+    TieredCacheImpl<String> heapOnly = new TieredCacheImpl<String>("test",
+        CacheScope.INSTANCE, 1024, 0, 0);
+    heapOnly.put("big", big);
+    assertNull(heapOnly.get("big"));
+  }
+
+  @Test(timeout = 30000)
+  public void testOffHeapReadIsOutsideTheLock() throws Exception {
+    final TieredCacheImpl<Object> cache = new TieredCacheImpl<Object>("test",
+        CacheScope.INSTANCE, 64 * 1024, 4 * 1024 * 1024, 1024);
+    cache.put("slow", new SlowToRead());
+    assertEquals(1, cache.getOffHeapSize());
+
+    SlowToRead.reading = new CountDownLatch(1);
+    SlowToRead.release = new CountDownLatch(1);
+    final List<Object> read = new ArrayList<Object>();
+    Thread reader = new Thread() {
+      @Override
+      public void run() {
+        read.add(cache.get("slow"));
+      }
+    };
+    reader.start();
+    assertTrue(SlowToRead.reading.await(10, TimeUnit.SECONDS));
+
+    // other callers carry on while the value is read back.
+    cache.put("other", "value");
+    assertEquals("value", cache.get("other"));
+    assertTrue(cache.containsKey("slow"));
+
+    SlowToRead.release.countDown();
+    reader.join(10000);
+    assertEquals(1, read.size());
+    assertTrue(read.get(0) instanceof SlowToRead);
+    assertEquals(1, cache.getOffHeapHits());
+  }
+
+  @Test
+  public void testValueThatFailsToSerializeIsDropped() {
+    TieredCacheImpl<Object> cache = new TieredCacheImpl<Object>("test",
+        CacheScope.INSTANCE, 64 * 1024, 4 * 1024 * 1024, 1024);
+    cache.put("fails", new FailsToWrite());
+    assertEquals(0, cache.getOffHeapSize());
+    assertNull(cache.get("fails"));
+  }
+
+  @Test(expected = IllegalStateException.class)
+  public void testScope() {
+    new TieredCacheImpl<String>("test", CacheScope.INSTANCE, 1024, 0, 0)
+        .checkCompatableScope(CacheScope.CLUSTERREPLICATED);
+  }
+
+  @Test
+  public void testBoundedMapCache() {
+    final List<String> unbound = new ArrayList<String>();
+    ThreadBound bound = new ThreadBound() {
+      public void unbind() {
+        unbound.add("bound");
+      }
+    };
+    MapCacheImpl<Object> cache = new MapCacheImpl<Object>("test", CacheScope.REQUEST, 10);
+    cache.put("bound", bound);
+    for (int i = 0; i < 100; i++) {
+      cache.put("key" + i, "value" + i);
+    }
+    assertEquals(10, cache.size());
+    assertTrue(cache.containsKey("bound"));
+    assertTrue(cache.containsKey("key99"));
+    assertFalse(cache.containsKey("key0"));
+    assertTrue(unbound.isEmpty());
+
+    cache.put("/a", "a");
+    cache.put("/a/b", "b");
+    cache.removeChildren("/a");
+    assertFalse(cache.containsKey("/a"));
+    assertFalse(cache.containsKey("/a/b"));
+    cache.clear();
+    assertEquals(1, unbound.size());
+  }
+}
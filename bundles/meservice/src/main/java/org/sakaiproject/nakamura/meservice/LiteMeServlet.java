@@ -39,6 +39,7 @@ import org.apache.solr.common.params.CommonParams;
 import org.perf4j.aop.Profiled;
 import org.sakaiproject.nakamura.api.connections.ConnectionConstants;
 import org.sakaiproject.nakamura.api.connections.ConnectionManager;
+import org.sakaiproject.nakamura.api.connections.ConnectionState;
 import org.sakaiproject.nakamura.api.doc.BindingType;
 import org.sakaiproject.nakamura.api.doc.ServiceBinding;
 import org.sakaiproject.nakamura.api.doc.ServiceDocumentation;
@@ -149,6 +150,9 @@ public class LiteMeServlet extends SlingSafeMethodsServlet {
   @Reference
   protected DynamicContentResponseCache dynamicContentResponseCache;
 
+  @Reference
+  protected MeCountsService meCountsService;
+
   @Reference
   protected transient LocaleUtils localeUtils;
 
@@ -164,7 +168,17 @@ public class LiteMeServlet extends SlingSafeMethodsServlet {
     if (dynamicContentResponseCache.send304WhenClientHasFreshETag(UserConstants.USER_RESPONSE_CACHE, request, response)) {
       return;
     }
-    getUncached(request, response);
+    // the cache is per user, so only cache the response about the user themselves.
+    String requestedUserId = request.getParameter("uid");
+    if (requestedUserId != null && requestedUserId.length() > 0) {
+      getUncached(request, response);
+      return;
+    }
+    if (dynamicContentResponseCache.sendCachedResponse(UserConstants.USER_RESPONSE_CACHE, request, response)) {
+      return;
+    }
+    getUncached(request, dynamicContentResponseCache.captureResponse(
+        UserConstants.USER_RESPONSE_CACHE, request, response));
 
   }
 
@@ -177,7 +191,7 @@ public class LiteMeServlet extends SlingSafeMethodsServlet {
    * @see {@link #doGet(SlingHttpServletRequest, SlingHttpServletResponse)}
    */
   @Profiled(tag="meservice:LiteMeServlet:/system/me")
-  private void getUncached(SlingHttpServletRequest request, SlingHttpServletResponse response)
+  private void getUncached(SlingHttpServletRequest request, HttpServletResponse response)
       throws IOException {
     TelemetryCounter.incrementValue("meservice", "LiteMeServlet", "/system/me");
     try {
@@ -291,7 +305,8 @@ public class LiteMeServlet extends SlingSafeMethodsServlet {
 
   /**
    * Writes a JSON Object that contains the number of contacts for a user split up in
-   * PENDING, ACCEPTED.
+   * PENDING, ACCEPTED. The numbers are kept by the {@link MeCountsService}, the contact
+   * store is only queried when they could not be computed.
    *
    * @param writer
    * @param au
@@ -311,6 +326,16 @@ public class LiteMeServlet extends SlingSafeMethodsServlet {
       return;
     }
 
+    MeCounts counts = meCountsService.getCounts(userID);
+    if (counts != null) {
+      for (ConnectionState state : new ConnectionState[] { ACCEPTED, INVITED, PENDING }) {
+        writer.key(state.toString().toLowerCase());
+        writer.value(counts.getContacts(state));
+      }
+      writer.endObject();
+      return;
+    }
+
     // Get the path to the store for this user.
     Map<String, Integer> contacts = new HashMap<String, Integer>();
     contacts.put(ACCEPTED.toString().toLowerCase(), 0);
@@ -349,7 +374,8 @@ public class LiteMeServlet extends SlingSafeMethodsServlet {
   }
 
   /**
-   * Writes a JSON Object that contains the unread messages for a user.
+   * Writes a JSON Object that contains the unread messages for a user. The number is kept
+   * by the {@link MeCountsService}, the message store is only queried when it is not.
    *
    * @param writer
    *          The writer
@@ -376,6 +402,14 @@ public class LiteMeServlet extends SlingSafeMethodsServlet {
       return;
     }
 
+    // Users with more unread messages than are kept are counted by query.
+    MeCounts counts = meCountsService.getCounts(userID);
+    if (counts != null && counts.isUnreadTracked()) {
+      writer.value(counts.getUnread());
+      writer.endObject();
+      return;
+    }
+
     long count = 0;
     try {
       String store = messagingService.getFullPathToStore(au.getId(), session);
@@ -0,0 +1,199 @@
+/**
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.meservice;
+
+import org.sakaiproject.nakamura.api.connections.ConnectionState;
+
+import java.io.Serializable;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * The counts /system/me shows for a user: unread inbox messages and contacts by state.
+ * Instances are immutable so they can be shared through a replicated cache; every change
+ * makes a new copy.
+ */
+public class MeCounts implements Serializable {
+
+  private static final long serialVersionUID = 4518276409856322014L;
+
+  private final String userId;
+
+  /**
+   * The paths of the unread inbox messages, or null if the user has more unread messages
+   * than are tracked, in which case the unread count has to be queried.
+   */
+  private final Set<String> unread;
+
+  private final int accepted;
+
+  private final int invited;
+
+  private final int pending;
+
+  /**
+   * When the counts were last recomputed from the index.
+   */
+  private final long reconciled;
+
+  /**
+   * When the counts were last changed by an event.
+   */
+  private final long modified;
+
+  public MeCounts(String userId, Collection<String> unread, int accepted, int invited,
+      int pending, long reconciled) {
+    this(userId, unread == null ? null : Collections.unmodifiableSet(new HashSet<String>(
+        unread)), accepted, invited, pending, reconciled, reconciled);
+  }
+
+  private MeCounts(String userId, Set<String> unread, int accepted, int invited,
+      int pending, long reconciled, long modified) {
+    this.userId = userId;
+    this.unread = unread;
+    this.accepted = accepted;
+    this.invited = invited;
+    this.pending = pending;
+    this.reconciled = reconciled;
+    this.modified = modified;
+  }
+
+  public String getUserId() {
+    return userId;
+  }
+
+  /**
+   * @return the number of unread inbox messages, or -1 if they are not tracked for this
+   *         user.
+   */
+  public int getUnread() {
+    return unread == null ? -1 : unread.size();
+  }
+
+  public boolean isUnreadTracked() {
+    return unread != null;
+  }
+
+  /**
+   * @return the number of contacts in the given state. Only ACCEPTED, INVITED and PENDING
+   *         are counted, every other state gives 0.
+   */
+  public int getContacts(ConnectionState state) {
+    switch (state) {
+    case ACCEPTED:
+      return accepted;
+    case INVITED:
+      return invited;
+    case PENDING:
+      return pending;
+    default:
+      return 0;
+    }
+  }
+
+  /**
+   * @return these counts, marked as changed at modified and never recomputed, so that they
+   *         are recomputed once the index has had time to catch up with the change.
+   */
+  public MeCounts unsettled(long modified) {
+    return new MeCounts(userId, unread, accepted, invited, pending, 0L, modified);
+  }
+
+  public long getReconciled() {
+    return reconciled;
+  }
+
+  public long getModified() {
+    return modified;
+  }
+
+  /**
+   * @param path
+   *          the path of an inbox message.
+   * @param isUnread
+   *          true if the message is now unread, false if it has been read, moved out of
+   *          the inbox or deleted.
+   * @return the counts with the change applied, this if nothing changed.
+   */
+  public MeCounts withMessage(String path, boolean isUnread, long now) {
+    if (unread == null || unread.contains(path) == isUnread) {
+      return this;
+    }
+    Set<String> changed = new HashSet<String>(unread);
+    if (isUnread) {
+      changed.add(path);
+    } else {
+      changed.remove(path);
+    }
+    return new MeCounts(userId, Collections.unmodifiableSet(changed), accepted, invited,
+        pending, reconciled, now);
+  }
+
+  /**
+   * @return the counts with one contact moved from one state to another, this if neither
+   *         state is counted.
+   */
+  public MeCounts withContact(ConnectionState from, ConnectionState to, long now) {
+    if (from == to) {
+      return this;
+    }
+    int[] counts = new int[] { accepted, invited, pending };
+    boolean changed = move(counts, from, -1);
+    changed = move(counts, to, 1) || changed;
+    if (!changed) {
+      return this;
+    }
+    return new MeCounts(userId, unread, counts[0], counts[1], counts[2], reconciled, now);
+  }
+
+  private boolean move(int[] counts, ConnectionState state, int delta) {
+    int i;
+    switch (state) {
+    case ACCEPTED:
+      i = 0;
+      break;
+    case INVITED:
+      i = 1;
+      break;
+    case PENDING:
+      i = 2;
+      break;
+    default:
+      return false;
+    }
+    counts[i] = Math.max(0, counts[i] + delta);
+    return true;
+  }
+
+  /**
+   * @return true if the other counts hold the same unread messages and contact counts.
+   */
+  public boolean sameCounts(MeCounts other) {
+    return accepted == other.accepted && invited == other.invited
+        && pending == other.pending
+        && (unread == null ? other.unread == null : unread.equals(other.unread));
+  }
+
+  @Override
+  public String toString() {
+    return "MeCounts[" + userId + " unread=" + getUnread() + " accepted=" + accepted
+        + " invited=" + invited + " pending=" + pending + "]";
+  }
+}
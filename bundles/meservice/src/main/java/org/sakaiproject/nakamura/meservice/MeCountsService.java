@@ -0,0 +1,472 @@
+/**
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.meservice;
+
+import org.apache.felix.scr.annotations.Activate;
+import org.apache.felix.scr.annotations.Component;
+import org.apache.felix.scr.annotations.Deactivate;
+import org.apache.felix.scr.annotations.Modified;
+import org.apache.felix.scr.annotations.Properties;
+import org.apache.felix.scr.annotations.Property;
+import org.apache.felix.scr.annotations.Reference;
+import org.apache.felix.scr.annotations.Service;
+import org.apache.jackrabbit.util.ISO9075;
+import org.apache.sling.commons.osgi.PropertiesUtil;
+import org.apache.sling.commons.scheduler.Job;
+import org.apache.sling.commons.scheduler.JobContext;
+import org.apache.sling.commons.scheduler.Scheduler;
+import org.apache.solr.client.solrj.SolrQuery;
+import org.apache.solr.client.solrj.SolrRequest;
+import org.apache.solr.client.solrj.SolrServer;
+import org.apache.solr.client.solrj.SolrServerException;
+import org.apache.solr.client.solrj.response.FacetField;
+import org.apache.solr.client.solrj.response.QueryResponse;
+import org.apache.solr.client.solrj.util.ClientUtils;
+import org.apache.solr.common.SolrDocument;
+import org.apache.solr.common.SolrDocumentList;
+import org.osgi.service.event.Event;
+import org.osgi.service.event.EventHandler;
+import org.sakaiproject.nakamura.api.connections.ConnectionConstants;
+import org.sakaiproject.nakamura.api.connections.ConnectionState;
+import org.sakaiproject.nakamura.api.lite.ClientPoolException;
+import org.sakaiproject.nakamura.api.lite.Repository;
+import org.sakaiproject.nakamura.api.lite.Session;
+import org.sakaiproject.nakamura.api.lite.StorageClientException;
+import org.sakaiproject.nakamura.api.lite.accesscontrol.AccessDeniedException;
+import org.sakaiproject.nakamura.api.lite.content.Content;
+import org.sakaiproject.nakamura.api.memory.Cache;
+import org.sakaiproject.nakamura.api.memory.CacheManagerService;
+import org.sakaiproject.nakamura.api.memory.CacheScope;
+import org.sakaiproject.nakamura.api.message.MessageConstants;
+import org.sakaiproject.nakamura.api.solr.IndexingHandler;
+import org.sakaiproject.nakamura.api.solr.SolrServerService;
+import org.sakaiproject.nakamura.util.LitePersonalUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Keeps the unread message and contact counts shown by /system/me, so that a request
+ * for them is a cache lookup rather than two Solr queries.
+ * <p>
+ * The counts for a user are computed from Solr the first time they are asked for and
+ * from then on kept up to date from events: connection state changes posted by the
+ * connection manager, and content events on messages in the user's message store. The
+ * unread count is kept as the set of unread inbox message paths, so applying the same
+ * event twice, or an event for a message that was already counted, does no harm. Users
+ * with more unread messages than are tracked are left to the query.
+ * <p>
+ * Events can be missed, for instance when the cache is updated from two servers at once,
+ * so a periodic job recomputes counts that have not been reconciled for a while. Counts
+ * first computed shortly after an event for the user may not include it, as the index
+ * lags the event, so those are recomputed as soon as the index has settled.
+ */
+@Component(metatype = true, immediate = true, label = "Nakamura :: Me Counts",
+    description = "Keeps the unread message and contact counts shown by /system/me.")
+@Service(value = { MeCountsService.class, EventHandler.class })
+@Properties(value = {
+    @Property(name = "service.vendor", value = "The Sakai Foundation"),
+    @Property(name = "event.topics", propertyPrivate = true, value = {
+        "org/sakaiproject/nakamura/lite/content/ADDED",
+        "org/sakaiproject/nakamura/lite/content/UPDATED",
+        "org/sakaiproject/nakamura/lite/content/DELETE",
+        "org/sakaiproject/nakamura/connections/state/CHANGED" }) })
+public class MeCountsService implements EventHandler {
+  private static final Logger LOGGER = LoggerFactory.getLogger(MeCountsService.class);
+
+  public static final String ME_COUNTS_CACHE = "meservice.counts";
+
+  @Property(intValue = 500, label = "Maximum Unread Messages",
+      description = "The most unread messages tracked for a user, above this the unread count is queried")
+  public static final String MAX_UNREAD = "me.counts.max.unread";
+
+  @Property(longValue = 300, label = "Reconcile Interval Seconds",
+      description = "How often to recompute a batch of counts from Solr")
+  public static final String RECONCILE_INTERVAL = "me.counts.reconcile.interval";
+
+  @Property(intValue = 200, label = "Reconcile Batch Size",
+      description = "The most counts to recompute in one run")
+  public static final String RECONCILE_BATCH_SIZE = "me.counts.reconcile.batchsize";
+
+  @Property(longValue = 3600, label = "Maximum Age Seconds",
+      description = "Counts that have not been recomputed for this long are recomputed by the next run")
+  public static final String MAX_AGE = "me.counts.max.age";
+
+  protected static final String JOB_NAME = "meCountsReconcileJob";
+
+  private static final String DELETE_TOPIC = "org/sakaiproject/nakamura/lite/content/DELETE";
+
+  private static final String RESOURCE_TYPE = "resourceType";
+
+  private static final String SLING_RESOURCE_TYPE = "sling:resourceType";
+
+  private static final String UNREAD_FILTER = "resourceType:sakai\\/message AND type:internal AND messagebox:inbox AND read:false";
+
+  private static final String MESSAGE_FOLDER = "/" + MessageConstants.FOLDER_MESSAGES + "/";
+
+  /**
+   * Counts changed by an event this recently are not recomputed, as the index may not yet
+   * have caught up with the change.
+   */
+  private static final long SETTLE_TIME = 60000L;
+
+  /**
+   * The most users without kept counts whose last event is remembered.
+   */
+  private static final int MAX_RECENT_EVENTS = 10000;
+
+  @Reference
+  protected CacheManagerService cacheManagerService;
+
+  @Reference
+  protected SolrServerService solrServerService;
+
+  @Reference
+  protected Repository repository;
+
+  @Reference
+  protected Scheduler scheduler;
+
+  /**
+   * Serializes the read-modify-write of cache entries on this server.
+   */
+  private final Object lock = new Object();
+
+  /**
+   * When users whose counts are not kept last had an event, guarded by the lock.
+   */
+  private final Map<String, Long> recentEvents = new LinkedHashMap<String, Long>(16,
+      0.75f, true) {
+    private static final long serialVersionUID = 1L;
+
+    @Override
+    protected boolean removeEldestEntry(Map.Entry<String, Long> eldest) {
+      return size() > MAX_RECENT_EVENTS;
+    }
+  };
+
+  private int maxUnread = 500;
+
+  private int batchSize = 200;
+
+  private long maxAge = 3600000L;
+
+  @Activate
+  protected void activate(Map<String, Object> properties) {
+    maxUnread = PropertiesUtil.toInteger(properties.get(MAX_UNREAD), 500);
+    batchSize = PropertiesUtil.toInteger(properties.get(RECONCILE_BATCH_SIZE), 200);
+    maxAge = PropertiesUtil.toLong(properties.get(MAX_AGE), 3600) * 1000L;
+    long interval = PropertiesUtil.toLong(properties.get(RECONCILE_INTERVAL), 300);
+    Job job = new Job() {
+      public void execute(JobContext context) {
+        reconcile();
+      }
+    };
+    try {
+      scheduler.addPeriodicJob(JOB_NAME, job, null, interval, false);
+    } catch (Exception e) {
+      LOGGER.error("Failed to add periodic job for MeCountsService", e);
+    }
+  }
+
+  @Modified
+  protected void modified(Map<String, Object> properties) {
+    deactivate(properties);
+    activate(properties);
+  }
+
+  @Deactivate
+  protected void deactivate(Map<String, Object> properties) {
+    try {
+      scheduler.removeJob(JOB_NAME);
+    } catch (Exception e) {
+      LOGGER.debug("Failed to remove job {} ", JOB_NAME, e);
+    }
+  }
+
+  /**
+   * @param userId
+   *          the user to get the counts for.
+   * @return the counts for the user, computed from Solr if they are not yet kept, or null
+   *         if they could not be computed.
+   */
+  public MeCounts getCounts(String userId) {
+    Cache<MeCounts> cache = getCache();
+    MeCounts counts = cache.get(userId);
+    if (counts == null) {
+      long start = System.currentTimeMillis();
+      try {
+        counts = compute(userId);
+      } catch (SolrServerException e) {
+        LOGGER.warn("Failed to compute the counts for {}, cause {} ", userId,
+            e.getMessage());
+        return null;
+      }
+      synchronized (lock) {
+        MeCounts current = cache.get(userId);
+        if (current == null) {
+          Long changed = recentEvents.remove(userId);
+          if (changed != null && changed >= start - SETTLE_TIME) {
+            // the index may not have had the change yet, recompute once it has.
+            counts = counts.unsettled(changed);
+          }
+          cache.put(userId, counts);
+        } else {
+          counts = current;
+        }
+      }
+    }
+    return counts;
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * @see org.osgi.service.event.EventHandler#handleEvent(org.osgi.service.event.Event)
+   */
+  public void handleEvent(Event event) {
+    if (ConnectionConstants.EVENT_TOPIC_STATE_CHANGED.equals(event.getTopic())) {
+      applyContact((String) event.getProperty(ConnectionConstants.EVENT_PROP_USER),
+          (String) event.getProperty(ConnectionConstants.EVENT_PROP_USER_FROM),
+          (String) event.getProperty(ConnectionConstants.EVENT_PROP_USER_TO));
+      applyContact((String) event.getProperty(ConnectionConstants.EVENT_PROP_OTHER_USER),
+          (String) event.getProperty(ConnectionConstants.EVENT_PROP_OTHER_USER_FROM),
+          (String) event.getProperty(ConnectionConstants.EVENT_PROP_OTHER_USER_TO));
+    } else {
+      String path = (String) event.getProperty(IndexingHandler.FIELD_PATH);
+      String userId = getMessageOwner(path);
+      if (userId == null) {
+        return;
+      }
+      String resourceType = (String) event.getProperty(RESOURCE_TYPE);
+      if (resourceType != null && !MessageConstants.SAKAI_MESSAGE_RT.equals(resourceType)) {
+        return;
+      }
+      // be fast, only look at the message if its owner's counts are being kept.
+      MeCounts counts = getCache().get(userId);
+      if (counts == null) {
+        if (noteEvent(userId)) {
+          return;
+        }
+        // the counts were kept while we looked, apply the event to them.
+        counts = getCache().get(userId);
+      }
+      if (counts == null || !counts.isUnreadTracked()) {
+        return;
+      }
+      boolean unread = !DELETE_TOPIC.equals(event.getTopic()) && isUnread(path);
+      synchronized (lock) {
+        Cache<MeCounts> cache = getCache();
+        counts = cache.get(userId);
+        if (counts != null) {
+          MeCounts changed = counts.withMessage(path, unread, System.currentTimeMillis());
+          if (changed != counts) {
+            cache.put(userId, changed);
+          }
+        }
+      }
+    }
+  }
+
+  /**
+   * Recompute, from Solr, a batch of the counts that have not been recomputed for longer
+   * than the maximum age, replacing whatever the events made of them.
+   */
+  protected void reconcile() {
+    long now = System.currentTimeMillis();
+    List<String> stale = new ArrayList<String>();
+    for (MeCounts counts : getCache().list()) {
+      if (counts != null && now - counts.getReconciled() > maxAge
+          && now - counts.getModified() > SETTLE_TIME) {
+        stale.add(counts.getUserId());
+        if (stale.size() >= batchSize) {
+          break;
+        }
+      }
+    }
+    int changed = 0;
+    for (String userId : stale) {
+      try {
+        MeCounts counts = compute(userId);
+        synchronized (lock) {
+          Cache<MeCounts> cache = getCache();
+          MeCounts current = cache.get(userId);
+          if (current != null && now - current.getModified() > SETTLE_TIME) {
+            if (!counts.sameCounts(current)) {
+              LOGGER.debug("Reconciled {} to {} ", current, counts);
+              changed++;
+            }
+            cache.put(userId, counts);
+          }
+        }
+      } catch (SolrServerException e) {
+        LOGGER.warn("Failed to reconcile the counts for {}, cause {} ", userId,
+            e.getMessage());
+      }
+    }
+    if (stale.size() > 0) {
+      LOGGER.info("Reconciled {} counts, {} had drifted ", stale.size(), changed);
+    }
+  }
+
+  /**
+   * Compute the counts for a user from Solr.
+   */
+  protected MeCounts compute(String userId) throws SolrServerException {
+    SolrServer server = solrServerService.getServer();
+    String home = LitePersonalUtils.getHomePath(userId);
+
+    String contactStore = ISO9075.encodePath(home + "/"
+        + ConnectionConstants.CONTACT_STORE_NAME);
+    SolrQuery contactQuery = new SolrQuery("path:"
+        + ClientUtils.escapeQueryChars(contactStore)
+        + " AND resourceType:sakai\\/contact AND state:(ACCEPTED OR INVITED OR PENDING)");
+    contactQuery.setRows(0).setFacet(true).setFacetMinCount(1).addFacetField("state");
+    QueryResponse response = server.query(contactQuery, SolrRequest.METHOD.POST);
+    int accepted = 0;
+    int invited = 0;
+    int pending = 0;
+    FacetField states = response.getFacetField("state");
+    if (states != null && states.getValues() != null) {
+      for (FacetField.Count count : states.getValues()) {
+        if (ConnectionState.ACCEPTED.toString().equals(count.getName())) {
+          accepted = (int) count.getCount();
+        } else if (ConnectionState.INVITED.toString().equals(count.getName())) {
+          invited = (int) count.getCount();
+        } else if (ConnectionState.PENDING.toString().equals(count.getName())) {
+          pending = (int) count.getCount();
+        }
+      }
+    }
+
+    String messageStore = ISO9075.encodePath(home + MESSAGE_FOLDER);
+    SolrQuery messageQuery = new SolrQuery("messagestore:"
+        + ClientUtils.escapeQueryChars(messageStore));
+    messageQuery.addFilterQuery(UNREAD_FILTER).setFields(IndexingHandler.FIELD_ID)
+        .setRows(maxUnread);
+    response = server.query(messageQuery, SolrRequest.METHOD.POST);
+    SolrDocumentList results = response.getResults();
+    List<String> unread = null;
+    if (results.getNumFound() <= maxUnread) {
+      unread = new ArrayList<String>();
+      for (SolrDocument result : results) {
+        unread.add((String) result.getFieldValue(IndexingHandler.FIELD_ID));
+      }
+    }
+    return new MeCounts(userId, unread, accepted, invited, pending,
+        System.currentTimeMillis());
+  }
+
+  private void applyContact(String userId, String from, String to) {
+    if (userId == null || from == null || to == null) {
+      return;
+    }
+    ConnectionState fromState;
+    ConnectionState toState;
+    try {
+      fromState = ConnectionState.valueOf(from);
+      toState = ConnectionState.valueOf(to);
+    } catch (IllegalArgumentException e) {
+      LOGGER.debug("Ignoring connection state change {} to {} ", from, to);
+      return;
+    }
+    synchronized (lock) {
+      Cache<MeCounts> cache = getCache();
+      MeCounts counts = cache.get(userId);
+      if (counts != null) {
+        MeCounts changed = counts.withContact(fromState, toState,
+            System.currentTimeMillis());
+        if (changed != counts) {
+          cache.put(userId, changed);
+        }
+      } else {
+        recentEvents.put(userId, System.currentTimeMillis());
+      }
+    }
+  }
+
+  /**
+   * Remember an event for a user whose counts are not kept, in case they are being
+   * computed from an index that does not have it yet.
+   *
+   * @return false if the counts are kept after all and the event was not noted.
+   */
+  private boolean noteEvent(String userId) {
+    synchronized (lock) {
+      if (getCache().get(userId) != null) {
+        return false;
+      }
+      recentEvents.put(userId, System.currentTimeMillis());
+      return true;
+    }
+  }
+
+  /**
+   * @return the id of the user whose message store holds the path, or null if the path
+   *         is not in a message store.
+   */
+  protected static String getMessageOwner(String path) {
+    if (path == null || !path.startsWith("a:")) {
+      return null;
+    }
+    int i = path.indexOf('/');
+    if (i < 3 || !path.startsWith(MESSAGE_FOLDER, i)) {
+      return null;
+    }
+    return path.substring(2, i);
+  }
+
+  protected boolean isUnread(String path) {
+    Session adminSession = null;
+    try {
+      adminSession = repository.loginAdministrative();
+      Content message = adminSession.getContentManager().get(path);
+      if (message == null) {
+        return false;
+      }
+      Object read = message.getProperty(MessageConstants.PROP_SAKAI_READ);
+      return MessageConstants.SAKAI_MESSAGE_RT.equals(message.getProperty(SLING_RESOURCE_TYPE))
+          && MessageConstants.BOX_INBOX.equals(message.getProperty(MessageConstants.PROP_SAKAI_MESSAGEBOX))
+          && MessageConstants.TYPE_INTERNAL.equals(message.getProperty(MessageConstants.PROP_SAKAI_TYPE))
+          && read != null && !Boolean.parseBoolean(String.valueOf(read));
+    } catch (ClientPoolException e) {
+      LOGGER.warn(e.getMessage(), e);
+    } catch (StorageClientException e) {
+      LOGGER.warn(e.getMessage(), e);
+    } catch (AccessDeniedException e) {
+      LOGGER.warn(e.getMessage(), e);
+    } finally {
+      if (adminSession != null) {
+        try {
+          adminSession.logout();
+        } catch (ClientPoolException e) {
+          LOGGER.warn(e.getMessage(), e);
+        }
+      }
+    }
+    return false;
+  }
+
+  private Cache<MeCounts> getCache() {
+    return cacheManagerService.getCache(ME_COUNTS_CACHE, CacheScope.CLUSTERREPLICATED);
+  }
+}
@@ -45,6 +45,9 @@ public class LiteMeServletTest {
   @Mock
   BasicUserInfoService basicUserInfoService;
 
+  @Mock
+  MeCountsService meCountsService;
+
   @Before
   public void setUp() {
     meServlet = new LiteMeServlet();
@@ -52,6 +55,7 @@ public class LiteMeServletTest {
     meServlet.connectionManager = connectionManager;
     meServlet.searchServiceFactory = searchServiceFactory;
     meServlet.basicUserInfoService = basicUserInfoService;
+    meServlet.meCountsService = meCountsService;
     
   }
 
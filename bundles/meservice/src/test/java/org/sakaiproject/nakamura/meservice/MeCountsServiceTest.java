@@ -0,0 +1,170 @@
+/**
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.meservice;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import com.google.common.collect.ImmutableMap;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.osgi.service.event.Event;
+import org.sakaiproject.nakamura.api.connections.ConnectionConstants;
+import org.sakaiproject.nakamura.api.connections.ConnectionState;
+import org.sakaiproject.nakamura.api.memory.Cache;
+import org.sakaiproject.nakamura.api.memory.CacheManagerService;
+import org.sakaiproject.nakamura.api.memory.CacheScope;
+import org.sakaiproject.nakamura.memory.MapCacheImpl;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+
+public class MeCountsServiceTest {
+  private static final String INBOX = "a:alice/message/inbox/";
+
+  private MapCacheImpl<Object> cache;
+  private Set<String> unread;
+  private int computed;
+  private int lookedAt;
+  private Event duringCompute;
+  private MeCountsService service;
+
+  @Before
+  public void setUp() {
+    cache = new MapCacheImpl<Object>("counts", CacheScope.INSTANCE);
+    unread = new HashSet<String>();
+    service = new MeCountsService() {
+      @Override
+      protected MeCounts compute(String userId) {
+        computed++;
+        if (duringCompute != null) {
+          handleEvent(duringCompute);
+        }
+        return new MeCounts(userId, Arrays.asList(INBOX + "m1"), 2, 1, 0,
+            System.currentTimeMillis());
+      }
+
+      @Override
+      protected boolean isUnread(String path) {
+        lookedAt++;
+        return unread.contains(path);
+      }
+    };
+    service.cacheManagerService = new CacheManagerService() {
+      @SuppressWarnings("unchecked")
+      public <T> Cache<T> getCache(String name, CacheScope scope) {
+        return (Cache<T>) cache;
+      }
+
+      public void unbind(CacheScope scope) {
+      }
+    };
+  }
+
+  @Test
+  public void testCountsAreKept() {
+    MeCounts counts = service.getCounts("alice");
+    assertEquals(1, counts.getUnread());
+    assertEquals(2, counts.getContacts(ConnectionState.ACCEPTED));
+    assertSame(counts, service.getCounts("alice"));
+    assertEquals(1, computed);
+  }
+
+  @Test
+  public void testConnectionStateChange() {
+    service.getCounts("alice");
+    service.getCounts("bob");
+    service.handleEvent(stateChange("alice", "INVITED", "ACCEPTED", "bob", "PENDING",
+        "ACCEPTED"));
+    MeCounts alice = service.getCounts("alice");
+    assertEquals(3, alice.getContacts(ConnectionState.ACCEPTED));
+    assertEquals(0, alice.getContacts(ConnectionState.INVITED));
+    MeCounts bob = service.getCounts("bob");
+    assertEquals(3, bob.getContacts(ConnectionState.ACCEPTED));
+    assertEquals(0, bob.getContacts(ConnectionState.PENDING));
+    assertEquals(2, computed);
+  }
+
+  @Test
+  public void testMessageEvents() {
+    // nothing is looked at for users whose counts are not kept.
+    service.handleEvent(contentEvent("UPDATED", INBOX + "m2"));
+    assertEquals(0, lookedAt);
+
+    service.getCounts("alice");
+    unread.add(INBOX + "m2");
+    service.handleEvent(contentEvent("ADDED", INBOX + "m2"));
+    service.handleEvent(contentEvent("UPDATED", INBOX + "m2"));
+    assertEquals(2, service.getCounts("alice").getUnread());
+
+    unread.remove(INBOX + "m1");
+    service.handleEvent(contentEvent("UPDATED", INBOX + "m1"));
+    assertEquals(1, service.getCounts("alice").getUnread());
+
+    service.handleEvent(contentEvent("DELETE", INBOX + "m2"));
+    assertEquals(0, service.getCounts("alice").getUnread());
+
+    // content outside a message store is ignored.
+    service.handleEvent(contentEvent("UPDATED", "a:alice/public/m3"));
+    assertEquals(3, lookedAt);
+  }
+
+  @Test
+  public void testEventDuringFirstComputeIsNotLost() {
+    // the event arrives while the counts are computed from an index without it.
+    duringCompute = contentEvent("ADDED", INBOX + "m2");
+    MeCounts counts = service.getCounts("alice");
+    assertEquals(0L, counts.getReconciled());
+    assertTrue(counts.getModified() > 0L);
+
+    // counts first computed with no recent event are kept as reconciled.
+    duringCompute = null;
+    MeCounts bob = service.getCounts("bob");
+    assertFalse(bob.getReconciled() == 0L);
+  }
+
+  @Test
+  public void testReconcile() {
+    cache.put("alice", new MeCounts("alice", Arrays.asList(INBOX + "gone"), 7, 0, 0, 0L));
+    service.reconcile();
+    MeCounts counts = service.getCounts("alice");
+    assertEquals(2, counts.getContacts(ConnectionState.ACCEPTED));
+    assertFalse(counts.getReconciled() == 0L);
+    assertEquals(1, computed);
+  }
+
+  private Event stateChange(String user, String userFrom, String userTo, String other,
+      String otherFrom, String otherTo) {
+    return new Event(ConnectionConstants.EVENT_TOPIC_STATE_CHANGED,
+        ImmutableMap.builder().put(ConnectionConstants.EVENT_PROP_USER, user)
+            .put(ConnectionConstants.EVENT_PROP_USER_FROM, userFrom)
+            .put(ConnectionConstants.EVENT_PROP_USER_TO, userTo)
+            .put(ConnectionConstants.EVENT_PROP_OTHER_USER, other)
+            .put(ConnectionConstants.EVENT_PROP_OTHER_USER_FROM, otherFrom)
+            .put(ConnectionConstants.EVENT_PROP_OTHER_USER_TO, otherTo).build());
+  }
+
+  private Event contentEvent(String type, String path) {
+    return new Event("org/sakaiproject/nakamura/lite/content/" + type, ImmutableMap.of(
+        "path", path, "resourceType", "sakai/message"));
+  }
+}
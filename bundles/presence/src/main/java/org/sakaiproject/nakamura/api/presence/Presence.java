@@ -0,0 +1,56 @@
+/**
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.api.presence;
+
+/**
+ * The presence of one user at the time it was looked up.
+ */
+public final class Presence {
+
+  private final String userId;
+  private final String status;
+  private final String location;
+
+  public Presence(String userId, String status, String location) {
+    this.userId = userId;
+    this.status = status;
+    this.location = location;
+  }
+
+  /**
+   * @return the user id.
+   */
+  public String getUserId() {
+    return userId;
+  }
+
+  /**
+   * @return the status for the user (free text or matches key from
+   *         {@link PresenceStatus}), offline if the user is not present.
+   */
+  public String getStatus() {
+    return status;
+  }
+
+  /**
+   * @return the location of the user, "none" if the user has no location.
+   */
+  public String getLocation() {
+    return location;
+  }
+}
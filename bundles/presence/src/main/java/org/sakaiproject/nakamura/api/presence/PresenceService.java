@@ -17,6 +17,7 @@
  */
 package org.sakaiproject.nakamura.api.presence;
 
+import java.util.Collection;
 import java.util.List;
 import java.util.Map;
 
@@ -98,5 +99,15 @@ public interface PresenceService {
    */
   Map<String, String> online(String location);
 
+  /**
+   * Get the presence of a number of users in one lookup, eg for a contact list.
+   *
+   * @param uuids
+   *          the user ids.
+   * @return a map of user id to presence, in the order of the user ids, with an entry
+   *         for every user whether present or not.
+   */
+  Map<String, Presence> getPresence(Collection<String> uuids);
+
   String[] getCurrentStatus(String uuid);
 }
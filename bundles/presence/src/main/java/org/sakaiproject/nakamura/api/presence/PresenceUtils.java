@@ -81,4 +81,33 @@ public class PresenceUtils {
     }
   }
 
+  /**
+   * Method to generate the JSON related to the presence of a single user from presence
+   * already looked up, see {@link PresenceService#getPresence(java.util.Collection)}.
+   *
+   * @param output
+   *          the writer to output the JSON into
+   * @param presence
+   *          the presence of the user
+   * @param partialObject
+   *          if true then only output the keys and values but do not open or close the
+   *          object, if false then output a complete JSON object (opened and closed)
+   * @throws JSONException
+   */
+  public static void makePresenceJSON(JSONWriter output, Presence presence,
+      boolean partialObject) throws JSONException {
+    if (!partialObject) {
+      output.object();
+    }
+    output.key("user");
+    output.value(presence.getUserId());
+    output.key(PresenceService.PRESENCE_STATUS_PROP);
+    output.value(presence.getStatus());
+    output.key(PresenceService.PRESENCE_LOCATION_PROP);
+    output.value(presence.getLocation());
+    if (!partialObject) {
+      output.endObject();
+    }
+  }
+
 }
@@ -0,0 +1,43 @@
+/**
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.presence;
+
+import java.io.Serializable;
+
+/**
+ * The presence of one user as it is held in the cluster wide cache. Records are never
+ * changed; an update puts a new record, which is all that needs to be sent to the other
+ * nodes in the cluster.
+ */
+final class PresenceRecord implements Serializable {
+
+  private static final long serialVersionUID = 3380727458237614377L;
+
+  /**
+   * The time of the last update, in units of {@link PresenceStore#TIME_RESOLUTION} ms.
+   */
+  final int timestamp;
+  final String location;
+  final String status;
+
+  PresenceRecord(int timestamp, String location, String status) {
+    this.timestamp = timestamp;
+    this.location = location;
+    this.status = status;
+  }
+}
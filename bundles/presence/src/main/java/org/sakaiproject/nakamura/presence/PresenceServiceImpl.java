@@ -29,15 +29,16 @@ import org.apache.felix.scr.annotations.Service;
 import org.sakaiproject.nakamura.api.memory.Cache;
 import org.sakaiproject.nakamura.api.memory.CacheManagerService;
 import org.sakaiproject.nakamura.api.memory.CacheScope;
+import org.sakaiproject.nakamura.api.presence.Presence;
 import org.sakaiproject.nakamura.api.presence.PresenceService;
 import org.sakaiproject.nakamura.api.presence.PresenceStatus;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.util.Collection;
 import java.util.List;
 import java.util.Map;
-import java.util.Map.Entry;
-import java.util.concurrent.ConcurrentHashMap;
+import java.util.Set;
 
 @Component(label = "Sakai Presence Service", description = "Service for getting info about the presence status and locations of current users", name = "org.sakaiproject.nakamura.api.presence.PresenceService")
 @Service(value = PresenceService.class)
@@ -48,35 +49,35 @@ public class PresenceServiceImpl implements PresenceService {
 
   private Logger LOGGER = LoggerFactory.getLogger(PresenceServiceImpl.class);
 
-  private static final String LOCATION_CACHE = "presence.location";
-  private static final String USER_STATUS_CACHE = "presence.status";
-  private static final long PRESENCE_TTL = 5L * 60L * 1000L; // 5 minutes
-  // private static final int USER_ELEMENT = 0;
-  private static final int TIMESTAMP_ELEMENT = 1;
-  private static final int LOCATION_ELEMENT = 2;
-  private static final int STATUS_ELEMENT = 3;
-  private static final int STATUS_SIZE = 4;
+  // the values differ from those of the presence.status and presence.location caches
+  // used before, new names keep servers of both versions in one cluster apart.
+  private static final String USER_STATUS_CACHE = "presence.records";
+  private static final String LOCATION_CACHE = "presence.members";
 
-  private Cache<String> userStatusCache;
-  private Cache<Map<String, String>> locationCache;
+  private PresenceStore store;
 
   @Reference
   protected transient CacheManagerService cacheManagerService;
 
   protected void bindCacheManagerService(CacheManagerService cacheManagerService) {
     this.cacheManagerService = cacheManagerService;
-    // the caches must be replicating in the cluster.
-    locationCache = cacheManagerService.getCache(LOCATION_CACHE,
-        CacheScope.CLUSTERREPLICATED);
-    userStatusCache = cacheManagerService.getCache(USER_STATUS_CACHE,
+    // the caches must be replicating in the cluster, each update replicates one user.
+    Cache<PresenceRecord> userStatusCache = cacheManagerService.getCache(
+        USER_STATUS_CACHE, CacheScope.CLUSTERREPLICATED);
+    Cache<Set<String>> locationCache = cacheManagerService.getCache(LOCATION_CACHE,
         CacheScope.CLUSTERREPLICATED);
+    store = new PresenceStore(userStatusCache, locationCache) {
+      @Override
+      int now() {
+        return getTimeStamp();
+      }
+    };
   }
 
   protected void unbindCacheManagerService(
       CacheManagerService cacheManagerService) {
     if (this.cacheManagerService == cacheManagerService) {
-      locationCache = null;
-      userStatusCache = null;
+      store = null;
       this.cacheManagerService = null;
     }
   }
@@ -87,7 +88,10 @@ public class PresenceServiceImpl implements PresenceService {
    *      java.lang.String)
    */
   public void setStatus(String uuid, String status) {
-    updateLocationCache(uuid, getTimeStamp(), null, status);
+    PresenceStore store = getStore();
+    if (store != null) {
+      store.update(uuid, null, status);
+    }
   }
 
   /**
@@ -95,30 +99,9 @@ public class PresenceServiceImpl implements PresenceService {
    * @see org.sakaiproject.nakamura.api.presence.PresenceService#clear(java.lang.String)
    */
   public void clear(String uuid) {
-    // see if there is a current status to clear
-    String[] currentStatus = getCurrentStatus(uuid);
-    if (currentStatus != null) {
-      if (userStatusCache != null) {
-        // clear the user from the status cache
-        if (userStatusCache.containsKey(uuid)) {
-          userStatusCache.remove(uuid);
-        }
-      }
-      // try to find the location and clear the user from that
-      String location = null;
-      if (currentStatus.length > LOCATION_ELEMENT) {
-        location = currentStatus[LOCATION_ELEMENT];
-      }
-      if (location != null && locationCache != null) {
-        // found the location so clear the user from within this cache
-        Map<String, String> locationInstanceCache = locationCache.get(location);
-        if (locationInstanceCache != null) {
-          if (locationInstanceCache.containsKey(uuid)) {
-            locationInstanceCache.remove(uuid);
-            locationCache.put(location, locationInstanceCache);
-          }
-        }
-      }
+    PresenceStore store = getStore();
+    if (store != null) {
+      store.remove(uuid);
     }
   }
 
@@ -128,16 +111,8 @@ public class PresenceServiceImpl implements PresenceService {
    */
   public String getStatus(String uuid) {
     // TODO should the default status really be offline if not set? -AZ
-    String result = PresenceStatus.offline.name();
-    String[] currentStatus = getCurrentStatus(uuid);
-    if (currentStatus != null) {
-      if (currentStatus.length > STATUS_ELEMENT) {
-        result = currentStatus[STATUS_ELEMENT];
-      } else {
-        result = PresenceStatus.online.name();
-      }
-    }
-    return result;
+    PresenceRecord record = getRecord(uuid);
+    return (record == null) ? PresenceStatus.offline.name() : record.status;
   }
 
   /**
@@ -145,38 +120,39 @@ public class PresenceServiceImpl implements PresenceService {
    * @see org.sakaiproject.nakamura.api.presence.PresenceService#getLocation(java.lang.String)
    */
   public String getLocation(String uuid) {
-    String location = "none";
-    String[] currentStatus = getCurrentStatus(uuid);
-    if (currentStatus != null) {
-      if (currentStatus.length > LOCATION_ELEMENT) {
-        location = currentStatus[LOCATION_ELEMENT];
+    PresenceRecord record = getRecord(uuid);
+    return (record == null) ? "none" : record.location;
+  }
+
+  /**
+   * {@inheritDoc}
+   * @see org.sakaiproject.nakamura.api.presence.PresenceService#getPresence(java.util.Collection)
+   */
+  public Map<String, Presence> getPresence(Collection<String> uuids) {
+    Map<String, Presence> presence = Maps.newLinkedHashMap();
+    Map<String, PresenceRecord> records = ImmutableMap.of();
+    PresenceStore store = getStore();
+    if (store != null) {
+      records = store.getAll(uuids);
+    }
+    for (String uuid : uuids) {
+      PresenceRecord record = records.get(uuid);
+      if (record == null) {
+        presence.put(uuid, new Presence(uuid, PresenceStatus.offline.name(), "none"));
+      } else {
+        presence.put(uuid, new Presence(uuid, record.status, record.location));
       }
     }
-    return location;
+    return presence;
   }
-  
 
   public String[] getCurrentStatus(String uuid) {
-    String[] result = null;
-    if (userStatusCache != null) {
-      String currentStatus = userStatusCache.get(uuid);
-      long timeout = getTimeStamp() - PRESENCE_TTL;
-      // load the current status or the defaults.
-      if (currentStatus != null) {
-        String[] locationStatus = StringUtils.split(currentStatus, ":",
-            STATUS_SIZE);
-        if (locationStatus.length > TIMESTAMP_ELEMENT) {
-          // timed out ?
-          long lastTs = Long.parseLong(locationStatus[TIMESTAMP_ELEMENT]);
-          if (lastTs > timeout) {
-            result = locationStatus;
-          }
-        }
-      }
-    } else {
-      LOGGER.warn("User status cache is null, check the cacheManager");
+    PresenceRecord record = getRecord(uuid);
+    if (record == null) {
+      return null;
     }
-    return result;
+    return new String[] { uuid, String.valueOf(record.timestamp), record.location,
+        record.status };
   }
 
   /**
@@ -187,8 +163,8 @@ public class PresenceServiceImpl implements PresenceService {
    */
   public Map<String, String> online(List<String> connections) {
     Map<String, String> online = Maps.newHashMap();
-    for (String uuid : connections) {
-      online.put(uuid, getStatus(uuid));
+    for (Presence presence : getPresence(connections).values()) {
+      online.put(presence.getUserId(), presence.getStatus());
     }
     return online;
   }
@@ -199,23 +175,14 @@ public class PresenceServiceImpl implements PresenceService {
    * @see org.sakaiproject.nakamura.api.presence.PresenceService#online(java.lang.String)
    */
   public Map<String, String> online(String location) {
-    if (locationCache != null) {
-      Map<String, String> locationInstanceCache = locationCache.get(location);
-      if (locationInstanceCache != null) {
-        Map<String, String> onlineMap = Maps.newHashMap();
-        for (Entry<String, String> e : locationInstanceCache.entrySet()) {
-          String[] currentStatus = getCurrentStatus(e.getKey());
-          if (currentStatus != null
-              && location.equals(currentStatus[LOCATION_ELEMENT])) {
-            onlineMap.put(e.getKey(), currentStatus[STATUS_ELEMENT]);
-          }
-        }
-        return onlineMap;
+    PresenceStore store = getStore();
+    Map<String, String> onlineMap = Maps.newHashMap();
+    if (store != null) {
+      for (Map.Entry<String, PresenceRecord> e : store.getAt(location).entrySet()) {
+        onlineMap.put(e.getKey(), e.getValue().status);
       }
-    } else {
-      LOGGER.warn("Location cache is null, check the cacheManager");
     }
-    return ImmutableMap.of();
+    return onlineMap;
   }
 
   /**
@@ -225,107 +192,37 @@ public class PresenceServiceImpl implements PresenceService {
    *      java.lang.String)
    */
   public void ping(String uuid, String location) {
-    long now = getTimeStamp();
     if (StringUtils.isEmpty(location)) {
       location = "none";
     }
     if (StringUtils.isEmpty(uuid)) {
       uuid = "none";
     }
-    if (updateLocationCache(uuid, now, location, null)) {
-      // need to update
-      if (!"none".equals(location) && locationCache != null) {
-        Map<String, String> locationInstanceCache = locationCache.get(location);
-        if (locationInstanceCache == null) {
-          synchronized (locationCache) {
-            locationInstanceCache = locationCache.get(location);
-            if (locationInstanceCache == null) {
-              locationInstanceCache = new ConcurrentHashMap<String, String>();
-              locationCache.put(location, locationInstanceCache);
-            }
-          }
-        }
-
-        String userKey = getLocationKey(uuid, location);
-        if (!locationInstanceCache.containsKey(uuid)) {
-          locationInstanceCache.put(uuid, userKey);
-        }
-      }
+    PresenceStore store = getStore();
+    if (store != null) {
+      store.update(uuid, location, null);
     }
   }
 
   /**
-   * @return
+   * @return the current time, slow changing, in units of
+   *         {@link PresenceStore#TIME_RESOLUTION}.
    */
-  private long getTimeStamp() {
-    long now = System.currentTimeMillis();
-    // make now slow changing, 20s resolution
-    return now / 20000;
+  protected int getTimeStamp() {
+    return (int) (System.currentTimeMillis() / PresenceStore.TIME_RESOLUTION);
   }
 
-  /**
-   * Update the users location cache.
-   * 
-   * @param uuid
-   *          the user id
-   * @param now
-   *          the timestamp
-   * @param location
-   *          the location, null if not provided in this update
-   * @param status
-   *          the status, null if not provided in this update
-   * @return true if an update was performed.
-   */
-  private boolean updateLocationCache(String uuid, long now, String location,
-      String status) {
-    boolean update = false;
-    if (userStatusCache != null) {
-      String currentStatus = userStatusCache.get(uuid);
-      // load the current status or the defaults.
-      String[] locationStatus = new String[] { uuid, String.valueOf(now - 1),
-          "none", "online" };
-      if (currentStatus != null) {
-        locationStatus = StringUtils.split(currentStatus, ":", STATUS_SIZE);
-
-      }
-      // compare with non null current versions.
-      String[] ls = new String[] { uuid, String.valueOf(now), location, status };
-
-      for (int i = 0; i < locationStatus.length; i++) {
-        if (ls[i] != null) {
-          if (!locationStatus[i].equals(ls[i])) {
-            update = true;
-          }
-        }
-      }
+  private PresenceRecord getRecord(String uuid) {
+    PresenceStore store = getStore();
+    return (store == null) ? null : store.get(uuid);
+  }
 
-      if (update) {
-        // set any null values to what they were previously
-        for (int i = 0; i < locationStatus.length; i++) {
-          if (ls[i] == null) {
-            ls[i] = locationStatus[i];
-          }
-        }
-        String newStatus = ':' + StringUtils.join(ls, ':');
-        if (!newStatus.equals(currentStatus)) {
-          userStatusCache.put(uuid, newStatus);
-        } else {
-          update = false;
-        }
-      }
-    } else {
+  private PresenceStore getStore() {
+    PresenceStore store = this.store;
+    if (store == null) {
       LOGGER.warn("User status cache is null, check the cacheManager");
     }
-    return update;
-  }
-
-  /**
-   * @param uuid
-   * @param location
-   * @return
-   */
-  private String getLocationKey(String uuid, String location) {
-    return uuid + ":" + location;
+    return store;
   }
 
 }
@@ -0,0 +1,306 @@
+/**
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.presence;
+
+import com.google.common.collect.Interner;
+import com.google.common.collect.Interners;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+
+import org.sakaiproject.nakamura.api.memory.Cache;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Holds the presence of users as one small {@link PresenceRecord} per user in a cluster
+ * replicated cache, so a change only sends that user's record to the rest of the
+ * cluster.
+ * <p>
+ * Records written on this node are expired by a timing wheel: each slot of the wheel
+ * holds the users last updated in one {@link #TIME_RESOLUTION} period, and the slot that
+ * falls out of the {@link #TTL_SLOTS} window is swept before the store is next used.
+ * Records from other nodes are expired by the node that wrote them; a record whose
+ * writer went away before expiring it is ignored once it is too old.
+ * <p>
+ * The users at each location are held in a second replicated cache, which is only
+ * written when a user arrives at or leaves a location. Members are checked against their
+ * records when read, and a user missing from a location, because two nodes wrote it at
+ * once, is added back by that user's next update.
+ */
+class PresenceStore {
+
+  /**
+   * The resolution of presence timestamps, in ms.
+   */
+  static final long TIME_RESOLUTION = 20000L;
+
+  /**
+   * How many periods of {@link #TIME_RESOLUTION} a user stays present after an update,
+   * 5 minutes.
+   */
+  static final int TTL_SLOTS = 15;
+
+  private static final int WHEEL_SIZE = TTL_SLOTS + 1;
+
+  private final Cache<PresenceRecord> records;
+
+  @SuppressWarnings("unchecked")
+  private final Set<String>[] wheel = new Set[WHEEL_SIZE];
+
+  /**
+   * Every timestamp up to and including this one has been swept.
+   */
+  private final AtomicLong sweptTo;
+
+  /**
+   * The users at each location, sets are replaced rather than changed once stored.
+   */
+  private final Cache<Set<String>> locations;
+
+  private final Interner<String> interner = Interners.newWeakInterner();
+
+  PresenceStore(Cache<PresenceRecord> records, Cache<Set<String>> locations) {
+    this.records = records;
+    this.locations = locations;
+    for (int i = 0; i < WHEEL_SIZE; i++) {
+      wheel[i] = Sets.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+    }
+    sweptTo = new AtomicLong(now() - TTL_SLOTS);
+  }
+
+  /**
+   * @return the current time in units of {@link #TIME_RESOLUTION}.
+   */
+  int now() {
+    return (int) (System.currentTimeMillis() / TIME_RESOLUTION);
+  }
+
+  /**
+   * @return the user's record or null if the user is not present.
+   */
+  PresenceRecord get(String uuid) {
+    int now = now();
+    expire(now);
+    return current(records.get(uuid), now);
+  }
+
+  /**
+   * @return the records of those users that are present, keyed by user id.
+   */
+  Map<String, PresenceRecord> getAll(Collection<String> uuids) {
+    int now = now();
+    expire(now);
+    Map<String, PresenceRecord> result = Maps.newHashMapWithExpectedSize(uuids.size());
+    for (String uuid : uuids) {
+      PresenceRecord record = current(records.get(uuid), now);
+      if (record != null) {
+        result.put(uuid, record);
+      }
+    }
+    return result;
+  }
+
+  /**
+   * @return the records of the users present at a location, keyed by user id.
+   */
+  Map<String, PresenceRecord> getAt(String location) {
+    int now = now();
+    expire(now);
+    Set<String> users = locations.get(location);
+    if (users == null) {
+      return Maps.newHashMap();
+    }
+    Map<String, PresenceRecord> result = Maps.newHashMapWithExpectedSize(users.size());
+    Set<String> gone = null;
+    for (String uuid : users) {
+      PresenceRecord record = current(records.get(uuid), now);
+      if (record != null && location.equals(record.location)) {
+        result.put(uuid, record);
+      } else {
+        if (gone == null) {
+          gone = new HashSet<String>();
+        }
+        gone.add(uuid);
+      }
+    }
+    if (gone != null) {
+      // left behind by a node that went away before expiring them.
+      removeFromLocation(gone, location);
+    }
+    return result;
+  }
+
+  /**
+   * Update a user's presence.
+   *
+   * @param location
+   *          the new location, null to leave it as it is.
+   * @param status
+   *          the new status, null to leave it as it is.
+   * @return true if anything changed.
+   */
+  boolean update(String uuid, String location, String status) {
+    int now = now();
+    expire(now);
+    PresenceRecord current = current(records.get(uuid), now);
+    String newLocation = location;
+    String newStatus = status;
+    if (current == null) {
+      if (newLocation == null) {
+        newLocation = "none";
+      }
+      if (newStatus == null) {
+        newStatus = "online";
+      }
+    } else {
+      if (newLocation == null) {
+        newLocation = current.location;
+      }
+      if (newStatus == null) {
+        newStatus = current.status;
+      }
+      if (current.timestamp == now && current.location.equals(newLocation)
+          && current.status.equals(newStatus)) {
+        return false;
+      }
+    }
+    PresenceRecord record = new PresenceRecord(now, interner.intern(newLocation),
+        interner.intern(newStatus));
+    records.put(uuid, record);
+
+    if (current != null && current.timestamp != now) {
+      wheel[slot(current.timestamp)].remove(uuid);
+    }
+    wheel[slot(now)].add(uuid);
+    if (current != null && !current.location.equals(record.location)) {
+      removeFromLocation(Collections.singleton(uuid), current.location);
+    }
+    if (!"none".equals(record.location)) {
+      addToLocation(uuid, record.location);
+    }
+    return true;
+  }
+
+  /**
+   * Remove a user's presence.
+   */
+  void remove(String uuid) {
+    PresenceRecord current = records.get(uuid);
+    if (current != null) {
+      records.remove(uuid);
+      wheel[slot(current.timestamp)].remove(uuid);
+      removeFromLocation(Collections.singleton(uuid), current.location);
+    }
+  }
+
+  private PresenceRecord current(PresenceRecord record, int now) {
+    if (record != null && record.timestamp > now - TTL_SLOTS) {
+      return record;
+    }
+    return null;
+  }
+
+  private void addToLocation(String uuid, String location) {
+    Set<String> users = locations.get(location);
+    if (users != null && users.contains(uuid)) {
+      return;
+    }
+    synchronized (locations) {
+      users = locations.get(location);
+      Set<String> newUsers = (users == null) ? new HashSet<String>() : new HashSet<String>(
+          users);
+      if (newUsers.add(uuid)) {
+        locations.put(location, newUsers);
+      }
+    }
+  }
+
+  private void removeFromLocation(Set<String> uuids, String location) {
+    synchronized (locations) {
+      Set<String> users = locations.get(location);
+      if (users != null) {
+        Set<String> newUsers = new HashSet<String>(users);
+        if (newUsers.removeAll(uuids)) {
+          if (newUsers.isEmpty()) {
+            locations.remove(location);
+          } else {
+            locations.put(location, newUsers);
+          }
+        }
+      }
+    }
+  }
+
+  private int slot(int timestamp) {
+    return timestamp % WHEEL_SIZE;
+  }
+
+  /**
+   * Sweep the slots that have fallen out of the window since the last sweep. Only one
+   * thread sweeps each slot.
+   */
+  private void expire(int now) {
+    long expiredTo = now - TTL_SLOTS;
+    long swept = sweptTo.get();
+    // after a quiet spell every slot may be out of date, but no slot needs sweeping twice.
+    if (expiredTo - swept > WHEEL_SIZE) {
+      if (sweptTo.compareAndSet(swept, expiredTo - WHEEL_SIZE)) {
+        swept = expiredTo - WHEEL_SIZE;
+      } else {
+        swept = sweptTo.get();
+      }
+    }
+    while (swept < expiredTo) {
+      long next = swept + 1;
+      if (sweptTo.compareAndSet(swept, next)) {
+        sweep((int) next);
+      }
+      swept = sweptTo.get();
+    }
+  }
+
+  private void sweep(int timestamp) {
+    Set<String> users = wheel[slot(timestamp)];
+    Map<String, Set<String>> left = Maps.newHashMap();
+    for (String uuid : users) {
+      PresenceRecord record = records.get(uuid);
+      if (record == null) {
+        users.remove(uuid);
+      } else if (record.timestamp <= timestamp) {
+        users.remove(uuid);
+        records.remove(uuid);
+        Set<String> leftLocation = left.get(record.location);
+        if (leftLocation == null) {
+          leftLocation = new HashSet<String>();
+          left.put(record.location, leftLocation);
+        }
+        leftLocation.add(uuid);
+      }
+    }
+    // one write for each location however many users leave it.
+    for (Map.Entry<String, Set<String>> e : left.entrySet()) {
+      removeFromLocation(e.getValue(), e.getKey());
+    }
+  }
+}
@@ -39,6 +39,7 @@ import org.sakaiproject.nakamura.api.doc.ServiceMethod;
 import org.sakaiproject.nakamura.api.doc.ServiceResponse;
 import org.sakaiproject.nakamura.api.doc.ServiceSelector;
 import org.sakaiproject.nakamura.api.lite.authorizable.User;
+import org.sakaiproject.nakamura.api.presence.Presence;
 import org.sakaiproject.nakamura.api.presence.PresenceService;
 import org.sakaiproject.nakamura.api.presence.PresenceUtils;
 import org.sakaiproject.nakamura.api.profile.ProfileService;
@@ -49,6 +50,7 @@ import org.slf4j.LoggerFactory;
 import java.io.IOException;
 import java.io.Writer;
 import java.util.List;
+import java.util.Map;
 
 import javax.jcr.RepositoryException;
 import javax.jcr.Session;
@@ -167,10 +169,12 @@ public class PresenceContactsServlet extends SlingSafeMethodsServlet {
       output.key("contacts");
       UserManager um = AccessControlUtil.getUserManager(session);
       output.array();
+      // look up the presence of all the contacts at once
+      Map<String, Presence> presence = presenceService.getPresence(userIds);
       for (String userId : userIds) {
         output.object();
         // put in the basics
-        PresenceUtils.makePresenceJSON(output, userId, presenceService, true);
+        PresenceUtils.makePresenceJSON(output, presence.get(userId), true);
         // add in the profile
         Authorizable au = um.getAuthorizable(userId);
         ValueMap map = profileService.getProfileMap(au, session);
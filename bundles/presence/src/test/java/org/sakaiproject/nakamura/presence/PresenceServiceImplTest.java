@@ -22,6 +22,8 @@ import static org.easymock.EasyMock.expect;
 import static org.easymock.EasyMock.replay;
 import static org.easymock.EasyMock.verify;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
 
 import com.google.common.collect.Lists;
 
@@ -33,6 +35,7 @@ import org.junit.Test;
 import org.sakaiproject.nakamura.api.memory.Cache;
 import org.sakaiproject.nakamura.api.memory.CacheManagerService;
 import org.sakaiproject.nakamura.api.memory.CacheScope;
+import org.sakaiproject.nakamura.api.presence.Presence;
 import org.sakaiproject.nakamura.api.presence.PresenceService;
 import org.sakaiproject.nakamura.api.presence.PresenceStatus;
 import org.sakaiproject.nakamura.memory.MapCacheImpl;
@@ -61,11 +64,11 @@ public class PresenceServiceImplTest {
 
     cacheManagerService = createMock(CacheManagerService.class);
     expect(
-        cacheManagerService.getCache("presence.location",
+        cacheManagerService.getCache("presence.members",
             CacheScope.CLUSTERREPLICATED)).andReturn(presenceLocationCache)
         .anyTimes();
     expect(
-        cacheManagerService.getCache("presence.status",
+        cacheManagerService.getCache("presence.records",
             CacheScope.CLUSTERREPLICATED)).andReturn(presenceStatusCache)
         .anyTimes();
     replay(cacheManagerService);
@@ -168,6 +171,70 @@ public class PresenceServiceImplTest {
     }
   }
   
+  @Test
+  public void testGetPresence() {
+    presenceService.ping("user1", "locationA");
+    presenceService.setStatus("user2", "busy");
+    Map<String, Presence> presence = presenceService.getPresence(Lists.newArrayList(
+        "user1", "user2", "user3"));
+    assertEquals(3, presence.size());
+    assertEquals("online", presence.get("user1").getStatus());
+    assertEquals("locationA", presence.get("user1").getLocation());
+    assertEquals("busy", presence.get("user2").getStatus());
+    assertEquals("none", presence.get("user2").getLocation());
+    assertEquals(PresenceStatus.offline.name(), presence.get("user3").getStatus());
+    assertEquals("none", presence.get("user3").getLocation());
+  }
+
+  @Test
+  public void testExpiry() {
+    final int[] now = new int[] { 1000 };
+    PresenceServiceImpl clockedService = new PresenceServiceImpl() {
+      @Override
+      protected int getTimeStamp() {
+        return now[0];
+      }
+    };
+    clockedService.bindCacheManagerService(cacheManagerService);
+    clockedService.ping("user1", "locationA");
+    clockedService.ping("user2", "locationA");
+    // 4 minutes later user2 is still around
+    now[0] += 12;
+    clockedService.ping("user2", "locationA");
+    assertEquals(2, clockedService.online("locationA").size());
+
+    // 5 minutes after the first ping user1 has gone
+    now[0] += 3;
+    assertEquals(PresenceStatus.offline.name(), clockedService.getStatus("user1"));
+    assertNull(presenceStatusCache.get("user1"));
+    assertEquals(1, clockedService.online("locationA").size());
+
+    // a long time later everyone has gone
+    now[0] += 1000;
+    assertTrue(clockedService.online("locationA").isEmpty());
+    assertNull(presenceStatusCache.get("user2"));
+    clockedService.unbindCacheManagerService(cacheManagerService);
+  }
+
+  @Test
+  public void testOnlineThroughOtherNode() {
+    // another node in the cluster shares the replicated caches.
+    PresenceServiceImpl otherNode = new PresenceServiceImpl();
+    otherNode.bindCacheManagerService(cacheManagerService);
+    otherNode.ping("user1", "locationA");
+    presenceService.ping("user2", "locationA");
+    Map<String, String> online = presenceService.online("locationA");
+    assertEquals(2, online.size());
+    assertTrue(online.containsKey("user1"));
+    assertEquals(2, otherNode.online("locationA").size());
+
+    // moving on the other node is seen here too.
+    otherNode.ping("user1", "locationB");
+    assertEquals(1, presenceService.online("locationA").size());
+    assertTrue(presenceService.online("locationB").containsKey("user1"));
+    otherNode.unbindCacheManagerService(cacheManagerService);
+  }
+
   public PresenceService getPresenceService() {
     return this.presenceService;
   }
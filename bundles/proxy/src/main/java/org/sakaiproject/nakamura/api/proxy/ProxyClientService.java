@@ -61,6 +61,12 @@ public interface ProxyClientService {
    */
   public static final String SAKAI_LIMIT_GET_SIZE = "sakai:proxy-limit-length";
 
+  /**
+   * Set to true to let GET responses from this end point be kept in the shared proxy
+   * cache. Only set this on end points whose responses are the same for every user.
+   */
+  public static final String SAKAI_PROXY_CACHE = "sakai:proxy-cache";
+
 
   /**
    * Executes a HTTP call using a path in the JCR to point to a template and a map of
@@ -0,0 +1,154 @@
+/**
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.proxy;
+
+import org.apache.commons.io.IOUtils;
+import org.sakaiproject.nakamura.api.proxy.ProxyResponse;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.SequenceInputStream;
+import java.nio.charset.Charset;
+import java.nio.charset.IllegalCharsetNameException;
+import java.util.Map;
+import java.util.Map.Entry;
+
+/**
+ * A ProxyResponse whose body is held in memory, either a response served from the
+ * {@link ProxyResponseCache} or one that was partly read while deciding if it could be
+ * cached. In the second case the rest of the body is still on the wire and the original
+ * response is closed with this one.
+ */
+class BufferedProxyResponse implements ProxyResponse {
+
+  private static final Logger LOGGER = LoggerFactory.getLogger(BufferedProxyResponse.class);
+
+  private final int result;
+  private final Map<String, String[]> headers;
+  private final byte[] body;
+  private InputStream rest;
+  private ProxyResponse origin;
+
+  BufferedProxyResponse(int result, Map<String, String[]> headers, byte[] body) {
+    this(result, headers, body, null, null);
+  }
+
+  /**
+   * @param rest
+   *          the part of the body not in body, read after it.
+   * @param origin
+   *          the response rest comes from, closed when this response is closed.
+   */
+  BufferedProxyResponse(int result, Map<String, String[]> headers, byte[] body,
+      InputStream rest, ProxyResponse origin) {
+    this.result = result;
+    this.headers = headers;
+    this.body = body;
+    this.rest = rest;
+    this.origin = origin;
+  }
+
+  /**
+   * {@inheritDoc}
+   * @see org.sakaiproject.nakamura.api.proxy.ProxyResponse#getResultCode()
+   */
+  public int getResultCode() {
+    return result;
+  }
+
+  /**
+   * {@inheritDoc}
+   * @see org.sakaiproject.nakamura.api.proxy.ProxyResponse#getResponseHeaders()
+   */
+  public Map<String, String[]> getResponseHeaders() {
+    return headers;
+  }
+
+  /**
+   * {@inheritDoc}
+   * @see org.sakaiproject.nakamura.api.proxy.ProxyResponse#getResponseBody()
+   */
+  public byte[] getResponseBody() throws IOException {
+    if (rest == null) {
+      return body;
+    }
+    return IOUtils.toByteArray(getResponseBodyAsInputStream());
+  }
+
+  /**
+   * {@inheritDoc}
+   * @see org.sakaiproject.nakamura.api.proxy.ProxyResponse#getResponseBodyAsInputStream()
+   */
+  public InputStream getResponseBodyAsInputStream() throws IOException {
+    InputStream in = new ByteArrayInputStream(body);
+    if (rest != null) {
+      // the rest can only be read once.
+      in = new SequenceInputStream(in, rest);
+      rest = null;
+    }
+    return in;
+  }
+
+  /**
+   * {@inheritDoc}
+   * @see org.sakaiproject.nakamura.api.proxy.ProxyResponse#getResponseBodyAsString()
+   */
+  public String getResponseBodyAsString() throws IOException {
+    return new String(getResponseBody(), getCharset());
+  }
+
+  /**
+   * @return the charset named in the content type, or ISO-8859-1 as HttpClient would use.
+   */
+  private String getCharset() {
+    for (Entry<String, String[]> header : headers.entrySet()) {
+      if ("Content-Type".equalsIgnoreCase(header.getKey())) {
+        for (String param : header.getValue()[0].split(";")) {
+          param = param.trim();
+          if (param.toLowerCase().startsWith("charset=")) {
+            String charset = param.substring(8).replace("\"", "").trim();
+            try {
+              if (Charset.isSupported(charset)) {
+                return charset;
+              }
+            } catch (IllegalCharsetNameException e) {
+              LOGGER.debug("Ignoring charset {} ", charset);
+            }
+          }
+        }
+      }
+    }
+    return "ISO-8859-1";
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * @see org.sakaiproject.nakamura.api.proxy.ProxyResponse#close()
+   */
+  public void close() {
+    if (origin != null) {
+      origin.close();
+      origin = null;
+    }
+    rest = null;
+  }
+}
@@ -45,6 +45,7 @@ import org.apache.felix.scr.annotations.Component;
 import org.apache.felix.scr.annotations.Property;
 import org.apache.felix.scr.annotations.Service;
 import org.apache.sling.api.request.RequestParameter;
+import org.apache.sling.commons.osgi.PropertiesUtil;
 import org.apache.velocity.Template;
 import org.apache.velocity.VelocityContext;
 import org.apache.velocity.app.VelocityEngine;
@@ -57,6 +58,7 @@ import org.sakaiproject.nakamura.api.proxy.ProxyClientService;
 import org.sakaiproject.nakamura.api.proxy.ProxyMethod;
 import org.sakaiproject.nakamura.api.proxy.ProxyNodeSource;
 import org.sakaiproject.nakamura.api.proxy.ProxyPostProcessor;
+import org.sakaiproject.nakamura.api.proxy.ProxyPreProcessor;
 import org.sakaiproject.nakamura.api.proxy.ProxyResponse;
 import org.sakaiproject.nakamura.proxy.velocity.JcrResourceLoader;
 import org.sakaiproject.nakamura.proxy.velocity.VelocityLogger;
@@ -116,6 +118,43 @@ public class ProxyClientServiceImpl implements ProxyClientService, ProxyNodeSour
   @Property(value={"rss", "trustedLoginTokenProxyPostProcessor", "iCal", "someothersafepostprocessor"})
   private static final String SAFE_POSTPROCESSORS = "safe.postprocessors";
 
+  private static final boolean DEFAULT_CACHE_ENABLED = true;
+  private static final long DEFAULT_CACHE_MAX_SIZE = 8L * 1024 * 1024;
+  private static final int DEFAULT_CACHE_MAX_ENTRY_SIZE = 256 * 1024;
+  private static final long DEFAULT_CACHE_STALE_SECONDS = 3600;
+
+  /**
+   * Keep GET responses that HTTP allows a shared cache to keep, for end points that set
+   * sakai:proxy-cache.
+   */
+  @Property(boolValue = DEFAULT_CACHE_ENABLED)
+  private static final String CACHE_ENABLED = "proxy.cache.enabled";
+
+  /**
+   * The bytes all the kept responses may take together.
+   */
+  @Property(longValue = DEFAULT_CACHE_MAX_SIZE)
+  private static final String CACHE_MAX_SIZE = "proxy.cache.max.size";
+
+  /**
+   * The largest response body to keep, in bytes.
+   */
+  @Property(intValue = DEFAULT_CACHE_MAX_ENTRY_SIZE)
+  private static final String CACHE_MAX_ENTRY_SIZE = "proxy.cache.max.entry.size";
+
+  /**
+   * How long after expiry a response may be served while the remote server is failing.
+   */
+  @Property(longValue = DEFAULT_CACHE_STALE_SECONDS)
+  private static final String CACHE_STALE_SECONDS = "proxy.cache.stale.seconds";
+
+  /**
+   * Pre processors that drop the client's headers, so the request no longer says who the
+   * user is. Requests through any other pre processor are never cached.
+   */
+  @Property(value = { "rss" })
+  private static final String CACHE_SAFE_PREPROCESSORS = "proxy.cache.safe.preprocessors";
+
   /**
    * The shared velocity engine, which should cache all the templates. (need to sort out
    * how to invalidate).
@@ -140,6 +179,13 @@ public class ProxyClientServiceImpl implements ProxyClientService, ProxyNodeSour
   private Map<String, Object> configProperties;
 
   private Set<String> safeOpenProcessors = new HashSet<String>();
+
+  /**
+   * Cached GET responses, null if caching is disabled.
+   */
+  private ProxyResponseCache responseCache;
+
+  private Set<String> cacheSafePreProcessors = new HashSet<String>();
   
   public static final Logger logger = LoggerFactory
       .getLogger(ProxyClientServiceImpl.class);
@@ -177,6 +223,21 @@ public class ProxyClientServiceImpl implements ProxyClientService, ProxyNodeSour
     } else {
       configProperties = new HashMap<String, Object>();
     }
+    if (PropertiesUtil.toBoolean(configProperties.get(CACHE_ENABLED),
+        DEFAULT_CACHE_ENABLED)) {
+      responseCache = new ProxyResponseCache(PropertiesUtil.toLong(
+          configProperties.get(CACHE_MAX_SIZE), DEFAULT_CACHE_MAX_SIZE),
+          PropertiesUtil.toInteger(configProperties.get(CACHE_MAX_ENTRY_SIZE),
+              DEFAULT_CACHE_MAX_ENTRY_SIZE), PropertiesUtil.toLong(
+              configProperties.get(CACHE_STALE_SECONDS), DEFAULT_CACHE_STALE_SECONDS));
+    } else {
+      responseCache = null;
+    }
+    cacheSafePreProcessors.clear();
+    for (String pp : PropertiesUtil.toStringArray(
+        configProperties.get(CACHE_SAFE_PREPROCESSORS), new String[] { "rss" })) {
+      cacheSafePreProcessors.add(pp);
+    }
     velocityEngine = new VelocityEngine();
     velocityEngine.setProperty(VelocityEngine.RUNTIME_LOG_LOGSYSTEM, new VelocityLogger(
         this.getClass()));
@@ -226,6 +287,9 @@ public class ProxyClientServiceImpl implements ProxyClientService, ProxyNodeSour
    * @throws Exception
    */
   protected void deactivate(ComponentContext ctx) throws Exception {
+    if (responseCache != null) {
+      logger.info("Proxy response cache {} ", responseCache);
+    }
     httpClientConnectionManager.shutdown();
   }
 
@@ -335,164 +399,221 @@ public class ProxyClientServiceImpl implements ProxyClientService, ProxyNodeSour
           + " failed, cause follows:", e);
           }
         }
-        HttpMethod method = null;
-        switch (proxyMethod) {
-        case GET:
-          if (node.hasProperty(SAKAI_LIMIT_GET_SIZE)) {
-            long maxSize = node.getProperty(SAKAI_LIMIT_GET_SIZE).getLong();
-            method = new HeadMethod(endpointURL);
-            HttpMethodParams params = new HttpMethodParams(method.getParams());
-            // make certain we reject the body of a head
-            params.setBooleanParameter("http.protocol.reject-head-body", true);
-            method.setParams(params);
-            method.setFollowRedirects(true);
-            populateMethod(method, node, headers);
-            int result = httpClient.executeMethod(method);
-            if (externalAuthenticatingProxy && result == 407) {
-              method.releaseConnection();
-              method.setDoAuthentication(true);
-              result = httpClient.executeMethod(method);
-            }
-            if (result == 200) {
-              // Check if the content-length is smaller than the maximum (if any).
-              Header contentLengthHeader = method.getResponseHeader("Content-Length");
-              if (contentLengthHeader != null) {
-                long length = Long.parseLong(contentLengthHeader.getValue());
-                if (length > maxSize) {
-                  return new ProxyResponseImpl(
-                      HttpServletResponse.SC_PRECONDITION_FAILED, "Response too large",
-                      method);
+        if (responseCache != null && proxyMethod == ProxyMethod.GET
+            && requestInputStream == null && isCacheable(node, headers)) {
+          final Node cacheNode = node;
+          final String cacheURL = endpointURL;
+          final Map<String, String> cacheHeaders = headers;
+          final Map<String, Object> cacheInput = input;
+          final VelocityContext cacheContext = context;
+          // the node path is part of the key, end points never share entries.
+          return responseCache.execute(node.getPath() + " " + endpointURL, headers,
+              new ProxyResponseCache.Fetcher() {
+                public ProxyResponse fetch(Map<String, String> conditionalHeaders)
+                    throws Exception {
+                  Map<String, String> requestHeaders = cacheHeaders;
+                  if (!conditionalHeaders.isEmpty()) {
+                    requestHeaders = new HashMap<String, String>(cacheHeaders);
+                    requestHeaders.putAll(conditionalHeaders);
+                  }
+                  return executeMethod(cacheNode, cacheURL, ProxyMethod.GET,
+                      requestHeaders, cacheInput, null, -1, null, cacheContext);
                 }
-              }
-            } else {
-              return new ProxyResponseImpl(result, method);
-            }
-          }
-          method = new GetMethod(endpointURL);
-          // redirects work automatically for get, options and head, but not for put and
-          // post
-          method.setFollowRedirects(true);
-          break;
-        case HEAD:
-          method = new HeadMethod(endpointURL);
-          HttpMethodParams params = new HttpMethodParams(method.getParams());
-          // make certain we reject the body of a head
-          params.setBooleanParameter("http.protocol.reject-head-body", true);
-          method.setParams(params);
-          // redirects work automatically for get, options and head, but not for put and
-          // post
-          method.setFollowRedirects(true);
-          break;
-        case OPTIONS:
-          method = new OptionsMethod(endpointURL);
-          // redirects work automatically for get, options and head, but not for put and
-          // post
-          method.setFollowRedirects(true);
-          break;
-        case POST:
-          method = new PostMethod(endpointURL);
-          break;
-        case PUT:
-          method = new PutMethod(endpointURL);
-          break;
-        default:
-          method = new GetMethod(endpointURL);
-          // redirects work automatically for get, options and head, but not for put and
-          // post
-          method.setFollowRedirects(true);
-
+              });
         }
+        return executeMethod(node, endpointURL, proxyMethod, headers, input,
+            requestInputStream, requestContentLength, requestContentType, context);
+      }
 
-        populateMethod(method, node, headers);
+    } catch ( ProxyClientException e ) {
+      throw e;
+    } catch (Exception e) {
+      throw new ProxyClientException("The Proxy request specified by  " + node
+          + " failed, cause follows:", e);
+    } finally {
+      unbindNode();
+    }
+    throw new ProxyClientException("The Proxy request specified by " + node
+        + " does not contain a valid endpoint specification ");
+  }
 
-        if (requestInputStream == null && !node.hasProperty(SAKAI_PROXY_REQUEST_TEMPLATE)) {
-          if (method instanceof PostMethod) {
-            PostMethod postMethod = (PostMethod) method;
-            ArrayList<Part> parts = new ArrayList<Part>();
-            for (Entry<String, Object> param : input.entrySet()) {
-              String key = param.getKey();
-              Object value = param.getValue();
-              if (value instanceof RequestParameter[]) {
-                for (RequestParameter val : (RequestParameter[]) param.getValue()) {
-                  Part part = null;
-                  if (val.isFormField()) {
-                    part = new StringPart(param.getKey(), val.getString());
-                  } else {
-                    ByteArrayPartSource source = new ByteArrayPartSource(
-                        val.getFileName(), val.get());
-                    part = new FilePart(key, source, val.getContentType(), null);
-                  }
-                  parts.add(part);
-                }
-              } else {
-                parts.add(new StringPart(key, value.toString()));
-              }
-              Part[] partsArray = parts.toArray(new Part[parts.size()]);
-              postMethod.setRequestEntity(new MultipartRequestEntity(partsArray, method
-                  .getParams()));
+  /**
+   * Make the outbound call for a resolved endpoint.
+   */
+  private ProxyResponse executeMethod(Node node, String endpointURL,
+      ProxyMethod proxyMethod, Map<String, String> headers, Map<String, Object> input,
+      InputStream requestInputStream, long requestContentLength,
+      String requestContentType, VelocityContext context) throws Exception {
+    HttpMethod method = null;
+    switch (proxyMethod) {
+    case GET:
+      if (node.hasProperty(SAKAI_LIMIT_GET_SIZE)) {
+        long maxSize = node.getProperty(SAKAI_LIMIT_GET_SIZE).getLong();
+        method = new HeadMethod(endpointURL);
+        HttpMethodParams params = new HttpMethodParams(method.getParams());
+        // make certain we reject the body of a head
+        params.setBooleanParameter("http.protocol.reject-head-body", true);
+        method.setParams(params);
+        method.setFollowRedirects(true);
+        populateMethod(method, node, headers);
+        int result = httpClient.executeMethod(method);
+        if (externalAuthenticatingProxy && result == 407) {
+          method.releaseConnection();
+          method.setDoAuthentication(true);
+          result = httpClient.executeMethod(method);
+        }
+        if (result == 200) {
+          // Check if the content-length is smaller than the maximum (if any).
+          Header contentLengthHeader = method.getResponseHeader("Content-Length");
+          if (contentLengthHeader != null) {
+            long length = Long.parseLong(contentLengthHeader.getValue());
+            if (length > maxSize) {
+              return new ProxyResponseImpl(
+                  HttpServletResponse.SC_PRECONDITION_FAILED, "Response too large",
+                  method);
             }
           }
         } else {
+          return new ProxyResponseImpl(result, method);
+        }
+      }
+      method = new GetMethod(endpointURL);
+      // redirects work automatically for get, options and head, but not for put and
+      // post
+      method.setFollowRedirects(true);
+      break;
+    case HEAD:
+      method = new HeadMethod(endpointURL);
+      HttpMethodParams params = new HttpMethodParams(method.getParams());
+      // make certain we reject the body of a head
+      params.setBooleanParameter("http.protocol.reject-head-body", true);
+      method.setParams(params);
+      // redirects work automatically for get, options and head, but not for put and
+      // post
+      method.setFollowRedirects(true);
+      break;
+    case OPTIONS:
+      method = new OptionsMethod(endpointURL);
+      // redirects work automatically for get, options and head, but not for put and
+      // post
+      method.setFollowRedirects(true);
+      break;
+    case POST:
+      method = new PostMethod(endpointURL);
+      break;
+    case PUT:
+      method = new PutMethod(endpointURL);
+      break;
+    default:
+      method = new GetMethod(endpointURL);
+      // redirects work automatically for get, options and head, but not for put and
+      // post
+      method.setFollowRedirects(true);
 
-          if (method instanceof EntityEnclosingMethod) {
-            String contentType = requestContentType;
-            if (contentType == null && node.hasProperty(SAKAI_REQUEST_CONTENT_TYPE)) {
-              contentType = node.getProperty(SAKAI_REQUEST_CONTENT_TYPE).getString();
-
-            }
-            if (contentType == null) {
-              contentType = APPLICATION_OCTET_STREAM;
-            }
-            EntityEnclosingMethod eemethod = (EntityEnclosingMethod) method;
-            if (requestInputStream != null) {
-              eemethod.setRequestEntity(new InputStreamRequestEntity(requestInputStream,
-                  requestContentLength, contentType));
-            } else {
-              // build the request
-              Template template = velocityEngine.getTemplate(node.getPath());
-              StringWriter body = new StringWriter();
-              template.merge(context, body);
-              byte[] soapBodyContent = body.toString().getBytes("UTF-8");
-              eemethod.setRequestEntity(new ByteArrayRequestEntity(soapBodyContent,
-                  contentType));
+    }
 
+    populateMethod(method, node, headers);
+
+    if (requestInputStream == null && !node.hasProperty(SAKAI_PROXY_REQUEST_TEMPLATE)) {
+      if (method instanceof PostMethod) {
+        PostMethod postMethod = (PostMethod) method;
+        ArrayList<Part> parts = new ArrayList<Part>();
+        for (Entry<String, Object> param : input.entrySet()) {
+          String key = param.getKey();
+          Object value = param.getValue();
+          if (value instanceof RequestParameter[]) {
+            for (RequestParameter val : (RequestParameter[]) param.getValue()) {
+              Part part = null;
+              if (val.isFormField()) {
+                part = new StringPart(param.getKey(), val.getString());
+              } else {
+                ByteArrayPartSource source = new ByteArrayPartSource(
+                    val.getFileName(), val.get());
+                part = new FilePart(key, source, val.getContentType(), null);
+              }
+              parts.add(part);
             }
+          } else {
+            parts.add(new StringPart(key, value.toString()));
           }
+          Part[] partsArray = parts.toArray(new Part[parts.size()]);
+          postMethod.setRequestEntity(new MultipartRequestEntity(partsArray, method
+              .getParams()));
         }
+      }
+    } else {
+
+      if (method instanceof EntityEnclosingMethod) {
+        String contentType = requestContentType;
+        if (contentType == null && node.hasProperty(SAKAI_REQUEST_CONTENT_TYPE)) {
+          contentType = node.getProperty(SAKAI_REQUEST_CONTENT_TYPE).getString();
 
-        int result = httpClient.executeMethod(method);
-        if (externalAuthenticatingProxy && result == 407) {
-          method.releaseConnection();
-          method.setDoAuthentication(true);
-          result = httpClient.executeMethod(method);
         }
-        if (result == 302 && method instanceof EntityEnclosingMethod) {
-          // handle redirects on post and put
-          String url = method.getResponseHeader("Location").getValue();
-          method = new GetMethod(url);
-          method.setFollowRedirects(true);
-          method.setDoAuthentication(false);
-          result = httpClient.executeMethod(method);
-          if (externalAuthenticatingProxy && result == 407) {
-            method.releaseConnection();
-            method.setDoAuthentication(true);
-            result = httpClient.executeMethod(method);
-          }
+        if (contentType == null) {
+          contentType = APPLICATION_OCTET_STREAM;
         }
+        EntityEnclosingMethod eemethod = (EntityEnclosingMethod) method;
+        if (requestInputStream != null) {
+          eemethod.setRequestEntity(new InputStreamRequestEntity(requestInputStream,
+              requestContentLength, contentType));
+        } else {
+          // build the request
+          Template template = velocityEngine.getTemplate(node.getPath());
+          StringWriter body = new StringWriter();
+          template.merge(context, body);
+          byte[] soapBodyContent = body.toString().getBytes("UTF-8");
+          eemethod.setRequestEntity(new ByteArrayRequestEntity(soapBodyContent,
+              contentType));
 
-        return new ProxyResponseImpl(result, method);
+        }
       }
+    }
 
-    } catch ( ProxyClientException e ) {
-      throw e;
-    } catch (Exception e) {
-      throw new ProxyClientException("The Proxy request specified by  " + node
-          + " failed, cause follows:", e);
-    } finally {
-      unbindNode();
+    int result = httpClient.executeMethod(method);
+    if (externalAuthenticatingProxy && result == 407) {
+      method.releaseConnection();
+      method.setDoAuthentication(true);
+      result = httpClient.executeMethod(method);
     }
-    throw new ProxyClientException("The Proxy request specified by " + node
-        + " does not contain a valid endpoint specification ");
+    if (result == 302 && method instanceof EntityEnclosingMethod) {
+      // handle redirects on post and put
+      String url = method.getResponseHeader("Location").getValue();
+      method = new GetMethod(url);
+      method.setFollowRedirects(true);
+      method.setDoAuthentication(false);
+      result = httpClient.executeMethod(method);
+      if (externalAuthenticatingProxy && result == 407) {
+        method.releaseConnection();
+        method.setDoAuthentication(true);
+        result = httpClient.executeMethod(method);
+      }
+    }
+
+    return new ProxyResponseImpl(result, method);
+  }
+
+  /**
+   * A response may only go in the shared cache if the node asks for it and nothing in the
+   * request identifies the user.
+   */
+  private boolean isCacheable(Node node, Map<String, String> headers)
+      throws RepositoryException {
+    if (!node.hasProperty(SAKAI_PROXY_CACHE)
+        || !Boolean.parseBoolean(node.getProperty(SAKAI_PROXY_CACHE).getString())) {
+      return false;
+    }
+    // headers defined on the node may carry credentials.
+    if (node.hasProperty(SAKAI_PROXY_HEADER)) {
+      return false;
+    }
+    if (node.hasProperty(ProxyPreProcessor.SAKAI_PREPROCESSOR)) {
+      String preProcessorName = node.getProperty(ProxyPreProcessor.SAKAI_PREPROCESSOR)
+          .getString();
+      if (!cacheSafePreProcessors.contains(preProcessorName)) {
+        return false;
+      }
+    }
+    return ProxyResponseCache.isCacheable(headers);
   }
 
   private boolean isUnsafeProxyDefinition(Node node) throws RepositoryException {
@@ -0,0 +1,757 @@
+/**
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.proxy;
+
+import com.google.common.collect.ImmutableSet;
+
+import org.sakaiproject.nakamura.api.proxy.ProxyResponse;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.TimeZone;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A shared cache of proxied GET responses that follows the HTTP rules for a shared cache.
+ * Responses are stored against the resource they were fetched for and the request headers
+ * named in their Vary header. Freshness comes from Cache-Control (s-maxage, max-age) or
+ * Expires, and there is no heuristic freshness, so a response without either is only
+ * stored if it has a validator and is then revalidated with If-None-Match and
+ * If-Modified-Since on every use.
+ * <p>
+ * Concurrent misses on the same key wait for a single outbound call. While that call is
+ * revalidating a stale entry the other requests are given the stale entry rather than
+ * waiting, and if the upstream fails or answers with a 5xx the stale entry is served for
+ * up to the stale window, unless the response said must-revalidate.
+ * </p>
+ */
+class ProxyResponseCache {
+
+  /**
+   * Fetches the resource from the upstream server.
+   */
+  interface Fetcher {
+    /**
+     * @param conditionalHeaders
+     *          headers to add to the request to revalidate a cached entry, empty when
+     *          there is nothing to revalidate.
+     * @return the upstream response.
+     */
+    ProxyResponse fetch(Map<String, String> conditionalHeaders) throws Exception;
+  }
+
+  private static final Logger LOGGER = LoggerFactory.getLogger(ProxyResponseCache.class);
+
+  /**
+   * Status codes that may be stored, those a cache can store without being told it may.
+   */
+  private static final Set<Integer> CACHEABLE_STATUS = ImmutableSet.of(200, 203, 300, 301,
+      404, 410);
+  /**
+   * Request headers that make the request one the cache cannot answer for the client. A
+   * cookie may say who the user is, and the key does not include it.
+   */
+  private static final String[] UNCACHEABLE_REQUEST_HEADERS = { "If-None-Match",
+      "If-Modified-Since", "If-Match", "If-Unmodified-Since", "If-Range", "Range",
+      "Cookie" };
+  /**
+   * Headers that apply to a single connection and are not stored.
+   */
+  private static final Set<String> HOP_BY_HOP_HEADERS = ImmutableSet.of("connection",
+      "keep-alive", "proxy-authenticate", "proxy-authorization", "te", "trailer",
+      "trailers", "transfer-encoding", "upgrade");
+  /**
+   * Headers of a 304 that do not replace the stored ones.
+   */
+  private static final Set<String> NOT_UPDATED_HEADERS = ImmutableSet.of("content-length",
+      "content-encoding", "content-range");
+  /**
+   * How long a request waits for a concurrent request fetching the same key before it
+   * fetches for itself.
+   */
+  private static final long COALESCE_WAIT = 30000L;
+  /**
+   * The number of resources whose Vary header names are remembered.
+   */
+  private static final int MAX_VARIES = 1000;
+
+  /**
+   * Least recently used first, guarded by itself along with size.
+   */
+  private final LinkedHashMap<String, CacheEntry> entries = new LinkedHashMap<String, CacheEntry>(
+      16, 0.75f, true);
+  private long size;
+  /**
+   * The Vary header names of the last response stored for each resource.
+   */
+  private final Map<String, String[]> varies;
+  private final ConcurrentMap<String, Flight> flights = new ConcurrentHashMap<String, Flight>();
+  private final long maxSize;
+  private final int maxEntrySize;
+  private final long staleMillis;
+
+  private final AtomicLong hits = new AtomicLong();
+  private final AtomicLong misses = new AtomicLong();
+  private final AtomicLong revalidations = new AtomicLong();
+  private final AtomicLong notModified = new AtomicLong();
+  private final AtomicLong staleHits = new AtomicLong();
+  private final AtomicLong coalesced = new AtomicLong();
+
+  /**
+   * @param maxSize
+   *          the number of bytes the stored responses may take, least recently used go
+   *          first.
+   * @param maxEntrySize
+   *          the largest body that will be stored, in bytes.
+   * @param staleSeconds
+   *          how long past its expiry a response may be served when the upstream is
+   *          failing or being revalidated, unless the response sets stale-if-error.
+   */
+  ProxyResponseCache(long maxSize, int maxEntrySize, long staleSeconds) {
+    this.maxSize = maxSize;
+    this.maxEntrySize = maxEntrySize;
+    this.staleMillis = staleSeconds * 1000L;
+    varies = Collections.synchronizedMap(new LinkedHashMap<String, String[]>(16, 0.75f,
+        true) {
+      private static final long serialVersionUID = 1L;
+
+      @Override
+      protected boolean removeEldestEntry(Map.Entry<String, String[]> eldest) {
+        return size() > MAX_VARIES;
+      }
+    });
+  }
+
+  /**
+   * @param requestHeaders
+   *          the headers of the request.
+   * @return true if the cache can answer the request, false if it carries its own
+   *         conditions, ranges or cookies and should go straight to the upstream server.
+   */
+  static boolean isCacheable(Map<String, String> requestHeaders) {
+    for (String name : UNCACHEABLE_REQUEST_HEADERS) {
+      if (getHeader(requestHeaders, name) != null) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Answer a GET from the cache, fetching or revalidating as required.
+   *
+   * @param resource
+   *          identifies what is being fetched, normally the resolved URL.
+   * @param requestHeaders
+   *          the headers that will be sent upstream.
+   * @param fetcher
+   *          performs the outbound call.
+   * @return the response, which the caller must close.
+   * @throws Exception
+   *           if the fetch failed and there was nothing that could be served instead.
+   */
+  ProxyResponse execute(String resource, Map<String, String> requestHeaders, Fetcher fetcher)
+      throws Exception {
+    String key = getKey(resource, varies.get(resource), requestHeaders);
+    CacheEntry cached = getEntry(key);
+    long now = now();
+    if (cached != null && cached.isFresh(now)) {
+      hits.incrementAndGet();
+      return cached.toResponse(now, false);
+    }
+    Flight flight = new Flight();
+    Flight leader = flights.putIfAbsent(key, flight);
+    if (leader != null) {
+      if (cached != null && cached.isUsableStale(now)) {
+        // someone is already revalidating, don't wait for them.
+        staleHits.incrementAndGet();
+        return cached.toResponse(now, true);
+      }
+      coalesced.incrementAndGet();
+      if (leader.await()) {
+        CacheEntry shared = leader.entry;
+        // the leader's response may vary on headers this request does not share.
+        if (shared != null
+            && getKey(resource, shared.vary, requestHeaders).equals(leader.entryKey)) {
+          return shared.toResponse(now(), leader.stale);
+        }
+      }
+      // the leader got nothing that could be shared, go upstream for ourselves.
+      return fetch(resource, requestHeaders, cached, fetcher, null);
+    }
+    try {
+      return fetch(resource, requestHeaders, cached, fetcher, flight);
+    } finally {
+      flights.remove(key, flight);
+      flight.done.countDown();
+    }
+  }
+
+  private ProxyResponse fetch(String resource, Map<String, String> requestHeaders,
+      CacheEntry cached, Fetcher fetcher, Flight flight) throws Exception {
+    Map<String, String> conditionalHeaders = Collections.emptyMap();
+    if (cached != null && cached.hasValidator()) {
+      revalidations.incrementAndGet();
+      conditionalHeaders = cached.getConditionalHeaders();
+    } else {
+      misses.incrementAndGet();
+    }
+    long requestTime = now();
+    ProxyResponse response;
+    try {
+      response = fetcher.fetch(conditionalHeaders);
+    } catch (Exception e) {
+      if (cached != null && cached.isUsableStale(now())) {
+        LOGGER.info("Serving stale copy of {}, upstream failed: {} ", resource,
+            e.getMessage());
+        return serveStale(resource, requestHeaders, cached, flight);
+      }
+      throw e;
+    }
+    int status = response.getResultCode();
+    if (status == 304 && cached != null && !conditionalHeaders.isEmpty()) {
+      notModified.incrementAndGet();
+      CacheEntry updated = cached.update(response.getResponseHeaders(), requestHeaders,
+          requestTime, now(), staleMillis);
+      response.close();
+      if (updated == null) {
+        // the server no longer lets us keep it, this request still gets the body.
+        removeEntry(getKey(resource, cached.vary, requestHeaders));
+        return cached.toResponse(now(), false);
+      }
+      store(resource, requestHeaders, updated);
+      share(flight, resource, requestHeaders, updated, false);
+      return updated.toResponse(now(), false);
+    }
+    if (status >= 500 && cached != null && cached.isUsableStale(now())) {
+      LOGGER.info("Serving stale copy of {}, upstream returned {} ", resource, status);
+      response.close();
+      return serveStale(resource, requestHeaders, cached, flight);
+    }
+    Map<String, String[]> headers = response.getResponseHeaders();
+    CacheEntry entry = CacheEntry.fromResponse(status, headers, requestHeaders,
+        requestTime, now(), staleMillis);
+    if (entry == null) {
+      return response;
+    }
+    long length = getLength(headers);
+    if (length > maxEntrySize) {
+      return response;
+    }
+    ByteArrayOutputStream body = new ByteArrayOutputStream(length > 0 ? (int) length
+        : 4096);
+    try {
+      InputStream in = response.getResponseBodyAsInputStream();
+      if (in != null) {
+        byte[] buffer = new byte[4096];
+        int remaining = maxEntrySize + 1;
+        int n;
+        while (remaining > 0
+            && (n = in.read(buffer, 0, Math.min(buffer.length, remaining))) >= 0) {
+          body.write(buffer, 0, n);
+          remaining -= n;
+        }
+        if (remaining == 0) {
+          // too big to keep, hand back what was read followed by the rest.
+          return new BufferedProxyResponse(status, headers, body.toByteArray(), in,
+              response);
+        }
+      }
+    } catch (IOException e) {
+      response.close();
+      throw e;
+    }
+    response.close();
+    entry.body = body.toByteArray();
+    store(resource, requestHeaders, entry);
+    share(flight, resource, requestHeaders, entry, false);
+    return entry.toResponse(now(), false);
+  }
+
+  private ProxyResponse serveStale(String resource, Map<String, String> requestHeaders,
+      CacheEntry cached, Flight flight) {
+    staleHits.incrementAndGet();
+    share(flight, resource, requestHeaders, cached, true);
+    return cached.toResponse(now(), true);
+  }
+
+  /**
+   * Give the requests waiting on a flight the entry it got.
+   */
+  private void share(Flight flight, String resource, Map<String, String> requestHeaders,
+      CacheEntry entry, boolean stale) {
+    if (flight != null) {
+      flight.entryKey = getKey(resource, entry.vary, requestHeaders);
+      flight.stale = stale;
+      flight.entry = entry;
+    }
+  }
+
+  private void store(String resource, Map<String, String> requestHeaders, CacheEntry entry) {
+    varies.put(resource, entry.vary);
+    String key = getKey(resource, entry.vary, requestHeaders);
+    synchronized (entries) {
+      CacheEntry replaced = entries.put(key, entry);
+      if (replaced != null) {
+        size -= replaced.getSize();
+      }
+      size += entry.getSize();
+      for (Iterator<CacheEntry> i = entries.values().iterator(); size > maxSize
+          && i.hasNext();) {
+        size -= i.next().getSize();
+        i.remove();
+      }
+    }
+  }
+
+  private CacheEntry getEntry(String key) {
+    synchronized (entries) {
+      return entries.get(key);
+    }
+  }
+
+  private void removeEntry(String key) {
+    synchronized (entries) {
+      CacheEntry removed = entries.remove(key);
+      if (removed != null) {
+        size -= removed.getSize();
+      }
+    }
+  }
+
+  private static String getKey(String resource, String[] vary,
+      Map<String, String> requestHeaders) {
+    if (vary == null || vary.length == 0) {
+      return resource;
+    }
+    StringBuilder sb = new StringBuilder(resource);
+    for (String name : vary) {
+      String value = getHeader(requestHeaders, name);
+      sb.append('\n').append(name).append(':').append(value == null ? "" : value);
+    }
+    return sb.toString();
+  }
+
+  private static long getLength(Map<String, String[]> headers) {
+    String length = getFirst(headers, "Content-Length");
+    if (length != null) {
+      try {
+        return Long.parseLong(length.trim());
+      } catch (NumberFormatException e) {
+        LOGGER.debug("Invalid Content-Length {} ", length);
+      }
+    }
+    return -1;
+  }
+
+  private static String getHeader(Map<String, String> headers, String name) {
+    for (Map.Entry<String, String> header : headers.entrySet()) {
+      if (name.equalsIgnoreCase(header.getKey())) {
+        return header.getValue();
+      }
+    }
+    return null;
+  }
+
+  private static String getFirst(Map<String, String[]> headers, String name) {
+    for (Map.Entry<String, String[]> header : headers.entrySet()) {
+      if (name.equalsIgnoreCase(header.getKey()) && header.getValue().length > 0) {
+        return header.getValue()[0];
+      }
+    }
+    return null;
+  }
+
+  /**
+   * @return all the values of a header, comma separated.
+   */
+  private static String getAll(Map<String, String[]> headers, String name) {
+    StringBuilder sb = null;
+    for (Map.Entry<String, String[]> header : headers.entrySet()) {
+      if (name.equalsIgnoreCase(header.getKey())) {
+        for (String value : header.getValue()) {
+          if (sb == null) {
+            sb = new StringBuilder(value);
+          } else {
+            sb.append(',').append(value);
+          }
+        }
+      }
+    }
+    return sb == null ? null : sb.toString();
+  }
+
+  private static long parseDate(String date) {
+    if (date != null) {
+      SimpleDateFormat format = new SimpleDateFormat("EEE, dd MMM yyyy HH:mm:ss zzz",
+          Locale.US);
+      format.setTimeZone(TimeZone.getTimeZone("GMT"));
+      try {
+        return format.parse(date.trim()).getTime();
+      } catch (ParseException e) {
+        LOGGER.debug("Invalid date {} ", date);
+      }
+    }
+    return -1;
+  }
+
+  /**
+   * The clock, overridden in tests.
+   */
+  long now() {
+    return System.currentTimeMillis();
+  }
+
+  long getHitCount() {
+    return hits.get();
+  }
+
+  long getMissCount() {
+    return misses.get();
+  }
+
+  long getRevalidationCount() {
+    return revalidations.get();
+  }
+
+  long getNotModifiedCount() {
+    return notModified.get();
+  }
+
+  long getStaleHitCount() {
+    return staleHits.get();
+  }
+
+  long getCoalescedCount() {
+    return coalesced.get();
+  }
+
+  /**
+   * @return the bytes taken by the stored responses.
+   */
+  long getSize() {
+    synchronized (entries) {
+      return size;
+    }
+  }
+
+  @Override
+  public String toString() {
+    int count;
+    long bytes;
+    synchronized (entries) {
+      count = entries.size();
+      bytes = size;
+    }
+    return "hits " + hits + " misses " + misses + " revalidations " + revalidations
+        + " not modified " + notModified + " stale " + staleHits + " coalesced "
+        + coalesced + " entries " + count + " bytes " + bytes;
+  }
+
+  /**
+   * An outbound call in progress, other requests for the same key wait on it.
+   */
+  private static final class Flight {
+    private final CountDownLatch done = new CountDownLatch(1);
+    private volatile CacheEntry entry;
+    private volatile String entryKey;
+    private volatile boolean stale;
+
+    private boolean await() {
+      try {
+        return done.await(COALESCE_WAIT, TimeUnit.MILLISECONDS);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        return false;
+      }
+    }
+  }
+
+  /**
+   * A stored response. Entries are never changed once stored, a revalidation stores a new
+   * one.
+   */
+  private static final class CacheEntry {
+    private final int status;
+    private final Map<String, String[]> headers;
+    private final String[] vary;
+    private final String etag;
+    private final String lastModified;
+    private final long responseTime;
+    private final long initialAge;
+    private final long expires;
+    private final long staleUntil;
+    private byte[] body;
+
+    private CacheEntry(int status, Map<String, String[]> headers, String[] vary,
+        long responseTime, long initialAge, long lifetime, long stale) {
+      this.status = status;
+      this.headers = headers;
+      this.vary = vary;
+      this.etag = getFirst(headers, "ETag");
+      this.lastModified = getFirst(headers, "Last-Modified");
+      this.responseTime = responseTime;
+      this.initialAge = initialAge;
+      this.expires = responseTime - initialAge + lifetime;
+      this.staleUntil = expires + stale;
+    }
+
+    /**
+     * @return the entry for a response, without its body, or null if the response may
+     *         not be stored.
+     */
+    private static CacheEntry fromResponse(int status,
+        Map<String, String[]> responseHeaders, Map<String, String> requestHeaders,
+        long requestTime, long responseTime, long defaultStale) {
+      if (!CACHEABLE_STATUS.contains(status)) {
+        return null;
+      }
+      Map<String, String[]> headers = new LinkedHashMap<String, String[]>();
+      for (Map.Entry<String, String[]> header : responseHeaders.entrySet()) {
+        String name = header.getKey();
+        if (name.equalsIgnoreCase("Set-Cookie") || name.equalsIgnoreCase("Set-Cookie2")) {
+          // never share someone's cookies.
+          return null;
+        }
+        if (!HOP_BY_HOP_HEADERS.contains(name.toLowerCase(Locale.ENGLISH))) {
+          headers.put(name, header.getValue());
+        }
+      }
+      return create(status, headers, requestHeaders, requestTime, responseTime,
+          defaultStale);
+    }
+
+    /**
+     * @return the entry for the stored headers, or null if they say it may not be stored.
+     */
+    private static CacheEntry create(int status, Map<String, String[]> headers,
+        Map<String, String> requestHeaders, long requestTime, long responseTime,
+        long defaultStale) {
+      Map<String, String> cacheControl = parseCacheControl(getAll(headers, "Cache-Control"));
+      if (cacheControl.containsKey("no-store") || cacheControl.containsKey("private")) {
+        return null;
+      }
+      String[] vary = parseVary(getAll(headers, "Vary"));
+      if (vary == null) {
+        return null;
+      }
+      if (getHeader(requestHeaders, "Authorization") != null
+          && !cacheControl.containsKey("public") && !cacheControl.containsKey("s-maxage")
+          && !cacheControl.containsKey("must-revalidate")) {
+        // a shared cache only keeps authorized responses when told it may.
+        return null;
+      }
+      boolean noCache = cacheControl.containsKey("no-cache");
+      if (!noCache && cacheControl.isEmpty()) {
+        String pragma = getAll(headers, "Pragma");
+        noCache = pragma != null && pragma.toLowerCase(Locale.ENGLISH).contains("no-cache");
+      }
+      long lifetime = -1;
+      if (noCache) {
+        lifetime = 0;
+      } else if (cacheControl.containsKey("s-maxage")) {
+        lifetime = parseSeconds(cacheControl.get("s-maxage"));
+      } else if (cacheControl.containsKey("max-age")) {
+        lifetime = parseSeconds(cacheControl.get("max-age"));
+      } else {
+        String expires = getFirst(headers, "Expires");
+        if (expires != null) {
+          // an invalid Expires, such as 0, means already expired.
+          long expiresAt = parseDate(expires);
+          long date = parseDate(getFirst(headers, "Date"));
+          lifetime = Math.max(0, expiresAt - (date < 0 ? responseTime : date));
+        }
+      }
+      boolean validator = getFirst(headers, "ETag") != null
+          || getFirst(headers, "Last-Modified") != null;
+      if (lifetime <= 0 && !validator) {
+        // there is nothing to gain from keeping it.
+        return null;
+      }
+      lifetime = Math.max(0, lifetime);
+      long initialAge = Math.max(0, parseSeconds(getFirst(headers, "Age")))
+          + Math.max(0, responseTime - requestTime);
+      long stale = defaultStale;
+      if (noCache || cacheControl.containsKey("must-revalidate")
+          || cacheControl.containsKey("proxy-revalidate")) {
+        stale = 0;
+      } else if (cacheControl.containsKey("stale-if-error")) {
+        stale = Math.max(0, parseSeconds(cacheControl.get("stale-if-error")));
+      }
+      return new CacheEntry(status, headers, vary, responseTime, initialAge, lifetime, stale);
+    }
+
+    /**
+     * @return roughly the bytes this entry holds on to, the body and the headers.
+     */
+    private long getSize() {
+      long entrySize = body == null ? 0 : body.length;
+      for (Map.Entry<String, String[]> header : headers.entrySet()) {
+        for (String value : header.getValue()) {
+          entrySize += 2 * (header.getKey().length() + value.length());
+        }
+      }
+      return entrySize;
+    }
+
+    /**
+     * @return a new entry with the headers of a 304 merged in and the same body, or null if
+     *         the entry may no longer be stored.
+     */
+    private CacheEntry update(Map<String, String[]> notModifiedHeaders,
+        Map<String, String> requestHeaders, long requestTime, long responseTime,
+        long defaultStale) {
+      Map<String, String[]> merged = new LinkedHashMap<String, String[]>(headers);
+      for (Map.Entry<String, String[]> header : notModifiedHeaders.entrySet()) {
+        String name = header.getKey();
+        String lowerName = name.toLowerCase(Locale.ENGLISH);
+        if (lowerName.startsWith("set-cookie")) {
+          return null;
+        }
+        if (HOP_BY_HOP_HEADERS.contains(lowerName) || NOT_UPDATED_HEADERS.contains(lowerName)) {
+          continue;
+        }
+        for (Iterator<String> i = merged.keySet().iterator(); i.hasNext();) {
+          if (name.equalsIgnoreCase(i.next())) {
+            i.remove();
+          }
+        }
+        merged.put(name, header.getValue());
+      }
+      CacheEntry updated = create(status, merged, requestHeaders, requestTime,
+          responseTime, defaultStale);
+      if (updated != null) {
+        updated.body = body;
+      }
+      return updated;
+    }
+
+    /**
+     * @return the Cache-Control directives, names in lower case, values without quotes.
+     */
+    private static Map<String, String> parseCacheControl(String cacheControl) {
+      Map<String, String> directives = new HashMap<String, String>();
+      if (cacheControl != null) {
+        for (String directive : cacheControl.split(",")) {
+          String value = null;
+          int i = directive.indexOf('=');
+          if (i >= 0) {
+            value = directive.substring(i + 1).replace("\"", "").trim();
+            directive = directive.substring(0, i);
+          }
+          directive = directive.trim().toLowerCase(Locale.ENGLISH);
+          if (directive.length() > 0) {
+            directives.put(directive, value);
+          }
+        }
+      }
+      return directives;
+    }
+
+    /**
+     * @return the header names, in lower case and sorted, or null for Vary: *.
+     */
+    private static String[] parseVary(String vary) {
+      if (vary == null) {
+        return new String[0];
+      }
+      List<String> names = new ArrayList<String>();
+      for (String name : vary.split(",")) {
+        name = name.trim().toLowerCase(Locale.ENGLISH);
+        if ("*".equals(name)) {
+          return null;
+        }
+        if (name.length() > 0 && !names.contains(name)) {
+          names.add(name);
+        }
+      }
+      Collections.sort(names);
+      return names.toArray(new String[names.size()]);
+    }
+
+    /**
+     * @return the delta seconds in milliseconds, -1 if it is not a number.
+     */
+    private static long parseSeconds(String seconds) {
+      if (seconds != null) {
+        try {
+          return Long.parseLong(seconds.trim()) * 1000L;
+        } catch (NumberFormatException e) {
+          LOGGER.debug("Invalid delta seconds {} ", seconds);
+        }
+      }
+      return -1;
+    }
+
+    private boolean isFresh(long now) {
+      return now < expires;
+    }
+
+    private boolean isUsableStale(long now) {
+      return now < staleUntil;
+    }
+
+    private boolean hasValidator() {
+      return etag != null || lastModified != null;
+    }
+
+    private Map<String, String> getConditionalHeaders() {
+      Map<String, String> conditional = new HashMap<String, String>();
+      if (etag != null) {
+        conditional.put("If-None-Match", etag);
+      }
+      if (lastModified != null) {
+        conditional.put("If-Modified-Since", lastModified);
+      }
+      return conditional;
+    }
+
+    private ProxyResponse toResponse(long now, boolean stale) {
+      Map<String, String[]> responseHeaders = new LinkedHashMap<String, String[]>();
+      for (Map.Entry<String, String[]> header : headers.entrySet()) {
+        if (!"Age".equalsIgnoreCase(header.getKey())) {
+          responseHeaders.put(header.getKey(), header.getValue());
+        }
+      }
+      long age = Math.max(0, now - responseTime) + initialAge;
+      responseHeaders.put("Age", new String[] { String.valueOf(age / 1000) });
+      if (stale) {
+        responseHeaders.put("Warning", new String[] { "110 - \"Response is Stale\"" });
+      }
+      return new BufferedProxyResponse(status, responseHeaders, body);
+    }
+  }
+}
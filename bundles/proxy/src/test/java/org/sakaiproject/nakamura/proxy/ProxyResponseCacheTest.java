@@ -0,0 +1,533 @@
+/**
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.proxy;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import org.apache.commons.httpclient.HttpClient;
+import org.apache.commons.httpclient.MultiThreadedHttpConnectionManager;
+import org.apache.commons.httpclient.methods.GetMethod;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.sakaiproject.nakamura.api.proxy.ProxyClientService;
+import org.sakaiproject.nakamura.api.proxy.ProxyPreProcessor;
+import org.sakaiproject.nakamura.api.proxy.ProxyResponse;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.TimeZone;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.jcr.Node;
+import javax.jcr.Property;
+import javax.jcr.Value;
+import javax.jcr.nodetype.PropertyDefinition;
+
+/**
+ * Runs the cache, on its own and through ProxyClientServiceImpl, against a stub HTTP server
+ * that counts the requests it gets.
+ */
+public class ProxyResponseCacheTest {
+
+  private static final String BODY = "<rss version=\"2.0\"><channel/></rss>";
+
+  private HttpServer server;
+  private ExecutorService serverExecutor;
+  private String url;
+  private MultiThreadedHttpConnectionManager connectionManager;
+  private HttpClient httpClient;
+  private ProxyResponseCache cache;
+  private final AtomicLong clock = new AtomicLong();
+
+  private final AtomicInteger requests = new AtomicInteger();
+  private volatile int status;
+  private volatile String body;
+  private volatile long delay;
+  private volatile boolean chunked;
+  private final Map<String, String> responseHeaders = Collections
+      .synchronizedMap(new HashMap<String, String>());
+  private volatile String lastIfNoneMatch;
+  private volatile String echoHeader;
+
+  @Before
+  public void setUp() throws Exception {
+    server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+    server.createContext("/", new HttpHandler() {
+      public void handle(HttpExchange exchange) throws IOException {
+        requests.incrementAndGet();
+        lastIfNoneMatch = exchange.getRequestHeaders().getFirst("If-None-Match");
+        if (delay > 0) {
+          try {
+            Thread.sleep(delay);
+          } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+          }
+        }
+        for (Entry<String, String> header : responseHeaders.entrySet()) {
+          exchange.getResponseHeaders().add(header.getKey(), header.getValue());
+        }
+        String etag = responseHeaders.get("ETag");
+        if (etag != null && etag.equals(lastIfNoneMatch)) {
+          exchange.sendResponseHeaders(304, -1);
+        } else {
+          String responseBody = body;
+          if (echoHeader != null) {
+            responseBody = exchange.getRequestHeaders().getFirst(echoHeader);
+          }
+          byte[] bytes = responseBody.getBytes("UTF-8");
+          exchange.sendResponseHeaders(status, chunked ? 0 : bytes.length);
+          OutputStream out = exchange.getResponseBody();
+          out.write(bytes);
+          out.close();
+        }
+        exchange.close();
+      }
+    });
+    serverExecutor = Executors.newCachedThreadPool();
+    server.setExecutor(serverExecutor);
+    server.start();
+    url = "http://localhost:" + server.getAddress().getPort() + "/feed";
+    connectionManager = new MultiThreadedHttpConnectionManager();
+    connectionManager.getParams().setDefaultMaxConnectionsPerHost(20);
+    httpClient = new HttpClient(connectionManager);
+    cache = createCache(1024);
+    status = 200;
+    body = BODY;
+  }
+
+  @After
+  public void tearDown() {
+    server.stop(0);
+    serverExecutor.shutdownNow();
+    connectionManager.shutdown();
+  }
+
+  private ProxyResponseCache createCache(int maxEntrySize) {
+    return createCache(100 * maxEntrySize, maxEntrySize);
+  }
+
+  private ProxyResponseCache createCache(long maxSize, int maxEntrySize) {
+    return new ProxyResponseCache(maxSize, maxEntrySize, 60) {
+      @Override
+      long now() {
+        return System.currentTimeMillis() + clock.get();
+      }
+    };
+  }
+
+  private ProxyResponse get(Map<String, String> requestHeaders) throws Exception {
+    return get(url, requestHeaders);
+  }
+
+  private ProxyResponse get(final String resource, Map<String, String> requestHeaders)
+      throws Exception {
+    final Map<String, String> headers = requestHeaders;
+    return cache.execute(resource, headers, new ProxyResponseCache.Fetcher() {
+      public ProxyResponse fetch(Map<String, String> conditionalHeaders) throws Exception {
+        GetMethod method = new GetMethod(resource);
+        for (Entry<String, String> header : headers.entrySet()) {
+          method.addRequestHeader(header.getKey(), header.getValue());
+        }
+        for (Entry<String, String> header : conditionalHeaders.entrySet()) {
+          method.addRequestHeader(header.getKey(), header.getValue());
+        }
+        return new ProxyResponseImpl(httpClient.executeMethod(method), method);
+      }
+    });
+  }
+
+  private String getBody(Map<String, String> requestHeaders) throws Exception {
+    return getBody(url, requestHeaders);
+  }
+
+  private String getBody(String resource, Map<String, String> requestHeaders)
+      throws Exception {
+    ProxyResponse response = get(resource, requestHeaders);
+    try {
+      return response.getResponseBodyAsString();
+    } finally {
+      response.close();
+    }
+  }
+
+  private String getBody() throws Exception {
+    return getBody(new HashMap<String, String>());
+  }
+
+  @Test
+  public void testFreshResponseIsCached() throws Exception {
+    responseHeaders.put("Cache-Control", "max-age=60");
+    assertEquals(BODY, getBody());
+    clock.set(30000);
+    ProxyResponse response = get(new HashMap<String, String>());
+    assertEquals(200, response.getResultCode());
+    assertEquals(BODY, response.getResponseBodyAsString());
+    assertEquals("30", response.getResponseHeaders().get("Age")[0]);
+    response.close();
+    assertEquals(1, requests.get());
+    assertEquals(1, cache.getHitCount());
+  }
+
+  @Test
+  public void testExpiresIsHonoured() throws Exception {
+    SimpleDateFormat format = new SimpleDateFormat("EEE, dd MMM yyyy HH:mm:ss 'GMT'",
+        Locale.US);
+    format.setTimeZone(TimeZone.getTimeZone("GMT"));
+    responseHeaders.put("Expires", format.format(new Date(System.currentTimeMillis()
+        + 60000)));
+    getBody();
+    getBody();
+    assertEquals(1, requests.get());
+    clock.set(61000);
+    getBody();
+    assertEquals(2, requests.get());
+  }
+
+  @Test
+  public void testUncacheableResponses() throws Exception {
+    responseHeaders.put("Cache-Control", "no-store");
+    getBody();
+    getBody();
+    assertEquals(2, requests.get());
+
+    // nothing to say how long it is good for, and nothing to revalidate with.
+    responseHeaders.clear();
+    getBody();
+    getBody();
+    assertEquals(4, requests.get());
+
+    responseHeaders.put("Cache-Control", "max-age=60");
+    responseHeaders.put("Set-Cookie", "session=1234");
+    getBody();
+    getBody();
+    assertEquals(6, requests.get());
+  }
+
+  @Test
+  public void testAuthorizedResponsesAreOnlySharedWhenPublic() throws Exception {
+    Map<String, String> headers = new HashMap<String, String>();
+    headers.put("Authorization", "Basic dXNlcjpwYXNz");
+    responseHeaders.put("Cache-Control", "max-age=60");
+    getBody(headers);
+    getBody(headers);
+    assertEquals(2, requests.get());
+    responseHeaders.put("Cache-Control", "public, max-age=60");
+    getBody(headers);
+    getBody(headers);
+    assertEquals(3, requests.get());
+  }
+
+  @Test
+  public void testRevalidation() throws Exception {
+    responseHeaders.put("Cache-Control", "max-age=10");
+    responseHeaders.put("ETag", "\"v1\"");
+    assertEquals(BODY, getBody());
+    assertNull(lastIfNoneMatch);
+
+    clock.set(11000);
+    body = "changed, but the etag says it has not";
+    ProxyResponse response = get(new HashMap<String, String>());
+    assertEquals(200, response.getResultCode());
+    assertEquals(BODY, response.getResponseBodyAsString());
+    response.close();
+    assertEquals("\"v1\"", lastIfNoneMatch);
+    assertEquals(2, requests.get());
+    assertEquals(1, cache.getNotModifiedCount());
+
+    // the 304 made it fresh again.
+    clock.set(15000);
+    getBody();
+    assertEquals(2, requests.get());
+
+    // a new version replaces the cached one.
+    clock.set(30000);
+    responseHeaders.put("ETag", "\"v2\"");
+    assertEquals(body, getBody());
+    assertEquals(3, requests.get());
+  }
+
+  @Test
+  public void testNoCacheIsAlwaysRevalidated() throws Exception {
+    responseHeaders.put("Cache-Control", "no-cache");
+    responseHeaders.put("ETag", "\"v1\"");
+    getBody();
+    assertEquals(BODY, getBody());
+    assertEquals(2, requests.get());
+    assertEquals("\"v1\"", lastIfNoneMatch);
+    assertEquals(1, cache.getNotModifiedCount());
+  }
+
+  @Test
+  public void testVary() throws Exception {
+    responseHeaders.put("Cache-Control", "max-age=60");
+    responseHeaders.put("Vary", "Accept-Language");
+    Map<String, String> english = new HashMap<String, String>();
+    english.put("Accept-Language", "en");
+    Map<String, String> french = new HashMap<String, String>();
+    french.put("accept-language", "fr");
+    getBody(english);
+    getBody(french);
+    assertEquals(2, requests.get());
+    getBody(english);
+    getBody(french);
+    assertEquals(2, requests.get());
+
+    responseHeaders.put("Vary", "*");
+    clock.set(61000);
+    getBody(english);
+    getBody(english);
+    assertEquals(4, requests.get());
+  }
+
+  @Test
+  public void testStaleIsServedWhenUpstreamFails() throws Exception {
+    responseHeaders.put("Cache-Control", "max-age=10");
+    getBody();
+    clock.set(20000);
+    status = 503;
+    body = "down";
+    ProxyResponse response = get(new HashMap<String, String>());
+    assertEquals(200, response.getResultCode());
+    assertEquals(BODY, response.getResponseBodyAsString());
+    assertTrue(response.getResponseHeaders().containsKey("Warning"));
+    response.close();
+    assertEquals(1, cache.getStaleHitCount());
+
+    // past the stale window the failure goes to the client.
+    clock.set(80000);
+    response = get(new HashMap<String, String>());
+    assertEquals(503, response.getResultCode());
+    response.close();
+
+    // as it does if the server said the response must be revalidated.
+    status = 200;
+    body = BODY;
+    responseHeaders.put("Cache-Control", "max-age=10, must-revalidate");
+    getBody();
+    clock.set(100000);
+    status = 503;
+    response = get(new HashMap<String, String>());
+    assertEquals(503, response.getResultCode());
+    response.close();
+  }
+
+  @Test
+  public void testStaleIsServedWhenUpstreamIsUnreachable() throws Exception {
+    responseHeaders.put("Cache-Control", "max-age=10");
+    getBody();
+    server.stop(0);
+    clock.set(20000);
+    assertEquals(BODY, getBody());
+  }
+
+  @Test
+  public void testConcurrentMissesAreCoalesced() throws Exception {
+    responseHeaders.put("Cache-Control", "max-age=60");
+    delay = 500;
+    final int threads = 10;
+    final CountDownLatch start = new CountDownLatch(1);
+    ExecutorService executor = Executors.newFixedThreadPool(threads);
+    List<Future<String>> results = new ArrayList<Future<String>>();
+    for (int i = 0; i < threads; i++) {
+      results.add(executor.submit(new Callable<String>() {
+        public String call() throws Exception {
+          start.await();
+          return getBody();
+        }
+      }));
+    }
+    start.countDown();
+    for (Future<String> result : results) {
+      assertEquals(BODY, result.get());
+    }
+    executor.shutdown();
+    assertEquals(1, requests.get());
+    assertEquals(threads - 1, cache.getCoalescedCount() + cache.getHitCount());
+  }
+
+  @Test
+  public void testLargeResponsesAreStreamedNotCached() throws Exception {
+    cache = createCache(16);
+    responseHeaders.put("Cache-Control", "max-age=60");
+    assertEquals(BODY, getBody());
+    assertEquals(BODY, getBody());
+    assertEquals(2, requests.get());
+    // without a length the cache finds out as it reads.
+    chunked = true;
+    assertEquals(BODY, getBody());
+    assertEquals(BODY, getBody());
+    assertEquals(4, requests.get());
+  }
+
+  @Test
+  public void testLeastRecentlyUsedAreEvictedOverTheSizeLimit() throws Exception {
+    responseHeaders.put("Cache-Control", "max-age=60");
+    StringBuilder sb = new StringBuilder();
+    for (int i = 0; i < 1000; i++) {
+      sb.append('x');
+    }
+    body = sb.toString();
+    // room for two of the responses, not three.
+    cache = createCache(2500, 1024);
+    Map<String, String> headers = new HashMap<String, String>();
+    getBody(url + "?a", headers);
+    getBody(url + "?b", headers);
+    getBody(url + "?a", headers);
+    assertEquals(2, requests.get());
+    getBody(url + "?c", headers);
+    assertEquals(3, requests.get());
+    assertTrue(cache.getSize() <= 2500);
+    // b was used least recently and went first.
+    getBody(url + "?a", headers);
+    assertEquals(3, requests.get());
+    getBody(url + "?b", headers);
+    assertEquals(4, requests.get());
+  }
+
+  @Test
+  public void testClientConditionsBypassTheCache() {
+    Map<String, String> headers = new HashMap<String, String>();
+    headers.put("Accept", "*/*");
+    assertTrue(ProxyResponseCache.isCacheable(headers));
+    headers.put("if-none-match", "\"v1\"");
+    assertFalse(ProxyResponseCache.isCacheable(headers));
+    headers.clear();
+    headers.put("Range", "bytes=0-10");
+    assertFalse(ProxyResponseCache.isCacheable(headers));
+    headers.clear();
+    headers.put("Cookie", "SAKAI-TRACKING=1234");
+    assertFalse(ProxyResponseCache.isCacheable(headers));
+  }
+
+  private Node createProxyNode(String preProcessor, boolean cache) throws Exception {
+    Node node = mock(Node.class);
+    when(node.getPath()).thenReturn("/var/proxy/test");
+    Property endpoint = mock(Property.class);
+    PropertyDefinition definition = mock(PropertyDefinition.class);
+    Value value = mock(Value.class);
+    when(node.hasProperty(ProxyClientService.SAKAI_REQUEST_PROXY_ENDPOINT)).thenReturn(true);
+    when(node.getProperty(ProxyClientService.SAKAI_REQUEST_PROXY_ENDPOINT)).thenReturn(
+        endpoint);
+    when(endpoint.getDefinition()).thenReturn(definition);
+    when(endpoint.getValue()).thenReturn(value);
+    when(value.getString()).thenReturn(url);
+    if (preProcessor != null) {
+      Property preProcessorProperty = mock(Property.class);
+      when(preProcessorProperty.getString()).thenReturn(preProcessor);
+      when(node.hasProperty(ProxyPreProcessor.SAKAI_PREPROCESSOR)).thenReturn(true);
+      when(node.getProperty(ProxyPreProcessor.SAKAI_PREPROCESSOR)).thenReturn(
+          preProcessorProperty);
+    }
+    if (cache) {
+      Property cacheProperty = mock(Property.class);
+      when(cacheProperty.getString()).thenReturn("true");
+      when(node.hasProperty(ProxyClientService.SAKAI_PROXY_CACHE)).thenReturn(true);
+      when(node.getProperty(ProxyClientService.SAKAI_PROXY_CACHE))
+          .thenReturn(cacheProperty);
+    }
+    return node;
+  }
+
+  private String call(ProxyClientServiceImpl proxyClientService, Node node,
+      Map<String, String> headers) throws Exception {
+    ProxyResponse response = proxyClientService.executeCall(node, headers,
+        new HashMap<String, Object>(), null, -1, null);
+    try {
+      return response.getResponseBodyAsString();
+    } finally {
+      response.close();
+    }
+  }
+
+  @Test
+  public void testUsersDoNotShareTrustedTokenResponses() throws Exception {
+    responseHeaders.put("Cache-Control", "public, max-age=60");
+    echoHeader = TrustedLoginTokenProxyPreProcessor.SECURE_TOKEN_HEADER_NAME;
+    ProxyClientServiceImpl proxyClientService = new ProxyClientServiceImpl();
+    proxyClientService.activate(null);
+    try {
+      // even a node that asks for caching is not cached through a trusted token.
+      Node node = createProxyNode("trusted-token", true);
+      Map<String, String> userA = new HashMap<String, String>();
+      userA.put(TrustedLoginTokenProxyPreProcessor.SECURE_TOKEN_HEADER_NAME, "userA");
+      Map<String, String> userB = new HashMap<String, String>();
+      userB.put(TrustedLoginTokenProxyPreProcessor.SECURE_TOKEN_HEADER_NAME, "userB");
+      assertEquals("userA", call(proxyClientService, node, userA));
+      assertEquals("userB", call(proxyClientService, node, userB));
+      assertEquals("userA", call(proxyClientService, node, userA));
+      assertEquals(3, requests.get());
+    } finally {
+      proxyClientService.deactivate(null);
+    }
+  }
+
+  @Test
+  public void testOnlyAnonymousRequestsToOptedInNodesAreCached() throws Exception {
+    responseHeaders.put("Cache-Control", "max-age=60");
+    ProxyClientServiceImpl proxyClientService = new ProxyClientServiceImpl();
+    proxyClientService.activate(null);
+    try {
+      Map<String, String> headers = new HashMap<String, String>();
+      headers.put("Accept", "*/*");
+      Node node = createProxyNode(null, false);
+      call(proxyClientService, node, headers);
+      call(proxyClientService, node, headers);
+      assertEquals(2, requests.get());
+
+      node = createProxyNode("rss", true);
+      assertEquals(BODY, call(proxyClientService, node, headers));
+      assertEquals(BODY, call(proxyClientService, node, headers));
+      assertEquals(3, requests.get());
+
+      // the browser's cookies would say who the user is.
+      node = createProxyNode(null, true);
+      headers.put("Cookie", "SAKAI-TRACKING=1234");
+      call(proxyClientService, node, headers);
+      call(proxyClientService, node, headers);
+      assertEquals(5, requests.get());
+    } finally {
+      proxyClientService.deactivate(null);
+    }
+  }
+}
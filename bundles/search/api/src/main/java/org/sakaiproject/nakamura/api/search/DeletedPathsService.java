@@ -22,4 +22,15 @@ public interface DeletedPathsService {
    * @return {@link List} of escaped path strings. 
    */
   List<String> getEscapedDeletedPaths(String queryLanguage);
+
+  /**
+   * Get a filter query that excludes the paths deleted since the last Solr commit across
+   * all nodes in the cluster. Paths below another deleted path are left out. The same
+   * string is returned until the set of deleted paths changes so that it can be answered
+   * from the search engine's filter cache.
+   *
+   * @param queryLanguage The query language the paths should be escaped for.
+   * @return the filter query, or null if there are no deleted paths.
+   */
+  String getDeletedPathsFilter(String queryLanguage);
 }
\ No newline at end of file
@@ -0,0 +1,90 @@
+/**
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.api.search;
+
+import com.google.common.collect.ImmutableSortedSet;
+
+import org.apache.commons.lang.StringUtils;
+
+import java.util.Collection;
+import java.util.SortedSet;
+
+/**
+ * An immutable, sorted set of reader principals together with the comma separated form
+ * that is passed to Solr as the <code>readers</code> parameter. Two instances with the
+ * same principals produce the same string, so the filter built from it can be cached.
+ */
+public final class ReaderPrincipals {
+
+  private final ImmutableSortedSet<String> principals;
+  private final String readers;
+  private final int hash;
+
+  public ReaderPrincipals(Collection<String> principals) {
+    this.principals = ImmutableSortedSet.copyOf(principals);
+    this.readers = StringUtils.join(this.principals, ",");
+    this.hash = readers.hashCode();
+  }
+
+  /**
+   * @return the principals, in natural order.
+   */
+  public SortedSet<String> getPrincipals() {
+    return principals;
+  }
+
+  /**
+   * @return the principals joined with "," in natural order.
+   */
+  public String getReaders() {
+    return readers;
+  }
+
+  /**
+   * @return a hash of the principals, stable across instances and restarts.
+   */
+  public int getHash() {
+    return hash;
+  }
+
+  public boolean contains(String principal) {
+    return principals.contains(principal);
+  }
+
+  @Override
+  public int hashCode() {
+    return hash;
+  }
+
+  @Override
+  public boolean equals(Object obj) {
+    if (this == obj) {
+      return true;
+    }
+    if (!(obj instanceof ReaderPrincipals)) {
+      return false;
+    }
+    ReaderPrincipals other = (ReaderPrincipals) obj;
+    return hash == other.hash && readers.equals(other.readers);
+  }
+
+  @Override
+  public String toString() {
+    return readers;
+  }
+}
@@ -0,0 +1,51 @@
+/**
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.api.search;
+
+import org.sakaiproject.nakamura.api.lite.Session;
+import org.sakaiproject.nakamura.api.lite.StorageClientException;
+import org.sakaiproject.nakamura.api.lite.accesscontrol.AccessDeniedException;
+import org.sakaiproject.nakamura.api.lite.authorizable.Authorizable;
+
+/**
+ * Provides the principals whose entries in the <code>readers</code> field of the index
+ * give an authorizable read access to a document.
+ */
+public interface ReaderPrincipalsService {
+
+  /**
+   * Get the reader principals of an authorizable: its own id and the ids of every group
+   * it is a member of, directly or indirectly. The result is cached until the user or one
+   * of the groups changes, and the same instance is handed out until then.
+   *
+   * @param session the session used to resolve group membership if it is not cached.
+   * @param authorizable the authorizable to get the reader principals for.
+   * @return the reader principals of the authorizable.
+   * @throws StorageClientException
+   * @throws AccessDeniedException
+   */
+  ReaderPrincipals getReaderPrincipals(Session session, Authorizable authorizable)
+      throws StorageClientException, AccessDeniedException;
+
+  /**
+   * Drop any cached reader principals for an authorizable.
+   *
+   * @param authorizableId the id of the authorizable.
+   */
+  void invalidate(String authorizableId);
+}
@@ -0,0 +1,130 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.search;
+
+import java.util.Collection;
+import java.util.Map;
+
+import com.google.common.collect.Maps;
+
+/**
+ * A set of deleted paths held as a trie of path segments. Deleting a path
+ * covers everything below it, so adding an ancestor collapses any descendants
+ * already in the trie, and adding a path that is already covered is a no-op.
+ * Each path carries a value, used by the caller to track where the path is
+ * stored.
+ *
+ * @param <V> the value stored against each deleted path.
+ */
+class DeletedPathTrie<V> {
+
+  private static class Node<V> {
+    private Map<String, Node<V>> children;
+    private boolean deleted;
+    private V value;
+  }
+
+  private final Node<V> root = new Node<V>();
+  private int size;
+
+  /**
+   * @param path the deleted path.
+   * @param value the value to store against the path.
+   * @param displaced receives the values of any descendant paths removed because they
+   *          are now covered by this path, may be null.
+   * @return true if the path was added, false if it was already covered by itself or an
+   *         ancestor.
+   */
+  boolean put(String path, V value, Collection<V> displaced) {
+    Node<V> node = root;
+    for (String segment : path.split("/")) {
+      if (node.deleted) {
+        return false;
+      }
+      if (node.children == null) {
+        node.children = Maps.newHashMap();
+      }
+      Node<V> child = node.children.get(segment);
+      if (child == null) {
+        child = new Node<V>();
+        node.children.put(segment, child);
+      }
+      node = child;
+    }
+    if (node.deleted) {
+      return false;
+    }
+    if (node.children != null) {
+      collect(node, displaced);
+      node.children = null;
+    }
+    node.deleted = true;
+    node.value = value;
+    size++;
+    return true;
+  }
+
+  /**
+   * @return true if path or one of its ancestors is in the trie.
+   */
+  boolean isCovered(String path) {
+    Node<V> node = root;
+    for (String segment : path.split("/")) {
+      if (node.deleted) {
+        return true;
+      }
+      if (node.children == null) {
+        return false;
+      }
+      node = node.children.get(segment);
+      if (node == null) {
+        return false;
+      }
+    }
+    return node.deleted;
+  }
+
+  /**
+   * @return true if one of the ancestors of path, not path itself, is in the trie.
+   */
+  boolean isCoveredByAncestor(String path) {
+    int i = path.lastIndexOf('/');
+    return i > 0 && isCovered(path.substring(0, i));
+  }
+
+  /**
+   * @return the number of paths in the trie after collapsing.
+   */
+  int size() {
+    return size;
+  }
+
+  private void collect(Node<V> node, Collection<V> displaced) {
+    for (Node<V> child : node.children.values()) {
+      if (child.deleted) {
+        size--;
+        if (displaced != null) {
+          displaced.add(child.value);
+        }
+      }
+      if (child.children != null) {
+        collect(child, displaced);
+      }
+    }
+  }
+}
@@ -17,15 +17,22 @@
  */
 package org.sakaiproject.nakamura.search;
 
-import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Dictionary;
+import java.util.Hashtable;
 import java.util.List;
+import java.util.Map;
 
+import org.apache.commons.lang.StringUtils;
+import org.apache.felix.scr.annotations.Activate;
 import org.apache.felix.scr.annotations.Component;
+import org.apache.felix.scr.annotations.Modified;
 import org.apache.felix.scr.annotations.Property;
 import org.apache.felix.scr.annotations.Reference;
 import org.apache.felix.scr.annotations.Service;
 import org.apache.sling.commons.osgi.PropertiesUtil;
 import org.osgi.service.event.Event;
+import org.osgi.service.event.EventAdmin;
 import org.osgi.service.event.EventHandler;
 import org.sakaiproject.nakamura.api.cluster.ClusterServer;
 import org.sakaiproject.nakamura.api.cluster.ClusterTrackingService;
@@ -34,6 +41,13 @@ import org.sakaiproject.nakamura.api.memory.CacheManagerService;
 import org.sakaiproject.nakamura.api.memory.CacheScope;
 import org.sakaiproject.nakamura.api.search.DeletedPathsService;
 import org.sakaiproject.nakamura.api.search.SearchUtil;
+import org.sakaiproject.nakamura.api.solr.TopicIndexer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
 
 /**
  * Manage a cache of deleted paths as signaled by content deletion events. The cache is
@@ -43,8 +57,14 @@ import org.sakaiproject.nakamura.api.search.SearchUtil;
  * overwriting a centrally managed but unsynchronized cache. Each machine should have only
  * one version of this service actively managing that machines cache so it should always
  * work with the authoritative state.
+ * <p>
+ * Each machine also keeps a generation number in the cache that changes whenever its
+ * list changes. Searches only re-read the lists when a generation has changed, so the
+ * collapsed list and the filter query built from it are reused, unchanged, until the
+ * next delete or commit. That keeps the filter query string stable which lets Solr
+ * answer it from its filter cache.
  */
-@Component
+@Component(metatype = true)
 @Service
 @Property(name = "event.topics", value = {
     "org/sakaiproject/nakamura/lite/content/DELETE",
@@ -54,19 +74,71 @@ import org.sakaiproject.nakamura.api.search.SearchUtil;
 public class DeletedPathsServiceImpl implements EventHandler, DeletedPathsService {
   public static final String DELETED_PATH_CACHE = "deletedPathQueue";
 
+  private static final Logger LOGGER = LoggerFactory
+      .getLogger(DeletedPathsServiceImpl.class);
+
+  /**
+   * When this machine has more than this many deleted paths waiting for a commit the
+   * indexing queues are asked to commit early, rather than have every search carry a
+   * growing filter.
+   */
+  @Property(intValue = 500)
+  public static final String MAX_DELETED_PATHS = "maxDeletedPaths";
+
+  /**
+   * The longest time, in ms, a search will use the deleted paths without checking the
+   * lists in the cache, even if no generation has changed. This bounds how long an
+   * update replicated from another machine out of order can be missed.
+   */
+  @Property(longValue = 1000L)
+  public static final String MAX_SNAPSHOT_AGE = "maxSnapshotAge";
+
   @Reference
   private CacheManagerService cacheManagerService;
 
   @Reference
   private ClusterTrackingService clusterTrackingService;
 
+  @Reference
+  private EventAdmin eventAdmin;
+
+  private int maxDeletedPaths = 500;
+
+  private long maxSnapshotAge = 1000L;
+
+  /**
+   * The paths deleted on this machine, with the index of the cache entry that holds
+   * each one. Rebuilt from the cache when null.
+   */
+  private DeletedPathTrie<Integer> localPaths;
+
+  /**
+   * True once an early commit has been asked for, until the next commit.
+   */
+  private boolean earlyCommitRequested;
+
+  private volatile DeletedPaths deletedPaths;
+
   public DeletedPathsServiceImpl() {
   }
 
   protected DeletedPathsServiceImpl(CacheManagerService cacheManagerService,
       ClusterTrackingService clusterTrackingService) {
+    this(cacheManagerService, clusterTrackingService, null);
+  }
+
+  protected DeletedPathsServiceImpl(CacheManagerService cacheManagerService,
+      ClusterTrackingService clusterTrackingService, EventAdmin eventAdmin) {
     this.cacheManagerService = cacheManagerService;
     this.clusterTrackingService = clusterTrackingService;
+    this.eventAdmin = eventAdmin;
+  }
+
+  @Activate
+  @Modified
+  protected void activate(Map<?, ?> props) {
+    maxDeletedPaths = PropertiesUtil.toInteger(props.get(MAX_DELETED_PATHS), 500);
+    maxSnapshotAge = PropertiesUtil.toLong(props.get(MAX_SNAPSHOT_AGE), 1000L);
   }
 
   /**
@@ -87,19 +159,42 @@ public class DeletedPathsServiceImpl implements EventHandler, DeletedPathsServic
     Cache<String> cache = getDeletedPathCache();
     String myId = clusterTrackingService.getCurrentServerId();
 
-    // add the new path to the last position
     int pathCount = PropertiesUtil.toInteger(cache.get("pathCount@" + myId), 0);
+    if (localPaths == null) {
+      localPaths = new DeletedPathTrie<Integer>();
+      for (int idx = 0; idx < pathCount; idx++) {
+        String cachedPath = cache.get("path[" + idx + "]@" + myId);
+        if (cachedPath != null) {
+          localPaths.put(cachedPath, idx, null);
+        }
+      }
+    }
+
+    // the trie drops the path if it, or a parent, is already deleted and tells us
+    // which paths below it are no longer needed.
+    List<Integer> displaced = Lists.newArrayList();
+    if (!localPaths.put(path, pathCount, displaced)) {
+      return;
+    }
+
+    // add the new path to the last position
     cache.put("path[" + pathCount + "]@" + myId, path);
     cache.put("pathCount@" + myId, String.valueOf(pathCount + 1));
 
-    // clean out any paths that start with the path we've just added
-    for (int idx = 0; idx < pathCount; idx++) {
-      String key = "path[" + idx + "]@" + myId;
-      String cachedPath = cache.get(key);
-      // check for null in case a previous pass deleted the element. we don't do garbage
-      // collection because the list is expected to be too short lived.
-      if (cachedPath != null && !cachedPath.equals(path) && cachedPath.startsWith(path)) {
-        cache.remove(key);
+    // clean out any paths that are below the path we've just added. we don't do
+    // garbage collection because the list is expected to be too short lived.
+    for (Integer idx : displaced) {
+      cache.remove("path[" + idx + "]@" + myId);
+    }
+    nextGeneration(cache, myId);
+
+    if (localPaths.size() > maxDeletedPaths && !earlyCommitRequested) {
+      if (eventAdmin != null) {
+        LOGGER.info("{} deleted paths are waiting for a commit, requesting an early commit",
+            localPaths.size());
+        Dictionary<String, Object> props = new Hashtable<String, Object>();
+        eventAdmin.postEvent(new Event(TopicIndexer.COMMIT_REQUEST_TOPIC, props));
+        earlyCommitRequested = true;
       }
     }
   }
@@ -117,41 +212,89 @@ public class DeletedPathsServiceImpl implements EventHandler, DeletedPathsServic
     }
 
     cache.put("pathCount@" + myId, Integer.toString(0));
+    nextGeneration(cache, myId);
+    localPaths = new DeletedPathTrie<Integer>();
+    earlyCommitRequested = false;
   }
 
-  // ---------- DeletedPathsService interface ----------------------------------
   /**
-   * {@inheritDoc}
-   *
-   * @see org.sakaiproject.nakamura.api.search.DeletedPathsService#getDeletedPaths()
+   * Mark this machine's list as changed. Written after the list itself so that a reader
+   * that sees the new generation also sees the change.
    */
-  @Override
-  public List<String> getDeletedPaths() {
-    return getEscapedDeletedPaths(null);
+  private void nextGeneration(Cache<String> cache, String myId) {
+    long generation = PropertiesUtil.toLong(cache.get("generation@" + myId), 0L);
+    cache.put("generation@" + myId, String.valueOf(generation + 1));
   }
 
-  public List<String> getEscapedDeletedPaths(String queryLanguage) {
-    List<String> deletedPaths = new ArrayList<String>();
+  /**
+   * @return the deleted paths for the whole cluster, re-read from the cache only if one
+   *         of the machines has changed its list.
+   */
+  private DeletedPaths getCurrentDeletedPaths() {
     Cache<String> cache = getDeletedPathCache();
+    Iterable<ClusterServer> servers = clusterTrackingService.getAllServers();
+    Map<String, String> generations = Maps.newHashMap();
+    for (ClusterServer server : servers) {
+      String serverId = server.getServerId();
+      String generation = cache.get("generation@" + serverId);
+      if (generation == null) {
+        // a machine that does not keep a generation, fall back to its count.
+        generation = "count:" + cache.get("pathCount@" + serverId);
+      }
+      generations.put(serverId, generation);
+    }
+    DeletedPaths current = deletedPaths;
+    if (current != null && current.generations.equals(generations)
+        && System.currentTimeMillis() - current.created < maxSnapshotAge) {
+      return current;
+    }
 
-    for (ClusterServer server : clusterTrackingService.getAllServers()) {
+    List<String> paths = Lists.newArrayList();
+    DeletedPathTrie<Boolean> all = new DeletedPathTrie<Boolean>();
+    for (ClusterServer server : servers) {
       String serverId = server.getServerId();
       int pathCount = PropertiesUtil.toInteger(cache.get("pathCount@" + serverId), 0);
 
       for (int idx = 0; idx < pathCount; idx++) {
-        String path = (String)cache.get("path[" + idx + "]@" + serverId);
+        String path = cache.get("path[" + idx + "]@" + serverId);
 
         if (path != null) {
-          if (queryLanguage != null) {
-            deletedPaths.add(SearchUtil.escapeString(path, queryLanguage));
-          } else {
-            deletedPaths.add(path);
-          }
+          paths.add(path);
+          all.put(path, Boolean.TRUE, null);
         }
       }
     }
+    // collapse paths deleted on one machine that are below a path deleted on another,
+    // keeping the order they were found in.
+    List<String> collapsed = Lists.newArrayListWithCapacity(all.size());
+    DeletedPathTrie<Boolean> seen = new DeletedPathTrie<Boolean>();
+    for (String path : paths) {
+      if (!all.isCoveredByAncestor(path) && seen.put(path, Boolean.TRUE, null)) {
+        collapsed.add(path);
+      }
+    }
+    current = new DeletedPaths(generations, collapsed);
+    deletedPaths = current;
+    return current;
+  }
+
+  // ---------- DeletedPathsService interface ----------------------------------
+  /**
+   * {@inheritDoc}
+   *
+   * @see org.sakaiproject.nakamura.api.search.DeletedPathsService#getDeletedPaths()
+   */
+  @Override
+  public List<String> getDeletedPaths() {
+    return getEscapedDeletedPaths(null);
+  }
+
+  public List<String> getEscapedDeletedPaths(String queryLanguage) {
+    return getCurrentDeletedPaths().getPaths(queryLanguage);
+  }
 
-    return deletedPaths;
+  public String getDeletedPathsFilter(String queryLanguage) {
+    return getCurrentDeletedPaths().getFilter(queryLanguage);
   }
 
   // ---------- EventHandler interface -----------------------------------------
@@ -169,4 +312,51 @@ public class DeletedPathsServiceImpl implements EventHandler, DeletedPathsServic
       clearDeletedPaths();
     }
   }
+
+  /**
+   * An immutable view of the deleted paths at a set of generations, with the escaped
+   * lists and filter queries built on first use for each query language.
+   */
+  private static final class DeletedPaths {
+    private static final String UNESCAPED = "";
+    private final Map<String, String> generations;
+    private final long created = System.currentTimeMillis();
+    private final List<String> paths;
+    private final Map<String, List<String>> escapedPaths = Maps.newConcurrentMap();
+    private final Map<String, String> filters = Maps.newConcurrentMap();
+
+    private DeletedPaths(Map<String, String> generations, List<String> paths) {
+      this.generations = generations;
+      this.paths = ImmutableList.copyOf(paths);
+    }
+
+    private List<String> getPaths(String queryLanguage) {
+      if (queryLanguage == null) {
+        return paths;
+      }
+      List<String> escaped = escapedPaths.get(queryLanguage);
+      if (escaped == null) {
+        List<String> l = Lists.newArrayListWithCapacity(paths.size());
+        for (String path : paths) {
+          l.add(SearchUtil.escapeString(path, queryLanguage));
+        }
+        escaped = Collections.unmodifiableList(l);
+        escapedPaths.put(queryLanguage, escaped);
+      }
+      return escaped;
+    }
+
+    private String getFilter(String queryLanguage) {
+      if (paths.isEmpty()) {
+        return null;
+      }
+      String key = queryLanguage == null ? UNESCAPED : queryLanguage;
+      String filter = filters.get(key);
+      if (filter == null) {
+        filter = "-path:(" + StringUtils.join(getPaths(queryLanguage), " OR ") + ")";
+        filters.put(key, filter);
+      }
+      return filter;
+    }
+  }
 }
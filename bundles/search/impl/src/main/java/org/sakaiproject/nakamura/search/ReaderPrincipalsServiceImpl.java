@@ -0,0 +1,229 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.search;
+
+import static org.sakaiproject.nakamura.api.lite.StoreListener.DELETE_TOPIC;
+import static org.sakaiproject.nakamura.api.lite.StoreListener.TOPIC_BASE;
+import static org.sakaiproject.nakamura.api.lite.StoreListener.UPDATED_TOPIC;
+
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.felix.scr.annotations.Activate;
+import org.apache.felix.scr.annotations.Component;
+import org.apache.felix.scr.annotations.Modified;
+import org.apache.felix.scr.annotations.Property;
+import org.apache.felix.scr.annotations.Reference;
+import org.apache.felix.scr.annotations.Service;
+import org.apache.sling.commons.osgi.PropertiesUtil;
+import org.osgi.service.event.Event;
+import org.osgi.service.event.EventHandler;
+import org.sakaiproject.nakamura.api.lite.Session;
+import org.sakaiproject.nakamura.api.lite.StorageClientException;
+import org.sakaiproject.nakamura.api.lite.accesscontrol.AccessDeniedException;
+import org.sakaiproject.nakamura.api.lite.authorizable.Authorizable;
+import org.sakaiproject.nakamura.api.lite.authorizable.Group;
+import org.sakaiproject.nakamura.api.memory.Cache;
+import org.sakaiproject.nakamura.api.memory.CacheManagerService;
+import org.sakaiproject.nakamura.api.memory.CacheScope;
+import org.sakaiproject.nakamura.api.search.ReaderPrincipals;
+import org.sakaiproject.nakamura.api.search.ReaderPrincipalsService;
+import org.sakaiproject.nakamura.api.user.UserConstants;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.collect.Interner;
+import com.google.common.collect.Interners;
+import com.google.common.collect.Sets;
+
+/**
+ * Caches the membership closure of each authorizable that searches, so that building the
+ * readers restriction does not walk the groups on every request and always produces the
+ * same string for the same memberships.
+ * <p>
+ * A user's entry is dropped when that user is updated or deleted. Membership is
+ * transitive, so a change to a group can change the entries of users we cannot name
+ * from the event; those clear the whole cache. The change events of the storage layer
+ * are also handled so that membership changed without going through the user servlets
+ * is seen: adding a member to a group updates the member too.
+ * <p>
+ * The cache is cluster invalidated, so an entry dropped or a cache cleared on the server
+ * that saw the change is dropped on every other server too. The ids of the groups in
+ * cached entries are kept in a cluster replicated cache, so a server that never cached a
+ * member of a group still clears the cache when that group changes.
+ */
+@Component(metatype = true)
+@Service
+@Property(name = "event.topics", value = {
+    UserConstants.TOPIC_USER_UPDATE,
+    UserConstants.TOPIC_USER_DELETED,
+    UserConstants.TOPIC_GROUP_CREATED,
+    UserConstants.TOPIC_GROUP_UPDATE,
+    UserConstants.TOPIC_GROUP_DELETED,
+    TOPIC_BASE + "authorizables/" + UPDATED_TOPIC,
+    TOPIC_BASE + "authorizables/" + DELETE_TOPIC
+})
+public class ReaderPrincipalsServiceImpl implements ReaderPrincipalsService, EventHandler {
+
+  private static final Logger LOGGER = LoggerFactory
+      .getLogger(ReaderPrincipalsServiceImpl.class);
+
+  public static final String READER_PRINCIPALS_CACHE = "readerPrincipals";
+
+  public static final String READER_GROUPS_CACHE = "readerPrincipals.groups";
+
+  /**
+   * The most authorizables to hold reader principals for. The cache is emptied when this
+   * server has put more than this many entries into it since it was last emptied.
+   */
+  @Property(intValue = 10000)
+  public static final String MAX_ENTRIES = "maxEntries";
+
+  private static final String PATH_PROPERTY = "path";
+
+  @Reference
+  private CacheManagerService cacheManagerService;
+
+  private Cache<ReaderPrincipals> principalsCache;
+
+  /**
+   * Entries put by this server since the cache was last emptied.
+   */
+  private final AtomicInteger entries = new AtomicInteger();
+
+  /**
+   * Ids that appear as a group in some cached entry on any server. A storage event for one
+   * of these clears the cache.
+   */
+  private Cache<Boolean> groupsCache;
+
+  /**
+   * Incremented on every invalidation, so that a lookup that raced with one does not
+   * cache what it read.
+   */
+  private final AtomicLong generation = new AtomicLong();
+
+  private final Interner<String> interner = Interners.newWeakInterner();
+
+  private int maxEntries = 10000;
+
+  public ReaderPrincipalsServiceImpl() {
+  }
+
+  protected ReaderPrincipalsServiceImpl(CacheManagerService cacheManagerService) {
+    this.cacheManagerService = cacheManagerService;
+  }
+
+  @Activate
+  @Modified
+  protected void activate(Map<?, ?> props) {
+    maxEntries = PropertiesUtil.toInteger(props.get(MAX_ENTRIES), 10000);
+    principalsCache = cacheManagerService.getCache(READER_PRINCIPALS_CACHE,
+        CacheScope.CLUSTERINVALIDATED);
+    groupsCache = cacheManagerService.getCache(READER_GROUPS_CACHE,
+        CacheScope.CLUSTERREPLICATED);
+    clear();
+  }
+
+  /**
+   * {@inheritDoc}
+   * @see org.sakaiproject.nakamura.api.search.ReaderPrincipalsService#getReaderPrincipals(org.sakaiproject.nakamura.api.lite.Session, org.sakaiproject.nakamura.api.lite.authorizable.Authorizable)
+   */
+  public ReaderPrincipals getReaderPrincipals(Session session, Authorizable authorizable)
+      throws StorageClientException, AccessDeniedException {
+    String id = authorizable.getId();
+    ReaderPrincipals principals = principalsCache.get(id);
+    if (principals != null) {
+      return principals;
+    }
+
+    long startGeneration = generation.get();
+    Set<String> readers = Sets.newHashSet();
+    for (Iterator<Group> gi = authorizable.memberOf(session.getAuthorizableManager()); gi.hasNext();) {
+      readers.add(interner.intern(gi.next().getId()));
+    }
+    for (String group : readers) {
+      if (!groupsCache.containsKey(group)) {
+        groupsCache.put(group, Boolean.TRUE);
+      }
+    }
+    readers.add(interner.intern(id));
+    principals = new ReaderPrincipals(readers);
+
+    if (entries.incrementAndGet() > maxEntries) {
+      LOGGER.debug("Reader principals cache is full at {} entries, clearing", maxEntries);
+      clear();
+    } else {
+      principalsCache.put(id, principals);
+      if (generation.get() != startGeneration) {
+        // something changed while we were reading, don't keep what we read.
+        principalsCache.remove(id);
+      }
+    }
+    return principals;
+  }
+
+  /**
+   * {@inheritDoc}
+   * @see org.sakaiproject.nakamura.api.search.ReaderPrincipalsService#invalidate(java.lang.String)
+   */
+  public void invalidate(String authorizableId) {
+    generation.incrementAndGet();
+    principalsCache.remove(authorizableId);
+  }
+
+  private void clear() {
+    generation.incrementAndGet();
+    principalsCache.clear();
+    entries.set(0);
+    groupsCache.clear();
+  }
+
+  // ---------- EventHandler interface -----------------------------------------
+  /**
+   * {@inheritDoc}
+   *
+   * @see org.osgi.service.event.EventHandler#handleEvent(org.osgi.service.event.Event)
+   */
+  public void handleEvent(Event event) {
+    String topic = event.getTopic();
+    if (UserConstants.TOPIC_USER_UPDATE.equals(topic)
+        || UserConstants.TOPIC_USER_DELETED.equals(topic)) {
+      String userId = (String) event.getProperty(UserConstants.EVENT_PROP_USERID);
+      if (userId != null) {
+        invalidate(userId);
+      }
+    } else if (topic.startsWith(TOPIC_BASE + "authorizables/")) {
+      String id = (String) event.getProperty(PATH_PROPERTY);
+      if (id != null) {
+        if (groupsCache.containsKey(id)) {
+          LOGGER.debug("Group {} changed, clearing reader principals", id);
+          clear();
+        } else {
+          invalidate(id);
+        }
+      }
+    } else {
+      // a group was created, updated or deleted.
+      clear();
+    }
+  }
+}
@@ -0,0 +1,146 @@
+/**
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.search.solr;
+
+import java.io.IOException;
+import java.io.Writer;
+
+/**
+ * Writes a search response through a buffer that belongs to the request thread and is
+ * reused from one request to the next, and counts what has been written so the servlet
+ * can stop adding results once a response has grown past its budget.
+ * <p>
+ * The underlying writer is not closed. {@link #close()} must be called at the end of the
+ * response to push out what is left in the buffer and give the buffer back to the
+ * thread; the writer can't be used after that. A response written while another one is
+ * open on the same thread, from an include for instance, gets a buffer of its own.
+ */
+public class BoundedResponseWriter extends Writer {
+
+  private static final int BUFFER_SIZE = 8192;
+
+  private static final ThreadLocal<char[]> BUFFERS = new ThreadLocal<char[]>() {
+    @Override
+    protected char[] initialValue() {
+      return new char[BUFFER_SIZE];
+    }
+  };
+
+  private final Writer out;
+  private char[] buffer;
+  private final long maxChars;
+  private int position;
+  private long count;
+
+  /**
+   * @param out
+   *          where the response goes.
+   * @param maxChars
+   *          the number of characters after which {@link #isOverBudget()} is true, or 0
+   *          for no limit.
+   */
+  public BoundedResponseWriter(Writer out, long maxChars) {
+    this.out = out;
+    this.maxChars = maxChars;
+    char[] threadBuffer = BUFFERS.get();
+    if (threadBuffer == null) {
+      threadBuffer = new char[BUFFER_SIZE];
+    } else {
+      BUFFERS.set(null);
+    }
+    this.buffer = threadBuffer;
+  }
+
+  @Override
+  public void write(int c) throws IOException {
+    if (position == buffer.length) {
+      flushBuffer();
+    }
+    buffer[position++] = (char) c;
+    count++;
+  }
+
+  @Override
+  public void write(char[] cbuf, int off, int len) throws IOException {
+    count += len;
+    while (len > 0) {
+      if (position == buffer.length) {
+        flushBuffer();
+      }
+      int n = Math.min(len, buffer.length - position);
+      System.arraycopy(cbuf, off, buffer, position, n);
+      position += n;
+      off += n;
+      len -= n;
+    }
+  }
+
+  @Override
+  public void write(String str, int off, int len) throws IOException {
+    count += len;
+    while (len > 0) {
+      if (position == buffer.length) {
+        flushBuffer();
+      }
+      int n = Math.min(len, buffer.length - position);
+      str.getChars(off, off + n, buffer, position);
+      position += n;
+      off += n;
+      len -= n;
+    }
+  }
+
+  /**
+   * @return the number of characters written so far.
+   */
+  public long getCount() {
+    return count;
+  }
+
+  /**
+   * @return true if more than the budgeted number of characters have been written.
+   */
+  public boolean isOverBudget() {
+    return maxChars > 0 && count > maxChars;
+  }
+
+  private void flushBuffer() throws IOException {
+    if (position > 0) {
+      out.write(buffer, 0, position);
+      position = 0;
+    }
+  }
+
+  @Override
+  public void flush() throws IOException {
+    flushBuffer();
+    out.flush();
+  }
+
+  @Override
+  public void close() throws IOException {
+    if (buffer != null) {
+      try {
+        flushBuffer();
+      } finally {
+        BUFFERS.set(buffer);
+        buffer = null;
+      }
+    }
+  }
+}
@@ -24,6 +24,7 @@ import org.apache.commons.collections.CollectionUtils;
 import org.apache.commons.lang.StringUtils;
 import org.apache.felix.scr.annotations.Activate;
 import org.apache.felix.scr.annotations.Component;
+import org.apache.felix.scr.annotations.Deactivate;
 import org.apache.felix.scr.annotations.Property;
 import org.apache.felix.scr.annotations.Reference;
 import org.apache.felix.scr.annotations.Service;
@@ -34,9 +35,12 @@ import org.apache.solr.client.solrj.SolrQuery.ORDER;
 import org.apache.solr.client.solrj.SolrRequest.METHOD;
 import org.apache.solr.client.solrj.SolrServer;
 import org.apache.solr.client.solrj.SolrServerException;
+import org.apache.solr.client.solrj.impl.StreamingBinaryResponseParser;
+import org.apache.solr.client.solrj.request.QueryRequest;
 import org.apache.solr.client.solrj.response.QueryResponse;
 import org.apache.solr.common.params.CommonParams;
 import org.apache.solr.common.params.GroupParams;
+import org.apache.solr.common.params.MoreLikeThisParams;
 import org.perf4j.aop.Profiled;
 import org.sakaiproject.nakamura.api.lite.Session;
 import org.sakaiproject.nakamura.api.lite.StorageClientException;
@@ -44,9 +48,9 @@ import org.sakaiproject.nakamura.api.lite.StorageClientUtils;
 import org.sakaiproject.nakamura.api.lite.accesscontrol.AccessDeniedException;
 import org.sakaiproject.nakamura.api.lite.authorizable.Authorizable;
 import org.sakaiproject.nakamura.api.lite.authorizable.AuthorizableManager;
-import org.sakaiproject.nakamura.api.lite.authorizable.Group;
 import org.sakaiproject.nakamura.api.lite.authorizable.User;
 import org.sakaiproject.nakamura.api.search.DeletedPathsService;
+import org.sakaiproject.nakamura.api.search.ReaderPrincipalsService;
 import org.sakaiproject.nakamura.api.search.solr.Query;
 import org.sakaiproject.nakamura.api.search.solr.ResultSetFactory;
 import org.sakaiproject.nakamura.api.search.solr.SolrSearchException;
@@ -60,11 +64,13 @@ import org.slf4j.LoggerFactory;
 
 import java.io.UnsupportedEncodingException;
 import java.net.URLDecoder;
-import java.util.Iterator;
-import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
 import java.util.Set;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
 import static org.sakaiproject.nakamura.api.search.solr.SolrSearchConstants.DEFAULT_PAGED_ITEMS;
 import static org.sakaiproject.nakamura.api.search.solr.SolrSearchConstants.PARAMS_ITEMS_PER_PAGE;
@@ -86,6 +92,19 @@ public class SolrResultSetFactory implements ResultSetFactory {
   private static final String DEFAULT_MAX_RESULTS = "defaultMaxResults";
   @Property(value = "POST")
   private static final String HTTP_METHOD = "httpMethod";
+  @Property(intValue = 16)
+  private static final String STREAM_QUEUE_SIZE = "streamQueueSize";
+  @Property(longValue = 30000L)
+  private static final String STREAM_TIMEOUT = "streamTimeout";
+  @Property(intValue = 20)
+  private static final String MAX_STREAMING_QUERIES = "maxStreamingQueries";
+
+  /**
+   * Query option asking for the results to be streamed from Solr as they are read rather
+   * than after the whole response has been parsed. It is not passed on to Solr. Streamed
+   * results can only be iterated once, so only set this when the caller reads them once.
+   */
+  public static final String STREAM_RESULTS = "_streamResults";
 
   /** only used to mark the logger */
   private final class SlowQueryLogger { }
@@ -99,10 +118,21 @@ public class SolrResultSetFactory implements ResultSetFactory {
   @Reference
   private DeletedPathsService deletedPathsService;
 
+  @Reference
+  private ReaderPrincipalsService readerPrincipalsService;
+
   private int defaultMaxResults = 100; // set to 100 to allow testing
   private long slowQueryThreshold;
   private long verySlowQueryThreshold;
   private METHOD queryMethod;
+  private int streamQueueSize;
+  private long streamTimeout;
+
+  /**
+   * Runs the queries whose results are streamed. When all its threads are busy the
+   * results are read the usual way.
+   */
+  private ThreadPoolExecutor streamingExecutor;
 
   @Activate
   protected void activate(Map<?, ?> props) {
@@ -111,6 +141,21 @@ public class SolrResultSetFactory implements ResultSetFactory {
     slowQueryThreshold = PropertiesUtil.toLong(props.get(SLOW_QUERY_TIME), 10L);
     verySlowQueryThreshold = PropertiesUtil.toLong(props.get(VERY_SLOW_QUERY_TIME), 100L);
     queryMethod = METHOD.valueOf(PropertiesUtil.toString(props.get(HTTP_METHOD), "POST"));
+    streamQueueSize = PropertiesUtil.toInteger(props.get(STREAM_QUEUE_SIZE), 16);
+    streamTimeout = PropertiesUtil.toLong(props.get(STREAM_TIMEOUT), 30000L);
+    int maxStreamingQueries = PropertiesUtil.toInteger(props.get(MAX_STREAMING_QUERIES), 20);
+    if (maxStreamingQueries > 0) {
+      streamingExecutor = new ThreadPoolExecutor(0, maxStreamingQueries, 60L,
+          TimeUnit.SECONDS, new SynchronousQueue<Runnable>());
+    }
+  }
+
+  @Deactivate
+  protected void deactivate() {
+    if (streamingExecutor != null) {
+      streamingExecutor.shutdown();
+      streamingExecutor = null;
+    }
   }
 
   /**
@@ -184,17 +229,22 @@ public class SolrResultSetFactory implements ResultSetFactory {
         }
       }
 
+      boolean stream = queryOptions.remove(STREAM_RESULTS) != null
+          && !queryOptions.containsKey(GroupParams.GROUP)
+          && !queryOptions.containsKey(MoreLikeThisParams.MLT)
+          && !queryOptions.containsKey(CommonParams.QT);
+
       applyReadersRestrictions(authorizable, session, asAnon, queryOptions);
 
       // filter out 'excluded' items. these are indexed because we do need to search for
       // some things on the server that the UI doesn't want (e.g. collection groups)
       filterQueries.add("-exclude:true");
 
-      // filter out deleted items
-      List<String> deletedPaths = deletedPathsService.getEscapedDeletedPaths(Query.SOLR);
-      if (!deletedPaths.isEmpty()) {
-        // these are escaped as they are collected
-        filterQueries.add("-path:(" + StringUtils.join(deletedPaths, " OR ") + ")");
+      // filter out deleted items. the filter only changes when paths are deleted or the
+      // index is committed so solr can answer it from the filter cache.
+      String deletedPathsFilter = deletedPathsService.getDeletedPathsFilter(Query.SOLR);
+      if (deletedPathsFilter != null) {
+        filterQueries.add(deletedPathsFilter);
       }
       // save filterQuery changes
       queryOptions.put(CommonParams.FQ, filterQueries);
@@ -214,6 +264,12 @@ public class SolrResultSetFactory implements ResultSetFactory {
         } catch (UnsupportedEncodingException e) {
         }
       }
+      if (stream) {
+        StreamingSolrSearchResultSet rs = streamSolrQuery(solrServer, solrQuery, params.getPath());
+        if (rs != null) {
+          return rs;
+        }
+      }
       long tquery = System.currentTimeMillis();
       QueryResponse response = doSolrQuery(solrServer, solrQuery);
       tquery = System.currentTimeMillis() - tquery;
@@ -248,13 +304,10 @@ public class SolrResultSetFactory implements ResultSetFactory {
       queryOptions.put("readers", User.ANON_USER);
     } else {
       if (!User.ADMIN_USER.equals(userId)) {
-        AuthorizableManager am = session.getAuthorizableManager();
-        Set<String> readers = Sets.newHashSet();
-        for (Iterator<Group> gi = authorizable.memberOf(am); gi.hasNext();) {
-          readers.add(gi.next().getId());
-        }
-        readers.add(userId);
-        queryOptions.put("readers", StringUtils.join(readers,","));
+        // the cached, sorted principals give the same string for the same memberships
+        // so Solr can reuse the readers filter.
+        queryOptions.put("readers",
+            readerPrincipalsService.getReaderPrincipals(session, authorizable).getReaders());
       }
     }
   }
@@ -264,6 +317,57 @@ public class SolrResultSetFactory implements ResultSetFactory {
     return solrServer.query(solrQuery, queryMethod);
   }
   
+  /**
+   * Start a query whose results are handed out as they are read from Solr.
+   *
+   * @return the result set, once the total is known, or null if no thread was free to
+   *         run the query.
+   */
+  private StreamingSolrSearchResultSet streamSolrQuery(final SolrServer solrServer,
+      final SolrQuery solrQuery, final String path) throws SolrSearchException {
+    ThreadPoolExecutor executor = streamingExecutor;
+    if (executor == null) {
+      return null;
+    }
+    final StreamingSolrSearchResultSet rs = new StreamingSolrSearchResultSet(streamQueueSize,
+        streamTimeout);
+    try {
+      executor.execute(new Runnable() {
+        public void run() {
+          QueryResponse response = null;
+          Exception failure = null;
+          long tquery = System.currentTimeMillis();
+          try {
+            QueryRequest request = new QueryRequest(solrQuery, queryMethod);
+            request.setStreamingResponseCallback(rs);
+            request.setResponseParser(new StreamingBinaryResponseParser(rs));
+            response = request.process(solrServer);
+          } catch (Exception e) {
+            LOGGER.warn("Streamed query failed: {}", e.getMessage());
+            failure = e;
+          } finally {
+            rs.complete(response, failure);
+          }
+          tquery = System.currentTimeMillis() - tquery;
+          TelemetryCounter.incrementValue("search","SEARCH_PERFORMED",path);
+          try {
+            if ( tquery > verySlowQueryThreshold ) {
+              logVerySlow(path, solrQuery, tquery);
+            } else if ( tquery > slowQueryThreshold ) {
+              logSlow(path, solrQuery, tquery);
+            }
+          } catch (UnsupportedEncodingException e) {
+          }
+        }
+      });
+    } catch (RejectedExecutionException e) {
+      LOGGER.debug("No thread free to stream results, reading them in full");
+      return null;
+    }
+    rs.awaitStart();
+    return rs;
+  }
+
   @Profiled(tag="search:ResultSet:slow:{$0.resource.path}", el=true)
   private void logSlow(String path, SolrQuery solrQuery, long time)
       throws UnsupportedEncodingException {
@@ -34,8 +34,11 @@ import static org.sakaiproject.nakamura.api.search.solr.SolrSearchConstants.TOTA
 
 import com.google.common.collect.Maps;
 import com.google.common.collect.Sets;
+import com.google.common.collect.UnmodifiableIterator;
 
 import org.apache.commons.lang.StringUtils;
+import org.apache.felix.scr.annotations.Activate;
+import org.apache.felix.scr.annotations.Modified;
 import org.apache.felix.scr.annotations.Properties;
 import org.apache.felix.scr.annotations.Property;
 import org.apache.felix.scr.annotations.Reference;
@@ -47,6 +50,7 @@ import org.apache.sling.api.request.RequestParameterMap;
 import org.apache.sling.api.resource.Resource;
 import org.apache.sling.api.servlets.SlingSafeMethodsServlet;
 import org.apache.sling.commons.json.JSONException;
+import org.apache.sling.commons.osgi.PropertiesUtil;
 import org.apache.solr.client.solrj.response.FacetField;
 import org.apache.solr.client.solrj.util.ClientUtils;
 import org.sakaiproject.nakamura.api.doc.ServiceDocumentation;
@@ -89,6 +93,7 @@ import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
+import java.util.NoSuchElementException;
 import java.util.Set;
 
 import javax.jcr.Node;
@@ -151,6 +156,37 @@ public class SolrSearchServlet extends SlingSafeMethodsServlet {
   private static final long serialVersionUID = 4130126304725079596L;
   private static final Logger LOGGER = LoggerFactory.getLogger(SolrSearchServlet.class);
 
+  /**
+   * The most results written in one response, whatever the processor, or 0 for no limit.
+   * There is no limit by default, as existing searches return everything asked for.
+   */
+  @Property(intValue = 0)
+  static final String MAX_RESULT_ROWS = "maxResultRows";
+
+  /**
+   * The size, in characters, after which no more results are added to a response, or 0
+   * for no limit. The result being written when the limit is passed is finished.
+   */
+  @Property(longValue = 8388608L)
+  static final String MAX_RESPONSE_SIZE = "maxResponseSize";
+
+  /**
+   * Whether results are streamed from Solr as the response is written rather than read
+   * in full before writing starts.
+   */
+  @Property(boolValue = true)
+  static final String STREAM_RESULTS = "streamResults";
+
+  /**
+   * Written as true when the response stopped short of all the results because it ran
+   * over one of the limits above.
+   */
+  static final String TRUNCATED = "truncated";
+
+  private int maxResultRows = 0;
+  private long maxResponseSize = 8388608L;
+  private boolean streamResults = true;
+
   @Reference
   private SearchResultProcessorTracker searchResultProcessorTracker;
 
@@ -199,6 +235,14 @@ public class SolrSearchServlet extends SlingSafeMethodsServlet {
     _userId
   }
 
+  @Activate
+  @Modified
+  protected void activate(Map<?, ?> props) {
+    maxResultRows = PropertiesUtil.toInteger(props.get(MAX_RESULT_ROWS), 0);
+    maxResponseSize = PropertiesUtil.toLong(props.get(MAX_RESPONSE_SIZE), 8388608L);
+    streamResults = PropertiesUtil.toBoolean(props.get(STREAM_RESULTS), true);
+  }
+
   @Override
   protected void doGet(SlingHttpServletRequest request, SlingHttpServletResponse response)
       throws ServletException, IOException {
@@ -298,6 +342,12 @@ public class SolrSearchServlet extends SlingSafeMethodsServlet {
           query.getOptions().put(PARAMS_PAGE, Long.toString(page));
         }
 
+        if (streamResults && !useQueryHandler && Query.SOLR.equals(query.getType())) {
+          // the results are only walked once below, so they can be written as they come
+          // back from solr.
+          query.getOptions().put(SolrResultSetFactory.STREAM_RESULTS, Boolean.TRUE.toString());
+        }
+
         if (!useQueryHandler) {
           try {
             // Prepare the result set.
@@ -316,53 +366,18 @@ public class SolrSearchServlet extends SlingSafeMethodsServlet {
         response.setContentType("application/json");
         response.setCharacterEncoding("UTF-8");
 
-        ExtendedJSONWriter write = new ExtendedJSONWriter(response.getWriter());
-        write.setTidy(ServletUtils.isTidy(request));
-
-        write.object();
-        write.key(PARAMS_ITEMS_PER_PAGE);
-        write.value(nitems);
-        write.key(JSON_RESULTS);
-
-        write.array();
-
-        Iterator<Result> iterator = rs.getResultSetIterator();
-        if (useBatch) {
-          LOGGER.info("Using batch processor for results");
-          searchBatchProcessor.writeResults(request, write, iterator);
-        } else {
-          LOGGER.info("Using regular processor for results");
-          // We don't skip any rows ourselves here.
-          // We expect a rowIterator coming from a resultset to be at the right place.
-          for (long i = 0; i < nitems && iterator.hasNext(); i++) {
-            // Get the next row.
-            Result result = iterator.next();
-
-            // Write the result for this row.
-            searchProcessor.writeResult(request, write, result);
+        BoundedResponseWriter out = new BoundedResponseWriter(response.getWriter(),
+            maxResponseSize);
+        try {
+          writeResponse(request, node, rs, nitems, useBatch, searchBatchProcessor,
+              searchProcessor, out);
+        } finally {
+          if (rs instanceof StreamingSolrSearchResultSet) {
+            // let the query thread go if the response stopped before reading everything.
+            ((StreamingSolrSearchResultSet) rs).abandon();
           }
+          out.close();
         }
-        write.endArray();
-
-        // write the solr facets out if they exist
-        writeFacetFields(rs, write);
-
-        // write the total out after processing the list to give the underlying iterator
-        // a chance to walk the results then report how many there were.
-        write.key(TOTAL);
-        write.value(rs.getSize());
-
-        if ( node.hasProperty(SAKAI_SEARCHRESPONSEDECORATOR)) {
-          String[] decoratorNames = getStringArrayProp(node, SAKAI_SEARCHRESPONSEDECORATOR);
-          for ( String name : decoratorNames ) {
-            SearchResponseDecorator decorator = searchResponseDecoratorTracker.getByName(name);
-            if ( decorator != null ) {
-              decorator.decorateSearchResponse(request, write);
-            }
-          }
-        }
-
-        write.endObject();
       }
     } catch (RepositoryException e) {
       LOGGER.error(e.getMessage(), e);
@@ -373,6 +388,110 @@ public class SolrSearchServlet extends SlingSafeMethodsServlet {
     }
   }
 
+  private void writeResponse(SlingHttpServletRequest request, Node node,
+      SolrSearchResultSet rs, long nitems, boolean useBatch,
+      SolrSearchBatchResultProcessor searchBatchProcessor,
+      SolrSearchResultProcessor searchProcessor, BoundedResponseWriter out)
+      throws JSONException, RepositoryException {
+    ExtendedJSONWriter write = new ExtendedJSONWriter(out);
+    write.setTidy(ServletUtils.isTidy(request));
+
+    write.object();
+    write.key(PARAMS_ITEMS_PER_PAGE);
+    write.value(nitems);
+    write.key(JSON_RESULTS);
+
+    write.array();
+
+    BoundedIterator iterator = new BoundedIterator(rs.getResultSetIterator(), out);
+    if (useBatch) {
+      LOGGER.info("Using batch processor for results");
+      searchBatchProcessor.writeResults(request, write, iterator);
+    } else {
+      LOGGER.info("Using regular processor for results");
+      // We don't skip any rows ourselves here.
+      // We expect a rowIterator coming from a resultset to be at the right place.
+      for (long i = 0; i < nitems && iterator.hasNext(); i++) {
+        // Get the next row.
+        Result result = iterator.next();
+
+        // Write the result for this row.
+        searchProcessor.writeResult(request, write, result);
+      }
+    }
+    write.endArray();
+
+    if (iterator.isTruncated()) {
+      LOGGER.info("Search response for {} truncated after {} results",
+          request.getRequestURI(), iterator.getCount());
+      write.key(TRUNCATED);
+      write.value(true);
+    }
+
+    // write the solr facets out if they exist
+    writeFacetFields(rs, write);
+
+    // write the total out after processing the list to give the underlying iterator
+    // a chance to walk the results then report how many there were.
+    write.key(TOTAL);
+    write.value(rs.getSize());
+
+    if ( node.hasProperty(SAKAI_SEARCHRESPONSEDECORATOR)) {
+      String[] decoratorNames = getStringArrayProp(node, SAKAI_SEARCHRESPONSEDECORATOR);
+      for ( String name : decoratorNames ) {
+        SearchResponseDecorator decorator = searchResponseDecoratorTracker.getByName(name);
+        if ( decorator != null ) {
+          decorator.decorateSearchResponse(request, write);
+        }
+      }
+    }
+
+    write.endObject();
+  }
+
+  /**
+   * Stops handing out results once the response has enough rows or has grown past its
+   * size budget, whether the results are written by the servlet or a batch processor.
+   */
+  private final class BoundedIterator extends UnmodifiableIterator<Result> {
+    private final Iterator<Result> delegate;
+    private final BoundedResponseWriter out;
+    private long count;
+    private boolean truncated;
+
+    private BoundedIterator(Iterator<Result> delegate, BoundedResponseWriter out) {
+      this.delegate = delegate;
+      this.out = out;
+    }
+
+    public boolean hasNext() {
+      if (truncated || !delegate.hasNext()) {
+        return false;
+      }
+      if ((maxResultRows > 0 && count >= maxResultRows) || out.isOverBudget()) {
+        truncated = true;
+        return false;
+      }
+      return true;
+    }
+
+    public Result next() {
+      if (!hasNext()) {
+        throw new NoSuchElementException();
+      }
+      count++;
+      return delegate.next();
+    }
+
+    private boolean isTruncated() {
+      return truncated;
+    }
+
+    private long getCount() {
+      return count;
+    }
+  }
+
   /**
    * Processes a velocity template so that variable references are replaced by the same
    * properties in the property provider and request.
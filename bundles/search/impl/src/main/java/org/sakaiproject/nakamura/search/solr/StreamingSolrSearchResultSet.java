@@ -0,0 +1,230 @@
+/**
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.search.solr;
+
+import com.google.common.collect.UnmodifiableIterator;
+
+import org.apache.solr.client.solrj.StreamingResponseCallback;
+import org.apache.solr.client.solrj.response.FacetField;
+import org.apache.solr.client.solrj.response.QueryResponse;
+import org.apache.solr.common.SolrDocument;
+import org.sakaiproject.nakamura.api.search.solr.Result;
+import org.sakaiproject.nakamura.api.search.solr.SolrSearchException;
+import org.sakaiproject.nakamura.api.search.solr.SolrSearchResultSet;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A result set that hands out documents as Solr streams them, rather than after the
+ * whole response has been parsed. The query runs on another thread which puts each
+ * document on a small bounded queue; the iterator takes them off, so no more than the
+ * queue's capacity of documents are held at once.
+ * <p>
+ * The documents can only be iterated once. The total is known as soon as the first part
+ * of the response has been read. Facets come at the end of the response, so asking for
+ * them drops any documents that have not been read yet and waits for the query to
+ * finish. A reader that stops early calls {@link #abandon()} so the query thread stops
+ * at once rather than waiting for room on the queue.
+ */
+public class StreamingSolrSearchResultSet extends StreamingResponseCallback implements
+    SolrSearchResultSet {
+
+  private static final Logger LOGGER = LoggerFactory
+      .getLogger(StreamingSolrSearchResultSet.class);
+
+  /** Marks the end of the documents on the queue. */
+  private static final Object END = new Object();
+
+  private final BlockingQueue<Object> documents;
+  private final long timeoutMs;
+  private final CountDownLatch started = new CountDownLatch(1);
+  private final CountDownLatch finished = new CountDownLatch(1);
+  private final Iterator<Result> iterator = new StreamingIterator();
+
+  private volatile long numFound = -1;
+  private volatile boolean abandoned;
+  private volatile boolean stopped;
+  private volatile QueryResponse queryResponse;
+  private volatile Exception failure;
+
+  /**
+   * @param capacity
+   *          the most documents to hold before the query thread waits for the reader.
+   * @param timeoutMs
+   *          how long either side waits for the other before giving up.
+   */
+  public StreamingSolrSearchResultSet(int capacity, long timeoutMs) {
+    this.documents = new ArrayBlockingQueue<Object>(Math.max(1, capacity));
+    this.timeoutMs = timeoutMs;
+  }
+
+  // ---------- StreamingResponseCallback, called on the query thread ----------
+
+  @Override
+  public void streamDocListInfo(long numFound, long start, Float maxScore) {
+    this.numFound = numFound;
+    started.countDown();
+  }
+
+  @Override
+  public void streamSolrDocument(SolrDocument doc) {
+    if (stopped) {
+      // throwing stops the rest of the response being parsed.
+      throw new IllegalStateException("Search results are no longer wanted");
+    }
+    if (abandoned) {
+      return;
+    }
+    try {
+      if (!documents.offer(new ResultImpl(doc), timeoutMs, TimeUnit.MILLISECONDS)) {
+        // nobody is reading; stop parsing the rest of the response.
+        abandoned = true;
+        throw new IllegalStateException("Search results were not read within " + timeoutMs
+            + " ms");
+      }
+    } catch (InterruptedException e) {
+      abandoned = true;
+      Thread.currentThread().interrupt();
+      throw new IllegalStateException("Interrupted while streaming search results", e);
+    }
+  }
+
+  /**
+   * Called on the query thread once the query has finished, successfully or not.
+   *
+   * @param response
+   *          the response, without any documents, or null if the query failed.
+   * @param e
+   *          the reason the query failed, or null.
+   */
+  void complete(QueryResponse response, Exception e) {
+    queryResponse = response;
+    failure = e;
+    started.countDown();
+    if (!abandoned) {
+      try {
+        if (!documents.offer(END, timeoutMs, TimeUnit.MILLISECONDS)) {
+          LOGGER.debug("Search results were not read to the end");
+        }
+      } catch (InterruptedException ie) {
+        Thread.currentThread().interrupt();
+      }
+    }
+    finished.countDown();
+  }
+
+  // ---------- called on the request thread ----------
+
+  /**
+   * Wait for the query to start returning results.
+   *
+   * @throws SolrSearchException
+   *           if the query failed before returning any results.
+   */
+  void awaitStart() throws SolrSearchException {
+    try {
+      if (!started.await(timeoutMs, TimeUnit.MILLISECONDS)) {
+        abandoned = true;
+        throw new SolrSearchException(500, "Timed out waiting for search results");
+      }
+    } catch (InterruptedException e) {
+      abandoned = true;
+      Thread.currentThread().interrupt();
+      throw new SolrSearchException(500, e.getMessage());
+    }
+    if (numFound < 0 && failure != null) {
+      throw new SolrSearchException(500, failure.getMessage());
+    }
+  }
+
+  /**
+   * Called by a reader that will read no more, documents or facets. The query thread
+   * stops at the next document, and a document it is waiting to put on the queue is let
+   * through at once.
+   */
+  void abandon() {
+    stopped = true;
+    abandoned = true;
+    documents.clear();
+  }
+
+  public Iterator<Result> getResultSetIterator() {
+    return iterator;
+  }
+
+  public long getSize() {
+    return Math.max(0, numFound);
+  }
+
+  public List<FacetField> getFacetFields() {
+    abandoned = true;
+    documents.clear();
+    try {
+      if (!finished.await(timeoutMs, TimeUnit.MILLISECONDS)) {
+        LOGGER.warn("Timed out waiting for search facets");
+        return null;
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      return null;
+    }
+    return (queryResponse == null) ? null : queryResponse.getFacetFields();
+  }
+
+  private final class StreamingIterator extends UnmodifiableIterator<Result> {
+    private Object next;
+
+    public boolean hasNext() {
+      if (next == null && abandoned) {
+        next = END;
+      }
+      if (next == null) {
+        try {
+          next = documents.poll(timeoutMs, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+        }
+        if (next == null) {
+          LOGGER.warn("Timed out waiting for search results");
+          abandoned = true;
+          next = END;
+        } else if (next == END && failure != null) {
+          LOGGER.warn("Search results ended early: {}", failure.getMessage());
+        }
+      }
+      return next != END;
+    }
+
+    public Result next() {
+      if (!hasNext()) {
+        throw new NoSuchElementException();
+      }
+      Result result = (Result) next;
+      next = null;
+      return result;
+    }
+  }
+}
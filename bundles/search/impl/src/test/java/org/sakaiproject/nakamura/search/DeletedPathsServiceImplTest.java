@@ -18,8 +18,12 @@
 package org.sakaiproject.nakamura.search;
 
 import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertNull;
+import static junit.framework.Assert.assertSame;
 import static org.mockito.Matchers.any;
 import static org.mockito.Matchers.anyString;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
 import java.util.List;
@@ -29,6 +33,7 @@ import org.junit.runner.RunWith;
 import org.mockito.Mock;
 import org.mockito.runners.MockitoJUnitRunner;
 import org.osgi.service.event.Event;
+import org.osgi.service.event.EventAdmin;
 import org.sakaiproject.nakamura.api.cluster.ClusterServer;
 import org.sakaiproject.nakamura.api.cluster.ClusterTrackingService;
 import org.sakaiproject.nakamura.api.memory.Cache;
@@ -53,6 +58,8 @@ public class DeletedPathsServiceImplTest {
   private ClusterTrackingService clusterTrackingService;
   @Mock
   private ClusterServer clusterServer;
+  @Mock
+  private EventAdmin eventAdmin;
 
   private DeletedPathsServiceImpl service;
 
@@ -74,7 +81,8 @@ public class DeletedPathsServiceImplTest {
     when(cacheManagerService.getCache(anyString(), any(CacheScope.class))).thenReturn(
         cache);
 
-    service = new DeletedPathsServiceImpl(cacheManagerService, clusterTrackingService);
+    service = new DeletedPathsServiceImpl(cacheManagerService, clusterTrackingService,
+        eventAdmin);
   }
 
   @Test
@@ -160,4 +168,58 @@ public class DeletedPathsServiceImplTest {
     }
     return escapedPaths;
   }
+
+  @Test
+  public void testSiblingWithCommonPrefixIsKept() throws Exception {
+    service.handleEvent(new Event("org/sakaiproject/nakamura/lite/content/DELETE",
+        ImmutableMap.of("path", "/first/secondary")));
+    service.handleEvent(new Event("org/sakaiproject/nakamura/lite/content/DELETE",
+        ImmutableMap.of("path", "/first/second")));
+    service.handleEvent(new Event("org/sakaiproject/nakamura/lite/content/DELETE",
+        ImmutableMap.of("path", "/first/second/child")));
+
+    assertEquals(Lists.newArrayList("/first/secondary", "/first/second"),
+        service.getDeletedPaths());
+  }
+
+  @Test
+  public void testFilterReusedUntilChanged() throws Exception {
+    assertNull(service.getDeletedPathsFilter(Query.SOLR));
+
+    service.handleEvent(new Event("org/sakaiproject/nakamura/lite/content/DELETE",
+        ImmutableMap.of("path", "/first/second")));
+    String filter = service.getDeletedPathsFilter(Query.SOLR);
+    assertEquals("-path:(" + SearchUtil.escapeString("/first/second", Query.SOLR) + ")",
+        filter);
+    assertSame(filter, service.getDeletedPathsFilter(Query.SOLR));
+
+    service.handleEvent(new Event("org/sakaiproject/nakamura/lite/content/DELETE",
+        ImmutableMap.of("path", "/first/third")));
+    assertEquals("-path:(" + SearchUtil.escapeString("/first/second", Query.SOLR) + " OR "
+        + SearchUtil.escapeString("/first/third", Query.SOLR) + ")",
+        service.getDeletedPathsFilter(Query.SOLR));
+
+    service.handleEvent(new Event("org/sakaiproject/nakamura/solr/COMMIT", ImmutableMap
+        .of()));
+    assertNull(service.getDeletedPathsFilter(Query.SOLR));
+  }
+
+  @Test
+  public void testEarlyCommitRequested() throws Exception {
+    service.activate(ImmutableMap.of(DeletedPathsServiceImpl.MAX_DELETED_PATHS, 2));
+    for (int i = 0; i < 5; i++) {
+      service.handleEvent(new Event("org/sakaiproject/nakamura/lite/content/DELETE",
+          ImmutableMap.of("path", "/first/" + i)));
+    }
+    // asked for once, not on every delete after the bound.
+    verify(eventAdmin, times(1)).postEvent(any(Event.class));
+
+    service.handleEvent(new Event("org/sakaiproject/nakamura/solr/SOFT_COMMIT",
+        ImmutableMap.of()));
+    for (int i = 0; i < 3; i++) {
+      service.handleEvent(new Event("org/sakaiproject/nakamura/lite/content/DELETE",
+          ImmutableMap.of("path", "/first/" + i)));
+    }
+    verify(eventAdmin, times(2)).postEvent(any(Event.class));
+  }
 }
@@ -0,0 +1,183 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.search;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertNotSame;
+import static junit.framework.Assert.assertNull;
+import static junit.framework.Assert.assertSame;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.util.Collections;
+import java.util.Iterator;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.Mock;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.runners.MockitoJUnitRunner;
+import org.mockito.stubbing.Answer;
+import org.osgi.service.event.Event;
+import org.sakaiproject.nakamura.api.lite.Session;
+import org.sakaiproject.nakamura.api.lite.StoreListener;
+import org.sakaiproject.nakamura.api.lite.authorizable.Authorizable;
+import org.sakaiproject.nakamura.api.lite.authorizable.AuthorizableManager;
+import org.sakaiproject.nakamura.api.lite.authorizable.Group;
+import org.sakaiproject.nakamura.api.memory.Cache;
+import org.sakaiproject.nakamura.api.memory.CacheManagerService;
+import org.sakaiproject.nakamura.api.memory.CacheScope;
+import org.sakaiproject.nakamura.api.search.ReaderPrincipals;
+import org.sakaiproject.nakamura.api.user.UserConstants;
+import org.sakaiproject.nakamura.memory.MapCacheImpl;
+
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Lists;
+
+/**
+ *
+ */
+@RunWith(MockitoJUnitRunner.class)
+public class ReaderPrincipalsServiceImplTest {
+
+  @Mock
+  private Session session;
+  @Mock
+  private AuthorizableManager authorizableManager;
+  @Mock
+  private Authorizable user;
+  @Mock
+  private Group groupB;
+  @Mock
+  private Group groupA;
+  @Mock
+  private CacheManagerService cacheManagerService;
+
+  private Cache<Object> principalsCache;
+
+  private Cache<Object> groupsCache;
+
+  private ReaderPrincipalsServiceImpl service;
+
+  @Before
+  public void setUp() throws Exception {
+    when(session.getAuthorizableManager()).thenReturn(authorizableManager);
+    when(user.getId()).thenReturn("alice");
+    when(groupA.getId()).thenReturn("a-group");
+    when(groupB.getId()).thenReturn("b-group");
+    when(user.memberOf(authorizableManager)).thenAnswer(new Answer<Iterator<Group>>() {
+      public Iterator<Group> answer(InvocationOnMock invocation) {
+        return Lists.newArrayList(groupB, groupA).iterator();
+      }
+    });
+
+    principalsCache = new MapCacheImpl<Object>(
+        ReaderPrincipalsServiceImpl.READER_PRINCIPALS_CACHE, CacheScope.CLUSTERINVALIDATED);
+    when(cacheManagerService.getCache(ReaderPrincipalsServiceImpl.READER_PRINCIPALS_CACHE,
+        CacheScope.CLUSTERINVALIDATED)).thenReturn(principalsCache);
+    groupsCache = new MapCacheImpl<Object>(ReaderPrincipalsServiceImpl.READER_GROUPS_CACHE,
+        CacheScope.CLUSTERREPLICATED);
+    when(cacheManagerService.getCache(ReaderPrincipalsServiceImpl.READER_GROUPS_CACHE,
+        CacheScope.CLUSTERREPLICATED)).thenReturn(groupsCache);
+
+    service = new ReaderPrincipalsServiceImpl(cacheManagerService);
+    service.activate(Collections.emptyMap());
+  }
+
+  @Test
+  public void testPrincipalsAreSortedAndCached() throws Exception {
+    ReaderPrincipals principals = service.getReaderPrincipals(session, user);
+    assertEquals("a-group,alice,b-group", principals.getReaders());
+    assertEquals(principals.getReaders().hashCode(), principals.getHash());
+
+    assertSame(principals, service.getReaderPrincipals(session, user));
+    verify(user, times(1)).memberOf(authorizableManager);
+  }
+
+  @Test
+  public void testUserUpdateInvalidatesUser() throws Exception {
+    ReaderPrincipals principals = service.getReaderPrincipals(session, user);
+
+    service.handleEvent(new Event(UserConstants.TOPIC_USER_UPDATE, ImmutableMap.of(
+        UserConstants.EVENT_PROP_USERID, "alice")));
+
+    ReaderPrincipals reread = service.getReaderPrincipals(session, user);
+    assertNotSame(principals, reread);
+    assertEquals(principals, reread);
+    verify(user, times(2)).memberOf(authorizableManager);
+  }
+
+  @Test
+  public void testGroupChangeClearsCache() throws Exception {
+    service.getReaderPrincipals(session, user);
+    service.handleEvent(new Event(UserConstants.TOPIC_GROUP_UPDATE, ImmutableMap.of(
+        UserConstants.EVENT_PROP_USERID, "some-other-group")));
+    service.getReaderPrincipals(session, user);
+
+    // a storage event for a group held in the cache clears it too.
+    service.handleEvent(new Event(StoreListener.TOPIC_BASE + "authorizables/"
+        + StoreListener.UPDATED_TOPIC, ImmutableMap.of("path", "b-group")));
+    service.getReaderPrincipals(session, user);
+
+    verify(user, times(3)).memberOf(authorizableManager);
+  }
+
+  @Test
+  public void testInvalidationFromAnotherServer() throws Exception {
+    ReaderPrincipals principals = service.getReaderPrincipals(session, user);
+    assertSame(principals, principalsCache.get("alice"));
+
+    // the cluster drops the key after alice changed on another server.
+    principalsCache.remove("alice");
+    when(user.memberOf(authorizableManager)).thenAnswer(new Answer<Iterator<Group>>() {
+      public Iterator<Group> answer(InvocationOnMock invocation) {
+        return Lists.newArrayList(groupA).iterator();
+      }
+    });
+    assertEquals("a-group,alice", service.getReaderPrincipals(session, user).getReaders());
+  }
+
+  @Test
+  public void testGroupChangeOnAnotherServerClearsCache() throws Exception {
+    service.getReaderPrincipals(session, user);
+
+    // another server, sharing the clustered caches, has never cached alice.
+    ReaderPrincipalsServiceImpl other = new ReaderPrincipalsServiceImpl(cacheManagerService);
+    other.activate(Collections.emptyMap());
+    service.getReaderPrincipals(session, user);
+    other.handleEvent(new Event(StoreListener.TOPIC_BASE + "authorizables/"
+        + StoreListener.UPDATED_TOPIC, ImmutableMap.of("path", "b-group")));
+
+    assertNull(principalsCache.get("alice"));
+  }
+
+  @Test
+  public void testCacheIsEmptiedWhenFull() throws Exception {
+    service.activate(ImmutableMap.of(ReaderPrincipalsServiceImpl.MAX_ENTRIES, 1));
+    service.getReaderPrincipals(session, user);
+    Authorizable bob = mock(Authorizable.class);
+    when(bob.getId()).thenReturn("bob");
+    when(bob.memberOf(authorizableManager)).thenReturn(
+        Collections.<Group> emptyList().iterator());
+    service.getReaderPrincipals(session, bob);
+    assertNull(principalsCache.get("alice"));
+    assertNull(principalsCache.get("bob"));
+  }
+}
@@ -0,0 +1,139 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.search.solr;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertFalse;
+import static junit.framework.Assert.assertNull;
+import static junit.framework.Assert.assertTrue;
+import static junit.framework.Assert.fail;
+
+import java.util.Iterator;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import org.apache.solr.common.SolrDocument;
+import org.junit.Test;
+import org.sakaiproject.nakamura.api.search.solr.Result;
+import org.sakaiproject.nakamura.api.search.solr.SolrSearchException;
+
+/**
+ *
+ */
+public class StreamingSolrSearchResultSetTest {
+
+  private static SolrDocument doc(String path) {
+    SolrDocument doc = new SolrDocument();
+    doc.setField("path", path);
+    return doc;
+  }
+
+  @Test
+  public void testResultsAreHandedOutAsTheyArrive() throws Exception {
+    final StreamingSolrSearchResultSet rs = new StreamingSolrSearchResultSet(2, 5000L);
+    Thread producer = new Thread() {
+      @Override
+      public void run() {
+        rs.streamDocListInfo(10, 0, null);
+        for (int i = 0; i < 10; i++) {
+          // the queue only holds 2, so this waits for the reader.
+          rs.streamSolrDocument(doc("/p/" + i));
+        }
+        rs.complete(null, null);
+      }
+    };
+    producer.start();
+
+    rs.awaitStart();
+    assertEquals(10, rs.getSize());
+    Iterator<Result> it = rs.getResultSetIterator();
+    for (int i = 0; i < 10; i++) {
+      assertTrue(it.hasNext());
+      assertEquals("/p/" + i, it.next().getPath());
+    }
+    assertFalse(it.hasNext());
+    producer.join();
+  }
+
+  @Test
+  public void testFacetsDropUnreadResults() throws Exception {
+    final StreamingSolrSearchResultSet rs = new StreamingSolrSearchResultSet(1, 5000L);
+    final CountDownLatch done = new CountDownLatch(1);
+    Thread producer = new Thread() {
+      @Override
+      public void run() {
+        rs.streamDocListInfo(100, 0, null);
+        for (int i = 0; i < 100; i++) {
+          rs.streamSolrDocument(doc("/p/" + i));
+        }
+        rs.complete(null, null);
+        done.countDown();
+      }
+    };
+    producer.start();
+
+    rs.awaitStart();
+    assertNull(rs.getFacetFields());
+    done.await();
+    assertFalse(rs.getResultSetIterator().hasNext());
+    assertEquals(100, rs.getSize());
+  }
+
+  @Test
+  public void testAbandonLetsTheQueryThreadGo() throws Exception {
+    // a long timeout, the query thread must not wait for it.
+    final StreamingSolrSearchResultSet rs = new StreamingSolrSearchResultSet(1, 60000L);
+    final CountDownLatch done = new CountDownLatch(1);
+    final int[] streamed = new int[1];
+    Thread producer = new Thread() {
+      @Override
+      public void run() {
+        rs.streamDocListInfo(100, 0, null);
+        try {
+          for (int i = 0; i < 100; i++) {
+            rs.streamSolrDocument(doc("/p/" + i));
+            streamed[0]++;
+          }
+        } catch (IllegalStateException e) {
+          // the parse is stopped.
+        }
+        rs.complete(null, null);
+        done.countDown();
+      }
+    };
+    producer.start();
+
+    rs.awaitStart();
+    assertEquals("/p/0", rs.getResultSetIterator().next().getPath());
+    // the reader fails before reading any more.
+    rs.abandon();
+    assertTrue(done.await(5, TimeUnit.SECONDS));
+    assertTrue(streamed[0] < 100);
+  }
+
+  @Test
+  public void testFailureBeforeResults() throws Exception {
+    StreamingSolrSearchResultSet rs = new StreamingSolrSearchResultSet(1, 5000L);
+    rs.complete(null, new IllegalStateException("solr is down"));
+    try {
+      rs.awaitStart();
+      fail("should have thrown");
+    } catch (SolrSearchException e) {
+      assertEquals(500, e.getCode());
+    }
+  }
+}
@@ -3,62 +3,57 @@ package org.apache.jackrabbit.core.security.principal;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
-import java.util.Comparator;
 import java.util.HashSet;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
- * A reasonably dumb LRU map, but its concurrent.
+ * A bounded concurrent map that evicts with the clock (second chance) algorithm. Entries
+ * wait in a queue in the order they were added, a get only sets a flag on the entry. When
+ * the map is over its size the entry at the head of the queue is evicted if it has not
+ * been used since it was last looked at, otherwise its flag is cleared and it goes to the
+ * back of the queue. Eviction is O(1) amortised and nothing is sorted or locked.
+ * <p>
+ * Null values are allowed, so the map can hold negative entries: containsKey returns true
+ * and get returns null.
+ * </p>
  * @param <K>
  * @param <V>
  */
 public class ConcurrentLRUMap<K, V> implements Map<K, V> {
 
-  public class Holder<T> {
+  private static final class Node<K, V> {
+    private final K key;
+    private volatile V value;
+    private volatile boolean referenced;
+    private volatile boolean dead;
 
-    protected long last;
-    protected V value;
-    private K key;
-
-    public Holder(K key, V value) {
+    private Node(K key, V value) {
       this.key = key;
       this.value = value;
-      this.last = System.currentTimeMillis();
-    }
-
-    public int compareTo(Holder<T> o) {
-      return (int) (this.last - o.last);
-    }
-
-    @Override
-    public boolean equals(Object obj) {
-      boolean eq = false;
-      if (obj != null) {
-        try {
-          @SuppressWarnings("unchecked")
-          Holder<T> t = (Holder<T>) obj;
-          eq = value.equals(t.value);
-        } catch (ClassCastException e) {
-          eq = false;
-        }
-      }
-      return eq;
     }
-
-    @Override
-    public int hashCode() {
-      return value.hashCode();
-    }
-
   }
 
+  private final ConcurrentMap<K, Node<K, V>> delegate = new ConcurrentHashMap<K, Node<K, V>>();
   /**
-   * 
+   * Live entries in the order the clock hand visits them, and dead ones waiting to be
+   * dropped.
    */
-  private Map<K, Holder<V>> delegate = new ConcurrentHashMap<K, Holder<V>>();
+  private final ConcurrentLinkedQueue<Node<K, V>> clock = new ConcurrentLinkedQueue<Node<K, V>>();
+  /**
+   * Approximately how many dead entries are still in the clock queue.
+   */
+  private final AtomicInteger deadInClock = new AtomicInteger();
+  private final AtomicLong hits = new AtomicLong();
+  private final AtomicLong misses = new AtomicLong();
+  private final AtomicLong evictions = new AtomicLong();
   private int maxSize = 100;
 
   public ConcurrentLRUMap() {
@@ -81,38 +76,96 @@ public class ConcurrentLRUMap<K, V> implements Map<K, V> {
   }
 
   public boolean containsValue(Object value) {
-    @SuppressWarnings("unchecked")
-    Holder<V> v = new Holder<V>(null, (V) value);
-    return delegate.containsValue(v);
+    for (Node<K, V> n : delegate.values()) {
+      V v = n.value;
+      if (value == null ? v == null : value.equals(v)) {
+        return true;
+      }
+    }
+    return false;
   }
 
-  public V put(K key, V value) {
-    if ( delegate.size() > maxSize ) {
-      List<Holder<V>> l = new ArrayList<Holder<V>>(delegate.values());
-      Collections.sort(l,new Comparator<Holder<V>>() {
+  public V get(Object key) {
+    Node<K, V> n = delegate.get(key);
+    if (n == null) {
+      misses.incrementAndGet();
+      return null;
+    }
+    hits.incrementAndGet();
+    if (!n.referenced) {
+      n.referenced = true;
+    }
+    return n.value;
+  }
 
-        public int compare(Holder<V> o1, Holder<V> o2) {
-          return (int) (o1.last - o2.last);
+  public V put(K key, V value) {
+    for (;;) {
+      Node<K, V> n = delegate.get(key);
+      if (n != null) {
+        V previous = n.value;
+        n.value = value;
+        n.referenced = true;
+        if (delegate.get(key) == n) {
+          return previous;
         }
-      });
-      int i = 0;
-      while ( delegate.size() > maxSize && i < l.size() ) {
-        delegate.remove(l.get(i++).key);
+        // evicted while we were updating it, add it again.
+        continue;
+      }
+      n = new Node<K, V>(key, value);
+      if (delegate.putIfAbsent(key, n) == null) {
+        clock.offer(n);
+        evict();
+        return null;
       }
     }
-    Holder<V> v = delegate.put(key, new Holder<V>(key, value));
-    if (v == null) {
-      return null;
+  }
+
+  /**
+   * Move the clock hand until the map is back within its size.
+   */
+  private void evict() {
+    // every entry gets at most one second chance per pass, so this always ends.
+    int limit = 2 * (delegate.size() + deadInClock.get()) + 1;
+    while (delegate.size() > maxSize && limit-- > 0) {
+      Node<K, V> n = clock.poll();
+      if (n == null) {
+        return;
+      }
+      if (n.dead) {
+        deadInClock.decrementAndGet();
+      } else if (n.referenced) {
+        n.referenced = false;
+        clock.offer(n);
+      } else if (delegate.remove(n.key, n)) {
+        n.dead = true;
+        evictions.incrementAndGet();
+      }
     }
-    return v.value;
   }
 
   public V remove(Object key) {
-    Holder<V> v = delegate.remove(key);
-    if (v == null) {
+    Node<K, V> n = delegate.remove(key);
+    if (n == null) {
       return null;
     }
-    return v.value;
+    kill(n);
+    return n.value;
+  }
+
+  /**
+   * Mark a node removed from the map as dead, dropping dead nodes from the clock queue
+   * once there are more of them than live ones.
+   */
+  private void kill(Node<K, V> n) {
+    n.dead = true;
+    if (deadInClock.incrementAndGet() > Math.max(maxSize, delegate.size())) {
+      for (Iterator<Node<K, V>> i = clock.iterator(); i.hasNext();) {
+        if (i.next().dead) {
+          i.remove();
+          deadInClock.decrementAndGet();
+        }
+      }
+    }
   }
 
   public void putAll(Map<? extends K, ? extends V> t) {
@@ -122,52 +175,73 @@ public class ConcurrentLRUMap<K, V> implements Map<K, V> {
   }
 
   public void clear() {
-    delegate.clear();
+    for (K key : delegate.keySet()) {
+      remove(key);
+    }
   }
 
   public Set<K> keySet() {
-    return delegate.keySet();
+    return Collections.unmodifiableSet(delegate.keySet());
   }
 
   public Collection<V> values() {
     List<V> values = new ArrayList<V>();
-    for (Holder<V> v : delegate.values()) {
-      values.add(v.value);
+    for (Node<K, V> n : delegate.values()) {
+      values.add(n.value);
     }
     return values;
   }
 
   public Set<Entry<K, V>> entrySet() {
     Set<Entry<K, V>> set = new HashSet<Map.Entry<K, V>>();
-    for (final Entry<K, Holder<V>> e : delegate.entrySet()) {
+    for (final Node<K, V> n : delegate.values()) {
       set.add(new Entry<K, V>() {
 
         public K getKey() {
-          return e.getKey();
+          return n.key;
         }
 
         public V getValue() {
-          return ((Holder<V>) e.getValue()).value;
+          return n.value;
         }
 
         public V setValue(V value) {
-          Holder<V> h = e.setValue((Holder<V>) new Holder<V>(e.getKey(), value));
-          if (h == null) {
-            return null;
-          }
-          return h.value;
+          V previous = n.value;
+          n.value = value;
+          return previous;
         }
       });
     }
     return set;
   }
 
-  public V get(Object key) {
-    Holder<V> v = delegate.get(key);
-    if (v == null) {
-      return null;
-    }
-    v.last = System.currentTimeMillis();
-    return v.value;
+  /**
+   * @return the number of gets that found an entry, including negative entries.
+   */
+  public long getHitCount() {
+    return hits.get();
+  }
+
+  /**
+   * @return the number of gets that found nothing.
+   */
+  public long getMissCount() {
+    return misses.get();
+  }
+
+  /**
+   * @return the number of entries evicted to keep the map within its size.
+   */
+  public long getEvictionCount() {
+    return evictions.get();
+  }
+
+  /**
+   * @return the proportion of gets that found an entry, 0 if there have been none.
+   */
+  public double getHitRate() {
+    long h = hits.get();
+    long total = h + misses.get();
+    return total == 0 ? 0.0 : (double) h / total;
   }
 }
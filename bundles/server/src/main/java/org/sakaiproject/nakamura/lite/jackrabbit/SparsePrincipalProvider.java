@@ -61,6 +61,9 @@ public class SparsePrincipalProvider implements PrincipalProvider {
   /** flag indicating if the instance has not been {@link #close() closed} */
   private boolean initialized;
 
+  /** true if principals that could not be found are remembered in the cache */
+  private boolean includeNegative;
+
   /** the principal cache */
   private ConcurrentLRUMap<String, Principal> cache = new ConcurrentLRUMap<String, Principal>();
   private Repository sparseRepository;
@@ -178,17 +181,15 @@ public class SparsePrincipalProvider implements PrincipalProvider {
                     memberIds.add(pid);
                   }
                 }
-                if (cache.containsKey(id)) {
-                  prin = cache.get(id);
-                } else {
+                prin = cache.get(id);
+                if (prin == null) {
                   prin = new SparsePrincipal(a, this.getClass().getName());
                   addToCache(prin);
                 }
                 return true;
               } else if (a instanceof org.sakaiproject.nakamura.api.lite.authorizable.User) {
-                if (cache.containsKey(id)) {
-                  prin = cache.get(id);
-                } else {
+                prin = cache.get(id);
+                if (prin == null) {
                   prin = new SparsePrincipal(a, this.getClass().getName());
                   addToCache(prin);
                 }
@@ -264,6 +265,11 @@ public class SparsePrincipalProvider implements PrincipalProvider {
     } catch (ClientPoolException e) {
       LOGGER.warn(e.getMessage(), e);
     }
+    if (LOGGER.isDebugEnabled()) {
+      LOGGER.debug("Principal cache size {} hits {} misses {} evictions {} ",
+          new Object[] { cache.size(), cache.getHitCount(), cache.getMissCount(),
+              cache.getEvictionCount() });
+    }
   }
 
   /**
@@ -277,16 +283,16 @@ public class SparsePrincipalProvider implements PrincipalProvider {
    */
   public Principal getPrincipal(String principalName) {
     checkInitialized();
-    if (cache.containsKey(principalName)) {
-      return (Principal) cache.get(principalName);
+    Principal principal = cache.get(principalName);
+    if (principal != null || (includeNegative && cache.containsKey(principalName))) {
+      return principal;
     }
-    Principal principal = null;
     try {
       principal = providePrincipal(principalName);
     } catch (RepositoryException e) {
       LOGGER.debug(e.getMessage(), e);
     }
-    if (principal != null) {
+    if (principal != null || includeNegative) {
       cache.put(principalName, principal);
     }
     return principal;
@@ -331,6 +337,8 @@ public class SparsePrincipalProvider implements PrincipalProvider {
 
     int maxSize = Integer.parseInt(options.getProperty(MAXSIZE_KEY, "1000"));
     cache = new ConcurrentLRUMap<String, Principal>(maxSize);
+    includeNegative = Boolean.parseBoolean(options.getProperty(NEGATIVE_ENTRY_KEY,
+        "false"));
 
     initialized = true;
   }
@@ -0,0 +1,148 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.apache.jackrabbit.core.security.principal;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class ConcurrentLRUMapTest {
+
+  private static final Logger LOGGER = LoggerFactory.getLogger(ConcurrentLRUMapTest.class);
+
+  @Test
+  public void testBounded() {
+    ConcurrentLRUMap<String, String> map = new ConcurrentLRUMap<String, String>(10);
+    for (int i = 0; i < 1000; i++) {
+      map.put("key" + i, "value" + i);
+      Assert.assertTrue(map.size() <= 10);
+    }
+    Assert.assertEquals(10, map.size());
+    Assert.assertEquals(990, map.getEvictionCount());
+    // with nothing read the newest entries survive.
+    for (int i = 990; i < 1000; i++) {
+      Assert.assertEquals("value" + i, map.get("key" + i));
+    }
+  }
+
+  @Test
+  public void testSecondChance() {
+    ConcurrentLRUMap<String, String> map = new ConcurrentLRUMap<String, String>(10);
+    for (int i = 0; i < 10; i++) {
+      map.put("key" + i, "value" + i);
+    }
+    Assert.assertEquals("value0", map.get("key0"));
+    map.put("key10", "value10");
+    Assert.assertEquals(10, map.size());
+    Assert.assertTrue(map.containsKey("key0"));
+    Assert.assertFalse(map.containsKey("key1"));
+  }
+
+  @Test
+  public void testNegativeEntries() {
+    ConcurrentLRUMap<String, String> map = new ConcurrentLRUMap<String, String>(10);
+    map.put("missing", null);
+    Assert.assertTrue(map.containsKey("missing"));
+    Assert.assertNull(map.get("missing"));
+    Assert.assertTrue(map.containsValue(null));
+    Assert.assertNull(map.put("missing", "found"));
+    Assert.assertEquals("found", map.get("missing"));
+    Assert.assertEquals(1, map.size());
+  }
+
+  @Test
+  public void testRemoveAndClear() {
+    ConcurrentLRUMap<String, String> map = new ConcurrentLRUMap<String, String>(10);
+    for (int i = 0; i < 100; i++) {
+      map.put("key" + i, "value" + i);
+      Assert.assertEquals("value" + i, map.remove("key" + i));
+    }
+    Assert.assertTrue(map.isEmpty());
+    Assert.assertEquals(0, map.getEvictionCount());
+    for (int i = 0; i < 10; i++) {
+      map.put("key" + i, "value" + i);
+    }
+    map.clear();
+    Assert.assertTrue(map.isEmpty());
+    for (int i = 0; i < 20; i++) {
+      map.put("key" + i, "value" + i);
+    }
+    Assert.assertEquals(10, map.size());
+  }
+
+  @Test
+  public void testCounters() {
+    ConcurrentLRUMap<String, String> map = new ConcurrentLRUMap<String, String>(10);
+    map.put("a", "1");
+    map.get("a");
+    map.get("a");
+    map.get("b");
+    Assert.assertEquals(2, map.getHitCount());
+    Assert.assertEquals(1, map.getMissCount());
+    Assert.assertEquals(2.0 / 3.0, map.getHitRate(), 0.0001);
+  }
+
+  @Test
+  public void testConcurrent() throws InterruptedException {
+    final ConcurrentLRUMap<Integer, Integer> map = new ConcurrentLRUMap<Integer, Integer>(
+        1000);
+    final int perThread = 200000;
+    final AtomicInteger failures = new AtomicInteger();
+    List<Thread> threads = new ArrayList<Thread>();
+    for (int t = 0; t < 8; t++) {
+      final int seed = t;
+      threads.add(new Thread() {
+        public void run() {
+          // a skewed key set, so some of the keys are hot and stay cached.
+          long x = seed + 1;
+          for (int i = 0; i < perThread; i++) {
+            x ^= x << 13;
+            x ^= x >>> 7;
+            x ^= x << 17;
+            int r = (int) (x & 0x7fffffff);
+            Integer key = (r % 8 == 0) ? r % 100000 : r % 500;
+            Integer v = map.get(key);
+            if (v == null) {
+              map.put(key, key);
+            } else if (!v.equals(key)) {
+              failures.incrementAndGet();
+            }
+          }
+        }
+      });
+    }
+    long start = System.currentTimeMillis();
+    for (Thread t : threads) {
+      t.start();
+    }
+    for (Thread t : threads) {
+      t.join();
+    }
+    long time = Math.max(1, System.currentTimeMillis() - start);
+    LOGGER.info("{} operations on 8 threads in {} ms, hit rate {} ",
+        new Object[] { 8 * perThread, time, map.getHitRate() });
+    Assert.assertEquals(0, failures.get());
+    Assert.assertTrue(map.size() <= 1000 + 8);
+    Assert.assertEquals(8L * perThread, map.getHitCount() + map.getMissCount());
+  }
+}
@@ -32,6 +32,15 @@ public interface TopicIndexer {
 	 */
 	public static final String TTL = "index-ttl";
 
+	/**
+	 * Posting an event on this topic asks the indexing queues to end the batch
+	 * they are currently collecting and commit it now rather than waiting for
+	 * the batch delay. Use this when something outside the index is
+	 * compensating for uncommitted changes and that compensation is getting
+	 * expensive.
+	 */
+	public static final String COMMIT_REQUEST_TOPIC = "org/sakaiproject/nakamura/solr/COMMIT_REQUEST";
+
 	/**
 	 * Add a Topic based index handler.
 	 * 
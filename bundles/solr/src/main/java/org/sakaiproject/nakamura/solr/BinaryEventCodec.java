@@ -0,0 +1,165 @@
+/**
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.solr;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.Dictionary;
+import java.util.Hashtable;
+import java.util.zip.CRC32;
+
+import org.osgi.service.event.Event;
+
+/**
+ * Encodes events into the binary redo log record format. A record is
+ * 
+ * <pre>
+ * int length of payload
+ * int crc32 of payload
+ * payload: varint nproperties, string topic, (string name, string value)*
+ * </pre>
+ * 
+ * where strings are a varint byte length followed by UTF-8 bytes. Property
+ * values are stored as strings, the same as the text redo log, so the indexing
+ * handlers see the same events whichever format is in use.
+ */
+final class BinaryEventCodec {
+
+	/**
+	 * Size of the length and crc that precede each payload.
+	 */
+	static final int RECORD_HEADER_SIZE = 8;
+
+	/**
+	 * A length that marks the end of a segment.
+	 */
+	static final int END_OF_SEGMENT = -1;
+
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	private BinaryEventCodec() {
+	}
+
+	/**
+	 * @param event
+	 * @return a buffer, ready to be written, containing the whole record for the
+	 *         event.
+	 */
+	static ByteBuffer encode(Event event) {
+		String[] names = event.getPropertyNames();
+		byte[][] strings = new byte[names.length * 2 + 1][];
+		strings[0] = event.getTopic().getBytes(UTF8);
+		int i = 1;
+		for (String name : names) {
+			strings[i++] = name.getBytes(UTF8);
+			strings[i++] = String.valueOf(event.getProperty(name)).getBytes(UTF8);
+		}
+		int payloadSize = varIntSize(names.length);
+		for (byte[] s : strings) {
+			payloadSize += varIntSize(s.length) + s.length;
+		}
+		ByteBuffer record = ByteBuffer.allocate(RECORD_HEADER_SIZE + payloadSize);
+		record.putInt(payloadSize);
+		record.putInt(0); // crc, filled in below
+		putVarInt(record, names.length);
+		for (byte[] s : strings) {
+			putVarInt(record, s.length);
+			record.put(s);
+		}
+		CRC32 crc = new CRC32();
+		crc.update(record.array(), RECORD_HEADER_SIZE, payloadSize);
+		record.putInt(4, (int) crc.getValue());
+		record.flip();
+		return record;
+	}
+
+	/**
+	 * @param payload
+	 *            the payload of a record, excluding the record header.
+	 * @return the event
+	 * @throws IOException
+	 *             if the payload is not a valid event.
+	 */
+	static Event decode(ByteBuffer payload) throws IOException {
+		try {
+			int nproperties = getVarInt(payload);
+			String topic = getString(payload);
+			Dictionary<String, Object> properties = new Hashtable<String, Object>();
+			for (int i = 0; i < nproperties; i++) {
+				String name = getString(payload);
+				properties.put(name, getString(payload));
+			}
+			return new Event(topic, properties);
+		} catch (RuntimeException e) {
+			// BufferUnderflowException, IllegalArgumentException from a bad topic.
+			throw new IOException("Invalid redo log record: " + e.getMessage());
+		}
+	}
+
+	/**
+	 * @return the crc32 of the remaining bytes of the buffer, as stored in the
+	 *         record header.
+	 */
+	static int checksum(ByteBuffer payload) {
+		CRC32 crc = new CRC32();
+		crc.update(payload.array(), payload.arrayOffset() + payload.position(),
+				payload.remaining());
+		return (int) crc.getValue();
+	}
+
+	private static String getString(ByteBuffer payload) throws IOException {
+		int length = getVarInt(payload);
+		if (length < 0 || length > payload.remaining()) {
+			throw new IOException("Invalid string length " + length);
+		}
+		String s = new String(payload.array(), payload.arrayOffset()
+				+ payload.position(), length, UTF8);
+		payload.position(payload.position() + length);
+		return s;
+	}
+
+	private static int varIntSize(int value) {
+		int size = 1;
+		while ((value & ~0x7F) != 0) {
+			value >>>= 7;
+			size++;
+		}
+		return size;
+	}
+
+	private static void putVarInt(ByteBuffer buffer, int value) {
+		while ((value & ~0x7F) != 0) {
+			buffer.put((byte) ((value & 0x7F) | 0x80));
+			value >>>= 7;
+		}
+		buffer.put((byte) value);
+	}
+
+	private static int getVarInt(ByteBuffer buffer) throws IOException {
+		int value = 0;
+		for (int shift = 0; shift < 32; shift += 7) {
+			byte b = buffer.get();
+			value |= (b & 0x7F) << shift;
+			if ((b & 0x80) == 0) {
+				return value;
+			}
+		}
+		throw new IOException("Invalid varint in redo log record");
+	}
+}
@@ -0,0 +1,142 @@
+/**
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.solr;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+
+import org.osgi.service.event.Event;
+
+/**
+ * Tails a binary segment written by {@link BinaryRedoLogWriter}. The position
+ * is the byte offset of the next record, so resuming is a seek rather than a
+ * re-read of the file.
+ */
+class BinaryRedoLogReader implements RedoLogReader {
+
+	/**
+	 * Anything larger than this is treated as a damaged record header.
+	 */
+	private static final int MAX_RECORD_SIZE = 64 * 1024 * 1024;
+
+	private final File file;
+	private final RandomAccessFile segmentFile;
+	private final FileChannel channel;
+	private final ByteBuffer recordHeader = ByteBuffer
+			.allocate(BinaryEventCodec.RECORD_HEADER_SIZE);
+	private ByteBuffer payload = ByteBuffer.allocate(4096);
+	private long position;
+
+	BinaryRedoLogReader(File file, long position) throws IOException {
+		this.file = file;
+		this.segmentFile = new RandomAccessFile(file, "r");
+		this.channel = segmentFile.getChannel();
+		ByteBuffer header = ByteBuffer
+				.allocate(BinaryRedoLogWriter.SEGMENT_HEADER_SIZE);
+		if (!readFully(header, 0)) {
+			close();
+			throw new IOException("Redo log segment " + file
+					+ " has no header");
+		}
+		byte[] magic = new byte[BinaryRedoLogWriter.SEGMENT_MAGIC.length];
+		header.get(magic);
+		int version = header.getInt();
+		if (!Arrays.equals(magic, BinaryRedoLogWriter.SEGMENT_MAGIC)
+				|| version != BinaryRedoLogWriter.SEGMENT_VERSION) {
+			close();
+			throw new IOException("Redo log segment " + file
+					+ " has an unknown header, version " + version);
+		}
+		this.position = Math.max(position,
+				BinaryRedoLogWriter.SEGMENT_HEADER_SIZE);
+	}
+
+	public Event read() throws IOException {
+		recordHeader.clear();
+		recordHeader.limit(4);
+		if (!readFully(recordHeader, position)) {
+			return null;
+		}
+		int length = recordHeader.getInt(0);
+		if (length == BinaryEventCodec.END_OF_SEGMENT) {
+			position += 4;
+			return END;
+		}
+		if (length <= 0 || length > MAX_RECORD_SIZE) {
+			// zero is preallocated space the writer has not reached yet,
+			// anything else is a write that failed part way, in which case the
+			// writer will have moved on to a new segment.
+			return null;
+		}
+		recordHeader.limit(BinaryEventCodec.RECORD_HEADER_SIZE);
+		recordHeader.position(4);
+		if (!readFully(recordHeader, position + 4)) {
+			return null;
+		}
+		int crc = recordHeader.getInt(4);
+		if (payload.capacity() < length) {
+			payload = ByteBuffer.allocate(length);
+		}
+		payload.clear();
+		payload.limit(length);
+		if (!readFully(payload, position + BinaryEventCodec.RECORD_HEADER_SIZE)) {
+			return null;
+		}
+		if (BinaryEventCodec.checksum(payload) != crc) {
+			// the record is still being written.
+			return null;
+		}
+		position += BinaryEventCodec.RECORD_HEADER_SIZE + length;
+		return BinaryEventCodec.decode(payload);
+	}
+
+	public long getPosition() {
+		return position;
+	}
+
+	public void close() throws IOException {
+		segmentFile.close();
+	}
+
+	@Override
+	public String toString() {
+		return file + ":" + position;
+	}
+
+	/**
+	 * Fill the remaining space in buffer from the channel at offset.
+	 * 
+	 * @return false if the end of the file was reached first.
+	 */
+	private boolean readFully(ByteBuffer buffer, long offset) throws IOException {
+		long o = offset;
+		while (buffer.hasRemaining()) {
+			int n = channel.read(buffer, o);
+			if (n < 0) {
+				return false;
+			}
+			o += n;
+		}
+		buffer.flip();
+		return true;
+	}
+}
@@ -0,0 +1,255 @@
+/**
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.solr;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.List;
+
+import org.osgi.service.event.Event;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.collect.Lists;
+
+/**
+ * Writes events into preallocated binary segment files using a
+ * {@link FileChannel}. Events are encoded by the calling thread outside any
+ * lock. Writes are group committed: while one thread is writing (and
+ * optionally forcing) the channel, other threads queue their records and the
+ * next thread to get the channel writes everything that is queued with a
+ * single gathering write and a single force.
+ * 
+ * A segment starts with {@link #SEGMENT_MAGIC} and a version, followed by
+ * records as described in {@link BinaryEventCodec}, and ends with a record
+ * length of {@link BinaryEventCodec#END_OF_SEGMENT}. Unwritten space in the
+ * segment is zero, which a reader sees as a zero length record, meaning no more
+ * data yet.
+ */
+class BinaryRedoLogWriter implements RedoLogWriter {
+
+	static final byte[] SEGMENT_MAGIC = new byte[] { (byte) 0xCA, (byte) 0xFE,
+			(byte) 0x1D, (byte) 0x0B };
+
+	static final int SEGMENT_VERSION = 1;
+
+	static final int SEGMENT_HEADER_SIZE = 8;
+
+	static final String SEGMENT_SUFFIX = ".redo";
+
+	private static final Logger LOGGER = LoggerFactory
+			.getLogger(BinaryRedoLogWriter.class);
+
+	/**
+	 * A record waiting to be written, and the outcome once it has been.
+	 */
+	private static class PendingRecord {
+		private final ByteBuffer record;
+		private boolean written;
+		private IOException failure;
+
+		private PendingRecord(ByteBuffer record) {
+			this.record = record;
+		}
+	}
+
+	private final File logDirectory;
+	private final int segmentSize;
+	private final boolean sync;
+
+	/**
+	 * Protects pending, held only long enough to add to or swap the list.
+	 */
+	private final Object pendingLock = new Object();
+	private List<PendingRecord> pending = Lists.newArrayList();
+
+	/**
+	 * Protects the channel and everything about the current segment. The thread
+	 * holding this lock writes on behalf of all the pending records.
+	 */
+	private final Object channelLock = new Object();
+	private File segment;
+	private RandomAccessFile segmentFile;
+	private FileChannel channel;
+	private long position;
+
+	/**
+	 * @param logDirectory
+	 *            where segments are created.
+	 * @param segmentSize
+	 *            the size each segment is preallocated to, a segment is rolled
+	 *            when the next batch of records would not fit.
+	 * @param sync
+	 *            if true the channel is forced to disk once per group commit.
+	 */
+	BinaryRedoLogWriter(File logDirectory, int segmentSize, boolean sync) {
+		this.logDirectory = logDirectory;
+		this.segmentSize = segmentSize;
+		this.sync = sync;
+	}
+
+	public void append(Event event) throws IOException {
+		PendingRecord pendingRecord = new PendingRecord(
+				BinaryEventCodec.encode(event));
+		synchronized (pendingLock) {
+			pending.add(pendingRecord);
+		}
+		synchronized (channelLock) {
+			if (!pendingRecord.written) {
+				List<PendingRecord> batch;
+				synchronized (pendingLock) {
+					batch = pending;
+					pending = Lists.newArrayList();
+				}
+				IOException failure = null;
+				try {
+					writeBatch(batch);
+				} catch (IOException e) {
+					LOGGER.warn("Failed to write {} events to redo log {} ",
+							batch.size(), segment);
+					failure = e;
+					closeChannel();
+				}
+				for (PendingRecord p : batch) {
+					p.written = true;
+					p.failure = failure;
+				}
+			}
+		}
+		if (pendingRecord.failure != null) {
+			throw pendingRecord.failure;
+		}
+	}
+
+	public boolean close() throws IOException {
+		synchronized (channelLock) {
+			if (channel == null) {
+				return false;
+			}
+			LOGGER.debug("Writer closing {} ", segment);
+			endSegment();
+			return true;
+		}
+	}
+
+	private void writeBatch(List<PendingRecord> batch) throws IOException {
+		ByteBuffer[] buffers = new ByteBuffer[batch.size()];
+		int start = 0;
+		int n = 0;
+		long batchSize = 0;
+		for (PendingRecord p : batch) {
+			int size = p.record.remaining();
+			// always leave room for the end of segment marker.
+			if (channel != null && position > SEGMENT_HEADER_SIZE
+					&& position + batchSize + size + 4 > segmentSize) {
+				write(buffers, start, n - start);
+				LOGGER.info("Closed Event Redo Log {} ", segment);
+				endSegment();
+				start = n;
+				batchSize = 0;
+			}
+			buffers[n++] = p.record;
+			batchSize += size;
+		}
+		write(buffers, start, n - start);
+		if (sync) {
+			channel.force(false);
+		}
+	}
+
+	private void write(ByteBuffer[] buffers, int offset, int length)
+			throws IOException {
+		if (length == 0) {
+			return;
+		}
+		if (channel == null) {
+			openSegment();
+		}
+		long written = 0;
+		long toWrite = 0;
+		for (int i = offset; i < offset + length; i++) {
+			toWrite += buffers[i].remaining();
+		}
+		while (written < toWrite) {
+			written += channel.write(buffers, offset, length);
+		}
+		position += written;
+	}
+
+	private void openSegment() throws IOException {
+		long now = System.currentTimeMillis();
+		File f = new File(logDirectory, String.valueOf(now) + SEGMENT_SUFFIX);
+		while (f.exists()) {
+			now++;
+			f = new File(logDirectory, String.valueOf(now) + SEGMENT_SUFFIX);
+		}
+		segmentFile = new RandomAccessFile(f, "rw");
+		channel = segmentFile.getChannel();
+		segment = f;
+		// the header goes in before the file is extended so that a reader never
+		// sees a preallocated segment without its magic.
+		ByteBuffer header = ByteBuffer.allocate(SEGMENT_HEADER_SIZE);
+		header.put(SEGMENT_MAGIC);
+		header.putInt(SEGMENT_VERSION);
+		header.flip();
+		while (header.hasRemaining()) {
+			channel.write(header, header.position());
+		}
+		segmentFile.setLength(segmentSize);
+		channel.position(SEGMENT_HEADER_SIZE);
+		position = SEGMENT_HEADER_SIZE;
+		LOGGER.info("Opened Event Redo Log {} ", segment);
+	}
+
+	private void endSegment() throws IOException {
+		try {
+			ByteBuffer end = ByteBuffer.allocate(4);
+			end.putInt(BinaryEventCodec.END_OF_SEGMENT);
+			end.flip();
+			while (end.hasRemaining()) {
+				channel.write(end);
+			}
+			position += 4;
+			if (sync) {
+				channel.force(false);
+			}
+			// release the preallocated space that was not used.
+			channel.truncate(position);
+		} finally {
+			closeChannel();
+		}
+	}
+
+	private void closeChannel() {
+		try {
+			if (segmentFile != null) {
+				segmentFile.close();
+			}
+		} catch (IOException e) {
+			LOGGER.debug("Failed to close {} ", segment);
+		}
+		segmentFile = null;
+		channel = null;
+		segment = null;
+		position = 0;
+	}
+
+}
@@ -66,7 +66,8 @@ public class ContentEventListener implements EventHandler, TopicIndexer,
 		QueueManagerDriver {
 
 
-	@Property(value = { "org/sakaiproject/nakamura/lite/*" }, propertyPrivate = true)
+	@Property(value = { "org/sakaiproject/nakamura/lite/*",
+			TopicIndexer.COMMIT_REQUEST_TOPIC }, propertyPrivate = true)
 	static final String TOPICS = EventConstants.EVENT_TOPIC;
 
 	/**
@@ -102,6 +103,40 @@ public class ContentEventListener implements EventHandler, TopicIndexer,
 
 	private static final String BATCH_DELAY = "batch-delay";
 
+	/**
+	 * The format new events are written to the redo log in, binary or text.
+	 * Binary writes length prefixed records into preallocated segments and
+	 * group commits concurrent writers, text is the original one line per event
+	 * format. Files already on disk are read whatever this is set to.
+	 */
+	private static final String REDO_LOG_FORMAT = "redo-log-format";
+
+	private static final RedoLogFormat DEFAULT_REDO_LOG_FORMAT = RedoLogFormat.BINARY;
+
+	/**
+	 * The size in bytes at which a redo log file is closed and a new one
+	 * started.
+	 */
+	private static final String REDO_LOG_SEGMENT_SIZE = "redo-log-segment-size";
+
+	/**
+	 * If true the binary redo log is forced to disk once per group commit
+	 * before the event is acknowledged, at the cost of an fsync.
+	 */
+	private static final String REDO_LOG_SYNC = "redo-log-sync";
+
+	private static final boolean DEFAULT_REDO_LOG_SYNC = false;
+
+	/**
+	 * The number of threads per queue that run the indexing handlers for a
+	 * batch. Each worker uses its own repository session. The results are
+	 * still sent to solr in event order, with the deletes of consecutive
+	 * events in one request and their documents in one add.
+	 */
+	private static final String INDEXING_WORKERS = "indexing-workers";
+
+	private static final int DEFAULT_INDEXING_WORKERS = 1;
+
 	@Property(value={
 			"name=;batch-delay=5000;batched-index-size=100;near-real-time=false",
 			"name=high;batch-delay=50;batched-index-size=10;near-real-time=true"
@@ -169,9 +204,19 @@ public class ContentEventListener implements EventHandler, TopicIndexer,
 			long batchDelay = Utils.toLong(config.get(BATCH_DELAY),
 					DEFAULT_BATCH_DELAY);
 			String name = Utils.toString(config.get(QUEUE_NAME), DEFAULT_QUEUE_NAME);
+			RedoLogFormat redoLogFormat = RedoLogFormat.parse(
+					config.get(REDO_LOG_FORMAT), DEFAULT_REDO_LOG_FORMAT);
+			int redoLogSegmentSize = Utils.toInt(
+					config.get(REDO_LOG_SEGMENT_SIZE),
+					RedoLogFormat.DEFAULT_SEGMENT_SIZE);
+			boolean redoLogSync = Utils.toBoolean(config.get(REDO_LOG_SYNC),
+					DEFAULT_REDO_LOG_SYNC);
+			int indexingWorkers = Utils.toInt(config.get(INDEXING_WORKERS),
+					DEFAULT_INDEXING_WORKERS);
 			qm.put(name, new QueueManager(this,
 					solrServerService.getSolrHome(), name, nearRealTime,
-					batchedIndexSize, batchDelay));
+					batchedIndexSize, batchDelay, redoLogFormat,
+					redoLogSegmentSize, redoLogSync, indexingWorkers));
 
 		}
 		List<QueueManager> qmlist = Lists.newArrayList(qm.values());
@@ -210,6 +255,15 @@ public class ContentEventListener implements EventHandler, TopicIndexer,
 	public void handleEvent(Event event) {
 		String topic = event.getTopic();
 		LOGGER.debug("Got Event {} {} ", event, handlers);
+		if (TopicIndexer.COMMIT_REQUEST_TOPIC.equals(topic)) {
+			QueueManager[] q = queues;
+			if (q != null) {
+				for (QueueManager qm : q) {
+					qm.requestEarlyCommit();
+				}
+			}
+			return;
+		}
 		Collection<IndexingHandler> contentIndexHandler = handlers.get(topic);
 		if (contentIndexHandler != null && contentIndexHandler.size() > 0) {
 			try {
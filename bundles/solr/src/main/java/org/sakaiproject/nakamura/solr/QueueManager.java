@@ -16,8 +16,15 @@ import java.util.Dictionary;
 import java.util.Hashtable;
 import java.util.List;
 import java.util.Map;
-import java.util.Map.Entry;
 import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.apache.commons.lang.StringUtils;
 import org.apache.solr.client.solrj.SolrServer;
@@ -42,7 +49,6 @@ import com.google.common.collect.Sets;
 
 public class QueueManager implements Runnable {
 
-	private static final String END = "--end--";
   private static final String UTF8 = "UTF8";
 
 	private static final Logger LOGGER = LoggerFactory
@@ -51,18 +57,26 @@ public class QueueManager implements Runnable {
 	private File positionFile;
 	private Set<File> deleteQueue;
 	private File savedCurrentInFile;
-	private int savedLineNo;
+	private long savedLogPosition;
 	private long batchStart;
+	/**
+	 * Set when something has asked for the current batch to be committed
+	 * without waiting for the batch delay.
+	 */
+	private volatile boolean earlyCommitRequested;
 	private boolean nearRealTime;
 	private long nread;
-	private long nwrite;
-	private BufferedReader eventReader;
+	private AtomicLong nwrite = new AtomicLong();
+	private RedoLogReader eventReader;
 	private File currentInFile;
 	private Object waitingForFileLock = new Object();
 	private boolean running = false;
-	private int lineNo;
-	private File currentFile;
-	private FileWriter eventWriter;
+	/**
+	 * Position of the reader in currentInFile, lines for text logs, bytes for
+	 * binary logs.
+	 */
+	private long logPosition;
+	private RedoLogWriter eventWriter;
 	protected int batchedIndexSize;
 	protected long batchDelay;
 
@@ -72,11 +86,40 @@ public class QueueManager implements Runnable {
 
 	private String queueName;
 
-	private Object eventWriterSync = new Object();
+	private int indexingWorkerCount;
+
+	/**
+	 * Builds documents for a batch in parallel, null if there is only one
+	 * worker, in which case the dispatcher thread does the work.
+	 */
+	private volatile ExecutorService indexingWorkers;
+
+	private QueueManagerStats stats;
 
 	public QueueManager(QueueManagerDriver queueManagerDriver,
 			String queueHome, String queueName, boolean nearRealTime,
 			int batchedIndexSize, long batchDelay) throws IOException {
+		this(queueManagerDriver, queueHome, queueName, nearRealTime,
+				batchedIndexSize, batchDelay, RedoLogFormat.BINARY,
+				RedoLogFormat.DEFAULT_SEGMENT_SIZE, false, 1);
+	}
+
+	/**
+	 * @param redoLogFormat
+	 *            the format new events are written in, existing log files in
+	 *            any format are still read.
+	 * @param redoLogSegmentSize
+	 *            the size at which a log file is closed and a new one started.
+	 * @param redoLogSync
+	 *            if true, force the log to disk before saveEvent returns.
+	 * @param indexingWorkerCount
+	 *            the number of threads building documents for each batch.
+	 */
+	public QueueManager(QueueManagerDriver queueManagerDriver,
+			String queueHome, String queueName, boolean nearRealTime,
+			int batchedIndexSize, long batchDelay, RedoLogFormat redoLogFormat,
+			int redoLogSegmentSize, boolean redoLogSync, int indexingWorkerCount)
+			throws IOException {
 		if (queueName == null || queueName.equals("")) {
 			this.queueName = "";
 		} else {
@@ -94,6 +137,10 @@ public class QueueManager implements Runnable {
 		this.batchDelay = batchDelay;
 		this.batchedIndexSize = batchedIndexSize;
 		this.queueManagerDriver = queueManagerDriver;
+		this.eventWriter = redoLogFormat.newWriter(logDirectory,
+				redoLogSegmentSize, redoLogSync);
+		this.indexingWorkerCount = Math.max(1, indexingWorkerCount);
+		this.stats = new QueueManagerStats(this.queueName, logDirectory);
 		loadPosition();
 		running = false;
 	}
@@ -101,6 +148,20 @@ public class QueueManager implements Runnable {
 	public synchronized void start() {
 		if (!running) {
 			running = true;
+			if (indexingWorkerCount > 1) {
+				indexingWorkers = Executors.newFixedThreadPool(
+						indexingWorkerCount, new ThreadFactory() {
+							private final AtomicInteger n = new AtomicInteger();
+
+							public Thread newThread(Runnable r) {
+								Thread t = new Thread(r, "IndexQueueWorker"
+										+ queueName + "-" + n.incrementAndGet());
+								t.setDaemon(true);
+								return t;
+							}
+						});
+			}
+			stats.register();
 			queueDispatcher = new Thread(this);
 			queueDispatcher.setName("IndexQueueManager" + queueName);
 			queueDispatcher.start();
@@ -114,6 +175,11 @@ public class QueueManager implements Runnable {
 			closeWriter();
 			running = false;
 			notifyReader();
+			if (indexingWorkers != null) {
+				indexingWorkers.shutdown();
+				indexingWorkers = null;
+			}
+			stats.unregister();
 		}
 
 	}
@@ -131,60 +197,32 @@ public class QueueManager implements Runnable {
 		return queueDispatcher;
 	}
 
+	QueueManagerStats getStats() {
+		return stats;
+	}
+
+	/**
+	 * End the batch being collected now, so that it is processed and committed
+	 * without waiting for the rest of the batch delay.
+	 */
+	public void requestEarlyCommit() {
+		LOGGER.debug("Early commit requested for queue {} ", queueName);
+		earlyCommitRequested = true;
+		notifyReader();
+	}
+
 	public void closeWriter() throws IOException {
-		boolean notify = false;
-		synchronized (eventWriterSync) {
-			if (eventWriter != null) {
-        if (currentFile != null) {
-				  LOGGER.debug("Writer closing {} ", currentFile.getName());
-        }
-				nwrite++;
-				eventWriter.append(END);
-				eventWriter.flush();
-				eventWriter.close();
-				eventWriter = null;
-				currentFile = null;
-				notify = true;
-			}
-		}
-		if (notify) {
+		if (eventWriter.close()) {
+			// the end marker is not counted as a write, nor as a read.
 			notifyReader();
 		}
 	}
 
 	public void saveEvent(Event event) throws IOException {
-		synchronized (eventWriterSync) {
-			LOGGER.debug("Save Event {} ", event);
-			if (currentFile != null && currentFile.length() > 1024 * 1024) {
-				LOGGER.info("Closed Event Redo Log {} ", currentFile);
-				nwrite++;
-				eventWriter.append(END);
-				eventWriter.close();
-				eventWriter = null;
-				currentFile = null;
-			}
-			if (currentFile == null) {
-				currentFile = new File(logDirectory, String.valueOf(System
-						.currentTimeMillis()));
-			}
-			if (eventWriter == null) {
-				eventWriter = new FileWriter(currentFile);
-				LOGGER.info("Opened Event Redo Log {} ", currentFile);
-			}
-			String[] properties = event.getPropertyNames();
-			String[] op = new String[properties.length * 2 + 1];
-			op[0] = URLEncoder.encode(event.getTopic(), UTF8);
-			int i = 1;
-			for (String p : properties) {
-				op[i] = URLEncoder.encode(p, UTF8);
-				i++;
-				op[i] = URLEncoder.encode(String.valueOf(event.getProperty(p)), UTF8);
-				i++;
-			}
-			eventWriter.append(StringUtils.join(op, ',')).append('\n');
-			nwrite++;
-			eventWriter.flush();
-		}
+		LOGGER.debug("Save Event {} ", event);
+		eventWriter.append(event);
+		nwrite.incrementAndGet();
+		stats.eventSaved();
 		notifyReader();
 	}
 
@@ -201,7 +239,6 @@ public class QueueManager implements Runnable {
 	private void batchedEventRun() {
 		int backoff = 0;
 		while (running) {
-			RepositorySession repositorySession = null;
 			try {
 				begin();
 				Event loadEvent = null;
@@ -210,16 +247,18 @@ public class QueueManager implements Runnable {
 				} catch (Exception e) {
 					if (running) {
 						LOGGER.warn("Unreadable Event at {} {} ",
-								currentInFile, lineNo);
+								currentInFile, logPosition);
 						LOGGER.warn("Reported exception follows:", e);
 					} else {
 						LOGGER.debug("Unreadable Event at {} {} ",
-								currentInFile, lineNo);
+								currentInFile, logPosition);
 						LOGGER.debug("Reported exception follows:", e);
 					}
 				}
 				Map<String, Event> events = Maps.newLinkedHashMap();
+				int nloaded = 0;
 				while (loadEvent != null) {
+					nloaded++;
 					String topic = loadEvent.getTopic();
 					String path = (String) loadEvent.getProperty("path");
 					if (path != null) {
@@ -249,7 +288,7 @@ public class QueueManager implements Runnable {
 						loadEvent = readEvent();
 					} catch (Exception e) {
 						LOGGER.warn("Unreadable Event at {} {} ",
-								currentInFile, lineNo);
+								currentInFile, logPosition);
 						LOGGER.warn("Reported exception follows:", e);
 					}
 				}
@@ -257,95 +296,23 @@ public class QueueManager implements Runnable {
 					LOGGER.info(
 							"Processing a batch of {} items, redolog at {}:{}, time remaining for this batch {}",
 							new Object[] { events.size(), currentInFile,
-									lineNo, getBatchTTL() });
+									logPosition, getBatchTTL() });
 				}
+				long processStart = System.currentTimeMillis();
 				SolrServer service = queueManagerDriver.getSolrServerService()
 						.getUpdateServer();
 				try {
 					boolean needsCommit = false;
-					for (Entry<String, Event> ev : events.entrySet()) {
-						Event event = ev.getValue();
-						String topic = event.getTopic();
-						Collection<IndexingHandler> contentIndexHandlers = queueManagerDriver
-								.getTopicHandler(topic);
-						if (contentIndexHandlers != null) {
-							for (IndexingHandler contentIndexHandler : contentIndexHandlers) {
-								/**
-								 * getDeleteQueries and getDocuments must be
-								 * called for all registered indexing handlers.
-								 * There is the chance that updating a document
-								 * will cause another document to be deleted and
-								 * this is the only way the indexing handler has
-								 * to interact in that. e.g. sakai:excludeSearch
-								 * gets set to true; that doc needs to be
-								 * deleted.
-								 */
-								String path = "undefined";
-								Collection<SolrInputDocument> docs = null;
-								try {
-									path = (String) event.getProperty("path");
-									LOGGER.debug(
-											"Got Handler {} for event {} {}",
-											new Object[] { contentIndexHandler,
-													event, path });
-									if ( repositorySession == null ) {
-										repositorySession = getRepositorySession();
-									}
-									Collection<String> deleteQueries = contentIndexHandler
-									.getDeleteQueries(
-											repositorySession, event); 
-									if ( deleteQueries != null ) {
-										for (String deleteQuery : deleteQueries ) {
-											if (service != null) {
-												LOGGER.debug(
-														"Added delete Query {} ",
-														deleteQuery);
-												try {
-													service.deleteByQuery(deleteQuery);
-													needsCommit = true;
-												} catch (SolrServerException e) {
-													LOGGER.info(
-															" Failed to delete {}  cause :{}",
-															deleteQuery,
-															e.getMessage());
-												}
-											}
-										}
-									}
-									docs = contentIndexHandler.getDocuments(
-											repositorySession, event);
-
-									if (service != null && docs != null && docs.size() > 0) {
-                    LOGGER.debug("Adding Docs {} ",
-                        docs);
-                    service.add(docs);
-                    needsCommit = true;
-									}
-								} catch (Exception e) {
-									 if ( e instanceof SolrServerException && e.getCause() instanceof ConnectException ) {
-										throw (SolrServerException)e;
-								     }
-									 LOGGER.error(
-											"{} Failed to process event {}, {} cause follows, event ignored for "
-													+ "this processor, please fix issue to remove this message (dont delete "
-													+ "this log message from the code) ",
-											new Object[] { contentIndexHandler,
-													event, path });
-									LOGGER.error(e.getMessage(), e);
-									if (docs != null) {
-										for (SolrInputDocument d : docs) {
-											LOGGER.error("Failed Doc {} ", d);
-										}
-									}
-								}
-							}
-						}
+					if (events.size() > 0) {
+						IndexOperations[] operations = getIndexOperations(Lists
+								.newArrayList(events.values()));
+						needsCommit = sendIndexOperations(service, operations);
 					}
 					if (needsCommit) {
 						LOGGER.info(
 								"Processed {} events in a batch, max {}, TTL {}, queue at {}:{}  ",
 								new Object[] { events.size(), batchedIndexSize,
-										getBatchTTL(), currentFile, lineNo});
+										getBatchTTL(), currentInFile, logPosition});
 						if (nearRealTime) {
 							UpdateRequest updateRequest = new UpdateRequest();
 							updateRequest.setAction(
@@ -363,6 +330,8 @@ public class QueueManager implements Runnable {
 					}
 					backoff = 0;
 					commit();
+					stats.batchCompleted(nloaded, events.size(),
+							System.currentTimeMillis() - processStart);
 				} catch (SolrServerException e) {
 					if (e.getCause() instanceof ConnectException || e.getMessage().contains("try again")) {
 						if (backoff == 0) {
@@ -388,6 +357,8 @@ public class QueueManager implements Runnable {
 										+ e.getMessage(), e);
 						backoff = 0;
 						commit();
+						stats.batchCompleted(nloaded, events.size(),
+								System.currentTimeMillis() - processStart);
 					}
 				} catch (IOException e) {
 					LOGGER.warn(e.getMessage(), e);
@@ -409,17 +380,271 @@ public class QueueManager implements Runnable {
 				} else {
 					LOGGER.debug("Closing Down Indexer Event Queue");
 				}
-			} finally {
+			}
+		}
+		LOGGER.info("QueueManager {} shutting down ",queueName);
+	}
+
+	/**
+	 * Run the indexing handlers for a batch of events. Handlers only read the
+	 * repository, so when there is more than one worker the batch is split into
+	 * contiguous chunks, each processed by a worker with its own session.
+	 * 
+	 * @param batch
+	 *            the events, at most one per path, in the order they were
+	 *            saved.
+	 * @return the operations for each event, in the same order as the batch.
+	 */
+	private IndexOperations[] getIndexOperations(List<Event> batch)
+			throws Exception {
+		IndexOperations[] operations = new IndexOperations[batch.size()];
+		ExecutorService workers = indexingWorkers;
+		if (workers == null || batch.size() < 2) {
+			new IndexingTask(batch, operations, 0).call();
+			return operations;
+		}
+		int nworkers = Math.min(batch.size(), indexingWorkerCount);
+		int chunk = (batch.size() + nworkers - 1) / nworkers;
+		List<Future<Void>> futures = Lists.newArrayList();
+		for (int start = 0; start < batch.size(); start += chunk) {
+			futures.add(workers.submit(new IndexingTask(batch.subList(
+					start, Math.min(batch.size(), start + chunk)), operations,
+					start)));
+		}
+		try {
+			for (Future<Void> f : futures) {
+				f.get();
+			}
+		} catch (ExecutionException e) {
+			for (Future<Void> f : futures) {
+				f.cancel(false);
+			}
+			if (e.getCause() instanceof Exception) {
+				throw (Exception) e.getCause();
+			}
+			throw e;
+		}
+		return operations;
+	}
+
+	/**
+	 * Send the deletes and documents of a batch in as few requests as event
+	 * order allows. The deletes of consecutive events go in one request and
+	 * their documents in one add, but a delete is never sent before the
+	 * documents of an earlier event, as it may be a query that matches them.
+	 * 
+	 * @return true if anything was sent that needs a commit.
+	 */
+	private boolean sendIndexOperations(SolrServer service,
+			IndexOperations[] operations) throws SolrServerException,
+			IOException {
+		if (service == null) {
+			return false;
+		}
+		boolean needsCommit = false;
+		List<String> deletes = Lists.newArrayList();
+		List<IndexOperations> adds = Lists.newArrayList();
+		for (IndexOperations ops : operations) {
+			if (ops.deleteQueries.size() > 0) {
+				needsCommit = sendDocs(service, adds) || needsCommit;
+				adds.clear();
+				deletes.addAll(ops.deleteQueries);
+			}
+			if (ops.docs.size() > 0) {
+				needsCommit = sendDeletes(service, deletes) || needsCommit;
+				deletes.clear();
+				adds.add(ops);
+			}
+		}
+		// only one of these has anything left in it
+		needsCommit = sendDeletes(service, deletes) || needsCommit;
+		needsCommit = sendDocs(service, adds) || needsCommit;
+		return needsCommit;
+	}
+
+	private boolean sendDeletes(SolrServer service, List<String> deleteQueries)
+			throws SolrServerException, IOException {
+		if (deleteQueries.isEmpty()) {
+			return false;
+		}
+		UpdateRequest deletes = new UpdateRequest();
+		for (String deleteQuery : deleteQueries) {
+			LOGGER.debug("Added delete Query {} ", deleteQuery);
+			deletes.deleteByQuery(deleteQuery);
+		}
+		try {
+			deletes.process(service);
+			return true;
+		} catch (SolrServerException e) {
+			if (e.getCause() instanceof ConnectException) {
+				throw e;
+			}
+			LOGGER.info(" Failed to delete {}  cause :{}",
+					deletes.getDeleteQuery(), e.getMessage());
+			return false;
+		}
+	}
+
+	private boolean sendDocs(SolrServer service, List<IndexOperations> adds)
+			throws SolrServerException, IOException {
+		List<SolrInputDocument> docs = Lists.newArrayList();
+		for (IndexOperations ops : adds) {
+			docs.addAll(ops.docs);
+		}
+		if (docs.isEmpty()) {
+			return false;
+		}
+		LOGGER.debug("Adding Docs {} ", docs);
+		try {
+			service.add(docs);
+			return true;
+		} catch (SolrServerException e) {
+			if (e.getCause() instanceof ConnectException
+					|| (e.getMessage() != null && e.getMessage().contains(
+							"try again"))) {
+				throw e;
+			}
+			LOGGER.warn(
+					"Failed to add a batch of {} documents, adding one event at a time to isolate the failure: {}",
+					docs.size(), e.getMessage());
+			return sendEachEvent(service, adds);
+		} catch (SolrException e) {
+			LOGGER.warn(
+					"Failed to add a batch of {} documents, adding one event at a time to isolate the failure: {}",
+					docs.size(), e.getMessage());
+			return sendEachEvent(service, adds);
+		}
+	}
+
+	private boolean sendEachEvent(SolrServer service,
+			List<IndexOperations> operations) throws SolrServerException {
+		boolean needsCommit = false;
+		for (IndexOperations ops : operations) {
+			if (ops.docs.size() > 0) {
 				try {
-					if ( repositorySession != null ) {
-						repositorySession.logout();
-					}
+					service.add(ops.docs);
+					needsCommit = true;
 				} catch (Exception e) {
-					LOGGER.warn(e.getMessage(), e);
+					if (e instanceof SolrServerException
+							&& e.getCause() instanceof ConnectException) {
+						throw (SolrServerException) e;
+					}
+					LOGGER.error(
+							"Failed to index event {}, event ignored, please fix issue to remove this message (dont delete "
+									+ "this log message from the code) ",
+							ops.event);
+					LOGGER.error(e.getMessage(), e);
+					for (SolrInputDocument d : ops.docs) {
+						LOGGER.error("Failed Doc {} ", d);
+					}
+				}
+			}
+		}
+		return needsCommit;
+	}
+
+	/**
+	 * The deletes and documents produced by all the indexing handlers for one
+	 * event.
+	 */
+	private static class IndexOperations {
+		private final Event event;
+		private final List<String> deleteQueries = Lists.newArrayList();
+		private final List<SolrInputDocument> docs = Lists.newArrayList();
+
+		private IndexOperations(Event event) {
+			this.event = event;
+		}
+	}
+
+	/**
+	 * Runs the indexing handlers for a contiguous chunk of a batch, writing the
+	 * results into the shared operations array at the chunk offset.
+	 */
+	private class IndexingTask implements Callable<Void> {
+
+		private final List<Event> events;
+		private final IndexOperations[] operations;
+		private final int offset;
+
+		private IndexingTask(List<Event> events, IndexOperations[] operations,
+				int offset) {
+			this.events = events;
+			this.operations = operations;
+			this.offset = offset;
+		}
+
+		public Void call() throws Exception {
+			RepositorySession repositorySession = null;
+			try {
+				int i = offset;
+				for (Event event : events) {
+					IndexOperations ops = new IndexOperations(event);
+					operations[i++] = ops;
+					Collection<IndexingHandler> contentIndexHandlers = queueManagerDriver
+							.getTopicHandler(event.getTopic());
+					if (contentIndexHandlers == null) {
+						continue;
+					}
+					for (IndexingHandler contentIndexHandler : contentIndexHandlers) {
+						/**
+						 * getDeleteQueries and getDocuments must be called for
+						 * all registered indexing handlers. There is the chance
+						 * that updating a document will cause another document
+						 * to be deleted and this is the only way the indexing
+						 * handler has to interact in that. e.g.
+						 * sakai:excludeSearch gets set to true; that doc needs
+						 * to be deleted.
+						 */
+						String path = "undefined";
+						Collection<SolrInputDocument> docs = null;
+						long handlerStart = System.nanoTime();
+						boolean failed = false;
+						try {
+							path = (String) event.getProperty("path");
+							LOGGER.debug("Got Handler {} for event {} {}",
+									new Object[] { contentIndexHandler, event,
+											path });
+							if (repositorySession == null) {
+								repositorySession = getRepositorySession();
+							}
+							Collection<String> deleteQueries = contentIndexHandler
+									.getDeleteQueries(repositorySession, event);
+							docs = contentIndexHandler.getDocuments(
+									repositorySession, event);
+							if (deleteQueries != null) {
+								ops.deleteQueries.addAll(deleteQueries);
+							}
+							if (docs != null) {
+								ops.docs.addAll(docs);
+							}
+						} catch (Exception e) {
+							failed = true;
+							LOGGER.error(
+									"{} Failed to process event {}, {} cause follows, event ignored for "
+											+ "this processor, please fix issue to remove this message (dont delete "
+											+ "this log message from the code) ",
+									new Object[] { contentIndexHandler, event,
+											path });
+							LOGGER.error(e.getMessage(), e);
+							if (docs != null) {
+								for (SolrInputDocument d : docs) {
+									LOGGER.error("Failed Doc {} ", d);
+								}
+							}
+						} finally {
+							stats.handlerTime(contentIndexHandler,
+									System.nanoTime() - handlerStart, failed);
+						}
+					}
+				}
+				return null;
+			} finally {
+				if (repositorySession != null) {
+					repositorySession.logout();
 				}
 			}
 		}
-		LOGGER.info("QueueManager {} shutting down ",queueName);
 	}
 
 	private RepositorySession getRepositorySession()
@@ -449,9 +674,10 @@ public class QueueManager implements Runnable {
 
 	private void begin() {
 		savedCurrentInFile = currentInFile;
-		savedLineNo = lineNo;
+		savedLogPosition = logPosition;
 		deleteQueue = Sets.newHashSet();
 		batchStart = System.currentTimeMillis();
+		earlyCommitRequested = false;
 	}
 
 	private void commit() throws IOException {
@@ -479,7 +705,7 @@ public class QueueManager implements Runnable {
 
 	private void rollback() throws IOException {
 		currentInFile = savedCurrentInFile;
-		lineNo = savedLineNo;
+		logPosition = savedLogPosition;
 		deleteQueue = null;
 		savePosition();
 		if (eventReader != null) {
@@ -487,7 +713,7 @@ public class QueueManager implements Runnable {
 			eventReader = null;
 		}
 		loadPosition(); // reopen the event reader to reset its position.
-		LOGGER.info("Rolled back queue to {}:{} ",currentFile,lineNo);
+		LOGGER.info("Rolled back queue to {}:{} ",currentInFile,logPosition);
 	}
 
 	private void savePosition() throws IOException {
@@ -504,7 +730,7 @@ public class QueueManager implements Runnable {
         position = new FileWriter(positionFile);
         position.write(URLEncoder.encode(currentInFile.getAbsolutePath(),UTF8));
         position.write(",");
-        position.write(String.valueOf(lineNo));
+        position.write(String.valueOf(logPosition));
         position.write("\n");
       }
       finally {
@@ -524,8 +750,8 @@ public class QueueManager implements Runnable {
 				if (filePos != null && filePos.length == 2) {
 					currentInFile = new File(URLDecoder.decode(filePos[0],UTF8));
 					if (currentInFile.exists()) {
-						lineNo = Integer.parseInt(filePos[1]);
-						loadPosition(currentInFile, lineNo);
+						logPosition = Long.parseLong(filePos[1]);
+						loadPosition(currentInFile, logPosition);
 						return;
 					}
 				}
@@ -540,51 +766,46 @@ public class QueueManager implements Runnable {
 			}
 		}
 		currentInFile = null;
-		currentFile = null;
-		lineNo = 0;
+		logPosition = 0;
 	}
 
 	private Event readEvent() throws IOException {
 		if (getBatchTTL() > 0) {
-			String line = nextEvent();
-			if (line != null) {
-				String[] parts = StringUtils.split(line, ',');
-				if (parts.length > 0) {
-					Dictionary<String, Object> dict = new Hashtable<String, Object>();
-					for (int i = 1; i < parts.length; i += 2) {
-						dict.put(URLDecoder.decode(parts[i], UTF8),
-								URLDecoder.decode(parts[i + 1], UTF8));
-					}
-					return new Event(URLDecoder.decode(parts[0], UTF8), dict);
-				}
-			}
+			return nextEvent();
 		}
 		return null;
 	}
 
-	private String nextEvent() throws IOException {
-		String line = null;
+	private Event nextEvent() throws IOException {
+		Event event = null;
 		int possibleEnd = 0;
 		if (checkReaderOpen()) {
-			while (line == null || END.equals(line)) {
-				if (END.equals(line)) {
+			while (event == null || event == RedoLogReader.END) {
+				if (event == RedoLogReader.END) {
 					LOGGER.debug("At End of file {}", currentInFile);
 					if (!nextReader()) {
 						return null;
 					}
 				}
-				line = eventReader.readLine();
+				try {
+					event = eventReader.read();
+				} finally {
+					logPosition = eventReader.getPosition();
+				}
 
-				if (line != null) {
+				if (event == RedoLogReader.END) {
+					// end markers are written when a file is closed or rolled
+					// over, they are not counted on either side.
+					possibleEnd = 0;
+				} else if (event != null) {
 					possibleEnd = 0;
 					nread++;
-					lineNo++;
 					if ((nread % 10000) == 0) {
 						LOGGER.info("Event Redo Log has processed {} events",
 								nread);
 					}
 				} else {
-					// if we get null from a buffered reader that means end of
+					// if we get null from the reader that means end of
 					// file, but there was
 					// no end statement
 					// so we need to check if this really is the end of file
@@ -653,7 +874,7 @@ public class QueueManager implements Runnable {
 				}
 			}
 		}
-		return line;
+		return event;
 	}
 
 	private boolean nextReader() throws IOException {
@@ -689,15 +910,12 @@ public class QueueManager implements Runnable {
 		return checkReaderOpen();
 	}
 
-	private void loadPosition(File file, int line) throws IOException {
+	private void loadPosition(File file, long position) throws IOException {
 		if (file != null) {
 			if (eventReader != null) {
 				eventReader.close();
 			}
-			eventReader = new BufferedReader(new FileReader(file));
-			for (int i = 0; i < line; i++) {
-				eventReader.readLine();
-			}
+			eventReader = RedoLogFormat.openReader(file, position);
 		}
 	}
 
@@ -738,8 +956,8 @@ public class QueueManager implements Runnable {
 		}
 		if (eventReader == null) {
 			LOGGER.info("Opening New Reader {} ", currentInFile);
-			eventReader = new BufferedReader(new FileReader(currentInFile));
-			lineNo = 0;
+			eventReader = RedoLogFormat.openReader(currentInFile, 0);
+			logPosition = 0;
 		}
 		return true;
 	}
@@ -754,13 +972,13 @@ public class QueueManager implements Runnable {
           LOGGER.debug(
               "Waiting for more data read:{} written:{} ",
               nread, nwrite);
-          if (nread > nwrite) {
+          if (nread > nwrite.get()) {
             // reset counters if were catching up
-            nread = nwrite;
+            nread = nwrite.get();
             // +1 because an event was written which makes
             // nwrite nread+1 when there are
             // none left
-          } else if (nread + 1 < nwrite) {
+          } else if (nread + 1 < nwrite.get()) {
             LOGGER.debug(
                 "Possible event loss, waiting to read when there are more events written read:{} written:{}",
                 nread, nwrite);
@@ -780,6 +998,9 @@ public class QueueManager implements Runnable {
 	}
 
 	private long getBatchTTL() {
+		if (earlyCommitRequested) {
+			return 0;
+		}
 		return batchDelay - (System.currentTimeMillis() - batchStart);
 	}
 
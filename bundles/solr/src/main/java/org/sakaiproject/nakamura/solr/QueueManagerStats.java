@@ -0,0 +1,206 @@
+/**
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.solr;
+
+import java.io.File;
+import java.lang.management.ManagementFactory;
+import java.util.List;
+import java.util.Map.Entry;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.sakaiproject.nakamura.api.solr.IndexingHandler;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+
+/**
+ * Counters for a {@link QueueManager}, updated by the writer, the dispatcher
+ * and the indexing workers without locking.
+ */
+class QueueManagerStats implements QueueManagerStatsMBean {
+
+	private static final Logger LOGGER = LoggerFactory
+			.getLogger(QueueManagerStats.class);
+
+	private static class HandlerStats {
+		private final AtomicLong calls = new AtomicLong();
+		private final AtomicLong errors = new AtomicLong();
+		private final AtomicLong nanos = new AtomicLong();
+	}
+
+	private final File logDirectory;
+	private final String queueName;
+	private ObjectName objectName;
+
+	private final AtomicLong eventsSaved = new AtomicLong();
+	private final AtomicLong eventsConsumed = new AtomicLong();
+	private final AtomicLong eventsIndexed = new AtomicLong();
+	private final AtomicLong batches = new AtomicLong();
+	private final AtomicLong totalBatchTime = new AtomicLong();
+	private final AtomicLong maxBatchTime = new AtomicLong();
+	private volatile long lastBatchTime;
+	private final ConcurrentMap<String, HandlerStats> handlers = Maps
+			.newConcurrentMap();
+
+	/**
+	 * @param queueName
+	 *            the queue name as used in file names, "" or "-name".
+	 * @param logDirectory
+	 *            the redo log directory of the queue.
+	 */
+	QueueManagerStats(String queueName, File logDirectory) {
+		this.queueName = queueName.startsWith("-") ? queueName.substring(1)
+				: queueName;
+		this.logDirectory = logDirectory;
+	}
+
+	void eventSaved() {
+		eventsSaved.incrementAndGet();
+	}
+
+	/**
+	 * @param consumed
+	 *            events read from the redo log for the batch.
+	 * @param indexed
+	 *            events left after removing duplicate paths.
+	 * @param time
+	 *            ms taken to build, send and commit the batch.
+	 */
+	void batchCompleted(int consumed, int indexed, long time) {
+		if (consumed == 0) {
+			return;
+		}
+		eventsConsumed.addAndGet(consumed);
+		eventsIndexed.addAndGet(indexed);
+		batches.incrementAndGet();
+		totalBatchTime.addAndGet(time);
+		lastBatchTime = time;
+		long max = maxBatchTime.get();
+		while (time > max && !maxBatchTime.compareAndSet(max, time)) {
+			max = maxBatchTime.get();
+		}
+	}
+
+	void handlerTime(IndexingHandler handler, long nanos, boolean failed) {
+		String name = handler.getClass().getName();
+		HandlerStats h = handlers.get(name);
+		if (h == null) {
+			HandlerStats newStats = new HandlerStats();
+			h = handlers.putIfAbsent(name, newStats);
+			if (h == null) {
+				h = newStats;
+			}
+		}
+		h.calls.incrementAndGet();
+		h.nanos.addAndGet(nanos);
+		if (failed) {
+			h.errors.incrementAndGet();
+		}
+	}
+
+	void register() {
+		try {
+			MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+			objectName = new ObjectName(
+					"org.sakaiproject.nakamura.solr:type=IndexQueue,name="
+							+ ObjectName.quote(queueName.length() == 0 ? "default"
+									: queueName));
+			if (!server.isRegistered(objectName)) {
+				server.registerMBean(this, objectName);
+			}
+		} catch (JMException e) {
+			LOGGER.warn("Unable to register index queue statistics {} ",
+					e.getMessage());
+			objectName = null;
+		}
+	}
+
+	void unregister() {
+		if (objectName != null) {
+			try {
+				ManagementFactory.getPlatformMBeanServer().unregisterMBean(
+						objectName);
+			} catch (JMException e) {
+				LOGGER.debug("Unable to unregister {} {} ", objectName,
+						e.getMessage());
+			}
+			objectName = null;
+		}
+	}
+
+	public long getQueueDepth() {
+		return Math.max(0, eventsSaved.get() - eventsConsumed.get());
+	}
+
+	public int getRedoLogFiles() {
+		String[] files = logDirectory.list();
+		return files == null ? 0 : files.length;
+	}
+
+	public long getEventsSaved() {
+		return eventsSaved.get();
+	}
+
+	public long getEventsIndexed() {
+		return eventsIndexed.get();
+	}
+
+	public long getBatches() {
+		return batches.get();
+	}
+
+	public long getLastBatchTimeMs() {
+		return lastBatchTime;
+	}
+
+	public long getAverageBatchTimeMs() {
+		long n = batches.get();
+		return n == 0 ? 0 : totalBatchTime.get() / n;
+	}
+
+	public long getMaxBatchTimeMs() {
+		return maxBatchTime.get();
+	}
+
+	public String[] getHandlerTimings() {
+		List<String> timings = Lists.newArrayList();
+		for (Entry<String, HandlerStats> e : handlers.entrySet()) {
+			HandlerStats h = e.getValue();
+			long calls = h.calls.get();
+			long average = calls == 0 ? 0 : h.nanos.get() / calls / 1000L;
+			timings.add(e.getKey() + " calls=" + calls + " errors="
+					+ h.errors.get() + " averageus=" + average);
+		}
+		return timings.toArray(new String[timings.size()]);
+	}
+
+	public void reset() {
+		batches.set(0);
+		totalBatchTime.set(0);
+		maxBatchTime.set(0);
+		lastBatchTime = 0;
+		handlers.clear();
+	}
+}
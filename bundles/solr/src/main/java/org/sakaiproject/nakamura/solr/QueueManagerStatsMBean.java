@@ -0,0 +1,57 @@
+/**
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.solr;
+
+/**
+ * JMX view of an indexing queue, registered as
+ * org.sakaiproject.nakamura.solr:type=IndexQueue,name=&lt;queue name&gt;.
+ */
+public interface QueueManagerStatsMBean {
+
+	/**
+	 * @return events saved since the queue started that have not yet been
+	 *         processed in a batch.
+	 */
+	long getQueueDepth();
+
+	/**
+	 * @return the number of redo log files on disk, including the one being
+	 *         written.
+	 */
+	int getRedoLogFiles();
+
+	long getEventsSaved();
+
+	long getEventsIndexed();
+
+	long getBatches();
+
+	long getLastBatchTimeMs();
+
+	long getAverageBatchTimeMs();
+
+	long getMaxBatchTimeMs();
+
+	/**
+	 * @return one line per indexing handler with the number of calls, errors
+	 *         and the average time taken per event.
+	 */
+	String[] getHandlerTimings();
+
+	void reset();
+}
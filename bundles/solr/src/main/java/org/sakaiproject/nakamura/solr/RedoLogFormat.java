@@ -0,0 +1,150 @@
+/**
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.solr;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+import org.osgi.service.event.Event;
+
+/**
+ * The formats a {@link QueueManager} can write its redo log in. Readers are not
+ * tied to a format, each file is inspected when it is opened so that a queue
+ * switched from one format to another drains the files already on disk.
+ */
+enum RedoLogFormat {
+	/**
+	 * One URL encoded line per event, flushed per event.
+	 */
+	TEXT {
+		@Override
+		RedoLogWriter newWriter(File logDirectory, int segmentSize, boolean sync) {
+			return new TextRedoLogWriter(logDirectory, segmentSize);
+		}
+	},
+	/**
+	 * Length prefixed binary records in preallocated segments with group
+	 * commit.
+	 */
+	BINARY {
+		@Override
+		RedoLogWriter newWriter(File logDirectory, int segmentSize, boolean sync) {
+			return new BinaryRedoLogWriter(logDirectory, segmentSize, sync);
+		}
+	};
+
+	static final int DEFAULT_SEGMENT_SIZE = 1024 * 1024;
+
+	abstract RedoLogWriter newWriter(File logDirectory, int segmentSize,
+			boolean sync);
+
+	/**
+	 * @param name
+	 *            the configured name, case insensitive.
+	 * @param defaultFormat
+	 *            used if name is null or empty.
+	 */
+	static RedoLogFormat parse(String name, RedoLogFormat defaultFormat) {
+		if (name == null || name.trim().length() == 0) {
+			return defaultFormat;
+		}
+		return valueOf(name.trim().toUpperCase());
+	}
+
+	/**
+	 * Open a reader on a redo log file of any format.
+	 * 
+	 * @param file
+	 * @param position
+	 *            a position previously obtained from
+	 *            {@link RedoLogReader#getPosition()} for this file, or 0.
+	 */
+	static RedoLogReader openReader(File file, long position) {
+		return new FormatDetectingReader(file, position);
+	}
+
+	/**
+	 * Defers choosing the reader until the file has some content, the writer may
+	 * have created the file but not yet written to it.
+	 */
+	private static class FormatDetectingReader implements RedoLogReader {
+
+		private final File file;
+		private final long position;
+		private RedoLogReader delegate;
+
+		private FormatDetectingReader(File file, long position) {
+			this.file = file;
+			this.position = position;
+		}
+
+		public Event read() throws IOException {
+			if (delegate == null) {
+				delegate = detect();
+				if (delegate == null) {
+					return null;
+				}
+			}
+			return delegate.read();
+		}
+
+		public long getPosition() {
+			if (delegate == null) {
+				return position;
+			}
+			return delegate.getPosition();
+		}
+
+		public void close() throws IOException {
+			if (delegate != null) {
+				delegate.close();
+			}
+		}
+
+		@Override
+		public String toString() {
+			if (delegate == null) {
+				return file + ":" + position;
+			}
+			return delegate.toString();
+		}
+
+		private RedoLogReader detect() throws IOException {
+			int first;
+			InputStream in = new FileInputStream(file);
+			try {
+				first = in.read();
+			} finally {
+				in.close();
+			}
+			if (first < 0) {
+				return null;
+			}
+			// text files are URL encoded and so never start with the magic.
+			if (first == (BinaryRedoLogWriter.SEGMENT_MAGIC[0] & 0xFF)) {
+				if (file.length() < BinaryRedoLogWriter.SEGMENT_HEADER_SIZE) {
+					return null;
+				}
+				return new BinaryRedoLogReader(file, position);
+			}
+			return new TextRedoLogReader(file, position);
+		}
+	}
+}
@@ -0,0 +1,56 @@
+/**
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.solr;
+
+import java.io.IOException;
+import java.util.Dictionary;
+import java.util.Hashtable;
+
+import org.osgi.service.event.Event;
+
+/**
+ * Reads events back out of a single redo log file written by a
+ * {@link RedoLogWriter}.
+ */
+interface RedoLogReader {
+
+	/**
+	 * Returned by {@link #read()} when the writer has marked the end of the file.
+	 */
+	Event END = new Event("org/sakaiproject/nakamura/solr/redolog/END",
+			(Dictionary<String, Object>) new Hashtable<String, Object>());
+
+	/**
+	 * @return the next event, {@link #END} if the file has been closed by the
+	 *         writer, or null if there is nothing more to read at the moment.
+	 * @throws IOException
+	 *             if the record at the current position can't be read. The
+	 *             position will have moved past the bad record.
+	 */
+	Event read() throws IOException;
+
+	/**
+	 * @return an opaque position that can be passed back to
+	 *         {@link RedoLogFormat#openReader(java.io.File, long)} to resume
+	 *         reading after the last event returned.
+	 */
+	long getPosition();
+
+	void close() throws IOException;
+
+}
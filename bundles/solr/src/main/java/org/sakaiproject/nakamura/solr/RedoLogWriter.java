@@ -0,0 +1,48 @@
+/**
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.solr;
+
+import java.io.IOException;
+
+import org.osgi.service.event.Event;
+
+/**
+ * Appends events to the on disk redo log of a {@link QueueManager}. Implementations
+ * must be safe to call from many request threads at the same time.
+ */
+interface RedoLogWriter {
+
+	/**
+	 * Append an event to the log, when this method returns the event must be
+	 * visible to a {@link RedoLogReader} tailing the log.
+	 * 
+	 * @param event
+	 * @throws IOException
+	 */
+	void append(Event event) throws IOException;
+
+	/**
+	 * Close the current log file, marking its end. The next append will open a
+	 * new file.
+	 * 
+	 * @return true if there was an open file that was closed.
+	 * @throws IOException
+	 */
+	boolean close() throws IOException;
+
+}
@@ -0,0 +1,85 @@
+/**
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.solr;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.net.URLDecoder;
+import java.util.Dictionary;
+import java.util.Hashtable;
+
+import org.apache.commons.lang.StringUtils;
+import org.osgi.service.event.Event;
+
+/**
+ * Reads the text redo log format, the position is the number of lines read.
+ * This is also how indexq-* files written before the binary format existed
+ * get drained.
+ */
+class TextRedoLogReader implements RedoLogReader {
+
+	private final File file;
+	private final BufferedReader eventReader;
+	private long lineNo;
+
+	TextRedoLogReader(File file, long lineNo) throws IOException {
+		this.file = file;
+		this.eventReader = new BufferedReader(new FileReader(file));
+		for (long i = 0; i < lineNo; i++) {
+			eventReader.readLine();
+		}
+		this.lineNo = lineNo;
+	}
+
+	public Event read() throws IOException {
+		String[] parts = null;
+		while (parts == null || parts.length == 0) {
+			String line = eventReader.readLine();
+			if (line == null) {
+				return null;
+			}
+			lineNo++;
+			if (TextRedoLogWriter.END.equals(line)) {
+				return END;
+			}
+			parts = StringUtils.split(line, ',');
+		}
+		Dictionary<String, Object> dict = new Hashtable<String, Object>();
+		for (int i = 1; i < parts.length; i += 2) {
+			dict.put(URLDecoder.decode(parts[i], TextRedoLogWriter.UTF8),
+					URLDecoder.decode(parts[i + 1], TextRedoLogWriter.UTF8));
+		}
+		return new Event(URLDecoder.decode(parts[0], TextRedoLogWriter.UTF8),
+				dict);
+	}
+
+	public long getPosition() {
+		return lineNo;
+	}
+
+	public void close() throws IOException {
+		eventReader.close();
+	}
+
+	@Override
+	public String toString() {
+		return file + ":" + lineNo;
+	}
+}
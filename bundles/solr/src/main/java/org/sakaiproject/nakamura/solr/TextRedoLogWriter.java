@@ -0,0 +1,105 @@
+/**
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.solr;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.net.URLEncoder;
+
+import org.apache.commons.lang.StringUtils;
+import org.osgi.service.event.Event;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * The original redo log format, one URL encoded, comma separated line per
+ * event, each event flushed as it is written.
+ */
+class TextRedoLogWriter implements RedoLogWriter {
+
+	static final String END = "--end--";
+	static final String UTF8 = "UTF8";
+
+	private static final Logger LOGGER = LoggerFactory
+			.getLogger(TextRedoLogWriter.class);
+
+	private final File logDirectory;
+	private final long maxFileSize;
+	private File currentFile;
+	private FileWriter eventWriter;
+	/**
+	 * Characters written to the current file, every character is ASCII once URL
+	 * encoded so this is also the file size.
+	 */
+	private long written;
+
+	TextRedoLogWriter(File logDirectory, long maxFileSize) {
+		this.logDirectory = logDirectory;
+		this.maxFileSize = maxFileSize;
+	}
+
+	public synchronized void append(Event event) throws IOException {
+		if (currentFile != null && written > maxFileSize) {
+			LOGGER.info("Closed Event Redo Log {} ", currentFile);
+			eventWriter.append(END);
+			eventWriter.close();
+			eventWriter = null;
+			currentFile = null;
+		}
+		if (currentFile == null) {
+			currentFile = new File(logDirectory, String.valueOf(System
+					.currentTimeMillis()));
+			written = 0;
+		}
+		if (eventWriter == null) {
+			eventWriter = new FileWriter(currentFile);
+			LOGGER.info("Opened Event Redo Log {} ", currentFile);
+		}
+		String[] properties = event.getPropertyNames();
+		String[] op = new String[properties.length * 2 + 1];
+		op[0] = URLEncoder.encode(event.getTopic(), UTF8);
+		int i = 1;
+		for (String p : properties) {
+			op[i] = URLEncoder.encode(p, UTF8);
+			i++;
+			op[i] = URLEncoder.encode(String.valueOf(event.getProperty(p)), UTF8);
+			i++;
+		}
+		String line = StringUtils.join(op, ',');
+		eventWriter.append(line).append('\n');
+		written += line.length() + 1;
+		eventWriter.flush();
+	}
+
+	public synchronized boolean close() throws IOException {
+		if (eventWriter == null) {
+			return false;
+		}
+		if (currentFile != null) {
+			LOGGER.debug("Writer closing {} ", currentFile.getName());
+		}
+		eventWriter.append(END);
+		eventWriter.flush();
+		eventWriter.close();
+		eventWriter = null;
+		currentFile = null;
+		return true;
+	}
+
+}
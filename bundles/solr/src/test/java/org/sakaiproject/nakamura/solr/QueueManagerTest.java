@@ -53,12 +53,16 @@ public class QueueManagerTest {
   protected SolrServer server, serverSpy;
 
   /**
-   * A simple IndexingHandler that produces very simple SolrInputDocuments
+   * A simple IndexingHandler that produces very simple SolrInputDocuments, or a delete
+   * query for events that carry one.
    */
   class TestIndexingHandler implements IndexingHandler {
 
     @Override
     public Collection<SolrInputDocument> getDocuments(RepositorySession repositorySession, Event event) {
+      if (event.getProperty("deleteQuery") != null) {
+        return null;
+      }
       SolrInputDocument doc = new SolrInputDocument();
 
       doc.setField("id", event.getProperty("path"));
@@ -75,7 +79,13 @@ public class QueueManagerTest {
 
     @Override
     public Collection<String> getDeleteQueries(RepositorySession respositorySession, Event event) {
-      return null;
+      String deleteQuery = (String) event.getProperty("deleteQuery");
+      if (deleteQuery == null) {
+        return null;
+      }
+      ArrayList<String> deleteQueries = new ArrayList<String>();
+      deleteQueries.add(deleteQuery);
+      return deleteQueries;
     }
   }
 
@@ -159,8 +169,8 @@ public class QueueManagerTest {
 
     /*
       implements a callback object for handling calls to add(Collection<SolrInputDoc>)
-      it will count the number of times add(...) has been called and will throw a ConnectException once
-        during the batch
+      it will count the number of times add(...) has been called and will throw a ConnectException
+        the first time, the whole batch is sent in one add(...) so the retry is the second call
      */
     final CallCountingAnswer addDocsAnswer = new CallCountingAnswer() {
       int count = 0;
@@ -174,7 +184,7 @@ public class QueueManagerTest {
       public Object answer(InvocationOnMock invocationOnMock) throws Throwable {
         ++count;
 
-        if (count == 6) {
+        if (count == 1) {
           throw new SolrServerException(new ConnectException("try again"));
         }
 
@@ -188,14 +198,14 @@ public class QueueManagerTest {
     // load up 10 events
     fireEvents(10);
 
-    // create a thread that will stop QueueManager after SolrServer.add(...) has been called 10 times
+    // create a thread that will stop QueueManager after the batch has been retried
     (new Thread (new Runnable () {
 
       @Override
       public void run() {
         int internalCount = 0;
 
-        while (addDocsAnswer.getCallCount() < 11 && internalCount < 20) {
+        while (addDocsAnswer.getCallCount() < 2 && internalCount < 20) {
           try {
             Thread.sleep(500);
           } catch (InterruptedException e) {
@@ -229,4 +239,109 @@ public class QueueManagerTest {
     int size = response.getResults().size();
     assertEquals (10, size);
   }
+
+  @Test
+  public void testParallelWorkersSendOneAddPerBatch() throws Exception {
+    final QueueManager qm = new QueueManager(qMgrDrvr, "target/queueManagerTest/indexQueues",
+        "testParallelQueue", true, 10, 5000, RedoLogFormat.BINARY,
+        RedoLogFormat.DEFAULT_SEGMENT_SIZE, false, 4);
+
+    final CallCountingAnswer addDocsAnswer = new CallCountingAnswer() {
+      int count = 0;
+
+      @Override
+      public int getCallCount() {
+        return count;
+      }
+
+      @Override
+      public Object answer(InvocationOnMock invocationOnMock) throws Throwable {
+        ++count;
+        assertEquals(10, ((Collection<?>) invocationOnMock.getArguments()[0]).size());
+        return invocationOnMock.callRealMethod();
+      }
+    };
+    doAnswer(addDocsAnswer).when(serverSpy).add(any(Collection.class));
+
+    for (int i = 0; i < 10; i++) {
+      Properties props = new Properties();
+      props.setProperty("path", "parallel" + i + "path");
+      qm.saveEvent(new Event("topic" + i, (Dictionary)props));
+    }
+
+    (new Thread (new Runnable () {
+
+      @Override
+      public void run() {
+        int internalCount = 0;
+        while (addDocsAnswer.getCallCount() < 1 && internalCount < 20) {
+          try {
+            Thread.sleep(500);
+          } catch (InterruptedException e) {
+          }
+          internalCount++;
+        }
+        try {
+          qm.stop();
+        } catch (IOException e) {
+
+        }
+      }
+    })).start();
+
+    qm.start();
+    qm.getQueueDispatcher().join();
+
+    assertEquals(1, addDocsAnswer.getCallCount());
+    assertEquals(1, qm.getStats().getBatches());
+    assertEquals(10, qm.getStats().getEventsIndexed());
+    assertEquals(1, qm.getStats().getHandlerTimings().length);
+  }
+
+  @Test
+  public void testDeleteAfterAddKeepsEventOrder() throws Exception {
+    final QueueManager qm = new QueueManager(qMgrDrvr, "target/queueManagerTest/indexQueues",
+        "testOrderQueue", true, 10, 5000);
+
+    Properties props = new Properties();
+    props.setProperty("path", "orderApath");
+    qm.saveEvent(new Event("topicA", (Dictionary)props));
+    props = new Properties();
+    props.setProperty("path", "orderBpath");
+    qm.saveEvent(new Event("topicB", (Dictionary)props));
+    // a later event deletes the document of an earlier one in the same batch
+    props = new Properties();
+    props.setProperty("path", "orderDeletePath");
+    props.setProperty("deleteQuery", "id:orderApath");
+    qm.saveEvent(new Event("topicDelete", (Dictionary)props));
+
+    (new Thread (new Runnable () {
+
+      @Override
+      public void run() {
+        int internalCount = 0;
+        while (qm.getStats().getEventsIndexed() < 3 && internalCount < 20) {
+          try {
+            Thread.sleep(500);
+          } catch (InterruptedException e) {
+          }
+          internalCount++;
+        }
+        try {
+          qm.stop();
+        } catch (IOException e) {
+
+        }
+      }
+    })).start();
+
+    qm.start();
+    qm.getQueueDispatcher().join();
+
+    ModifiableSolrParams params = new ModifiableSolrParams();
+    params.set("q", "id:orderApath");
+    assertEquals(0, server.query(params, SolrRequest.METHOD.POST).getResults().size());
+    params.set("q", "id:orderBpath");
+    assertEquals(1, server.query(params, SolrRequest.METHOD.POST).getResults().size());
+  }
 }
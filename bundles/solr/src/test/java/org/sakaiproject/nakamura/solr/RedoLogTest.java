@@ -0,0 +1,203 @@
+/**
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.solr;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Dictionary;
+import java.util.Hashtable;
+import java.util.List;
+import java.util.Set;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.osgi.service.event.Event;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Sets;
+
+public class RedoLogTest {
+
+	private File logDirectory;
+
+	@Before
+	public void before() throws IOException {
+		logDirectory = new File("target/redoLogTest/"
+				+ System.currentTimeMillis());
+		if (!logDirectory.mkdirs()) {
+			throw new IOException("Failed to create " + logDirectory);
+		}
+	}
+
+	@After
+	public void after() {
+		File[] files = logDirectory.listFiles();
+		if (files != null) {
+			for (File f : files) {
+				f.delete();
+			}
+		}
+		logDirectory.delete();
+	}
+
+	private Event newEvent(int i) {
+		Dictionary<String, Object> props = new Hashtable<String, Object>();
+		props.put("path", "/some/path,with=odd chars/" + i);
+		props.put("n", i);
+		return new Event("org/sakaiproject/nakamura/lite/content/UPDATED", props);
+	}
+
+	private List<File> sortedFiles() {
+		List<File> files = Lists.newArrayList(logDirectory.listFiles());
+		java.util.Collections.sort(files);
+		return files;
+	}
+
+	@Test
+	public void testBinaryRoundTrip() throws IOException {
+		RedoLogWriter writer = RedoLogFormat.BINARY.newWriter(logDirectory,
+				RedoLogFormat.DEFAULT_SEGMENT_SIZE, true);
+		for (int i = 0; i < 10; i++) {
+			writer.append(newEvent(i));
+		}
+		List<File> files = sortedFiles();
+		assertEquals(1, files.size());
+
+		// tail the segment while it is still open.
+		RedoLogReader reader = RedoLogFormat.openReader(files.get(0), 0);
+		for (int i = 0; i < 10; i++) {
+			Event e = reader.read();
+			assertEquals("org/sakaiproject/nakamura/lite/content/UPDATED",
+					e.getTopic());
+			assertEquals("/some/path,with=odd chars/" + i, e.getProperty("path"));
+			assertEquals(String.valueOf(i), e.getProperty("n"));
+		}
+		assertNull(reader.read());
+		long position = reader.getPosition();
+		reader.close();
+
+		writer.append(newEvent(10));
+		assertTrue(writer.close());
+
+		reader = RedoLogFormat.openReader(files.get(0), position);
+		assertEquals("/some/path,with=odd chars/10", reader.read()
+				.getProperty("path"));
+		assertSame(RedoLogReader.END, reader.read());
+		reader.close();
+	}
+
+	@Test
+	public void testBinarySegmentsRoll() throws IOException {
+		RedoLogWriter writer = RedoLogFormat.BINARY.newWriter(logDirectory, 512,
+				false);
+		for (int i = 0; i < 50; i++) {
+			writer.append(newEvent(i));
+		}
+		writer.close();
+		List<File> files = sortedFiles();
+		assertTrue(files.size() > 1);
+		int n = 0;
+		for (File f : files) {
+			assertTrue(f.length() <= 512);
+			RedoLogReader reader = RedoLogFormat.openReader(f, 0);
+			Event e = reader.read();
+			while (e != RedoLogReader.END) {
+				assertEquals(String.valueOf(n), e.getProperty("n"));
+				n++;
+				e = reader.read();
+			}
+			reader.close();
+		}
+		assertEquals(50, n);
+	}
+
+	@Test
+	public void testGroupCommit() throws Exception {
+		final RedoLogWriter writer = RedoLogFormat.BINARY.newWriter(
+				logDirectory, 16 * 1024, false);
+		Thread[] threads = new Thread[8];
+		for (int t = 0; t < threads.length; t++) {
+			final int base = t * 1000;
+			threads[t] = new Thread() {
+				@Override
+				public void run() {
+					try {
+						for (int i = 0; i < 200; i++) {
+							writer.append(newEvent(base + i));
+						}
+					} catch (IOException e) {
+						throw new RuntimeException(e);
+					}
+				}
+			};
+			threads[t].start();
+		}
+		for (Thread t : threads) {
+			t.join();
+		}
+		writer.close();
+		Set<String> seen = Sets.newHashSet();
+		for (File f : sortedFiles()) {
+			RedoLogReader reader = RedoLogFormat.openReader(f, 0);
+			Event e = reader.read();
+			while (e != RedoLogReader.END) {
+				assertTrue(seen.add((String) e.getProperty("n")));
+				e = reader.read();
+			}
+			reader.close();
+		}
+		assertEquals(threads.length * 200, seen.size());
+	}
+
+	@Test
+	public void testTextLogStillReadable() throws IOException {
+		// a log left behind by the text only QueueManager.
+		File old = new File(logDirectory, "1234");
+		FileWriter fw = new FileWriter(old);
+		fw.append("org%2Fsakaiproject%2Fnakamura%2Flite%2Fcontent%2FUPDATED,path,%2Fa\n");
+		fw.append("org%2Fsakaiproject%2Fnakamura%2Flite%2Fcontent%2FUPDATED,path,%2Fb\n");
+		fw.append(TextRedoLogWriter.END);
+		fw.close();
+
+		RedoLogReader reader = RedoLogFormat.openReader(old, 1);
+		Event e = reader.read();
+		assertEquals("/b", e.getProperty("path"));
+		assertEquals(2, reader.getPosition());
+		assertSame(RedoLogReader.END, reader.read());
+		reader.close();
+	}
+
+	@Test
+	public void testEmptyFileWaits() throws IOException {
+		File empty = new File(logDirectory, "5678");
+		assertTrue(empty.createNewFile());
+		RedoLogReader reader = RedoLogFormat.openReader(empty, 0);
+		assertNull(reader.read());
+		assertEquals(0, reader.getPosition());
+		reader.close();
+		assertEquals(Arrays.asList(empty), sortedFiles());
+	}
+}
@@ -39,6 +39,10 @@ import java.io.UnsupportedEncodingException;
 import java.security.InvalidKeyException;
 import java.security.NoSuchAlgorithmException;
 import java.security.SecureRandom;
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicReferenceArray;
 
 import javax.crypto.Mac;
 import javax.crypto.SecretKey;
@@ -123,17 +127,14 @@ public class TokenStore {
     public String encode(long expires, String userId, String tokenType) throws IllegalStateException,
         UnsupportedEncodingException, NoSuchAlgorithmException, InvalidKeyException,
         SecureCookieException {
-      String cookiePayload = String.valueOf(secretKeyId) + String.valueOf(expires) + "@"
-          + encodeField(userId) + "@" + tokenType+ "@" + serverId;
-      Mac m = Mac.getInstance(HMAC_SHA1);
-      ExpiringSecretKey expiringSecretKey = TokenStore.this.getSecretKey(serverId,
-          secretKeyId);
-      if (expiringSecretKey == null) {
+      String cookiePayload = new StringBuilder(64).append(secretKeyId).append(expires)
+          .append('@').append(encodeField(userId)).append('@').append(tokenType)
+          .append('@').append(serverId).toString();
+      RingKey ringKey = TokenStore.this.getRingKey(serverId, secretKeyId);
+      if (ringKey == null) {
         throw new SecureCookieException("Key serverId=["+serverId+"]: KeyId=["+secretKeyId+"] not found ", false);
       }
-      m.init(TokenStore.this.getSecretKey(serverId, secretKeyId).getSecretKey());
-      m.update(cookiePayload.getBytes(UTF_8));
-      String cookieValue = encodeField(m.doFinal());
+      String cookieValue = encodeField(ringKey.sign(cookiePayload));
       return cookieValue + "@" + cookiePayload;
     }
 
@@ -143,41 +144,51 @@ public class TokenStore {
      * @throws SecureCookieException
      */
     public String[] decode(String value) throws SecureCookieException {
+      ValidatedToken validated = getValidatedToken(value);
+      if (validated != null) {
+        return new String[] { validated.userId, validated.tokenType };
+      }
       String[] parts = StringUtils.split(value, "@");
       if (parts != null && parts.length == 5) {
-        this.secretKeyId = Integer.parseInt(parts[1].substring(0, 1));
+        long cookieTime;
+        try {
+          this.secretKeyId = Integer.parseInt(parts[1].substring(0, 1));
+          cookieTime = Long.parseLong(parts[1].substring(1));
+        } catch (NumberFormatException e) {
+          throw new SecureCookieException("AuthNCookie is invalid format " + value, false);
+        }
         this.tokenType = parts[3];
         this.serverId = parts[4];
-        long cookieTime = Long.parseLong(parts[1].substring(1));
         if (System.currentTimeMillis() < cookieTime) {
           try {
-            
-            ExpiringSecretKey expiringSecretKey = TokenStore.this.getSecretKey(serverId,
-                secretKeyId);
-            if (expiringSecretKey == null) {
+            RingKey ringKey = TokenStore.this.getRingKey(serverId, secretKeyId);
+            if (ringKey == null) {
               LOG.warn("No Secure Key found ",getCacheKey(serverId, secretKeyId));
               throw new SecureCookieException("No Secure Key found "
                   + getCacheKey(serverId, secretKeyId), false);
             }
-            SecretKey secretKey = expiringSecretKey.getSecretKey();
-            String userId = decodeField(parts[2]);
+            // the hmac covers everything after the first @, exactly as it was sent.
+            int split = value.indexOf('@');
+            String hmac = value.substring(0, split);
+            String cookiePayload = value.substring(split + 1);
             if ( debugCookies ) {
-              LOG.info("Decoding with server:{} keyno:{} secret:{} user:{} cookeiTime:{} cookie:{}",new Object[]{serverId, secretKeyId, encodeField(secretKey.getEncoded()), userId, cookieTime, value} );
+              LOG.info("Decoding with server:{} keyno:{} secret:{} user:{} cookeiTime:{} cookie:{}",new Object[]{serverId, secretKeyId, encodeField(ringKey.key.getSecretKey().getEncoded()), parts[2], cookieTime, value} );
+            }
+            boolean valid = isSignedBy(hmac, cookiePayload, ringKey);
+            if (!valid) {
+              // the key may have been replaced in the cluster since it was last checked.
+              RingKey reloaded = TokenStore.this.reloadRingKey(serverId, secretKeyId, ringKey);
+              valid = reloaded != null && isSignedBy(hmac, cookiePayload, reloaded);
             }
-            String hmac = encode(cookieTime, userId, this.tokenType);
-            if (value.equals(hmac)) {
+            if (valid) {
+              String userId = decodeField(parts[2]);
+              putValidatedToken(value, userId, tokenType, cookieTime);
               return new String[]{userId, tokenType};
             }
-          } catch (ArrayIndexOutOfBoundsException e) {
-            LOG.error(e.getMessage(), e);
-          } catch (InvalidKeyException e) {
-            LOG.error(e.getMessage(), e);
           } catch (IllegalStateException e) {
             LOG.error(e.getMessage(), e);
           } catch (UnsupportedEncodingException e) {
             LOG.error(e.getMessage(), e);
-          } catch (NoSuchAlgorithmException e) {
-            LOG.error(e.getMessage(), e);
           }
           throw new SecureCookieException("AuthNCookie is invalid " + value, false);
         } else {
@@ -189,8 +200,79 @@ public class TokenStore {
       }
     }
 
+    private boolean isSignedBy(String hmac, String cookiePayload, RingKey ringKey)
+        throws UnsupportedEncodingException {
+      String expected = encodeField(ringKey.sign(cookiePayload));
+      // compare every character so the time taken doesn't give away how much matched.
+      if (expected.length() != hmac.length()) {
+        return false;
+      }
+      int diff = 0;
+      for (int i = 0; i < expected.length(); i++) {
+        diff |= expected.charAt(i) ^ hmac.charAt(i);
+      }
+      return diff == 0;
+    }
+
+  }
+
+  /**
+   * A secret key in the key ring, with a Mac for each thread already initialised with the
+   * key.
+   */
+  private static final class RingKey {
+    private final ExpiringSecretKey key;
+    /**
+     * When the key was last compared with the cluster cache.
+     */
+    private volatile long checked;
+    private final ThreadLocal<Mac> mac = new ThreadLocal<Mac>() {
+      @Override
+      protected Mac initialValue() {
+        try {
+          Mac m = Mac.getInstance(HMAC_SHA1);
+          m.init(key.getSecretKey());
+          return m;
+        } catch (NoSuchAlgorithmException e) {
+          throw new IllegalStateException(e.getMessage(), e);
+        } catch (InvalidKeyException e) {
+          throw new IllegalStateException(e.getMessage(), e);
+        }
+      }
+    };
 
+    private RingKey(ExpiringSecretKey key, long checked) {
+      this.key = key;
+      this.checked = checked;
+    }
 
+    private byte[] sign(String payload) throws UnsupportedEncodingException {
+      // doFinal resets the Mac ready for the next use on this thread.
+      return mac.get().doFinal(payload.getBytes(UTF_8));
+    }
+
+    private boolean isKey(ExpiringSecretKey other) {
+      return key == other
+          || (key.getExpires() == other.getExpires() && Arrays.equals(key.getSecretKey()
+              .getEncoded(), other.getSecretKey().getEncoded()));
+    }
+  }
+
+  /**
+   * A cookie that has already been validated.
+   */
+  private static final class ValidatedToken {
+    private final String value;
+    private final String userId;
+    private final String tokenType;
+    private final long validUntil;
+
+    private ValidatedToken(String value, String userId, String tokenType, long validUntil) {
+      this.value = value;
+      this.userId = userId;
+      this.tokenType = tokenType;
+      this.validUntil = validUntil;
+    }
   }
 
   public static final Logger LOG = LoggerFactory.getLogger(TokenStore.class);
@@ -210,6 +292,26 @@ public class TokenStore {
   private static final String UTF_8 = "UTF-8";
 
   private static final String DEFAULT_TOKEN_FILE = "sling/cookie-tokens.bin";
+
+  /**
+   * The number of keys each server keeps in its ring.
+   */
+  private static final int RING_SIZE = 5;
+
+  /**
+   * How often a key in the key ring is compared with the cluster cache (in ms).
+   */
+  private static final long KEY_RECHECK = 30000L;
+
+  /**
+   * How long a validated cookie is trusted without checking the hmac again (in ms).
+   */
+  private static final long VALIDATED_TOKEN_TTL = 10000L;
+
+  /**
+   * The number of validated cookies kept, must be a power of 2.
+   */
+  private static final int VALIDATED_TOKEN_SLOTS = 1024;
   /**
    * The ttl of the cookie before it becomes invalid (in ms)
    */
@@ -254,6 +356,18 @@ public class TokenStore {
 
   private boolean debugCookies;
 
+  /**
+   * The keys of every server seen, indexed by key number, so that validating a cookie
+   * doesn't need to go to the cluster cache.
+   */
+  private final ConcurrentMap<String, AtomicReferenceArray<RingKey>> keyRing = new ConcurrentHashMap<String, AtomicReferenceArray<RingKey>>();
+
+  /**
+   * Recently validated cookies, in slots chosen by the hash of the cookie value.
+   */
+  private final AtomicReferenceArray<ValidatedToken> validatedTokens = new AtomicReferenceArray<ValidatedToken>(
+      VALIDATED_TOKEN_SLOTS);
+
   /**
    * @throws NoSuchAlgorithmException
    * @throws InvalidKeyException
@@ -337,6 +451,7 @@ public class TokenStore {
       }
       getServerKeyCache().put(getCacheKey(serverId, nextToken),
           expiringSecretKey.getSecretKeyData());
+      getKeyRing(serverId).set(nextToken, null);
       secretKeyId = nextToken;
       saveLocalSecretKeys();
     }
@@ -434,7 +549,7 @@ public class TokenStore {
       keyInputStream = new DataInputStream(fin);
       int newCurrentToken = keyInputStream.readInt();
       long newNextUpdate = keyInputStream.readLong();
-      ExpiringSecretKey[] newKeys = new ExpiringSecretKey[5];
+      ExpiringSecretKey[] newKeys = new ExpiringSecretKey[RING_SIZE];
       for (int i = 0; i < newKeys.length; i++) {
         int isNull = keyInputStream.readInt();
         if (isNull == 1) {
@@ -471,7 +586,7 @@ public class TokenStore {
       }
     }
     if (secretKeyRingBuffer == null) {
-      secretKeyRingBuffer = new ExpiringSecretKey[5];
+      secretKeyRingBuffer = new ExpiringSecretKey[RING_SIZE];
       nextUpdate = System.currentTimeMillis();
       secretKeyId = 0;
     }
@@ -532,6 +647,91 @@ public class TokenStore {
     return null;
   }
 
+  /**
+   * Get a key from the key ring, loading it if it isn't there, has expired or has not
+   * been checked recently.
+   *
+   * @param serverId
+   *          the server that owns the secret Key
+   * @param keyNumber
+   *          the key number
+   * @return the key, or null if there is none.
+   */
+  private RingKey getRingKey(String serverId, int keyNumber) {
+    if (keyNumber < 0 || keyNumber >= RING_SIZE) {
+      return null;
+    }
+    RingKey ringKey = getKeyRing(serverId).get(keyNumber);
+    long now = System.currentTimeMillis();
+    if (ringKey != null && now < ringKey.key.getExpires()
+        && now < ringKey.checked + KEY_RECHECK) {
+      return ringKey;
+    }
+    return reloadRingKey(serverId, keyNumber, ringKey);
+  }
+
+  /**
+   * Load a key into the key ring, keeping the existing entry if the key has not changed.
+   *
+   * @return the key, or null if there is none.
+   */
+  private RingKey reloadRingKey(String serverId, int keyNumber, RingKey ringKey) {
+    AtomicReferenceArray<RingKey> ring = getKeyRing(serverId);
+    ExpiringSecretKey secretKey = getSecretKey(serverId, keyNumber);
+    if (secretKey == null) {
+      ring.compareAndSet(keyNumber, ringKey, null);
+      return null;
+    }
+    long now = System.currentTimeMillis();
+    if (ringKey != null && ringKey.isKey(secretKey)) {
+      ringKey.checked = now;
+      return ringKey;
+    }
+    RingKey newRingKey = new RingKey(secretKey, now);
+    ring.set(keyNumber, newRingKey);
+    return newRingKey;
+  }
+
+  private AtomicReferenceArray<RingKey> getKeyRing(String serverId) {
+    AtomicReferenceArray<RingKey> ring = keyRing.get(serverId);
+    if (ring == null) {
+      ring = new AtomicReferenceArray<RingKey>(RING_SIZE);
+      AtomicReferenceArray<RingKey> existing = keyRing.putIfAbsent(serverId, ring);
+      if (existing != null) {
+        ring = existing;
+      }
+    }
+    return ring;
+  }
+
+  /**
+   * @return the validated cookie, or null if the cookie has not been validated recently.
+   */
+  private ValidatedToken getValidatedToken(String value) {
+    if (value == null) {
+      return null;
+    }
+    ValidatedToken validated = validatedTokens.get(getSlot(value));
+    if (validated != null && value.equals(validated.value)
+        && System.currentTimeMillis() < validated.validUntil) {
+      return validated;
+    }
+    return null;
+  }
+
+  private void putValidatedToken(String value, String userId, String tokenType,
+      long cookieTime) {
+    long validUntil = Math.min(cookieTime, System.currentTimeMillis()
+        + VALIDATED_TOKEN_TTL);
+    validatedTokens.set(getSlot(value), new ValidatedToken(value, userId, tokenType,
+        validUntil));
+  }
+
+  private int getSlot(String value) {
+    int h = value.hashCode();
+    return (h ^ (h >>> 16)) & (VALIDATED_TOKEN_SLOTS - 1);
+  }
+
   /**
    * @return
    */
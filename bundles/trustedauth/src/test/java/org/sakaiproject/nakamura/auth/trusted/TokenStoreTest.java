@@ -0,0 +1,153 @@
+/**
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.auth.trusted;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.fail;
+
+import org.apache.commons.lang.StringUtils;
+import org.junit.Before;
+import org.junit.Test;
+import org.sakaiproject.nakamura.api.memory.Cache;
+import org.sakaiproject.nakamura.api.memory.CacheManagerService;
+import org.sakaiproject.nakamura.api.memory.CacheScope;
+import org.sakaiproject.nakamura.auth.trusted.TokenStore.SecureCookieException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+
+/**
+ *
+ */
+public class TokenStoreTest {
+
+  private static final Logger LOGGER = LoggerFactory.getLogger(TokenStoreTest.class);
+  private static final String TYPE = "type";
+  private CacheManagerService cacheManagerService;
+
+  @Before
+  public void before() {
+    final Cache<Object> cache = new LocalCache<Object>();
+    cacheManagerService = new CacheManagerService() {
+      @SuppressWarnings("unchecked")
+      public <T> Cache<T> getCache(String name, CacheScope scope) {
+        return (Cache<T>) cache;
+      }
+
+      public void unbind(CacheScope scope) {
+      }
+    };
+  }
+
+  private TokenStore createTokenStore(String serverId, String tokenFile) throws Exception {
+    File file = new File(tokenFile);
+    if (file.exists() && !file.delete()) {
+      fail("Unable to remove " + file);
+    }
+    TokenStore tokenStore = new TokenStore();
+    tokenStore.doInit(cacheManagerService, tokenFile, serverId, 1200000L);
+    return tokenStore;
+  }
+
+  private String encode(TokenStore tokenStore, String userId) throws Exception {
+    return tokenStore.getActiveToken().encode(System.currentTimeMillis() + 60000L, userId,
+        TYPE);
+  }
+
+  private void assertInvalid(TokenStore tokenStore, String cookie) {
+    try {
+      tokenStore.getSecureCookie().decode(cookie);
+      fail("Cookie " + cookie + " should not be valid");
+    } catch (SecureCookieException e) {
+      // expected
+    }
+  }
+
+  @Test
+  public void testEncodeDecode() throws Exception {
+    TokenStore tokenStore = createTokenStore("serverA", "target/tokenstore-a.bin");
+    String cookie = encode(tokenStore, "ieb");
+    assertArrayEquals(new String[] { "ieb", TYPE }, tokenStore.getSecureCookie().decode(
+        cookie));
+    // the second time comes from the validated cookies.
+    assertArrayEquals(new String[] { "ieb", TYPE }, tokenStore.getSecureCookie().decode(
+        cookie));
+  }
+
+  @Test
+  public void testTamperedCookies() throws Exception {
+    TokenStore tokenStore = createTokenStore("serverA", "target/tokenstore-a.bin");
+    String cookie = encode(tokenStore, "ieb");
+    String other = encode(tokenStore, "other");
+    tokenStore.getSecureCookie().decode(cookie);
+
+    String[] parts = StringUtils.split(cookie, "@");
+    String[] otherParts = StringUtils.split(other, "@");
+    assertInvalid(tokenStore, parts[0] + "@" + parts[1] + "@" + otherParts[2] + "@"
+        + parts[3] + "@" + parts[4]);
+    assertInvalid(tokenStore, otherParts[0] + "@" + parts[1] + "@" + parts[2] + "@"
+        + parts[3] + "@" + parts[4]);
+    assertInvalid(tokenStore, "@" + cookie);
+    assertInvalid(tokenStore, parts[0] + "@" + "9" + parts[1].substring(1) + "@"
+        + parts[2] + "@" + parts[3] + "@" + parts[4]);
+    assertInvalid(tokenStore, parts[0] + "@x@" + parts[2] + "@" + parts[3] + "@"
+        + parts[4]);
+    assertInvalid(tokenStore, cookie + "invalid");
+  }
+
+  @Test
+  public void testOtherServersKeys() throws Exception {
+    TokenStore serverA = createTokenStore("serverA", "target/tokenstore-a.bin");
+    TokenStore serverB = createTokenStore("serverB", "target/tokenstore-b.bin");
+    String cookie = encode(serverB, "ieb");
+    assertArrayEquals(new String[] { "ieb", TYPE }, serverA.getSecureCookie().decode(cookie));
+
+    // serverB restarts without its key file and replaces its keys in the cluster, serverA
+    // has to notice even though it has the old key in its key ring.
+    TokenStore restartedB = createTokenStore("serverB", "target/tokenstore-b2.bin");
+    String newCookie = encode(restartedB, "ieb2");
+    assertArrayEquals(new String[] { "ieb2", TYPE }, serverA.getSecureCookie().decode(
+        newCookie));
+  }
+
+  @Test
+  public void testRate() throws Exception {
+    TokenStore tokenStore = createTokenStore("serverA", "target/tokenstore-a.bin");
+    int testSize = 20000;
+    String[] cookies = new String[testSize];
+    long s = System.nanoTime();
+    for (int i = 0; i < testSize; i++) {
+      cookies[i] = encode(tokenStore, "user" + i);
+    }
+    long encode = System.nanoTime() - s;
+    s = System.nanoTime();
+    for (int i = 0; i < testSize; i++) {
+      tokenStore.getSecureCookie().decode(cookies[i]);
+    }
+    long decode = System.nanoTime() - s;
+    s = System.nanoTime();
+    for (int i = 0; i < testSize; i++) {
+      tokenStore.getSecureCookie().decode(cookies[testSize - 1]);
+    }
+    long validated = System.nanoTime() - s;
+    LOGGER.info("Encode {} ns, decode {} ns, decode of a validated cookie {} ns",
+        new Object[] { encode / testSize, decode / testSize, validated / testSize });
+  }
+
+}